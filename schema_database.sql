@@ -15,15 +15,32 @@ CREATE TABLE LoginUser (
     created_at     TIMESTAMP    NOT NULL DEFAULT CURRENT_TIMESTAMP
 ) ENGINE=InnoDB;
 
--- Persona per-utente: stessa persona (telefono) può esistere per utenti diversi
+-- Persona per-utente: stessa persona (telefono) può esistere per utenti diversi.
+-- version cresce a ogni modifica della riga (concorrenza ottimistica in sp_modifica_persona);
+-- per un database esistente: ALTER TABLE Persona ADD COLUMN version BIGINT UNSIGNED NOT NULL DEFAULT 1;
+-- seq è la sequenza della rubrica (RubricaSequenza) dell'ultima scrittura della riga: i client
+-- sincronizzati chiedono solo le righe con seq maggiore dell'ultima ricevuta (sp_modifiche_rubrica);
+-- per un database esistente: ALTER TABLE Persona ADD COLUMN seq BIGINT UNSIGNED NOT NULL DEFAULT 0,
+--                             ADD INDEX ix_persona_seq (username, seq);
+-- id è la chiave stabile della voce: un cambio di telefono aggiorna la riga sul posto invece di
+-- spostarla nell'indice clustered; il telefono resta univoco per utente con uq_persona_telefono.
+-- per un database esistente (le righe ricevono l'id in ordine di chiave primaria):
+--   ALTER TABLE Persona DROP PRIMARY KEY,
+--       ADD COLUMN id BIGINT UNSIGNED NOT NULL AUTO_INCREMENT PRIMARY KEY FIRST,
+--       ADD UNIQUE KEY uq_persona_telefono (username, telefono);
+-- poi ricreare sp_modifica_persona e sp_get_rubrica.
 CREATE TABLE Persona (
+    id        BIGINT UNSIGNED NOT NULL AUTO_INCREMENT,
     username  VARCHAR(64)  NOT NULL,
     telefono  VARCHAR(20)  NOT NULL,
     nome      VARCHAR(64)  NOT NULL,
     cognome   VARCHAR(64)  NOT NULL,
     indirizzo VARCHAR(128) NOT NULL,
     eta       INT          NOT NULL CHECK (eta >= 0),
-    PRIMARY KEY (username, telefono),
+    version   BIGINT UNSIGNED NOT NULL DEFAULT 1,
+    seq       BIGINT UNSIGNED NOT NULL DEFAULT 0,
+    PRIMARY KEY (id),
+    UNIQUE KEY uq_persona_telefono (username, telefono),
     CONSTRAINT fk_persona_user
         FOREIGN KEY (username) REFERENCES LoginUser(username)
         ON DELETE CASCADE ON UPDATE CASCADE
@@ -31,6 +48,53 @@ CREATE TABLE Persona (
 
 CREATE INDEX ix_persona_cognome_nome ON Persona(username, cognome, nome);
 CREATE INDEX ix_persona_telefono ON Persona(telefono);
+CREATE INDEX ix_persona_seq ON Persona(username, seq);
+
+-- Contatore delle scritture per rubrica (fn_prossima_seq). seq_potata: le eliminazioni con
+-- sequenza <= seq_potata sono state rimosse da PersonaEliminata, chi è fermo prima riparte da zero.
+CREATE TABLE RubricaSequenza (
+    username    VARCHAR(64)     PRIMARY KEY,
+    seq         BIGINT UNSIGNED NOT NULL DEFAULT 0,
+    seq_potata  BIGINT UNSIGNED NOT NULL DEFAULT 0,
+    CONSTRAINT fk_sequenza_user
+        FOREIGN KEY (username) REFERENCES LoginUser(username)
+        ON DELETE CASCADE ON UPDATE CASCADE
+) ENGINE=InnoDB;
+
+-- Eliminazioni (tombstone) per la sincronizzazione incrementale; una riga per telefono,
+-- rimossa se il telefono viene reinserito.
+CREATE TABLE PersonaEliminata (
+    username      VARCHAR(64)     NOT NULL,
+    telefono      VARCHAR(20)     NOT NULL,
+    seq           BIGINT UNSIGNED NOT NULL,
+    eliminata_il  TIMESTAMP       NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (username, telefono),
+    CONSTRAINT fk_eliminata_user
+        FOREIGN KEY (username) REFERENCES LoginUser(username)
+        ON DELETE CASCADE ON UPDATE CASCADE
+) ENGINE=InnoDB;
+
+CREATE INDEX ix_eliminata_seq ON PersonaEliminata(username, seq);
+
+-- Statistiche aggregate per rubrica, aggiornate dai trigger su Persona dentro la transazione
+-- di ogni stored procedure di scrittura: le dashboard non scorrono Persona.
+--   dimensione 'totale'    chiave ''            contatti
+--   dimensione 'somma_eta' chiave ''            somma delle età (media = somma_eta / totale)
+--   dimensione 'eta'       chiave '000'..'120'  contatti per fascia di dieci anni ('120' anche per le età oltre)
+--   dimensione 'iniziale'  chiave 'A'..         contatti per iniziale del cognome
+--   dimensione 'token'     chiave 'roma'..      contatti con la parola nell'indirizzo (>= 3 lettere, senza accenti)
+--   dimensione 'giorno'    chiave 'AAAA-MM-GG'  saldo inserimenti - eliminazioni del giorno (crescita)
+-- per un database esistente, dopo aver creato tabella, procedure e trigger: CALL sp_ricalcola_statistiche();
+CREATE TABLE RubricaStatistica (
+    username    VARCHAR(64) NOT NULL,
+    dimensione  VARCHAR(16) NOT NULL,
+    chiave      VARCHAR(64) NOT NULL,
+    conteggio   BIGINT      NOT NULL DEFAULT 0,
+    PRIMARY KEY (username, dimensione, chiave),
+    CONSTRAINT fk_statistica_user
+        FOREIGN KEY (username) REFERENCES LoginUser(username)
+        ON DELETE CASCADE ON UPDATE CASCADE
+) ENGINE=InnoDB;
 
 -- Sessioni (token)
 CREATE TABLE LoginSession (
@@ -46,6 +110,15 @@ CREATE TABLE LoginSession (
 CREATE INDEX ix_session_user ON LoginSession(username);
 CREATE INDEX ix_session_exp  ON LoginSession(expires_at);
 
+-- Sessioni vincolate alla connessione (sp_bind_session): evita la lookup su
+-- LoginSession a ogni chiamata. Scrivibile solo dalle routine DEFINER.
+CREATE TABLE SessionBinding (
+    connection_id BIGINT UNSIGNED PRIMARY KEY,            -- CONNECTION_ID()
+    token         CHAR(64)     NOT NULL,
+    username      VARCHAR(64)  NOT NULL,
+    expires_at    TIMESTAMP    NOT NULL
+) ENGINE=MEMORY;
+
 -- ==========================================================
 -- ROUTINES (Function + Stored Procedures)
 -- Tutte SQL SECURITY DEFINER
@@ -67,6 +140,78 @@ BEGIN
     RETURN v_user;
 END $$
 
+-- username della sessione vincolata alla connessione corrente, con fallback sul token
+DROP FUNCTION IF EXISTS fn_session_user $$
+CREATE FUNCTION fn_session_user(p_token CHAR(64))
+RETURNS VARCHAR(64)
+SQL SECURITY DEFINER
+READS SQL DATA
+BEGIN
+    DECLARE v_user VARCHAR(64);
+    SELECT username INTO v_user
+    FROM SessionBinding
+    WHERE connection_id = CONNECTION_ID()
+      AND token = p_token
+      AND expires_at >= NOW();
+    IF v_user IS NULL THEN
+        SET v_user = fn_username_from_token(p_token);
+    END IF;
+    RETURN v_user;
+END $$
+
+-- prossima sequenza della rubrica, da invocare dentro la transazione della scrittura come
+-- ultima istruzione prima del COMMIT. Il lock sulla riga dell'utente in RubricaSequenza resta
+-- fino al COMMIT: le scritture dello stesso utente diventano visibili in ordine di sequenza e un
+-- lettore (sp_modifiche_rubrica) non salta numeri. Le SP scrivono prima le righe con la
+-- sequenza provvisoria ~0 (massimo BIGINT UNSIGNED), poi prendono la sequenza e la assegnano
+-- alle sole righe già bloccate dalla stessa transazione: due scritture concorrenti sulla stessa
+-- rubrica si attendono solo per questo tratto finale, mentre inserimenti, compare-and-set e
+-- trigger delle statistiche procedono con i lock di riga (Persona, PersonaEliminata,
+-- RubricaStatistica delle chiavi toccate). Le scritture sulla stessa voce restano
+-- serializzate dal lock della sua riga in Persona.
+DROP FUNCTION IF EXISTS fn_prossima_seq $$
+CREATE FUNCTION fn_prossima_seq(p_user VARCHAR(64))
+RETURNS BIGINT UNSIGNED
+SQL SECURITY DEFINER
+MODIFIES SQL DATA
+BEGIN
+    INSERT INTO RubricaSequenza(username, seq) VALUES (p_user, LAST_INSERT_ID(1))
+    ON DUPLICATE KEY UPDATE seq = LAST_INSERT_ID(seq + 1);
+    RETURN LAST_INSERT_ID();
+END $$
+
+-- BIND SESSION: valida il token una volta e lo lega alla connessione corrente
+DROP PROCEDURE IF EXISTS sp_bind_session $$
+CREATE PROCEDURE sp_bind_session(IN p_token CHAR(64))
+SQL SECURITY DEFINER
+BEGIN
+    DECLARE v_user VARCHAR(64);
+    DECLARE v_exp  TIMESTAMP;
+
+    SELECT username, expires_at INTO v_user, v_exp
+    FROM LoginSession
+    WHERE token = p_token
+      AND expires_at >= NOW();
+
+    IF v_user IS NULL THEN
+        SIGNAL SQLSTATE '45010' SET MESSAGE_TEXT = 'Sessione non valida o scaduta';
+    END IF;
+
+    REPLACE INTO SessionBinding(connection_id, token, username, expires_at)
+    VALUES (CONNECTION_ID(), p_token, v_user, v_exp);
+END $$
+
+-- UNBIND SESSION: scioglie il legame della connessione corrente, prima di chiuderla
+-- (SessionBinding è indicizzata per CONNECTION_ID(), che il server riusa)
+DROP PROCEDURE IF EXISTS sp_unbind_session $$
+CREATE PROCEDURE sp_unbind_session(IN p_token CHAR(64))
+SQL SECURITY DEFINER
+BEGIN
+    DELETE FROM SessionBinding
+    WHERE connection_id = CONNECTION_ID()
+      AND token = p_token;
+END $$
+
 -- LOGIN: TTL fisso 12 ore
 DROP PROCEDURE IF EXISTS sp_login $$
 CREATE PROCEDURE sp_login(IN p_username VARCHAR(64), IN p_plainpassword VARCHAR(255), OUT p_token CHAR(64))
@@ -91,6 +236,7 @@ BEGIN
     SET v_now = NOW();
     SET v_exp = v_now + INTERVAL 12 HOUR;
 
+    DELETE FROM SessionBinding WHERE username = p_username;
     DELETE FROM LoginSession WHERE username = p_username;
 
     SET p_token = UPPER(HEX(RANDOM_BYTES(32)));
@@ -112,6 +258,10 @@ BEGIN
     IF ROW_COUNT() = 0 THEN
         SIGNAL SQLSTATE '45010' SET MESSAGE_TEXT = 'Sessione non valida o scaduta';
     END IF;
+
+    UPDATE SessionBinding
+    SET expires_at = NOW() + INTERVAL 12 HOUR
+    WHERE token = p_token;
 END $$
 
 -- REGISTER
@@ -145,10 +295,11 @@ DROP PROCEDURE IF EXISTS sp_logout $$
 CREATE PROCEDURE sp_logout(IN p_token CHAR(64))
 SQL SECURITY DEFINER
 BEGIN
+    DELETE FROM SessionBinding WHERE token = p_token;
     DELETE FROM LoginSession WHERE token = p_token;
 END $$
 
--- INSERISCI PERSONA
+-- INSERISCI PERSONA: p_version restituisce la versione della riga scritta
 DROP PROCEDURE IF EXISTS sp_inserisci_persona $$
 CREATE PROCEDURE sp_inserisci_persona(
     IN p_token CHAR(64),
@@ -156,13 +307,15 @@ CREATE PROCEDURE sp_inserisci_persona(
     IN p_cognome VARCHAR(64),
     IN p_indirizzo VARCHAR(128),
     IN p_telefono VARCHAR(20),
-    IN p_eta INT
+    IN p_eta INT,
+    OUT p_version BIGINT UNSIGNED
 )
 SQL SECURITY DEFINER
 BEGIN
     DECLARE v_user VARCHAR(64);
+    DECLARE v_seq BIGINT UNSIGNED;
 
-    SET v_user = fn_username_from_token(p_token);
+    SET v_user = fn_session_user(p_token);
     IF v_user IS NULL THEN
         SIGNAL SQLSTATE '45010' SET MESSAGE_TEXT = 'Sessione non valida o scaduta';
     END IF;
@@ -170,133 +323,422 @@ BEGIN
     SET TRANSACTION ISOLATION LEVEL READ COMMITTED;
     START TRANSACTION;
 
-    INSERT INTO Persona(username, telefono, nome, cognome, indirizzo, eta)
-    VALUES(v_user, p_telefono, p_nome, p_cognome, p_indirizzo, p_eta)
+    INSERT INTO Persona(username, telefono, nome, cognome, indirizzo, eta, seq)
+    VALUES(v_user, p_telefono, p_nome, p_cognome, p_indirizzo, p_eta, ~0)
     ON DUPLICATE KEY UPDATE
+        version = version + 1,
+        seq = VALUES(seq),
         nome = VALUES(nome),
         cognome = VALUES(cognome),
         indirizzo = VALUES(indirizzo),
         eta = VALUES(eta);
 
+    DELETE FROM PersonaEliminata WHERE username = v_user AND telefono = p_telefono;
+
+    SELECT version INTO p_version
+    FROM Persona
+    WHERE username = v_user AND telefono = p_telefono;
+
+    -- ultima: il lock su RubricaSequenza resta solo fino al COMMIT che segue
+    SET v_seq = fn_prossima_seq(v_user);
+    UPDATE Persona SET seq = v_seq WHERE username = v_user AND telefono = p_telefono;
+
     COMMIT;
 END $$
 
+-- MODIFICA PERSONA: concorrenza ottimistica sulla colonna version, senza lock di lettura.
+-- p_version è la versione letta dal client (NULL = nessun controllo). Se nel frattempo la
+-- riga è cambiata o è stata eliminata, la modifica non viene applicata e la SP segnala
+-- 45013 invece di attendere i lock degli altri client. p_nuova_version è la versione scritta.
 DROP PROCEDURE IF EXISTS sp_modifica_persona $$
 CREATE PROCEDURE sp_modifica_persona(
-    IN p_token        CHAR(64),
-    IN p_old_telefono VARCHAR(20),
-    IN p_new_telefono VARCHAR(20),
-    IN p_nome         VARCHAR(64),
-    IN p_cognome      VARCHAR(64),
-    IN p_indirizzo    VARCHAR(128),
-    IN p_eta          INT
+    IN p_token         CHAR(64),
+    IN p_old_telefono  VARCHAR(20),
+    IN p_new_telefono  VARCHAR(20),
+    IN p_nome          VARCHAR(64),
+    IN p_cognome       VARCHAR(64),
+    IN p_indirizzo     VARCHAR(128),
+    IN p_eta           INT,
+    IN p_version       BIGINT UNSIGNED,
+    OUT p_nuova_version BIGINT UNSIGNED
 )
 SQL SECURITY DEFINER
-proc_end: BEGIN
+BEGIN
     DECLARE v_user VARCHAR(64);
-    DECLARE v_exists INT;
+    DECLARE v_id BIGINT UNSIGNED;
+    DECLARE v_attuale BIGINT UNSIGNED;
+    DECLARE v_attesa BIGINT UNSIGNED;
+    DECLARE v_seq BIGINT UNSIGNED;
+
+    -- nuovo telefono già usato da un'altra voce (uq_persona_telefono)
+    DECLARE EXIT HANDLER FOR 1062
+    BEGIN
+        ROLLBACK;
+        SIGNAL SQLSTATE '45012' SET MESSAGE_TEXT = 'Telefono già presente nella tua rubrica';
+    END;
 
-    SET v_user = fn_username_from_token(p_token);
+    SET v_user = fn_session_user(p_token);
     IF v_user IS NULL THEN
         SIGNAL SQLSTATE '45010' SET MESSAGE_TEXT = 'Sessione non valida o scaduta';
     END IF;
 
-    IF p_old_telefono = p_new_telefono THEN
-        SET TRANSACTION ISOLATION LEVEL READ COMMITTED;
-        START TRANSACTION;
-
-        UPDATE Persona
-        SET nome = p_nome,
-            cognome = p_cognome,
-            indirizzo = p_indirizzo,
-            eta = p_eta
-        WHERE username = v_user
-          AND telefono = p_old_telefono;
-
-        IF ROW_COUNT() = 0 THEN
-            ROLLBACK;
-            SIGNAL SQLSTATE '45011' SET MESSAGE_TEXT = 'Voce non trovata nella tua rubrica';
-        END IF;
-
-        COMMIT;
-        LEAVE proc_end;
-    END IF;
-
-    SET TRANSACTION ISOLATION LEVEL REPEATABLE READ;
+    SET TRANSACTION ISOLATION LEVEL READ COMMITTED;
     START TRANSACTION;
 
-    -- Blocca la riga vecchia
-    SELECT COUNT(*) INTO v_exists
+    -- lettura non bloccante: distingue solo "voce inesistente" da "conflitto"
+    SELECT id, version INTO v_id, v_attuale
     FROM Persona
-    WHERE username = v_user AND telefono = p_old_telefono
-    FOR UPDATE;
+    WHERE username = v_user AND telefono = p_old_telefono;
 
-    IF v_exists = 0 THEN
+    IF v_attuale IS NULL THEN
         ROLLBACK;
         SIGNAL SQLSTATE '45011' SET MESSAGE_TEXT = 'Voce non trovata nella tua rubrica';
     END IF;
 
-    -- Verifica unicità nuovo numero per lo stesso utente
-    SELECT COUNT(*) INTO v_exists
-    FROM Persona
-    WHERE username = v_user AND telefono = p_new_telefono
-    FOR UPDATE;
-
-    IF v_exists > 0 THEN
-        ROLLBACK;
-        SIGNAL SQLSTATE '45012' SET MESSAGE_TEXT = 'Telefono già presente nella tua rubrica';
-    END IF;
+    SET v_attesa = COALESCE(p_version, v_attuale);
 
-    -- Aggiornamento PK + dati
+    -- compare-and-set sul posto, anche quando cambia il telefono: blocca solo la riga della
+    -- chiave primaria (e la voce di uq_persona_telefono) fino al COMMIT
     UPDATE Persona
-    SET telefono  = p_new_telefono,
+    SET version   = version + 1,
+        telefono  = p_new_telefono,
         nome      = p_nome,
         cognome   = p_cognome,
         indirizzo = p_indirizzo,
         eta       = p_eta
-    WHERE username = v_user
-      AND telefono = p_old_telefono;
+    WHERE id = v_id
+      AND version = v_attesa;
+
+    IF ROW_COUNT() = 0 THEN
+        ROLLBACK;
+        SIGNAL SQLSTATE '45013' SET MESSAGE_TEXT = 'Conflitto di versione: la voce è stata modificata';
+    END IF;
+
+    IF p_old_telefono <> p_new_telefono THEN
+        DELETE FROM PersonaEliminata WHERE username = v_user AND telefono = p_new_telefono;
+    END IF;
+
+    -- ultima: il lock su RubricaSequenza resta solo fino al COMMIT che segue
+    SET v_seq = fn_prossima_seq(v_user);
+    UPDATE Persona SET seq = v_seq WHERE id = v_id;
+    IF p_old_telefono <> p_new_telefono THEN
+        -- il cambio di telefono è, per chi sincronizza, un'eliminazione più un inserimento
+        REPLACE INTO PersonaEliminata(username, telefono, seq) VALUES (v_user, p_old_telefono, v_seq);
+    END IF;
 
     COMMIT;
-END proc_end $$
+    SET p_nuova_version = v_attesa + 1;
+END $$
 
 -- ELIMINA PERSONA (firma invariata): elimina solo la voce dell'utente del token
+-- e ne lascia la tombstone per la sincronizzazione incrementale
 DROP PROCEDURE IF EXISTS sp_elimina_persona $$
 CREATE PROCEDURE sp_elimina_persona(IN p_token CHAR(64), IN p_telefono VARCHAR(20))
 SQL SECURITY DEFINER
 BEGIN
     DECLARE v_user VARCHAR(64);
 
-    SET v_user = fn_username_from_token(p_token);
+    SET v_user = fn_session_user(p_token);
     IF v_user IS NULL THEN
         SIGNAL SQLSTATE '45010' SET MESSAGE_TEXT = 'Sessione non valida o scaduta';
     END IF;
 
+    SET TRANSACTION ISOLATION LEVEL READ COMMITTED;
+    START TRANSACTION;
+
     DELETE FROM Persona
     WHERE username = v_user
       AND telefono = p_telefono;
+
+    IF ROW_COUNT() > 0 THEN
+        -- la sequenza è presa subito prima del COMMIT
+        REPLACE INTO PersonaEliminata(username, telefono, seq)
+        VALUES (v_user, p_telefono, fn_prossima_seq(v_user));
+    END IF;
+
+    COMMIT;
 END $$
 
--- SCARICA RUBRICA (firma invariata): tutte le persone dell'utente del token
+-- SALVA RUBRICA: sostituisce l'intera rubrica dell'utente con un solo controllo del token.
+-- p_persone: [{"nome":..,"cognome":..,"indirizzo":..,"telefono":..,"eta":..}, ...]
+DROP PROCEDURE IF EXISTS sp_salva_rubrica $$
+CREATE PROCEDURE sp_salva_rubrica(IN p_token CHAR(64), IN p_persone JSON)
+SQL SECURITY DEFINER
+BEGIN
+    DECLARE v_user VARCHAR(64);
+    DECLARE v_seq BIGINT UNSIGNED;
+
+    SET v_user = fn_session_user(p_token);
+    IF v_user IS NULL THEN
+        SIGNAL SQLSTATE '45010' SET MESSAGE_TEXT = 'Sessione non valida o scaduta';
+    END IF;
+
+    SET TRANSACTION ISOLATION LEVEL READ COMMITTED;
+    START TRANSACTION;
+
+    -- una sola sequenza per tutto il salvataggio, presa alla fine: intanto le righe scritte
+    -- hanno la sequenza provvisoria ~0
+    REPLACE INTO PersonaEliminata(username, telefono, seq)
+    SELECT p.username, p.telefono, ~0
+    FROM Persona p
+    WHERE p.username = v_user
+      AND p.telefono NOT IN (
+          SELECT j.telefono
+          FROM JSON_TABLE(p_persone, '$[*]' COLUMNS (telefono VARCHAR(20) PATH '$.telefono')) j
+      );
+
+    DELETE FROM Persona
+    WHERE username = v_user
+      AND telefono NOT IN (
+          SELECT j.telefono
+          FROM JSON_TABLE(p_persone, '$[*]' COLUMNS (telefono VARCHAR(20) PATH '$.telefono')) j
+      );
+
+    INSERT INTO Persona(username, telefono, nome, cognome, indirizzo, eta, seq)
+    SELECT v_user, j.telefono, j.nome, j.cognome, j.indirizzo, j.eta, ~0
+    FROM JSON_TABLE(p_persone, '$[*]' COLUMNS (
+        nome      VARCHAR(64)  PATH '$.nome',
+        cognome   VARCHAR(64)  PATH '$.cognome',
+        indirizzo VARCHAR(128) PATH '$.indirizzo',
+        telefono  VARCHAR(20)  PATH '$.telefono',
+        eta       INT          PATH '$.eta'
+    )) j
+    ON DUPLICATE KEY UPDATE
+        -- assegnate per prime: confrontano i valori precedenti della riga
+        seq = IF(nome <> VALUES(nome) OR cognome <> VALUES(cognome)
+                 OR indirizzo <> VALUES(indirizzo) OR eta <> VALUES(eta), VALUES(seq), seq),
+        version = version + (nome <> VALUES(nome) OR cognome <> VALUES(cognome)
+                             OR indirizzo <> VALUES(indirizzo) OR eta <> VALUES(eta)),
+        nome = VALUES(nome),
+        cognome = VALUES(cognome),
+        indirizzo = VALUES(indirizzo),
+        eta = VALUES(eta);
+
+    DELETE e FROM PersonaEliminata e
+    JOIN Persona p ON p.username = e.username AND p.telefono = e.telefono
+    WHERE e.username = v_user;
+
+    -- ultima: il lock su RubricaSequenza resta solo fino al COMMIT che segue
+    SET v_seq = fn_prossima_seq(v_user);
+    UPDATE Persona SET seq = v_seq WHERE username = v_user AND seq = ~0;
+    UPDATE PersonaEliminata SET seq = v_seq WHERE username = v_user AND seq = ~0;
+
+    COMMIT;
+END $$
+
+-- SCARICA RUBRICA (firma invariata): tutte le persone dell'utente del token, con il loro id
 DROP PROCEDURE IF EXISTS sp_get_rubrica $$
 CREATE PROCEDURE sp_get_rubrica(IN p_token CHAR(64))
 SQL SECURITY DEFINER
 BEGIN
     DECLARE v_user VARCHAR(64);
 
-    SET v_user = fn_username_from_token(p_token);
+    SET v_user = fn_session_user(p_token);
     IF v_user IS NULL THEN
         SIGNAL SQLSTATE '45010' SET MESSAGE_TEXT = 'Sessione non valida o scaduta';
     END IF;
 
     SET TRANSACTION ISOLATION LEVEL READ COMMITTED;
 
-    SELECT p.nome, p.cognome, p.indirizzo, p.telefono, p.eta
+    SELECT p.id, p.nome, p.cognome, p.indirizzo, p.telefono, p.eta, p.version
     FROM Persona p
     WHERE p.username = v_user
     ORDER BY p.cognome, p.nome;
 END $$
 
+-- testo minuscolo senza accenti, come StatisticheRubrica.token: le lettere latine accentate
+-- perdono il segno diacritico (ø, æ e ß restano, come nella decomposizione NFD di Java)
+DROP FUNCTION IF EXISTS fn_senza_accenti $$
+CREATE FUNCTION fn_senza_accenti(p_testo VARCHAR(128))
+RETURNS VARCHAR(128)
+DETERMINISTIC
+NO SQL
+BEGIN
+    DECLARE v VARCHAR(128) DEFAULT LOWER(p_testo);
+    SET v = REGEXP_REPLACE(v, '[àáâãäå]', 'a');
+    SET v = REGEXP_REPLACE(v, 'ç', 'c');
+    SET v = REGEXP_REPLACE(v, '[èéêë]', 'e');
+    SET v = REGEXP_REPLACE(v, '[ìíîï]', 'i');
+    SET v = REGEXP_REPLACE(v, 'ñ', 'n');
+    SET v = REGEXP_REPLACE(v, '[òóôõö]', 'o');
+    SET v = REGEXP_REPLACE(v, '[ùúûü]', 'u');
+    SET v = REGEXP_REPLACE(v, '[ýÿ]', 'y');
+    RETURN v;
+END $$
+
+-- STATISTICHE: aggiunge p_delta (+1 / -1) a tutte le dimensioni di una voce. Chiamata solo
+-- dai trigger, quindi nella transazione della scrittura; nessun permesso a LOGGED.
+DROP PROCEDURE IF EXISTS sp_statistica_voce $$
+CREATE PROCEDURE sp_statistica_voce(
+    IN p_user      VARCHAR(64),
+    IN p_cognome   VARCHAR(64),
+    IN p_indirizzo VARCHAR(128),
+    IN p_eta       INT,
+    IN p_delta     INT
+)
+BEGIN
+    DECLARE v_testo VARCHAR(128);
+    DECLARE v_token VARCHAR(128);
+
+    INSERT INTO RubricaStatistica(username, dimensione, chiave, conteggio) VALUES
+        (p_user, 'totale',    '', p_delta),
+        (p_user, 'somma_eta', '', p_delta * p_eta),
+        (p_user, 'eta',       LPAD(LEAST(p_eta DIV 10, 12) * 10, 3, '0'), p_delta),
+        (p_user, 'iniziale',  IF(TRIM(p_cognome) = '', '?', UPPER(LEFT(TRIM(p_cognome), 1))), p_delta)
+    ON DUPLICATE KEY UPDATE conteggio = conteggio + VALUES(conteggio);
+
+    -- parole dell'indirizzo, ognuna una volta sola per voce (conta l'ultima occorrenza)
+    SET v_testo = TRIM(REGEXP_REPLACE(fn_senza_accenti(p_indirizzo), '[^[:alpha:]]+', ' '));
+    WHILE v_testo <> '' DO
+        SET v_token = SUBSTRING_INDEX(v_testo, ' ', 1);
+        SET v_testo = TRIM(SUBSTRING(v_testo, CHAR_LENGTH(v_token) + 1));
+        IF CHAR_LENGTH(v_token) >= 3
+           AND LOCATE(CONCAT(' ', v_token, ' '), CONCAT(' ', v_testo, ' ')) = 0 THEN
+            INSERT INTO RubricaStatistica(username, dimensione, chiave, conteggio)
+            VALUES (p_user, 'token', LEFT(v_token, 64), p_delta)
+            ON DUPLICATE KEY UPDATE conteggio = conteggio + VALUES(conteggio);
+        END IF;
+    END WHILE;
+END $$
+
+DROP PROCEDURE IF EXISTS sp_statistica_giorno $$
+CREATE PROCEDURE sp_statistica_giorno(IN p_user VARCHAR(64), IN p_delta INT)
+BEGIN
+    INSERT INTO RubricaStatistica(username, dimensione, chiave, conteggio)
+    VALUES (p_user, 'giorno', DATE_FORMAT(CURRENT_DATE, '%Y-%m-%d'), p_delta)
+    ON DUPLICATE KEY UPDATE conteggio = conteggio + VALUES(conteggio);
+END $$
+
+-- I trigger coprono ogni percorso di scrittura delle procedure, compresi ON DUPLICATE KEY
+-- UPDATE e i salvataggi completi di sp_salva_rubrica: costo proporzionale alle righe cambiate.
+DROP TRIGGER IF EXISTS tr_persona_statistiche_ins $$
+CREATE TRIGGER tr_persona_statistiche_ins AFTER INSERT ON Persona
+FOR EACH ROW
+BEGIN
+    CALL sp_statistica_voce(NEW.username, NEW.cognome, NEW.indirizzo, NEW.eta, 1);
+    CALL sp_statistica_giorno(NEW.username, 1);
+END $$
+
+DROP TRIGGER IF EXISTS tr_persona_statistiche_upd $$
+CREATE TRIGGER tr_persona_statistiche_upd AFTER UPDATE ON Persona
+FOR EACH ROW
+BEGIN
+    -- le riscritture senza cambiamenti (sp_salva_rubrica) non toccano le statistiche
+    IF NOT (OLD.cognome <=> NEW.cognome AND OLD.indirizzo <=> NEW.indirizzo AND OLD.eta <=> NEW.eta) THEN
+        CALL sp_statistica_voce(OLD.username, OLD.cognome, OLD.indirizzo, OLD.eta, -1);
+        CALL sp_statistica_voce(NEW.username, NEW.cognome, NEW.indirizzo, NEW.eta, 1);
+    END IF;
+END $$
+
+DROP TRIGGER IF EXISTS tr_persona_statistiche_del $$
+CREATE TRIGGER tr_persona_statistiche_del AFTER DELETE ON Persona
+FOR EACH ROW
+BEGIN
+    CALL sp_statistica_voce(OLD.username, OLD.cognome, OLD.indirizzo, OLD.eta, -1);
+    CALL sp_statistica_giorno(OLD.username, -1);
+END $$
+
+-- RICALCOLO (amministrazione): ricostruisce RubricaStatistica da Persona, ad esempio dopo aver
+-- aggiunto la tabella a un database esistente. La crescita per giorno riparte da zero.
+DROP PROCEDURE IF EXISTS sp_ricalcola_statistiche $$
+CREATE PROCEDURE sp_ricalcola_statistiche()
+BEGIN
+    DECLARE v_fine BOOLEAN DEFAULT FALSE;
+    DECLARE v_user VARCHAR(64);
+    DECLARE v_cognome VARCHAR(64);
+    DECLARE v_indirizzo VARCHAR(128);
+    DECLARE v_eta INT;
+    DECLARE c CURSOR FOR SELECT username, cognome, indirizzo, eta FROM Persona;
+    DECLARE CONTINUE HANDLER FOR NOT FOUND SET v_fine = TRUE;
+
+    START TRANSACTION;
+    DELETE FROM RubricaStatistica WHERE dimensione <> 'giorno';
+    OPEN c;
+    leggi: LOOP
+        FETCH c INTO v_user, v_cognome, v_indirizzo, v_eta;
+        IF v_fine THEN LEAVE leggi; END IF;
+        CALL sp_statistica_voce(v_user, v_cognome, v_indirizzo, v_eta, 1);
+    END LOOP;
+    CLOSE c;
+    COMMIT;
+END $$
+
+-- STATISTICHE RUBRICA: le statistiche dell'utente del token, senza leggere Persona
+DROP PROCEDURE IF EXISTS sp_statistiche_rubrica $$
+CREATE PROCEDURE sp_statistiche_rubrica(IN p_token CHAR(64))
+SQL SECURITY DEFINER
+BEGIN
+    DECLARE v_user VARCHAR(64);
+
+    SET v_user = fn_session_user(p_token);
+    IF v_user IS NULL THEN
+        SIGNAL SQLSTATE '45010' SET MESSAGE_TEXT = 'Sessione non valida o scaduta';
+    END IF;
+
+    SET TRANSACTION ISOLATION LEVEL READ COMMITTED;
+
+    SELECT s.dimensione, s.chiave, s.conteggio
+    FROM RubricaStatistica s
+    WHERE s.username = v_user
+      AND s.conteggio <> 0
+    ORDER BY s.dimensione, s.chiave;
+END $$
+
+-- MODIFICHE RUBRICA: sincronizzazione incrementale. Restituisce le voci scritte ed eliminate
+-- con seq > p_da_seq, in ordine di sequenza; eliminata = 1 per le tombstone (solo telefono).
+-- Con p_da_seq NULL, o precedente alle tombstone potate, restituisce l'intera rubrica
+-- (p_completa = 1): il client deve rimuovere le voci che non compaiono.
+-- p_ultima_seq è la sequenza da passare alla chiamata successiva.
+DROP PROCEDURE IF EXISTS sp_modifiche_rubrica $$
+CREATE PROCEDURE sp_modifiche_rubrica(
+    IN p_token       CHAR(64),
+    IN p_da_seq      BIGINT UNSIGNED,
+    OUT p_ultima_seq BIGINT UNSIGNED,
+    OUT p_completa   BOOLEAN
+)
+SQL SECURITY DEFINER
+BEGIN
+    DECLARE v_user VARCHAR(64);
+    DECLARE v_potata BIGINT UNSIGNED;
+
+    SET v_user = fn_session_user(p_token);
+    IF v_user IS NULL THEN
+        SIGNAL SQLSTATE '45010' SET MESSAGE_TEXT = 'Sessione non valida o scaduta';
+    END IF;
+
+    -- stessa istantanea per contatore e righe: nessuna scrittura a metà fra le due letture
+    SET TRANSACTION ISOLATION LEVEL REPEATABLE READ;
+    START TRANSACTION WITH CONSISTENT SNAPSHOT;
+
+    SELECT seq, seq_potata INTO p_ultima_seq, v_potata
+    FROM RubricaSequenza
+    WHERE username = v_user;
+
+    SET p_ultima_seq = COALESCE(p_ultima_seq, 0);
+    SET p_completa = p_da_seq IS NULL OR p_da_seq < COALESCE(v_potata, 0);
+
+    IF p_completa THEN
+        SELECT p.nome, p.cognome, p.indirizzo, p.telefono, p.eta, p.version, p.seq, FALSE AS eliminata
+        FROM Persona p
+        WHERE p.username = v_user
+        ORDER BY p.seq;
+    ELSE
+        SELECT x.nome, x.cognome, x.indirizzo, x.telefono, x.eta, x.version, x.seq, x.eliminata
+        FROM (
+            SELECT p.nome, p.cognome, p.indirizzo, p.telefono, p.eta, p.version, p.seq, FALSE AS eliminata
+            FROM Persona p
+            WHERE p.username = v_user AND p.seq > p_da_seq
+            UNION ALL
+            SELECT NULL, NULL, NULL, e.telefono, NULL, NULL, e.seq, TRUE
+            FROM PersonaEliminata e
+            WHERE e.username = v_user AND e.seq > p_da_seq
+        ) x
+        ORDER BY x.seq, x.eliminata DESC;
+    END IF;
+
+    COMMIT;
+END $$
+
 DELIMITER ;
 
 -- ==========================================================
@@ -318,6 +760,12 @@ GRANT EXECUTE ON PROCEDURE rubrica.sp_get_rubrica       TO 'LOGGED'@'%';
 GRANT EXECUTE ON PROCEDURE rubrica.sp_refresh_session   TO 'LOGGED'@'%';
 GRANT EXECUTE ON PROCEDURE rubrica.sp_logout            TO 'LOGGED'@'%';
 GRANT EXECUTE ON FUNCTION  rubrica.fn_username_from_token TO 'LOGGED'@'%';
+GRANT EXECUTE ON PROCEDURE rubrica.sp_bind_session      TO 'LOGGED'@'%';
+GRANT EXECUTE ON PROCEDURE rubrica.sp_unbind_session    TO 'LOGGED'@'%';
+GRANT EXECUTE ON PROCEDURE rubrica.sp_salva_rubrica     TO 'LOGGED'@'%';
+GRANT EXECUTE ON PROCEDURE rubrica.sp_modifiche_rubrica TO 'LOGGED'@'%';
+GRANT EXECUTE ON PROCEDURE rubrica.sp_statistiche_rubrica TO 'LOGGED'@'%';
+GRANT EXECUTE ON FUNCTION  rubrica.fn_session_user      TO 'LOGGED'@'%';
 
 FLUSH PRIVILEGES;
 
@@ -327,19 +775,49 @@ FLUSH PRIVILEGES;
 SET GLOBAL event_scheduler = ON;
 
 DROP EVENT IF EXISTS ev_purge_expired_tokens;
+DELIMITER $$
 CREATE EVENT ev_purge_expired_tokens
     ON SCHEDULE EVERY 15 MINUTE
     DO
+    BEGIN
+      DELETE FROM SessionBinding WHERE expires_at <= NOW();
       DELETE FROM LoginSession WHERE expires_at <= NOW();
+    END $$
+DELIMITER ;
+
+-- tombstone più vecchie di 30 giorni: i client fermi da prima ricevono la rubrica completa
+DROP EVENT IF EXISTS ev_purge_tombstone;
+DELIMITER $$
+CREATE EVENT ev_purge_tombstone
+    ON SCHEDULE EVERY 1 DAY
+    DO
+    BEGIN
+      UPDATE RubricaSequenza r
+      JOIN (SELECT username, MAX(seq) AS seq
+            FROM PersonaEliminata
+            WHERE eliminata_il < NOW() - INTERVAL 30 DAY
+            GROUP BY username) e ON e.username = r.username
+      SET r.seq_potata = GREATEST(r.seq_potata, e.seq);
+      DELETE FROM PersonaEliminata WHERE eliminata_il < NOW() - INTERVAL 30 DAY;
+      -- chiavi tornate a zero (parole non più usate, fasce vuote)
+      DELETE FROM RubricaStatistica WHERE conteggio = 0;
+    END $$
+DELIMITER ;
 
 -- ==========================================================
 -- Esempi d'uso
 -- ----------------------------------------------------------
 -- CALL sp_register('alice','Password123!');
 -- SET @tok := NULL; CALL sp_login('alice','Password123!', @tok); SELECT @tok;
--- CALL sp_inserisci_persona(@tok, 'Mario','Rossi','Via Roma 1','3201234567',30);
+-- CALL sp_inserisci_persona(@tok, 'Mario','Rossi','Via Roma 1','3201234567',30, @ver);
 -- CALL sp_get_rubrica(@tok);
--- CALL sp_modifica_persona(@tok, '3201234567','Mario','Rossi','Via Milano 2',31);
+-- CALL sp_bind_session(@tok);  -- le chiamate successive sulla stessa connessione non interrogano LoginSession
+-- CALL sp_unbind_session(@tok);  -- prima di chiudere la connessione vincolata
+-- CALL sp_salva_rubrica(@tok, '[{"nome":"Mario","cognome":"Rossi","indirizzo":"Via Roma 1","telefono":"3201234567","eta":30}]');
+-- CALL sp_modifica_persona(@tok, '3201234567','3201234567','Mario','Rossi','Via Milano 2',31, @ver, @ver);  -- 45013 se @ver è superata
 -- CALL sp_elimina_persona(@tok, '3201234567');
+-- CALL sp_modifiche_rubrica(@tok, NULL, @seq, @tutta);  -- prima sincronizzazione: rubrica completa
+-- CALL sp_modifiche_rubrica(@tok, @seq, @seq, @tutta);  -- poi solo le voci cambiate dopo @seq
+-- CALL sp_statistiche_rubrica(@tok);  -- totale, somma_eta, eta, iniziale, token, giorno
 -- CALL sp_refresh_session(@tok);
 -- CALL sp_logout(@tok);
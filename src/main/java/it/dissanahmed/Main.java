@@ -1,21 +1,23 @@
 package it.dissanahmed;
 
 
+import it.dissanahmed.cli.Batch;
 import it.dissanahmed.gui.HomeMenu;
 import it.dissanahmed.gui.LoginGUI;
 import it.dissanahmed.gui.Personalizzazione;
 import it.dissanahmed.login.GestioneLogin;
 import it.dissanahmed.rubrica.ex.PersonaException;
+import it.dissanahmed.server.ServerRubrica;
+import it.dissanahmed.util.Configurazione;
+import it.dissanahmed.util.Metriche;
 
 
 import javax.swing.*;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Properties;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
-import static it.dissanahmed.login.persistenza.LoginDao.openConfStream;
-
 
 public class Main {
 
@@ -23,18 +25,21 @@ public class Main {
         static final Logger LOGGER = Logger.getLogger("Main");
 
         public static void main(String[] args) throws PersonaException {
+                registraDumpMetriche();
+                // la modalità batch non deve toccare Swing/FlatLaf: nessuna classe AWT viene caricata
+                if (args.length > 0 && args[0].equals("batch")) {
+                        System.exit(Batch.esegui(Arrays.copyOfRange(args, 1, args.length), System.out, System.err));
+                }
+                if (args.length > 0 && args[0].equals("server")) {
+                        avviaServer();
+                        return;
+                }
+                avviaGui(args);
+        }
+
+        private static void avviaGui(String[] args) throws PersonaException {
                 Personalizzazione.init();
-                if (args.length > 0 && args[0].equals("normal")) {
-                        try {
-                                Properties props = new Properties();
-                                try (InputStream fis = openConfStream()) {
-                                        props.load(fis);
-                                        main(new String[0]);
-                                        return;
-                                }
-                        } catch (IOException ignored) {
-                                // ignored
-                        }
+                if (args.length > 0 && args[0].equals("normal") && !Configurazione.get().isCaricata()) {
                         HomeMenu homeMenu = new HomeMenu();
                         homeMenu.launch();
                         return;
@@ -45,4 +50,30 @@ public class Main {
                 });
         }
 
+        /* Server HTTP headless: resta attivo finché il processo non viene terminato. */
+        private static void avviaServer() {
+                System.setProperty("java.awt.headless", "true");
+                try {
+                        ServerRubrica server = ServerRubrica.daConfigurazione(Configurazione.get());
+                        server.avvia();
+                        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+                } catch (IOException e) {
+                        LOGGER.severe(() -> "Avvio server fallito: " + e.getMessage());
+                        System.exit(1);
+                }
+        }
+
+        /* Con metrics.dump.file impostato, le metriche vengono scritte su file all'uscita. */
+        static void registraDumpMetriche() {
+                String file = Configurazione.get().get("metrics.dump.file");
+                if (file == null || file.isBlank()) return;
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        try {
+                                Metriche.dump(Path.of(file.trim()));
+                        } catch (IOException e) {
+                                LOGGER.warning(() -> "Dump metriche fallito: " + e.getMessage());
+                        }
+                }));
+        }
+
 }
\ No newline at end of file
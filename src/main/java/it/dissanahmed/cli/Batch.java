@@ -0,0 +1,341 @@
+package it.dissanahmed.cli;
+
+import it.dissanahmed.login.GestioneLogin;
+import it.dissanahmed.login.ex.ProblemaAutenticazione;
+import it.dissanahmed.login.ex.UtenteNonTrovato;
+import it.dissanahmed.rubrica.GestioneContatti;
+import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.rubrica.StatisticheRubrica;
+import it.dissanahmed.rubrica.backup.ArchivioBackup;
+import it.dissanahmed.rubrica.duplicati.RicercaDuplicati;
+import it.dissanahmed.rubrica.ex.PersonaException;
+import it.dissanahmed.rubrica.persistenza.ContattiDao;
+import it.dissanahmed.util.Metriche;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Modalità a riga di comando senza interfaccia grafica, pensata per job pianificati
+ * (import notturni, export, interrogazioni) anche su server headless.
+ * <p>
+ * Usa direttamente {@link GestioneLogin} e {@link GestioneContatti}: non inizializza
+ * FlatLaf né carica classi AWT/Swing, quindi l'avvio è molto più rapido di quello della GUI.
+ * </p>
+ * <pre>
+ * java -jar Rubrica.jar batch [--user &lt;username&gt;] [--password-stdin] &lt;comando&gt; [argomenti]
+ *
+ *   import &lt;file|-&gt;                  importa righe nome;cognome;indirizzo;telefono;eta
+ *   export [file|-]                  esporta i contatti nello stesso formato, senza caricarli in memoria
+ *   query &lt;testo&gt; [--campo &lt;campo&gt;]  cerca il testo (senza distinzione maiuscole) nei contatti
+ *   stats                            statistiche della rubrica e metriche di persistenza
+ *   backup &lt;dir&gt; [--base]            backup compresso, incrementale rispetto al precedente
+ *   restore &lt;dir&gt; [--al &lt;istante&gt;]   ripristina l'ultimo backup non successivo all'istante (ISO-8601)
+ *   dedup [--soglia &lt;0..1&gt;] [--applica] suggerisce (e con --applica unisce) i contatti quasi duplicati
+ * </pre>
+ * <p>
+ * Con <code>--user</code> la password è letta dalla variabile d'ambiente
+ * <code>RUBRICA_PASSWORD</code> oppure, con <code>--password-stdin</code>, dalla prima
+ * riga dello standard input; senza <code>--user</code> si usa la rubrica non autenticata.
+ * I dati vanno su standard output, diagnostica e tempi su standard error.
+ * </p>
+ */
+public final class Batch {
+
+        public static final int OK = 0;
+        /** Il comando è terminato ma alcune righe sono state scartate. */
+        public static final int PARZIALE = 1;
+        public static final int USO_ERRATO = 2;
+        public static final int FALLITO = 3;
+
+        static final String ENV_PASSWORD = "RUBRICA_PASSWORD";
+        private static final String SEP = ";";
+        private static final Set<String> COMANDI = Set.of("import", "export", "query", "stats", "backup", "restore", "dedup");
+
+        private static final Map<String, Function<Persona, String>> CAMPI = Map.of(
+                "nome", Persona::getNome,
+                "cognome", Persona::getCognome,
+                "indirizzo", Persona::getIndirizzo,
+                "telefono", Persona::getTelefono);
+
+        private final PrintStream out;
+        private final PrintStream err;
+
+        private Batch(PrintStream out, PrintStream err) {
+                this.out = out;
+                this.err = err;
+        }
+
+        /**
+         * Esegue un comando batch.
+         *
+         * @param args argomenti successivi a <code>batch</code>.
+         * @return il codice di uscita del processo.
+         */
+        public static int esegui(@NotNull String[] args, @NotNull PrintStream out, @NotNull PrintStream err) {
+                System.setProperty("java.awt.headless", "true");
+                long inizio = System.nanoTime();
+                Batch batch = new Batch(out, err);
+                try {
+                        return batch.esegui(args, inizio);
+                } catch (IllegalArgumentException e) {
+                        err.println("Errore: " + e.getMessage());
+                        batch.uso();
+                        return USO_ERRATO;
+                } catch (IOException | UtenteNonTrovato | ProblemaAutenticazione | RuntimeException e) {
+                        err.println("Errore: " + e.getMessage());
+                        return FALLITO;
+                }
+        }
+
+        private int esegui(String[] args, long inizio) throws IOException, UtenteNonTrovato, ProblemaAutenticazione {
+                String username = null;
+                boolean passwordStdin = false;
+                String campo = null;
+                boolean base = false;
+                Instant al = null;
+                double soglia = 0.85;
+                boolean applica = false;
+                List<String> posizionali = new ArrayList<>();
+                for (int i = 0; i < args.length; i++) {
+                        switch (args[i]) {
+                                case "--user" -> username = valore(args, ++i, "--user");
+                                case "--password-stdin" -> passwordStdin = true;
+                                case "--campo" -> campo = valore(args, ++i, "--campo");
+                                case "--base" -> base = true;
+                                case "--al" -> al = istante(valore(args, ++i, "--al"));
+                                case "--soglia" -> soglia = soglia(valore(args, ++i, "--soglia"));
+                                case "--applica" -> applica = true;
+                                default -> posizionali.add(args[i]);
+                        }
+                }
+                if (posizionali.isEmpty()) throw new IllegalArgumentException("comando mancante");
+                String comando = posizionali.get(0);
+                if (!COMANDI.contains(comando)) throw new IllegalArgumentException("comando sconosciuto: " + comando);
+                List<String> argomenti = posizionali.subList(1, posizionali.size());
+
+                BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                GestioneLogin login = null;
+                if (username != null) {
+                        String password = passwordStdin ? stdin.readLine() : System.getenv(ENV_PASSWORD);
+                        if (password == null || password.isBlank())
+                                throw new IllegalArgumentException("password assente: usa " + ENV_PASSWORD + " o --password-stdin");
+                        login = new GestioneLogin();
+                        login.signIn(username, password);
+                }
+                String utente = login == null ? null : login.getLoggedUser();
+                // l'export scorre direttamente il DAO: nessuna rubrica in memoria. La rubrica è chiusa
+                // alla fine del comando, anche se fallisce: le scritture in attesa sono rese durevoli
+                // prima del codice di uscita, senza dipendere dall'hook di arresto
+                try (GestioneContatti gestione = comando.equals("export") ? null : GestioneContatti.gestita(utente)) {
+                        long pronto = System.nanoTime();
+                        int esito = switch (comando) {
+                                case "import" -> importa(gestione, argomenti, stdin, passwordStdin);
+                                case "export" -> esporta(utente, argomenti);
+                                case "query" -> cerca(gestione, argomenti, campo);
+                                case "stats" -> statistiche(gestione);
+                                case "backup" -> backup(gestione, username, argomenti, base);
+                                case "restore" -> ripristina(gestione, username, argomenti, al);
+                                case "dedup" -> duplicati(gestione, argomenti, soglia, applica);
+                                default -> throw new IllegalArgumentException("comando sconosciuto: " + comando);
+                        };
+                        long fine = System.nanoTime();
+                        riportaTempi(inizio, pronto, fine);
+                        return esito;
+                }
+        }
+
+        private int importa(GestioneContatti gestione, List<String> argomenti, BufferedReader stdin,
+                            boolean passwordStdin) throws IOException {
+                if (argomenti.size() != 1) throw new IllegalArgumentException("import richiede un file o '-'");
+                String sorgente = argomenti.get(0);
+                if (sorgente.equals("-") && passwordStdin)
+                        throw new IllegalArgumentException("import da stdin non è compatibile con --password-stdin");
+
+                int importati = 0;
+                int scartati = 0;
+                int numero = 0;
+                try (BufferedReader in = sorgente.equals("-") ? stdin
+                        : Files.newBufferedReader(Path.of(sorgente), StandardCharsets.UTF_8)) {
+                        String riga;
+                        while ((riga = in.readLine()) != null) {
+                                numero++;
+                                riga = riga.strip();
+                                if (riga.isEmpty() || riga.startsWith("#")) continue;
+                                try {
+                                        gestione.inserisciDatiPersona(riga);
+                                        importati++;
+                                } catch (PersonaException e) {
+                                        scartati++;
+                                        err.println("riga " + numero + ": " + e.getMessage().strip());
+                                }
+                        }
+                }
+                err.println("importati: " + importati + ", scartati: " + scartati);
+                return scartati == 0 ? OK : PARZIALE;
+        }
+
+        /* Memoria costante: le voci sono scritte man mano che il DAO le legge, nell'ordine della sorgente. */
+        private int esporta(String username, List<String> argomenti) throws IOException {
+                if (argomenti.size() > 1) throw new IllegalArgumentException("export accetta al più un file");
+                boolean suStdout = argomenti.isEmpty() || argomenti.get(0).equals("-");
+                long esportati = 0;
+                Writer w = suStdout
+                        ? new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))
+                        : Files.newBufferedWriter(Path.of(argomenti.get(0)), StandardCharsets.UTF_8);
+                try (ContattiDao dao = ContattiDao.getInstance(username);
+                     Stream<Persona> contatti = dao.scorriContatti()) {
+                        Iterator<Persona> it = contatti.iterator();
+                        while (it.hasNext()) {
+                                w.write(riga(it.next()));
+                                w.write('\n');
+                                esportati++;
+                        }
+                } finally {
+                        if (suStdout) w.flush();
+                        else w.close();
+                }
+                err.println("esportati: " + esportati);
+                return OK;
+        }
+
+        private int cerca(GestioneContatti gestione, List<String> argomenti, String campo) {
+                if (argomenti.size() != 1) throw new IllegalArgumentException("query richiede un testo da cercare");
+                String testo = argomenti.get(0).toLowerCase(Locale.ROOT);
+                Function<Persona, String> estrattore = null;
+                if (campo != null) {
+                        estrattore = CAMPI.get(campo);
+                        if (estrattore == null) throw new IllegalArgumentException("campo non valido: " + campo);
+                }
+                int trovati = 0;
+                for (Persona p : gestione.getContatti()) {
+                        String dove = estrattore == null ? riga(p) : estrattore.apply(p);
+                        if (dove != null && dove.toLowerCase(Locale.ROOT).contains(testo)) {
+                                out.println(riga(p));
+                                trovati++;
+                        }
+                }
+                err.println("trovati: " + trovati);
+                return OK;
+        }
+
+        private int statistiche(GestioneContatti gestione) {
+                // aggregati mantenuti a ogni scrittura: nessuna scansione dei contatti
+                StatisticheRubrica st = gestione.getStatistiche();
+                out.println("contatti: " + st.contatti());
+                if (st.contatti() > 0) {
+                        out.printf(Locale.ROOT, "eta: min=%d media=%.1f max=%d%n", st.etaMin(), st.etaMedia(), st.etaMax());
+                        out.println("eta per fascia: " + st.perFasciaEta());
+                        out.println("iniziale cognome: " + st.perIniziale());
+                        out.println("parole indirizzo: " + st.tokenPiuFrequenti(10));
+                }
+                out.print(Metriche.formatta());
+                return OK;
+        }
+
+        private int backup(GestioneContatti gestione, String username, List<String> argomenti, boolean base) throws IOException {
+                if (argomenti.size() != 1) throw new IllegalArgumentException("backup richiede la cartella dell'archivio");
+                ArchivioBackup.Esito e = new ArchivioBackup(Path.of(argomenti.get(0)), username).backup(gestione.getContatti(), base);
+                err.printf(Locale.ROOT, "backup %s n. %d: %d voci, %d -> %d byte (%.1f%%), %.1f ms, %.0f voci/s, %.1f MiB/s%n",
+                        e.punto().tipo().name().toLowerCase(Locale.ROOT), e.punto().numero(), e.voci(),
+                        e.byteOriginali(), e.byteCompressi(), e.rapporto() * 100, e.durataNanos() / 1e6,
+                        e.vociAlSecondo(), e.mibAlSecondo());
+                out.println(e.punto().file());
+                return OK;
+        }
+
+        private int ripristina(GestioneContatti gestione, String username, List<String> argomenti, Instant al) throws IOException {
+                if (argomenti.size() != 1) throw new IllegalArgumentException("restore richiede la cartella dell'archivio");
+                ArchivioBackup archivio = new ArchivioBackup(Path.of(argomenti.get(0)), username);
+                long t0 = System.nanoTime();
+                List<Persona> persone = al == null ? archivio.ripristina() : archivio.ripristina(al);
+                gestione.sostituisciContatti(persone);
+                err.printf(Locale.ROOT, "ripristinati: %d contatti in %.1f ms%n", persone.size(), (System.nanoTime() - t0) / 1e6);
+                return OK;
+        }
+
+        private int duplicati(GestioneContatti gestione, List<String> argomenti, double soglia, boolean applica) {
+                if (!argomenti.isEmpty()) throw new IllegalArgumentException("dedup non accetta argomenti");
+                RicercaDuplicati ricerca = new RicercaDuplicati(soglia, 1000, 50, Runtime.getRuntime().availableProcessors());
+                RicercaDuplicati.Esito e = ricerca.cerca(gestione.getContatti());
+                int duplicati = 0;
+                for (RicercaDuplicati.Suggerimento s : e.suggerimenti()) {
+                        for (Persona d : s.duplicati()) {
+                                out.printf(Locale.ROOT, "%.3f\t%s\t%s%n", s.punteggio(), riga(s.principale()), riga(d));
+                                duplicati++;
+                        }
+                }
+                err.printf(Locale.ROOT, "duplicati: %d in %d gruppi su %d contatti, %d blocchi, %d coppie confrontate, %.1f ms%n",
+                        duplicati, e.suggerimenti().size(), e.contatti(), e.blocchi(), e.coppie(), e.durataNanos() / 1e6);
+                if (applica) err.println("eliminati: " + gestione.unisciDuplicati(e.suggerimenti()));
+                return OK;
+        }
+
+        private static double soglia(String s) {
+                try {
+                        double v = Double.parseDouble(s);
+                        if (v > 0 && v <= 1) return v;
+                } catch (NumberFormatException ignored) {
+                        // messaggio sotto
+                }
+                throw new IllegalArgumentException("soglia non valida (0 < soglia <= 1): " + s);
+        }
+
+        private static Instant istante(String s) {
+                try {
+                        return Instant.parse(s);
+                } catch (DateTimeParseException e) {
+                        throw new IllegalArgumentException("istante non valido (es. 2024-05-01T12:00:00Z): " + s);
+                }
+        }
+
+        private void riportaTempi(long inizio, long pronto, long fine) {
+                String jvm = ProcessHandle.current().info().startInstant()
+                        .map(s -> Duration.between(s, Instant.now()).minusNanos(fine - inizio).toMillis() + " ms")
+                        .orElse("n/d");
+                err.printf(Locale.ROOT, "tempi: avvio JVM=%s, inizializzazione=%d ms, comando=%d ms%n",
+                        jvm, (pronto - inizio) / 1_000_000, (fine - pronto) / 1_000_000);
+        }
+
+        private void uso() {
+                err.println("Uso: batch [--user <username>] [--password-stdin] <comando> [argomenti]");
+                err.println("  import <file|->                  importa righe nome;cognome;indirizzo;telefono;eta");
+                err.println("  export [file|-]                  esporta i contatti");
+                err.println("  query <testo> [--campo <campo>]  cerca nei contatti (campo: nome, cognome, indirizzo, telefono)");
+                err.println("  stats                            statistiche della rubrica e metriche");
+                err.println("  backup <dir> [--base]            backup compresso, incrementale rispetto al precedente");
+                err.println("  restore <dir> [--al <istante>]   ripristina l'ultimo backup non successivo all'istante (ISO-8601)");
+                err.println("  dedup [--soglia <0..1>] [--applica] suggerisce (e unisce) i contatti quasi duplicati");
+                err.println("La password è letta da " + ENV_PASSWORD + " o, con --password-stdin, dallo standard input.");
+        }
+
+        private static String valore(String[] args, int i, String opzione) {
+                if (i >= args.length) throw new IllegalArgumentException(opzione + " richiede un valore");
+                return args[i];
+        }
+
+        private static String riga(Persona p) {
+                return String.join(SEP, p.getNome(), p.getCognome(), p.getIndirizzo(), p.getTelefono(),
+                        String.valueOf(p.getEta()));
+        }
+}
@@ -3,6 +3,7 @@ package it.dissanahmed.gui;
 import it.dissanahmed.login.GestioneLogin;
 import it.dissanahmed.rubrica.GestioneContatti;
 import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.util.jfr.AggiornamentoListaEvent;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.swing.*;
@@ -176,11 +177,17 @@ public class HomeMenu {
         }
 
         public void updateListaPersone() {
+                AggiornamentoListaEvent ev = new AggiornamentoListaEvent();
+                ev.begin();
                 DefaultTableModel model = (DefaultTableModel) listaPersone.getModel();
                 model.setRowCount(0);
                 for (Persona persona : this.getGestioneContatti().getContatti()) {
                         model.addRow(persona.getRawPersona());
                 }
+                if (ev.shouldCommit()) {
+                        ev.contatti = model.getRowCount();
+                        ev.commit();
+                }
         }
 
         public void launch() {
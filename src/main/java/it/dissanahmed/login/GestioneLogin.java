@@ -16,7 +16,7 @@ public class GestioneLogin {
                 this.dao = LoginDao.buildDao();
         }
 
-        public void signUp(String username, String plainPassword) throws UtenteGiaEsiste {
+        public void signUp(String username, String plainPassword) throws UtenteGiaEsiste, ProblemaAutenticazione {
                 if (username == null || username.isBlank() || plainPassword == null || plainPassword.isBlank())
                         throw new IllegalArgumentException("Username e password sono obbligatori");
                 username = username.toLowerCase(Locale.ROOT);
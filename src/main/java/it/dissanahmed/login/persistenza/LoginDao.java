@@ -4,60 +4,100 @@ import it.dissanahmed.login.ex.ProblemaAutenticazione;
 import it.dissanahmed.login.UtenteLogin;
 import it.dissanahmed.login.ex.UtenteGiaEsiste;
 import it.dissanahmed.login.ex.UtenteNonTrovato;
-import it.dissanahmed.rubrica.persistenza.ContattiDao;
+import it.dissanahmed.util.Configurazione;
+import it.dissanahmed.util.DatabaseIncorporato;
 import it.dissanahmed.util.PathUtils;
 
-import java.io.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.Properties;
 
 
 public interface LoginDao {
 
-        void signUp(UtenteLogin user) throws UtenteGiaEsiste;
+        /**
+         * Registra un nuovo utente.
+         *
+         * @throws UtenteGiaEsiste         se lo username è già registrato.
+         * @throws ProblemaAutenticazione  se la registrazione è rifiutata prima di raggiungere
+         *                                 l'archivio (es. troppi tentativi, vedi {@link LoginDaoLimitato}).
+         */
+        void signUp(UtenteLogin user) throws UtenteGiaEsiste, ProblemaAutenticazione;
 
         void signIn(UtenteLogin user) throws UtenteNonTrovato, ProblemaAutenticazione;
 
+        /**
+         * Registra l'utente o ne sostituisce la password. Serve a chi tiene in locale una copia
+         * delle credenziali verificate altrove (il login ibrido) per allinearla.
+         *
+         * @param user username e nuova password in chiaro.
+         * @throws UnsupportedOperationException se l'archivio non lo consente (predefinito).
+         */
+        default void impostaPassword(UtenteLogin user) {
+                throw new UnsupportedOperationException("Aggiornamento delle credenziali non supportato");
+        }
+
+        /**
+         * Elimina le credenziali dell'utente: gli accessi successivi falliscono con
+         * {@link UtenteNonTrovato} finché non viene registrato di nuovo.
+         *
+         * @param username l'utente.
+         * @throws UnsupportedOperationException se l'archivio non lo consente (predefinito).
+         */
+        default void revoca(String username) {
+                throw new UnsupportedOperationException("Revoca delle credenziali non supportata");
+        }
+
         static LoginDao buildDao() {
-                Properties props = new Properties();
-                try (InputStream fis = openConfStream()) {
-                        props.load(fis);
-                } catch (IOException e) {
-                        props.setProperty("database.instance", "fs");
-                }
+                Configurazione conf = Configurazione.get();
+                return LoginDaoLimitato.condiviso(conf, () -> {
+                        LoginDao dao = creaDao(conf.toProperties());
+                        return conf.getBoolean("metrics.enabled", true) ? new LoginDaoStrumentato(dao) : dao;
+                });
+        }
 
+        private static LoginDao creaDao(Properties props) {
                 String instance = props.getProperty("database.instance", "fs").trim().toLowerCase();
                 switch (instance) {
                         case "fs":
-                                return new LoginDaoFs(PathUtils.getBaseDirectory(LoginDao.class).toPath());
+                                return creaDaoFs(props);
                         case "dbms":
-                                String url  = props.getProperty("db.url");
-                                String user = props.getProperty("db.user");
-                                String pwd  = props.getProperty("db.password");
-                                return new LoginDaoDBMS(url, user, pwd);
+                                return creaDaoDbms(props);
+                        case "incorporato":
+                                return new LoginDaoIncorporato(DatabaseIncorporato.get(props));
+                        case "ibrido":
+                                long riprovaMs = Long.parseLong(props.getProperty("sync.intervalMs", "5000").trim());
+                                return new LoginDaoIbrido(creaDaoDbms(props), creaDaoFs(props), riprovaMs);
                         default:
                                 throw new IllegalStateException("database.instance non riconosciuto: " + instance);
                 }
         }
 
-        static InputStream openConfStream() throws IOException {
-
-                File baseDir = PathUtils.getBaseDirectory(LoginDao.class);
-                File confFile = new File(baseDir, "conf" + File.separator + "conf.properties");
-                if (confFile.exists()) {
-                        return new FileInputStream(confFile);
-                }
-
-                confFile = new File(baseDir,"credenziali_database.properties");
-                if (confFile.exists()) {
-                        return new FileInputStream(confFile);
-                }
-                InputStream is = ContattiDao.class.getClassLoader().getResourceAsStream("conf.properties");
-                if (is == null) {
-                        throw new FileNotFoundException(
-                                "conf.properties non trovato né accanto al JAR né nelle risorse!");
+        /* Credenziali sotto <login.fs.baseDir>/informazioni, di default la cartella del JAR. */
+        private static LoginDao creaDaoFs(Properties props) {
+                Path jar = PathUtils.getBaseDirectory(LoginDao.class).toPath();
+                Path baseDir = jar.resolve(props.getProperty("login.fs.baseDir", "").trim());
+                if ("indexed".equalsIgnoreCase(props.getProperty("login.fs.store", "dirs").trim())) {
+                        return new LoginDaoFsIndicizzato(baseDir);
                 }
-                return is;
+                return new LoginDaoFs(baseDir);
         }
 
+        private static LoginDao creaDaoDbms(Properties props) {
+                String url  = props.getProperty("db.url");
+                String user = props.getProperty("db.user");
+                String pwd  = props.getProperty("db.password");
+                return new LoginDaoDBMS(url, user, pwd);
+        }
 
+        /**
+         * Apre la sorgente di <code>conf.properties</code>.
+         *
+         * @deprecated usare {@link Configurazione#get()}, che legge il file una sola volta.
+         */
+        @Deprecated
+        static InputStream openConfStream() throws IOException {
+                return Configurazione.apriSorgente();
+        }
 }
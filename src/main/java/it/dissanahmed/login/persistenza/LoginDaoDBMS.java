@@ -4,10 +4,9 @@ import it.dissanahmed.login.UtenteLogin;
 import it.dissanahmed.login.ex.ProblemaAutenticazione;
 import it.dissanahmed.login.ex.UtenteGiaEsiste;
 import it.dissanahmed.login.ex.UtenteNonTrovato;
+import it.dissanahmed.util.Metriche;
 
 import java.sql.*;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.logging.Logger;
 
 public class LoginDaoDBMS implements LoginDao {
@@ -18,7 +17,11 @@ public class LoginDaoDBMS implements LoginDao {
         private final String user;
         private final String password;
 
-        public static final Map<String, String> TOKEN_REGISTRY = new HashMap<>();
+        public static final RegistroSessioni TOKEN_REGISTRY = new RegistroSessioni();
+
+        static {
+                Metriche.registraSonda("login.sessioni", TOKEN_REGISTRY::statistiche);
+        }
 
         public LoginDaoDBMS(String url, String user, String password) {
                 this.url = url;
@@ -62,7 +65,7 @@ public class LoginDaoDBMS implements LoginDao {
                         if (token == null || token.isBlank()) {
                                 throw new ProblemaAutenticazione("Token non ricevuto dal server");
                         }
-                        TOKEN_REGISTRY.put(u.getUsername(), token);
+                        TOKEN_REGISTRY.registra(u.getUsername(), token, this::refresh);
                 } catch (SQLException ex) {
                         logSql("signIn", ex);
                         if ("45000".equals(ex.getSQLState())) {
@@ -75,6 +78,15 @@ public class LoginDaoDBMS implements LoginDao {
                 }
         }
 
+        private void refresh(String token) throws SQLException {
+                final String call = "{ call rubrica.sp_refresh_session(?) }";
+                try (Connection c = DriverManager.getConnection(url, user, password);
+                     CallableStatement cs = c.prepareCall(call)) {
+                        cs.setString(1, token);
+                        cs.execute();
+                }
+        }
+
         private void logSql(String phase, SQLException ex) {
                 LOG.severe(() -> String.format(
                         "[%s] SQLState=%s, ErrorCode=%d, Msg=%s",
@@ -11,16 +11,25 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 /*
  * Implementazione FS:
  * - Struttura: <baseDir>/<username>/info.txt
  * - signUp: si aspetta password già hashata -> salva "username,hashedPassword"
  * - signIn: riceve password in chiaro -> legge info.txt e verifica con PasswordHasher.verify
+ * - le credenziali lette sono tenute in cache e rilette solo se cambia l'mtime di info.txt
+ * - impostaPassword riscrive info.txt tramite un file temporaneo, revoca lo elimina;
+ *   un utente esiste se esiste il suo info.txt, quindi dopo la revoca può registrarsi di nuovo
  */
 public class LoginDaoFs implements LoginDao {
 
+        private record Credenziale(String hash, FileTime mtime) {}
+
         private final Path baseDir;
+        private final ConcurrentHashMap<String, Credenziale> credenziali = new ConcurrentHashMap<>();
 
         public LoginDaoFs(Path baseDir) {
                 this.baseDir = baseDir;
@@ -37,7 +46,9 @@ public class LoginDaoFs implements LoginDao {
                                 Files.createDirectories(baseDir);
                         }
 
-                        if (Files.exists(userDir)) {
+                        // conta info.txt, non la cartella: dopo una revoca la cartella resta e l'utente
+                        // può registrarsi di nuovo; CREATE_NEW decide fra due registrazioni concorrenti
+                        if (Files.exists(info)) {
                                 throw new UtenteGiaEsiste("Utente già esistente: " + user.getUsername());
                         }
                         Files.createDirectories(userDir);
@@ -45,8 +56,11 @@ public class LoginDaoFs implements LoginDao {
                         String line = user.getUsername() + "," + PasswordHasher.hash(user.getPassword());
                         Files.writeString(info, line + System.lineSeparator(), StandardCharsets.UTF_8,
                                 StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                        credenziali.remove(user.getUsername());
                 } catch (UtenteGiaEsiste e) {
                         throw e;
+                } catch (FileAlreadyExistsException e) {
+                        throw new UtenteGiaEsiste("Utente già esistente: " + user.getUsername());
                 } catch (IOException e) {
                         throw new RuntimeException("Errore FS in signUp: " + e.getMessage(), e);
                 }
@@ -58,24 +72,13 @@ public class LoginDaoFs implements LoginDao {
                 Path info = userDir.resolve("info.txt");
 
                 try {
-
-                        if (!Files.exists(userDir) || !Files.isDirectory(userDir) || !Files.exists(info)) {
-                                throw new UtenteNonTrovato("Utente inesistente: " + user.getUsername());
-                        }
-
-                        String content = Files.readString(info, StandardCharsets.UTF_8).trim();
-
-                        String[] parts = content.split(",", 2);
-                        if (parts.length != 2) {
-                                throw new IllegalStateException("Formato info.txt non valido per utente: " + user.getUsername());
-                        }
-                        String storedUsername = parts[0].trim();
-                        String storedHash = parts[1].trim();
-
-                        if (!storedUsername.equals(user.getUsername())) {
-                                throw new IllegalStateException("Username nel file non coincide: " + storedUsername);
+                        String storedHash = leggiCredenziale(user.getUsername(), info).hash();
+                        boolean ok;
+                        try {
+                                ok = PasswordHasher.verify(user.getPassword(), storedHash);
+                        } catch (RejectedExecutionException e) {
+                                throw new ProblemaAutenticazione(LoginDaoLimitato.TROPPI_TENTATIVI);
                         }
-                        boolean ok = PasswordHasher.verify(user.getPassword(), storedHash);
                         if (!ok) {
                                 throw new ProblemaAutenticazione("Password non corretta");
                         }
@@ -85,4 +88,68 @@ public class LoginDaoFs implements LoginDao {
                         throw new RuntimeException("Errore FS in signIn: " + e.getMessage(), e);
                 }
         }
+
+        @Override
+        public void impostaPassword(UtenteLogin user) {
+                Path userDir = baseDir.resolve(PathUtils.INFORMAZIONI + File.separator + user.getUsername());
+                Path info = userDir.resolve("info.txt");
+                String line = user.getUsername() + "," + PasswordHasher.hash(user.getPassword());
+                Path tmp = null;
+                try {
+                        Files.createDirectories(userDir);
+                        tmp = Files.createTempFile(userDir, "info", ".tmp");
+                        Files.writeString(tmp, line + System.lineSeparator(), StandardCharsets.UTF_8);
+                        Files.move(tmp, info, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                        tmp = null;
+                } catch (IOException e) {
+                        throw new RuntimeException("Errore FS in impostaPassword: " + e.getMessage(), e);
+                } finally {
+                        credenziali.remove(user.getUsername());
+                        if (tmp != null) {
+                                try {
+                                        Files.deleteIfExists(tmp);
+                                } catch (IOException ignored) {
+                                        // resta un temporaneo: la prossima scrittura ne usa un altro
+                                }
+                        }
+                }
+        }
+
+        @Override
+        public void revoca(String username) {
+                Path info = baseDir.resolve(PathUtils.INFORMAZIONI + File.separator + username).resolve("info.txt");
+                try {
+                        Files.deleteIfExists(info);
+                } catch (IOException e) {
+                        throw new RuntimeException("Errore FS in revoca: " + e.getMessage(), e);
+                } finally {
+                        credenziali.remove(username);
+                }
+        }
+
+        private Credenziale leggiCredenziale(String username, Path info) throws IOException, UtenteNonTrovato {
+                FileTime mtime;
+                try {
+                        mtime = Files.getLastModifiedTime(info);
+                } catch (NoSuchFileException e) {
+                        credenziali.remove(username);
+                        throw new UtenteNonTrovato("Utente inesistente: " + username);
+                }
+                Credenziale cached = credenziali.get(username);
+                if (cached != null && cached.mtime().equals(mtime)) return cached;
+
+                String content = Files.readString(info, StandardCharsets.UTF_8).trim();
+
+                String[] parts = content.split(",", 2);
+                if (parts.length != 2) {
+                        throw new IllegalStateException("Formato info.txt non valido per utente: " + username);
+                }
+                String storedUsername = parts[0].trim();
+                if (!storedUsername.equals(username)) {
+                        throw new IllegalStateException("Username nel file non coincide: " + storedUsername);
+                }
+                Credenziale letta = new Credenziale(parts[1].trim(), mtime);
+                credenziali.put(username, letta);
+                return letta;
+        }
 }
@@ -0,0 +1,254 @@
+package it.dissanahmed.login.persistenza;
+
+import it.dissanahmed.login.UtenteLogin;
+import it.dissanahmed.login.ex.ProblemaAutenticazione;
+import it.dissanahmed.login.ex.UtenteGiaEsiste;
+import it.dissanahmed.login.ex.UtenteNonTrovato;
+import it.dissanahmed.login.util.PasswordHasher;
+import it.dissanahmed.util.PathUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/*
+ * Implementazione FS alternativa a LoginDaoFs con un unico file di credenziali:
+ * - Struttura: <baseDir>/informazioni/credenziali.db
+ *   header "RUBCRED1" seguito da record [int lunghezza][username \t hash] in UTF-8
+ * - il file è in sola aggiunta: signUp appende un record sotto FileLock, così anche
+ *   più processi possono registrare utenti senza sovrascriversi; impostaPassword appende
+ *   un nuovo record per lo stesso utente (vale l'ultimo), revoca un record con hash vuoto
+ * - all'apertura il file viene letto tramite mapping in memoria e indicizzato in una
+ *   mappa username -> hash; prima di ogni lookup, anche di un utente già indicizzato,
+ *   si indicizza la coda aggiunta da altri processi (registrazioni, cambi di password,
+ *   revoche): se la dimensione del file non è cambiata costa un solo size()
+ * - al primo utilizzo le credenziali di <baseDir>/informazioni/<username>/info.txt
+ *   vengono migrate nel file; le cartelle originali restano al loro posto
+ */
+public class LoginDaoFsIndicizzato implements LoginDao {
+
+        private static final Logger LOG = Logger.getLogger(LoginDaoFsIndicizzato.class.getName());
+
+        static final String FILE_CREDENZIALI = "credenziali.db";
+        private static final byte[] MAGIC = "RUBCRED1".getBytes(StandardCharsets.US_ASCII);
+        private static final int MAX_RECORD = 64 * 1024;
+
+        private final Path file;
+        private final Path dirInformazioni;
+        private final ConcurrentHashMap<String, String> indice = new ConcurrentHashMap<>();
+
+        /**
+         * Offset fino al quale il file è stato indicizzato (fine dell'ultimo record valido); scritto
+         * sotto il lock di this, letto anche senza da {@link #cerca(String)}.
+         */
+        private volatile long indicizzatoFino;
+
+        public LoginDaoFsIndicizzato(@NotNull Path baseDir) {
+                this.dirInformazioni = Objects.requireNonNull(baseDir).resolve(PathUtils.INFORMAZIONI);
+                this.file = dirInformazioni.resolve(FILE_CREDENZIALI);
+                try {
+                        apri();
+                } catch (IOException e) {
+                        throw new RuntimeException("Errore FS apertura credenziali: " + e.getMessage(), e);
+                }
+        }
+
+        @Override
+        public void signUp(UtenteLogin user) throws UtenteGiaEsiste {
+                String username = user.getUsername();
+                if (username.indexOf('\t') >= 0 || username.indexOf('\n') >= 0)
+                        throw new IllegalArgumentException("username non valido");
+                String hash = PasswordHasher.hash(user.getPassword());
+                try {
+                        if (!aggiungi(username, hash, false)) {
+                                throw new UtenteGiaEsiste("Utente già esistente: " + username);
+                        }
+                } catch (IOException e) {
+                        throw new RuntimeException("Errore FS in signUp: " + e.getMessage(), e);
+                }
+        }
+
+        @Override
+        public void signIn(UtenteLogin user) throws UtenteNonTrovato, ProblemaAutenticazione {
+                String storedHash;
+                try {
+                        storedHash = cerca(user.getUsername());
+                } catch (IOException e) {
+                        throw new RuntimeException("Errore FS in signIn: " + e.getMessage(), e);
+                }
+                if (storedHash == null) {
+                        throw new UtenteNonTrovato("Utente inesistente: " + user.getUsername());
+                }
+                boolean ok;
+                try {
+                        ok = PasswordHasher.verify(user.getPassword(), storedHash);
+                } catch (RejectedExecutionException e) {
+                        throw new ProblemaAutenticazione(LoginDaoLimitato.TROPPI_TENTATIVI);
+                }
+                if (!ok) {
+                        throw new ProblemaAutenticazione("Password non corretta");
+                }
+        }
+
+        @Override
+        public void impostaPassword(UtenteLogin user) {
+                String username = user.getUsername();
+                if (username.indexOf('\t') >= 0 || username.indexOf('\n') >= 0)
+                        throw new IllegalArgumentException("username non valido");
+                try {
+                        aggiungi(username, PasswordHasher.hash(user.getPassword()), true);
+                } catch (IOException e) {
+                        throw new RuntimeException("Errore FS in impostaPassword: " + e.getMessage(), e);
+                }
+        }
+
+        @Override
+        public void revoca(String username) {
+                try {
+                        aggiungi(username, "", true);
+                } catch (IOException e) {
+                        throw new RuntimeException("Errore FS in revoca: " + e.getMessage(), e);
+                }
+        }
+
+        /** @return il numero di utenti indicizzati. */
+        public int size() {
+                return indice.size();
+        }
+
+        /*
+         * Anche per un utente già in indice: revoche e cambi di password appesi da altri processi
+         * devono valere qui prima della verifica.
+         */
+        private String cerca(String username) throws IOException {
+                if (Files.size(file) != indicizzatoFino) {
+                        synchronized (this) {
+                                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                                        indicizzaCoda(ch);
+                                }
+                        }
+                }
+                return indice.get(username);
+        }
+
+        /* Con sostituisci=false non scrive nulla se l'utente esiste già; hash vuoto = credenziali revocate. */
+        private synchronized boolean aggiungi(String username, String hash, boolean sostituisci) throws IOException {
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                        FileLock lock = ch.lock();
+                        try {
+                                indicizzaCoda(ch);
+                                if (!sostituisci && indice.containsKey(username)) return false;
+                                // scarta un eventuale record troncato da un crash durante l'append
+                                if (ch.size() > indicizzatoFino) ch.truncate(indicizzatoFino);
+
+                                ByteBuffer rec = codifica(username, hash);
+                                long pos = indicizzatoFino;
+                                while (rec.hasRemaining()) pos += ch.write(rec, pos);
+                                ch.force(false);
+                                indicizzatoFino = pos;
+                                if (hash.isEmpty()) indice.remove(username);
+                                else indice.put(username, hash);
+                                return true;
+                        } finally {
+                                lock.release();
+                        }
+                }
+        }
+
+        private void apri() throws IOException {
+                Files.createDirectories(dirInformazioni);
+                if (Files.notExists(file)) {
+                        migra();
+                }
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                        indicizzaCoda(ch);
+                }
+        }
+
+        /* Crea il file di credenziali importando il vecchio layout una cartella per utente. */
+        private void migra() throws IOException {
+                Path tmp = Files.createTempFile(dirInformazioni, FILE_CREDENZIALI, ".tmp");
+                int migrati = 0;
+                try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                        ch.write(ByteBuffer.wrap(MAGIC));
+                        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(dirInformazioni, Files::isDirectory)) {
+                                for (Path dir : dirs) {
+                                        Path info = dir.resolve("info.txt");
+                                        if (!Files.isRegularFile(info)) continue;
+                                        String[] parts = Files.readString(info, StandardCharsets.UTF_8).trim().split(",", 2);
+                                        if (parts.length != 2) continue;
+                                        ByteBuffer rec = codifica(parts[0].trim(), parts[1].trim());
+                                        while (rec.hasRemaining()) ch.write(rec);
+                                        migrati++;
+                                }
+                        }
+                        ch.force(true);
+                }
+                try {
+                        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                        // un altro processo ha completato la migrazione per primo
+                        Files.deleteIfExists(tmp);
+                        if (Files.notExists(file)) throw e;
+                        return;
+                }
+                int n = migrati;
+                LOG.info(() -> "Migrate " + n + " credenziali in " + file);
+        }
+
+        /* Indicizza i record aggiunti dopo l'ultimo offset letto, tramite mapping in sola lettura. */
+        private void indicizzaCoda(FileChannel ch) throws IOException {
+                long size = ch.size();
+                if (indicizzatoFino == 0) {
+                        if (size < MAGIC.length) return;
+                        ByteBuffer header = ByteBuffer.allocate(MAGIC.length);
+                        ch.read(header, 0);
+                        if (!Arrays.equals(header.array(), MAGIC))
+                                throw new IOException("Formato file credenziali non valido: " + file);
+                        indicizzatoFino = MAGIC.length;
+                }
+                if (size <= indicizzatoFino) return;
+
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, indicizzatoFino, size - indicizzatoFino);
+                while (buf.remaining() >= Integer.BYTES) {
+                        int inizio = buf.position();
+                        int len = buf.getInt();
+                        if (len <= 0 || len > MAX_RECORD || len > buf.remaining()) {
+                                buf.position(inizio);
+                                break;  // record incompleto in coda
+                        }
+                        byte[] payload = new byte[len];
+                        buf.get(payload);
+                        String rec = new String(payload, StandardCharsets.UTF_8);
+                        int tab = rec.indexOf('\t');
+                        if (tab > 0) {
+                                // vale l'ultimo record dell'utente; hash vuoto = revocato
+                                String hash = rec.substring(tab + 1);
+                                if (hash.isEmpty()) indice.remove(rec.substring(0, tab));
+                                else indice.put(rec.substring(0, tab), hash);
+                        }
+                }
+                indicizzatoFino += buf.position();
+        }
+
+        private static ByteBuffer codifica(String username, String hash) {
+                byte[] payload = (username + "\t" + hash).getBytes(StandardCharsets.UTF_8);
+                ByteBuffer rec = ByteBuffer.allocate(Integer.BYTES + payload.length);
+                rec.putInt(payload.length).put(payload).flip();
+                return rec;
+        }
+}
@@ -0,0 +1,122 @@
+package it.dissanahmed.login.persistenza;
+
+import it.dissanahmed.login.UtenteLogin;
+import it.dissanahmed.login.ex.ProblemaAutenticazione;
+import it.dissanahmed.login.ex.UtenteGiaEsiste;
+import it.dissanahmed.login.ex.UtenteNonTrovato;
+import it.dissanahmed.util.Metriche;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Login per <code>database.instance=ibrido</code>: l'accesso avviene sul server
+ * ({@link LoginDaoDBMS}), così la sincronizzazione dei contatti ottiene il token, e l'account
+ * locale ({@link LoginDaoFs}) viene creato se manca per poter entrare anche senza rete.
+ * <p>
+ * Se il server non è raggiungibile (SQLSTATE di classe <code>08</code>) le credenziali sono
+ * verificate in locale e l'accesso al server viene ritentato in background finché non riesce.
+ * La registrazione di un nuovo utente richiede invece il server.
+ * </p>
+ * <p>
+ * Il server decide: dopo un accesso riuscito la password locale diventa quella appena verificata,
+ * e se il server rifiuta le credenziali usate senza rete quelle locali vengono revocate, così una
+ * password cambiata o revocata non continua a funzionare offline.
+ * </p>
+ */
+public class LoginDaoIbrido implements LoginDao {
+
+        private static final Logger LOG = Logger.getLogger(LoginDaoIbrido.class.getName());
+
+        private final LoginDao remoto;
+        private final LoginDao locale;
+        private final long riprovaMs;
+
+        /** Accessi avvenuti solo in locale, da ripetere sul server. */
+        private final Map<String, UtenteLogin> daRiprovare = new ConcurrentHashMap<>();
+        private ScheduledExecutorService riprova;  // protetto da this
+
+        public LoginDaoIbrido(@NotNull LoginDao remoto, @NotNull LoginDao locale, long riprovaMs) {
+                this.remoto = Objects.requireNonNull(remoto);
+                this.locale = Objects.requireNonNull(locale);
+                this.riprovaMs = Math.max(1, riprovaMs);
+        }
+
+        @Override
+        public void signUp(UtenteLogin user) throws UtenteGiaEsiste, ProblemaAutenticazione {
+                remoto.signUp(user);
+                try {
+                        locale.signUp(user);
+                } catch (UtenteGiaEsiste ignored) {
+                        // account locale creato da un'installazione precedente
+                }
+        }
+
+        @Override
+        public void signIn(UtenteLogin user) throws UtenteNonTrovato, ProblemaAutenticazione {
+                try {
+                        remoto.signIn(user);
+                } catch (RuntimeException e) {
+                        if (!nonRaggiungibile(e)) throw e;
+                        locale.signIn(user);
+                        LOG.info(() -> "Server non raggiungibile, accesso locale per '" + user.getUsername() + "'");
+                        pianificaRiprova(user);
+                        return;
+                }
+                daRiprovare.remove(user.getUsername());
+                allineaLocale(user);
+        }
+
+        /* Dopo un accesso sul server: la copia locale prende la password appena verificata. */
+        private void allineaLocale(UtenteLogin user) {
+                try {
+                        locale.signIn(user);
+                        return;
+                } catch (UtenteNonTrovato e) {
+                        LOG.fine(() -> "Credenziali locali create per '" + user.getUsername() + "'");
+                } catch (ProblemaAutenticazione e) {
+                        LOG.info(() -> "Password locale di '" + user.getUsername() + "' allineata a quella del server");
+                }
+                locale.impostaPassword(user);
+        }
+
+        private synchronized void pianificaRiprova(UtenteLogin user) {
+                daRiprovare.put(user.getUsername(), user);
+                if (riprova != null) return;
+                riprova = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "login-ibrido-riprova");
+                        t.setDaemon(true);
+                        return t;
+                });
+                riprova.scheduleWithFixedDelay(this::riprova, riprovaMs, riprovaMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void riprova() {
+                for (UtenteLogin u : daRiprovare.values()) {
+                        try {
+                                remoto.signIn(u);
+                                daRiprovare.remove(u.getUsername(), u);
+                                LOG.info(() -> "Accesso al server riuscito per '" + u.getUsername() + "'");
+                        } catch (UtenteNonTrovato | ProblemaAutenticazione e) {
+                                daRiprovare.remove(u.getUsername(), u);
+                                // password cambiata o utente rimosso sul server: la copia locale non vale più
+                                locale.revoca(u.getUsername());
+                                LOG.warning(() -> "Accesso al server rifiutato per '" + u.getUsername()
+                                        + "', credenziali locali revocate: " + e.getMessage());
+                        } catch (RuntimeException e) {
+                                // ancora non raggiungibile: si riprova al prossimo giro
+                        }
+                }
+        }
+
+        /* Errori di connessione: SQLSTATE di classe 08. */
+        private static boolean nonRaggiungibile(RuntimeException e) {
+                return Metriche.classifica(e).startsWith("08");
+        }
+}
@@ -0,0 +1,76 @@
+package it.dissanahmed.login.persistenza;
+
+import it.dissanahmed.login.UtenteLogin;
+import it.dissanahmed.login.ex.ProblemaAutenticazione;
+import it.dissanahmed.login.ex.UtenteGiaEsiste;
+import it.dissanahmed.login.ex.UtenteNonTrovato;
+import it.dissanahmed.login.util.PasswordHasher;
+import it.dissanahmed.util.DatabaseIncorporato;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * {@link LoginDao} su {@link DatabaseIncorporato}, tabella <code>LoginUser</code>.
+ * <p>
+ * Come <code>sp_register</code> e <code>sp_login</code>, con gli hash di {@link PasswordHasher}
+ * usati anche da {@link LoginDaoFs}. Non crea token di sessione: servono a <code>LoginDaoDBMS</code>
+ * per autenticare le chiamate a un server remoto, mentre i DAO incorporati sono legati all'utente.
+ * </p>
+ */
+public class LoginDaoIncorporato implements LoginDao {
+
+        private final DatabaseIncorporato db;
+
+        public LoginDaoIncorporato(@NotNull DatabaseIncorporato db) {
+                this.db = Objects.requireNonNull(db);
+        }
+
+        @Override
+        public void signUp(UtenteLogin u) throws UtenteGiaEsiste {
+                String hash = PasswordHasher.hash(u.getPassword());
+                try {
+                        db.transazione(c -> {
+                                try (PreparedStatement ps = c.prepareStatement(
+                                        "INSERT INTO LoginUser(username, password_hash) VALUES (?, ?)")) {
+                                        ps.setString(1, u.getUsername());
+                                        ps.setString(2, hash);
+                                        return ps.executeUpdate();
+                                }
+                        });
+                } catch (SQLException ex) {
+                        if (DatabaseIncorporato.chiaveDuplicata(ex)) throw new UtenteGiaEsiste(u.getUsername());
+                        throw new RuntimeException("Errore signUp incorporato: " + ex.getMessage(), ex);
+                }
+        }
+
+        @Override
+        public void signIn(UtenteLogin u) throws UtenteNonTrovato, ProblemaAutenticazione {
+                String hash;
+                try {
+                        hash = db.transazione(c -> {
+                                try (PreparedStatement ps = c.prepareStatement(
+                                        "SELECT password_hash FROM LoginUser WHERE username = ?")) {
+                                        ps.setString(1, u.getUsername());
+                                        try (ResultSet rs = ps.executeQuery()) {
+                                                return rs.next() ? rs.getString(1) : null;
+                                        }
+                                }
+                        });
+                } catch (SQLException ex) {
+                        throw new RuntimeException("Errore signIn incorporato: " + ex.getMessage(), ex);
+                }
+                if (hash == null) throw new UtenteNonTrovato(u.getUsername());
+                boolean ok;
+                try {
+                        ok = PasswordHasher.verify(u.getPassword(), hash);
+                } catch (RejectedExecutionException e) {
+                        throw new ProblemaAutenticazione(LoginDaoLimitato.TROPPI_TENTATIVI);
+                }
+                if (!ok) throw new ProblemaAutenticazione("Password errata");
+        }
+}
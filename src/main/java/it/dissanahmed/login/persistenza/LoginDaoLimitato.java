@@ -0,0 +1,221 @@
+package it.dissanahmed.login.persistenza;
+
+import it.dissanahmed.login.UtenteLogin;
+import it.dissanahmed.login.ex.ProblemaAutenticazione;
+import it.dissanahmed.login.ex.UtenteGiaEsiste;
+import it.dissanahmed.login.ex.UtenteNonTrovato;
+import it.dissanahmed.login.util.TokenBucket;
+import it.dissanahmed.util.Configurazione;
+import it.dissanahmed.util.Metriche;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Decoratore di {@link LoginDao} che limita i tentativi di accesso prima
+ * di qualunque derivazione della chiave.
+ * <p>
+ * Ogni tentativo deve ottenere un gettone prima dal secchio globale e poi da
+ * quello dell'utente; in caso contrario viene rifiutato subito con
+ * {@link ProblemaAutenticazione}. Il secchio di un utente viene creato solo dopo
+ * il gettone globale, così chi prova molti username diversi non fa crescere la
+ * mappa dei secchi più in fretta del limite globale. La mappa tiene al più
+ * {@value #MAX_SECCHI_UTENTE} secchi, scartando quello usato meno di recente in
+ * tempo costante. Anche la registrazione passa dal secchio globale, dato che
+ * calcola un hash PBKDF2.
+ * </p>
+ * <p>
+ * Una ricarica della {@link Configurazione} aggiorna i limiti dell'istanza condivisa sul
+ * posto: i gettoni già consumati restano consumati, così cambiare la configurazione non
+ * concede nuovi tentativi a chi li ha esauriti.
+ * </p>
+ */
+public class LoginDaoLimitato implements LoginDao {
+
+        static final String TROPPI_TENTATIVI = "Troppi tentativi di accesso, riprova più tardi";
+
+        /**
+         * Secchi per utente tenuti al più. Al ritmo globale predefinito servono oltre dieci minuti
+         * di nomi nuovi per scartare un secchio, che nel frattempo si sarebbe comunque riempito.
+         */
+        static final int MAX_SECCHI_UTENTE = 10_000;
+
+        /**
+         * Fotografia delle metriche di ammissione.
+         */
+        public record Statistiche(long accettati, long rifiutatiGlobale, long rifiutatiUtente) {
+                public long rifiutati() {
+                        return rifiutatiGlobale + rifiutatiUtente;
+                }
+
+                public double tassoRifiuto() {
+                        long totale = accettati + rifiutati();
+                        return totale == 0 ? 0 : (double) rifiutati() / totale;
+                }
+        }
+
+        private static LoginDaoLimitato condiviso;
+        private static Configurazione confCondiviso;
+
+        static {
+                Metriche.registraSonda("login.ammissione", () -> {
+                        synchronized (LoginDaoLimitato.class) {
+                                return condiviso == null ? null : condiviso.statistiche();
+                        }
+                });
+                Configurazione.addAscoltatore(LoginDaoLimitato::applicaLimiti);
+        }
+
+        private volatile LoginDao delegate;
+        private final TokenBucket globale;
+        /** Secchi per utente in ordine di accesso, protetti da {@link #lockSecchi}. */
+        private final LinkedHashMap<String, TokenBucket> perUtente = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+                        return size() > MAX_SECCHI_UTENTE;
+                }
+        };
+        private final ReentrantLock lockSecchi = new ReentrantLock();
+        /** Limiti dei secchi per utente, protetti da {@link #lockSecchi}. */
+        private double capacitaUtente;
+        private double ricaricaUtente;
+        private final LongSupplier orologioNano;
+
+        private final LongAdder accettati = new LongAdder();
+        private final LongAdder rifiutatiGlobale = new LongAdder();
+        private final LongAdder rifiutatiUtente = new LongAdder();
+
+        /**
+         * Costruisce il decoratore leggendo i limiti dalle proprietà:
+         * <ul>
+         *   <li><code>login.rate.global.burst</code> (default 32) e <code>login.rate.global.perSecond</code> (default 16),</li>
+         *   <li><code>login.rate.user.burst</code> (default 5) e <code>login.rate.user.perMinute</code> (default 10).</li>
+         * </ul>
+         */
+        public LoginDaoLimitato(@NotNull LoginDao delegate, @NotNull Properties props) {
+                this(delegate,
+                        doubleProp(props, "login.rate.global.burst", 32),
+                        doubleProp(props, "login.rate.global.perSecond", 16),
+                        doubleProp(props, "login.rate.user.burst", 5),
+                        doubleProp(props, "login.rate.user.perMinute", 10) / 60d,
+                        System::nanoTime);
+        }
+
+        public LoginDaoLimitato(@NotNull LoginDao delegate, double capacitaGlobale, double ricaricaGlobalePerSecondo,
+                                double capacitaUtente, double ricaricaUtentePerSecondo, @NotNull LongSupplier orologioNano) {
+                this.delegate = Objects.requireNonNull(delegate);
+                this.orologioNano = Objects.requireNonNull(orologioNano);
+                this.globale = new TokenBucket(capacitaGlobale, ricaricaGlobalePerSecondo, orologioNano);
+                this.capacitaUtente = capacitaUtente;
+                this.ricaricaUtente = ricaricaUtentePerSecondo;
+        }
+
+        @Override
+        public void signUp(UtenteLogin user) throws UtenteGiaEsiste, ProblemaAutenticazione {
+                if (!globale.tryAcquire()) {
+                        rifiutatiGlobale.increment();
+                        throw new ProblemaAutenticazione(TROPPI_TENTATIVI);
+                }
+                accettati.increment();
+                delegate.signUp(user);
+        }
+
+        @Override
+        public void signIn(UtenteLogin user) throws UtenteNonTrovato, ProblemaAutenticazione {
+                if (!globale.tryAcquire()) {
+                        rifiutatiGlobale.increment();
+                        throw new ProblemaAutenticazione(TROPPI_TENTATIVI);
+                }
+                if (!secchioUtente(user.getUsername()).tryAcquire()) {
+                        rifiutatiUtente.increment();
+                        throw new ProblemaAutenticazione(TROPPI_TENTATIVI);
+                }
+                accettati.increment();
+                delegate.signIn(user);
+        }
+
+        /**
+         * Restituisce l'istanza condivisa dal processo, creandola al primo uso:
+         * i limiti devono valere per tutti i {@code GestioneLogin}, non per ciascuno.
+         * Dopo una ricarica della configurazione l'istanza resta la stessa, con i suoi secchi:
+         * cambiano il DAO delegato e i limiti.
+         */
+        static synchronized LoginDaoLimitato condiviso(@NotNull Configurazione conf, @NotNull Supplier<LoginDao> delegate) {
+                if (condiviso == null) {
+                        condiviso = new LoginDaoLimitato(delegate.get(), conf.toProperties());
+                } else if (confCondiviso != conf) {
+                        condiviso.delegate = Objects.requireNonNull(delegate.get());
+                        condiviso.limiti(conf.toProperties());
+                }
+                confCondiviso = conf;
+                return condiviso;
+        }
+
+        /* Ascoltatore della configurazione: i nuovi limiti valgono subito, senza attendere il prossimo accesso. */
+        private static synchronized void applicaLimiti(Configurazione conf) {
+                if (condiviso != null) condiviso.limiti(conf.toProperties());
+        }
+
+        /**
+         * Applica i limiti delle proprietà (vedi {@link #LoginDaoLimitato(LoginDao, Properties)}) al
+         * secchio globale e a quelli per utente già creati, mantenendone i gettoni.
+         */
+        void limiti(@NotNull Properties props) {
+                double capUtente = doubleProp(props, "login.rate.user.burst", 5);
+                double ricUtente = doubleProp(props, "login.rate.user.perMinute", 10) / 60d;
+                if (capUtente <= 0 || ricUtente <= 0)
+                        throw new IllegalArgumentException("login.rate.user.burst e login.rate.user.perMinute devono essere positivi");
+                globale.configura(doubleProp(props, "login.rate.global.burst", 32),
+                        doubleProp(props, "login.rate.global.perSecond", 16));
+                lockSecchi.lock();
+                try {
+                        for (TokenBucket b : perUtente.values()) b.configura(capUtente, ricUtente);
+                        capacitaUtente = capUtente;
+                        ricaricaUtente = ricUtente;
+                } finally {
+                        lockSecchi.unlock();
+                }
+        }
+
+        /** @return le metriche correnti di ammissione. */
+        public Statistiche statistiche() {
+                return new Statistiche(accettati.sum(), rifiutatiGlobale.sum(), rifiutatiUtente.sum());
+        }
+
+        /** @return quanti secchi per utente sono tenuti. */
+        int secchiUtente() {
+                lockSecchi.lock();
+                try {
+                        return perUtente.size();
+                } finally {
+                        lockSecchi.unlock();
+                }
+        }
+
+        private TokenBucket secchioUtente(String username) {
+                lockSecchi.lock();
+                try {
+                        return perUtente.computeIfAbsent(username,
+                                u -> new TokenBucket(capacitaUtente, ricaricaUtente, orologioNano));
+                } finally {
+                        lockSecchi.unlock();
+                }
+        }
+
+        private static double doubleProp(Properties props, String key, double def) {
+                String v = props.getProperty(key);
+                if (v == null || v.isBlank()) return def;
+                try {
+                        return Double.parseDouble(v.trim());
+                } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Valore non valido per " + key + ": " + v, e);
+                }
+        }
+}
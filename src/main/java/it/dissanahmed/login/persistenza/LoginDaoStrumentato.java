@@ -0,0 +1,53 @@
+package it.dissanahmed.login.persistenza;
+
+import it.dissanahmed.login.UtenteLogin;
+import it.dissanahmed.login.ex.ProblemaAutenticazione;
+import it.dissanahmed.login.ex.UtenteGiaEsiste;
+import it.dissanahmed.login.ex.UtenteNonTrovato;
+import it.dissanahmed.util.Istogramma;
+import it.dissanahmed.util.Metriche;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+
+/**
+ * Decoratore di {@link LoginDao} che registra in {@link Metriche} la latenza di
+ * <code>signIn</code>/<code>signUp</code> e gli esiti negativi per tipo o SQLSTATE.
+ */
+public class LoginDaoStrumentato implements LoginDao {
+
+        private static final Istogramma SIGN_IN = Metriche.istogramma("login.signIn");
+        private static final Istogramma SIGN_UP = Metriche.istogramma("login.signUp");
+
+        private final LoginDao delegate;
+
+        public LoginDaoStrumentato(@NotNull LoginDao delegate) {
+                this.delegate = Objects.requireNonNull(delegate);
+        }
+
+        @Override
+        public void signUp(UtenteLogin user) throws UtenteGiaEsiste, ProblemaAutenticazione {
+                long t0 = System.nanoTime();
+                try {
+                        delegate.signUp(user);
+                } catch (UtenteGiaEsiste | ProblemaAutenticazione | RuntimeException e) {
+                        Metriche.errore("login.signUp", e);
+                        throw e;
+                } finally {
+                        SIGN_UP.registra(System.nanoTime() - t0);
+                }
+        }
+
+        @Override
+        public void signIn(UtenteLogin user) throws UtenteNonTrovato, ProblemaAutenticazione {
+                long t0 = System.nanoTime();
+                try {
+                        delegate.signIn(user);
+                } catch (UtenteNonTrovato | ProblemaAutenticazione | RuntimeException e) {
+                        Metriche.errore("login.signIn", e);
+                        throw e;
+                } finally {
+                        SIGN_IN.registra(System.nanoTime() - t0);
+                }
+        }
+}
@@ -0,0 +1,176 @@
+package it.dissanahmed.login.persistenza;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Registro thread-safe dei token di sessione ottenuti da {@code sp_login}.
+ * <p>
+ * Ogni voce ha una scadenza allineata a quella lato server (12 ore) e viene
+ * rinnovata in background tramite {@code sp_refresh_session} prima che scada,
+ * così che le operazioni sui contatti non ricevano mai un {@code 45010}
+ * per un token scaduto durante l'uso.
+ * </p>
+ * <p>
+ * La mappa è una {@link ConcurrentHashMap}, già suddivisa internamente in bin
+ * con lock indipendenti: letture senza lock e scritture che non si contendono
+ * tra utenti diversi.
+ * </p>
+ */
+public class RegistroSessioni {
+
+        private static final Logger LOG = Logger.getLogger(RegistroSessioni.class.getName());
+
+        /** Durata del token lato server ({@code sp_login}, {@code sp_refresh_session}). */
+        public static final Duration TTL_SERVER = Duration.ofHours(12);
+
+        /** Anticipo con cui un token viene rinnovato prima della scadenza. */
+        public static final Duration MARGINE_RINNOVO = Duration.ofHours(1);
+
+        /** Intervallo di controllo del thread di rinnovo. */
+        private static final long PERIODO_CONTROLLO_MINUTI = 5;
+
+        /**
+         * Operazione di rinnovo di un token sul server.
+         * Deve lanciare {@link SQLException} con SQLSTATE {@code 45010} se la sessione non è più valida.
+         */
+        @FunctionalInterface
+        public interface Rinnovo {
+                void rinnova(String token) throws SQLException;
+        }
+
+        /**
+         * Fotografia delle metriche del registro.
+         */
+        public record Statistiche(long sessioniAttive, long hit, long miss, long scadute,
+                                  long rinnovi, long rinnoviFalliti) {
+        }
+
+        private record Sessione(String token, Instant scadenza, Rinnovo rinnovo) {
+        }
+
+        private final ConcurrentHashMap<String, Sessione> sessioni = new ConcurrentHashMap<>();
+        private final Clock clock;
+        private final Duration ttl;
+        private final Duration margine;
+
+        private final LongAdder hit = new LongAdder();
+        private final LongAdder miss = new LongAdder();
+        private final LongAdder scadute = new LongAdder();
+        private final LongAdder rinnovi = new LongAdder();
+        private final LongAdder rinnoviFalliti = new LongAdder();
+
+        private volatile ScheduledExecutorService scheduler;
+
+        public RegistroSessioni() {
+                this(Clock.systemUTC(), TTL_SERVER, MARGINE_RINNOVO);
+        }
+
+        public RegistroSessioni(@NotNull Clock clock, @NotNull Duration ttl, @NotNull Duration margine) {
+                this.clock = Objects.requireNonNull(clock);
+                this.ttl = Objects.requireNonNull(ttl);
+                this.margine = Objects.requireNonNull(margine);
+        }
+
+        /**
+         * Registra (o sostituisce) il token dell'utente, con scadenza pari al TTL del server.
+         *
+         * @param username l'utente applicativo.
+         * @param token    il token restituito da {@code sp_login}.
+         * @param rinnovo  l'operazione da usare per rinnovarlo, o {@code null} per non rinnovarlo.
+         */
+        public void registra(@NotNull String username, @NotNull String token, Rinnovo rinnovo) {
+                sessioni.put(username, new Sessione(token, clock.instant().plus(ttl), rinnovo));
+                if (rinnovo != null) avviaRinnovoSeNecessario();
+        }
+
+        /**
+         * Restituisce il token valido dell'utente, oppure {@code null} se assente o scaduto.
+         * Le voci scadute vengono rimosse.
+         */
+        public String get(String username) {
+                if (username == null) return null;
+                Sessione s = sessioni.get(username);
+                if (s == null) {
+                        miss.increment();
+                        return null;
+                }
+                if (!clock.instant().isBefore(s.scadenza())) {
+                        sessioni.remove(username, s);
+                        scadute.increment();
+                        miss.increment();
+                        return null;
+                }
+                hit.increment();
+                return s.token();
+        }
+
+        /** Rimuove la sessione dell'utente (es. logout). */
+        public void rimuovi(String username) {
+                if (username != null) sessioni.remove(username);
+        }
+
+        /**
+         * Rinnova le sessioni prossime alla scadenza ed elimina quelle già scadute.
+         * Invocato periodicamente dal thread di background, ma utilizzabile anche direttamente.
+         */
+        public void rinnovaInScadenza() {
+                Instant adesso = clock.instant();
+                Instant soglia = adesso.plus(margine);
+                sessioni.forEach((username, s) -> {
+                        if (!adesso.isBefore(s.scadenza())) {
+                                if (sessioni.remove(username, s)) scadute.increment();
+                                return;
+                        }
+                        if (s.rinnovo() == null || s.scadenza().isAfter(soglia)) return;
+                        try {
+                                s.rinnovo().rinnova(s.token());
+                                sessioni.replace(username, s,
+                                        new Sessione(s.token(), clock.instant().plus(ttl), s.rinnovo()));
+                                rinnovi.increment();
+                        } catch (SQLException ex) {
+                                rinnoviFalliti.increment();
+                                if ("45010".equals(ex.getSQLState())) {
+                                        sessioni.remove(username, s);
+                                }
+                                LOG.warning(() -> String.format("[rinnovo] utente=%s SQLState=%s, Msg=%s",
+                                        username, ex.getSQLState(), ex.getMessage()));
+                        } catch (RuntimeException ex) {
+                                rinnoviFalliti.increment();
+                                LOG.warning(() -> "[rinnovo] utente=" + username + ", Msg=" + ex.getMessage());
+                        }
+                });
+        }
+
+        /** @return le metriche correnti del registro. */
+        public Statistiche statistiche() {
+                return new Statistiche(sessioni.size(), hit.sum(), miss.sum(), scadute.sum(),
+                        rinnovi.sum(), rinnoviFalliti.sum());
+        }
+
+        private void avviaRinnovoSeNecessario() {
+                if (scheduler != null) return;
+                synchronized (this) {
+                        if (scheduler != null) return;
+                        ScheduledExecutorService s = Executors.newSingleThreadScheduledExecutor(r -> {
+                                Thread t = new Thread(r, "rinnovo-sessioni");
+                                t.setDaemon(true);
+                                return t;
+                        });
+                        s.scheduleWithFixedDelay(this::rinnovaInScadenza,
+                                PERIODO_CONTROLLO_MINUTI, PERIODO_CONTROLLO_MINUTI, TimeUnit.MINUTES);
+                        scheduler = s;
+                }
+        }
+}
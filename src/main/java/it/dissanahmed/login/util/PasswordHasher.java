@@ -1,8 +1,18 @@
 package it.dissanahmed.login.util;
+import it.dissanahmed.util.jfr.HashPasswordEvent;
+
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public final class PasswordHasher {
@@ -12,21 +22,65 @@ public final class PasswordHasher {
         private static final int KEY_LENGTH = 256;       // bit
         private static final int SALT_LEN   = 16;        // byte
 
+        private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+        // Un solo SecureRandom condiviso (thread-safe): evita seeding a ogni hash
+        private static final SecureRandom RANDOM = new SecureRandom();
+
+        // SecretKeyFactory non è thread-safe: una per thread, creata una sola volta
+        private static final ThreadLocal<SecretKeyFactory> FACTORY = ThreadLocal.withInitial(() -> {
+                try {
+                        return SecretKeyFactory.getInstance(ALGORITHM);
+                } catch (NoSuchAlgorithmException e) {
+                        throw new IllegalStateException("Errore PBKDF2: " + e.getMessage(), e);
+                }
+        });
+
+        // Pool dedicato e limitato per le verifiche: un picco di login non satura le altre attività
+        private static final int VERIFY_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        private static final int VERIFY_QUEUE   = 64;
+        private static final ThreadPoolExecutor VERIFY_POOL = creaPoolVerifiche(VERIFY_THREADS, VERIFY_QUEUE);
+
         private PasswordHasher() {}
 
         /* Hash di una password in chiaro con sale casuale. */
         public static String hash(String plainPassword) {
                 if (plainPassword == null) throw new IllegalArgumentException("plainPassword nulla");
                 byte[] salt = new byte[SALT_LEN];
-                new SecureRandom().nextBytes(salt);
-                byte[] derived = pbkdf2(plainPassword.toCharArray(), salt, ITERATIONS, KEY_LENGTH);
+                RANDOM.nextBytes(salt);
+                byte[] derived = pbkdf2(plainPassword.toCharArray(), salt, ITERATIONS, KEY_LENGTH, "hash");
                 return "pbkdf2" + "$" + ITERATIONS + "$" +
                         Base64.getEncoder().encodeToString(salt) + "$" +
                         Base64.getEncoder().encodeToString(derived);
         }
 
-        /* Verifica di una password in chiaro contro una stringa hash salvata. */
+        /*
+         * Verifica di una password in chiaro contro una stringa hash salvata.
+         * Il calcolo avviene sul pool dedicato alle verifiche; se la coda è piena
+         * la richiesta viene rifiutata subito con RejectedExecutionException.
+         */
         public static boolean verify(String plainPassword, String stored) {
+                return verify(VERIFY_POOL, plainPassword, stored);
+        }
+
+        /* Come verify(String, String), sul pool indicato: i test ne usano uno piccolo per saturarlo. */
+        static boolean verify(ThreadPoolExecutor pool, String plainPassword, String stored) {
+                if (plainPassword == null || stored == null) return false;
+                Future<Boolean> esito = pool.submit(() -> verifyLocal(plainPassword, stored));
+                try {
+                        return esito.get();
+                } catch (InterruptedException e) {
+                        esito.cancel(true);
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Verifica password interrotta", e);
+                } catch (ExecutionException e) {
+                        if (e.getCause() instanceof RuntimeException re) throw re;
+                        throw new IllegalStateException("Errore PBKDF2: " + e.getCause().getMessage(), e.getCause());
+                }
+        }
+
+        /* Verifica eseguita direttamente sul thread chiamante. */
+        public static boolean verifyLocal(String plainPassword, String stored) {
                 if (plainPassword == null || stored == null) return false;
                 String[] parts = stored.split("\\$");
                 if (parts.length != 4 || !"pbkdf2".equals(parts[0])) return false;
@@ -35,18 +89,32 @@ public final class PasswordHasher {
                 byte[] salt = Base64.getDecoder().decode(parts[2]);
                 byte[] expected = Base64.getDecoder().decode(parts[3]);
 
-                byte[] actual = pbkdf2(plainPassword.toCharArray(), salt, iterations, expected.length * 8);
+                byte[] actual = pbkdf2(plainPassword.toCharArray(), salt, iterations, expected.length * 8, "verifica");
                 return slowEquals(expected, actual);
         }
 
+        /* Numero di verifiche in attesa nella coda del pool. */
+        public static int pendingVerifications() {
+                return VERIFY_POOL.getQueue().size();
+        }
+
         // PBKDF2 core
-        private static byte[] pbkdf2(char[] password, byte[] salt, int iterations, int keyLengthBits) {
+        private static byte[] pbkdf2(char[] password, byte[] salt, int iterations, int keyLengthBits, String operazione) {
+                HashPasswordEvent ev = new HashPasswordEvent();
+                ev.begin();
+                PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, keyLengthBits);
                 try {
-                        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, keyLengthBits);
-                        SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-                        return skf.generateSecret(spec).getEncoded();
+                        return FACTORY.get().generateSecret(spec).getEncoded();
                 } catch (Exception e) {
                         throw new IllegalStateException("Errore PBKDF2: " + e.getMessage(), e);
+                } finally {
+                        spec.clearPassword();
+                        if (ev.shouldCommit()) {
+                                ev.operazione = operazione;
+                                ev.iterazioni = iterations;
+                                ev.bitChiave = keyLengthBits;
+                                ev.commit();
+                        }
                 }
         }
 
@@ -59,4 +127,18 @@ public final class PasswordHasher {
                 }
                 return diff == 0;
         }
+
+        static ThreadPoolExecutor creaPoolVerifiche(int thread, int coda) {
+                AtomicInteger n = new AtomicInteger();
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(thread, thread,
+                        30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(coda), r -> {
+                                Thread t = new Thread(r, "pbkdf2-verify-" + n.incrementAndGet());
+                                t.setDaemon(true);
+                                return t;
+                        }, (r, executor) -> {
+                                throw new RejectedExecutionException("Troppe verifiche password in coda");
+                        });
+                pool.allowCoreThreadTimeOut(true);
+                return pool;
+        }
 }
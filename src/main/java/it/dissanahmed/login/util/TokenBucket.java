@@ -0,0 +1,70 @@
+package it.dissanahmed.login.util;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket thread-safe: fino a {@code capacita} richieste in burst,
+ * poi una ogni {@code 1/ricaricaPerSecondo} secondi.
+ */
+public final class TokenBucket {
+
+        private double capacita;
+        private double ricaricaPerNano;
+        private final LongSupplier orologioNano;
+
+        private double gettoni;
+        private long ultimoAggiornamento;
+
+        public TokenBucket(double capacita, double ricaricaPerSecondo) {
+                this(capacita, ricaricaPerSecondo, System::nanoTime);
+        }
+
+        public TokenBucket(double capacita, double ricaricaPerSecondo, LongSupplier orologioNano) {
+                controlla(capacita, ricaricaPerSecondo);
+                this.capacita = capacita;
+                this.ricaricaPerNano = ricaricaPerSecondo / 1_000_000_000d;
+                this.orologioNano = orologioNano;
+                this.gettoni = capacita;
+                this.ultimoAggiornamento = orologioNano.getAsLong();
+        }
+
+        /** Consuma un gettone se disponibile. */
+        public synchronized boolean tryAcquire() {
+                ricarica();
+                if (gettoni < 1) return false;
+                gettoni -= 1;
+                return true;
+        }
+
+        /**
+         * Cambia capacità e ricarica senza svuotare il secchio: i gettoni accumulati finora
+         * restano, al più fino alla nuova capacità.
+         */
+        public synchronized void configura(double capacita, double ricaricaPerSecondo) {
+                controlla(capacita, ricaricaPerSecondo);
+                ricarica();
+                this.capacita = capacita;
+                this.ricaricaPerNano = ricaricaPerSecondo / 1_000_000_000d;
+                gettoni = Math.min(gettoni, capacita);
+        }
+
+        /** @return {@code true} se il secchio è tornato pieno (nessun tentativo recente). */
+        public synchronized boolean isPieno() {
+                ricarica();
+                return gettoni >= capacita;
+        }
+
+        private void ricarica() {
+                long adesso = orologioNano.getAsLong();
+                long trascorso = adesso - ultimoAggiornamento;
+                if (trascorso > 0) {
+                        gettoni = Math.min(capacita, gettoni + trascorso * ricaricaPerNano);
+                        ultimoAggiornamento = adesso;
+                }
+        }
+
+        private static void controlla(double capacita, double ricaricaPerSecondo) {
+                if (capacita <= 0 || ricaricaPerSecondo <= 0)
+                        throw new IllegalArgumentException("capacità e ricarica devono essere positive");
+        }
+}
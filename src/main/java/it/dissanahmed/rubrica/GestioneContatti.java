@@ -1,6 +1,8 @@
 package it.dissanahmed.rubrica;
 
 import it.dissanahmed.login.GestioneLogin;
+import it.dissanahmed.rubrica.ex.ConflittoVersione;
+import it.dissanahmed.rubrica.duplicati.RicercaDuplicati;
 import it.dissanahmed.rubrica.ex.PersonaException;
 import it.dissanahmed.rubrica.persistenza.ContattiDao;
 import org.apache.commons.lang3.StringUtils;
@@ -9,7 +11,12 @@ import org.jetbrains.annotations.NotNull;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Classe che gestisce la logica applicativa della rubrica contatti.
@@ -26,7 +33,7 @@ import java.util.List;
  * che può operare su file system o database, in base alla configurazione.
  * </p>
  */
-public class GestioneContatti {
+public class GestioneContatti implements AutoCloseable {
 
         /** Oggetto contenitore dei contatti in memoria. */
         private final Contatti contatti;
@@ -42,6 +49,15 @@ public class GestioneContatti {
 
         /** Username dell’utente loggato, se disponibile. */
         private String username = null;
+
+        /** Hook che rilascia il DAO all’arresto, se registrato. */
+        private final Thread chiusuraAllUscita;
+
+        /** Statistiche aggregate, aggiornate a ogni scrittura. */
+        private final StatisticheRubrica statistiche;
+
+        /** Contatti ordinati restituiti da {@link #getContatti()}; {@code null} dopo ogni scrittura. */
+        private List<Persona> ordinati;
         /**
          * Costruttore predefinito (senza autenticazione).
          * <p>
@@ -59,20 +75,41 @@ public class GestioneContatti {
          * dedicata (ad esempio una sottodirectory specifica).
          * </p>
          * <p>
-         * Inoltre, viene registrato un {@link Runtime#addShutdownHook(Thread)}
-         * per salvare automaticamente i contatti all’arresto dell’applicazione.
+         * Ogni modifica è scritta subito sul DAO; il {@link Runtime#addShutdownHook(Thread)}
+         * registrato qui si limita a rilasciarlo all’arresto dell’applicazione, senza riscrivere
+         * la rubrica: una copia in memoria ormai vecchia cancellerebbe le modifiche degli altri client.
          * </p>
          *
          * @param gestioneLogin il controller di login, o {@code null} se non presente.
          */
         public GestioneContatti(GestioneLogin gestioneLogin) {
-                if (gestioneLogin != null) {
-                        username = gestioneLogin.getLoggedUser();
-                }
+                this(gestioneLogin == null ? null : gestioneLogin.getLoggedUser(), true);
+        }
+
+        private GestioneContatti(String username, boolean chiudiAllUscita) {
+                this.username = username;
                 this.daoContatti = ContattiDao.getInstance(username);
                 this.contatti = new Contatti(daoContatti.getContatti());
-                Runtime.getRuntime().addShutdownHook(new Thread(() ->
-                        daoContatti.salvaContatti(this.getContatti())));
+                this.statistiche = new StatisticheRubrica(contatti.getContatti());
+                // voci arrivate da fuori (sincronizzazione, altri processi): memoria e statistiche si rileggono
+                daoContatti.setAscoltatore(this::ricarica);
+                if (chiudiAllUscita) {
+                        chiusuraAllUscita = new Thread(daoContatti::close);
+                        Runtime.getRuntime().addShutdownHook(chiusuraAllUscita);
+                } else {
+                        chiusuraAllUscita = null;
+                }
+        }
+
+        /**
+         * Crea la rubrica di un utente senza registrare l’hook di chiusura all’arresto:
+         * il ciclo di vita è gestito dal chiamante tramite {@link #close()}, di solito con un
+         * try-with-resources (server, modalità batch).
+         *
+         * @param username l’utente già autenticato, o {@code null} per la rubrica non autenticata.
+         */
+        public static GestioneContatti gestita(String username) {
+                return new GestioneContatti(username, false);
         }
 
 
@@ -109,8 +146,14 @@ public class GestioneContatti {
                 checkTelefono(telefono);
 
                 Persona persona = new Persona(nome, cognome, indirizzo, telefono, eta);
-                contatti.addPersona(persona);
+                if (contatti.isPersonaIn(persona)) {
+                        throw new PersonaException(PersonaException.ExceptionType.ALREADY_EXIST, telefono);
+                }
+                // prima il DAO: se la scrittura fallisce la memoria resta allineata
                 daoContatti.salvaPersona(persona);
+                contatti.addPersona(persona);
+                ordinati = null;
+                statistiche.aggiungi(persona);
         }
         /**
          * Inserisce una persona a partire da una singola stringa di input formattata.
@@ -149,44 +192,82 @@ public class GestioneContatti {
          * @param tel   il numero di telefono della persona da modificare.
          * @param field il nome del campo da aggiornare (es. “nome”, “telefono”, “eta”).
          * @param update il nuovo valore da impostare.
-         * @throws PersonaException se il campo è inesistente, il valore non è valido
-         *                          o il telefono è duplicato.
+         * @throws PersonaException se il campo è inesistente, il valore non è valido,
+         *                          il telefono è duplicato o la voce è stata modificata da
+         *                          un altro client (in tal caso la rubrica viene riletta).
          */
-        public void modificaPersona(String tel, String field, String update) throws PersonaException {
-                if (update == null || update.isEmpty())
-                        throw new PersonaException(PersonaException.ExceptionType.INVALID_ENTRY, update);
+        public synchronized void modificaPersona(String tel, String field, String update) throws PersonaException {
+                modificaPersona(tel, Collections.singletonMap(field, update));
+        }
+        /**
+         * Modifica più campi di una persona esistente con un solo aggiornamento sul DAO.
+         * <p>
+         * Tutti i campi vengono prima validati insieme su una copia della voce: se uno solo non è
+         * valido la rubrica resta invariata, altrimenti le modifiche vengono applicate e scritte
+         * in un'unica operazione.
+         * </p>
+         *
+         * @param tel       il numero di telefono della persona da modificare.
+         * @param modifiche i nuovi valori, indicizzati per nome del campo.
+         * @throws PersonaException come {@link #modificaPersona(String, String, String)}.
+         */
+        public synchronized void modificaPersona(String tel, Map<String, String> modifiche) throws PersonaException {
+                for (String update : modifiche.values()) {
+                        if (update == null || update.isEmpty())
+                                throw new PersonaException(PersonaException.ExceptionType.INVALID_ENTRY, update);
+                }
 
                 Persona persona = new Persona(tel);
                 int index = contatti.getContatti().indexOf(persona);
                 if (index < 0)
                         throw new PersonaException(PersonaException.ExceptionType.NOT_EXISTS, tel);
 
+                if (modifiche.isEmpty()) return;
                 Persona daModificare = contatti.getContatti().get(index);
+                Persona prima = daModificare.copia();
+                Persona nuova = daModificare.copia();
+                for (Map.Entry<String, String> e : modifiche.entrySet()) {
+                        applica(nuova, e.getKey(), e.getValue());
+                }
+                if (modifiche.containsKey("telefono")) {
+                        checkTelefono(nuova.getTelefono());
+                        checkUnAltroTelefono(daModificare, new Persona(nuova.getTelefono()));
+                }
+                if (modifiche.containsKey("nome") || modifiche.containsKey("cognome")) {
+                        checkNomeCognome(nuova.getNome(), nuova.getCognome());
+                }
+
+                try {
+                        ripristina(daModificare, nuova);
+                        try {
+                                daoContatti.modificaPersona(daModificare, tel);
+                        } catch (RuntimeException e) {
+                                // la scrittura non è avvenuta: la memoria torna com'era
+                                ripristina(daModificare, prima);
+                                throw e;
+                        }
+                        ordinati = null;
+                        statistiche.modifica(prima, daModificare);
+                } catch (ConflittoVersione e) {
+                        ricarica();
+                        throw new PersonaException(PersonaException.ExceptionType.CONFLICT, tel);
+                }
+        }
+        /* Imposta un campo tramite il suo setter, convertendo il valore al tipo del campo. */
+        private static void applica(Persona p, String field, String update) throws PersonaException {
                 try {
                         if (!Persona.VALID_FIELDS.containsKey(field)) throw new NoSuchFieldException();
-                        Field fieldToModify = daModificare.getClass().getDeclaredField(field);
-                        Method method = daModificare.getClass().getMethod("set" + StringUtils.capitalize(field),
+                        Field fieldToModify = p.getClass().getDeclaredField(field);
+                        Method method = p.getClass().getMethod("set" + StringUtils.capitalize(field),
                                 fieldToModify.getType());
 
                         if (fieldToModify.getType() == int.class) {
                                 int eta = Integer.parseInt(update);
                                 if (eta < 0) throw new NumberFormatException();
-                                method.invoke(daModificare, eta);
+                                method.invoke(p, eta);
                         } else {
-                                if (field.equals("telefono")) {
-                                        checkTelefono(update);
-                                        checkUnAltroTelefono(daModificare, new Persona(update));
-                                } else if (field.equals("nome") || field.equals("cognome")) {
-                                        checkNomeCognome(
-                                                field.equals("nome") ? update : daModificare.getNome(),
-                                                field.equals("cognome") ? update : daModificare.getCognome()
-                                        );
-                                }
-                                method.invoke(daModificare, update);
+                                method.invoke(p, update);
                         }
-
-                        daoContatti.modificaPersona(daModificare, tel);
-
                 } catch (NoSuchFieldException e) {
                         throw new PersonaException(PersonaException.ExceptionType.INVALID_ENTRY, " campo non valido: " + field);
                 } catch (NumberFormatException nfe) {
@@ -196,6 +277,68 @@ public class GestioneContatti {
                                 " errore nell'accesso al metodo set" + StringUtils.capitalize(field));
                 }
         }
+        /* Copia sulla voce i campi di un'altra: applica una modifica validata o la annulla se la scrittura fallisce. */
+        private static void ripristina(Persona p, Persona prima) {
+                p.setNome(prima.getNome());
+                p.setCognome(prima.getCognome());
+                p.setIndirizzo(prima.getIndirizzo());
+                p.setTelefono(prima.getTelefono());
+                p.setEta(prima.getEta());
+        }
+        /* Sostituisce i contatti in memoria con quelli del DAO, dopo un conflitto di versione o una variazione esterna. */
+        private synchronized void ricarica() {
+                List<Persona> letti = new ArrayList<>(daoContatti.getContatti());
+                List<Persona> attuali = contatti.getContatti();
+                attuali.clear();
+                attuali.addAll(letti);
+                ordinati = null;
+                statistiche.ricalcola(letti);
+        }
+        /**
+         * Sostituisce l’intera rubrica, ad esempio con il contenuto di un backup.
+         *
+         * @param persone le voci della rubrica ripristinata.
+         */
+        public synchronized void sostituisciContatti(List<Persona> persone) {
+                List<Persona> nuove = new ArrayList<>(persone);
+                daoContatti.salvaContatti(nuove);
+                List<Persona> attuali = contatti.getContatti();
+                attuali.clear();
+                attuali.addAll(nuove);
+                ordinati = null;
+                statistiche.ricalcola(nuove);
+        }
+        /**
+         * Applica in blocco i suggerimenti di {@link RicercaDuplicati}: elimina i duplicati e tiene
+         * la voce principale di ogni gruppo, con un solo salvataggio sul DAO.
+         * <p>
+         * I suggerimenti non più validi (voce principale eliminata nel frattempo o già tolta come
+         * duplicato di un altro gruppo) vengono saltati.
+         * </p>
+         *
+         * @param suggerimenti i gruppi di duplicati da unire.
+         * @return il numero di contatti eliminati.
+         */
+        public synchronized int unisciDuplicati(List<RicercaDuplicati.Suggerimento> suggerimenti) {
+                List<Persona> attuali = contatti.getContatti();
+                Set<Persona> presenti = new HashSet<>(attuali);
+                Set<Persona> daEliminare = new HashSet<>();
+                for (RicercaDuplicati.Suggerimento s : suggerimenti) {
+                        if (!presenti.contains(s.principale()) || daEliminare.contains(s.principale())) continue;
+                        for (Persona d : s.duplicati()) {
+                                if (!d.equals(s.principale()) && presenti.contains(d)) daEliminare.add(d);
+                        }
+                }
+                if (daEliminare.isEmpty()) return 0;
+                attuali.removeIf(p -> {
+                        if (!daEliminare.contains(p)) return false;
+                        statistiche.rimuovi(p);
+                        return true;
+                });
+                ordinati = null;
+                daoContatti.salvaContatti(new ArrayList<>(attuali));
+                return daEliminare.size();
+        }
         /**
          * Verifica che nome e cognome contengano solo caratteri validi.
          *
@@ -235,11 +378,16 @@ public class GestioneContatti {
         }
         /**
          * Restituisce la lista di contatti ordinata alfabeticamente.
+         * <p>
+         * L'ordinamento è calcolato alla prima lettura dopo una scrittura e poi riusato:
+         * letture ripetute senza modifiche non riordinano la rubrica.
+         * </p>
          *
-         * @return una lista di {@link Persona}, ordinata secondo {@link Persona#compareTo(Persona)}.
+         * @return una lista immutabile di {@link Persona}, ordinata secondo {@link Persona#compareTo(Persona)}.
          */
         public synchronized List<Persona> getContatti() {
-                return contatti.getContatti().stream().sorted(Persona::compareTo).toList();
+                if (ordinati == null) ordinati = contatti.getContatti().stream().sorted(Persona::compareTo).toList();
+                return ordinati;
         }
         /**
          * Rimuove una persona dalla rubrica in base al numero di telefono.
@@ -247,10 +395,53 @@ public class GestioneContatti {
          * @param telefono il numero di telefono della persona da eliminare.
          * @return {@code true} se la persona è stata rimossa, {@code false} altrimenti.
          */
-        public boolean rimuoviPersona(String telefono) {
+        public synchronized boolean rimuoviPersona(String telefono) {
                 List<Persona> persone = this.contatti.getContatti();
                 Persona daEliminare = persone.get(persone.indexOf(new Persona(telefono)));
                 this.daoContatti.rimuoviPersona(daEliminare);
-                return this.contatti.getContatti().remove(daEliminare);
+                boolean rimossa = this.contatti.getContatti().remove(daEliminare);
+                ordinati = null;
+                if (rimossa) statistiche.rimuovi(daEliminare);
+                return rimossa;
+        }
+
+        /**
+         * Restituisce le statistiche della rubrica, mantenute a ogni scrittura: leggerle non
+         * scorre i contatti.
+         *
+         * @return le statistiche aggregate.
+         */
+        public StatisticheRubrica getStatistiche() {
+                return statistiche;
+        }
+
+        /**
+         * Restituisce il numero di contatti in memoria.
+         *
+         * @return la dimensione della rubrica.
+         */
+        public synchronized int numeroContatti() {
+                return contatti.getContatti().size();
+        }
+
+        /**
+         * Rilascia il DAO.
+         * <p>
+         * Non salva la rubrica: ogni operazione è già stata scritta sul DAO (con la sua versione,
+         * sul DBMS) e riscrivere la copia in memoria sovrascriverebbe o cancellerebbe le voci
+         * cambiate da altri client dopo il caricamento.
+         * </p>
+         */
+        @Override
+        public void close() {
+                if (chiusuraAllUscita != null) {
+                        try {
+                                Runtime.getRuntime().removeShutdownHook(chiusuraAllUscita);
+                        } catch (IllegalStateException ignored) {
+                                // arresto già in corso: l'hook rilascia comunque il DAO
+                                return;
+                        }
+                }
+                daoContatti.close();
         }
 }
@@ -0,0 +1,89 @@
+package it.dissanahmed.rubrica;
+
+import it.dissanahmed.util.CachePesata;
+import it.dissanahmed.util.Configurazione;
+import it.dissanahmed.util.Metriche;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Gestore delle rubriche degli utenti attivi in un processo multiutente (es. il server HTTP).
+ * <p>
+ * Ogni utente ha al più una {@link GestioneContatti} residente. Le rubriche sono tenute in una
+ * {@link CachePesata} limitata nel numero di utenti e nel numero totale di contatti: quando uno
+ * dei due limiti è superato, le rubriche usate meno di recente e non in uso vengono chiuse e
+ * ricaricate dal DAO al successivo accesso. Accessi concorrenti allo stesso utente non ancora
+ * caricato producono un solo caricamento.
+ * </p>
+ * <p>
+ * Ogni operazione prende la rubrica in prestito con {@link #prendi(String)} e lo chiude al
+ * termine: una rubrica rimossa da {@link #rilascia(String)} o {@link #close()} mentre una
+ * richiesta la sta usando viene chiusa alla fine di quella richiesta, non durante. Il prestito
+ * non va conservato oltre la singola operazione.
+ * </p>
+ */
+public final class GestoreRubriche implements AutoCloseable {
+
+        private static final Logger LOG = Logger.getLogger(GestoreRubriche.class.getName());
+
+        private final CachePesata<String, GestioneContatti> cache;
+
+        /**
+         * @param maxUtenti   rubriche residenti al massimo.
+         * @param maxContatti contatti residenti al massimo, sommati su tutte le rubriche.
+         * @param caricatore  crea la rubrica di un utente.
+         */
+        public GestoreRubriche(int maxUtenti, long maxContatti, @NotNull Function<String, GestioneContatti> caricatore) {
+                this.cache = new CachePesata<>(maxUtenti, maxContatti, caricatore,
+                        g -> g.numeroContatti() + 1L, GestoreRubriche::chiudi);
+        }
+
+        /**
+         * Crea il gestore secondo <code>conf.properties</code>: <code>tenant.max</code>
+         * (default 1000 utenti) e <code>tenant.maxContatti</code> (default 1000000).
+         * Le statistiche sono esposte come sonda <code>rubriche.tenant</code>.
+         */
+        public static GestoreRubriche daConfigurazione(@NotNull Configurazione conf) {
+                GestoreRubriche g = new GestoreRubriche(conf.getInt("tenant.max", 1000),
+                        conf.getLong("tenant.maxContatti", 1_000_000), GestioneContatti::gestita);
+                Metriche.registraSonda("rubriche.tenant", g::statistiche);
+                return g;
+        }
+
+        /**
+         * Prende in prestito la rubrica dell'utente, caricandola se non residente.
+         *
+         * @param username l'utente, già autenticato.
+         * @return il prestito, da chiudere al termine dell'operazione.
+         */
+        public CachePesata.Prestito<GestioneContatti> prendi(@NotNull String username) {
+                return cache.prendi(username);
+        }
+
+        /** Rimuove la rubrica dell'utente, se residente, e la chiude appena non è più in uso. */
+        public void rilascia(@NotNull String username) {
+                cache.invalida(username);
+        }
+
+        /** @return utenti e contatti residenti, hit, miss e sfratti. */
+        public CachePesata.Statistiche statistiche() {
+                return cache.statistiche();
+        }
+
+        /** Chiude tutte le rubriche residenti; quelle in uso alla fine della richiesta che le usa. */
+        @Override
+        public void close() {
+                cache.svuota();
+        }
+
+        private static void chiudi(String username, GestioneContatti g) {
+                try {
+                        g.close();
+                } catch (RuntimeException e) {
+                        Metriche.errore("rubriche.sfratto", e);
+                        LOG.warning(() -> "Chiusura della rubrica di " + username + " fallita: " + e.getMessage());
+                }
+        }
+}
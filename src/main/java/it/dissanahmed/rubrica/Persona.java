@@ -2,15 +2,19 @@ package it.dissanahmed.rubrica;
 
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.*;
 
 /**
  * Classe che rappresenta una persona nella rubrica.
  * <p>
- * Ogni persona è identificata in modo univoco dal numero di telefono,
- * che viene utilizzato nei metodi {@link #equals(Object)} e {@link #hashCode()}.
+ * Nella rubrica di un utente il numero di telefono è univoco e viene utilizzato nei metodi
+ * {@link #equals(Object)} e {@link #hashCode()}. La persistenza identifica invece ogni voce con
+ * un {@linkplain #getId() identificativo} assegnato al primo salvataggio e mai più cambiato,
+ * così un cambio di telefono aggiorna la voce sul posto.
  * </p>
  * <p>
  * La classe implementa {@link Comparable} per consentire l’ordinamento
@@ -27,7 +31,9 @@ public class Persona implements Comparable<Persona> {
          * </p>
          * <p>
          * La chiave è il nome del campo (es. "nome"), mentre il valore è il nome
-         * del metodo setter corrispondente (es. "setNome").
+         * del metodo setter corrispondente (es. "setNome"). I campi {@code transient}
+         * (metadati di persistenza come la versione) non sono modificabili dall'utente
+         * e restano esclusi.
          * </p>
          */
         public static final Map<String, String> VALID_FIELDS;
@@ -35,7 +41,7 @@ public class Persona implements Comparable<Persona> {
         static {
                 Map<String, String> map = new LinkedHashMap<>();
                 for (Field field : Persona.class.getDeclaredFields()) {
-                        if (field.getName().equals("VALID_FIELDS")) continue;
+                        if (field.getName().equals("VALID_FIELDS") || Modifier.isTransient(field.getModifiers())) continue;
                         String setterName = "set" + StringUtils.capitalize(field.getName());
                         map.put(field.getName(), setterName);
                 }
@@ -47,6 +53,10 @@ public class Persona implements Comparable<Persona> {
         private String indirizzo;
         private String telefono;
         private int eta;
+        /** Versione della voce nel DBMS, usata per la concorrenza ottimistica; 0 se sconosciuta. */
+        private transient long versione;
+        /** Identificativo stabile assegnato dalla persistenza; {@code null} finché la voce non è salvata. */
+        private transient String id;
 
         /**
          * Costruttore completo che inizializza tutti i campi di una persona.
@@ -108,6 +118,61 @@ public class Persona implements Comparable<Persona> {
         /** @param eta imposta l’età della persona. */
         public void setEta(int eta) { this.eta = eta; }
 
+        /** @return la versione letta dal DBMS, o 0 se sconosciuta (nessun controllo di conflitto). */
+        public long getVersione() { return versione; }
+
+        /** @param versione imposta la versione della voce, come restituita dal DBMS. */
+        public void setVersione(long versione) { this.versione = versione; }
+
+        /** @return l'identificativo stabile della voce, o {@code null} se non ancora assegnato. */
+        public String getId() { return id; }
+
+        /** @param id imposta l'identificativo della voce, come assegnato dalla persistenza. */
+        public void setId(String id) { this.id = id; }
+
+        /**
+         * Copia indipendente della persona, con versione e identificativo: chi la conserva
+         * non vede le modifiche fatte in seguito all'originale.
+         *
+         * @return una nuova persona con gli stessi campi.
+         */
+        public Persona copia() {
+                Persona c = new Persona(nome, cognome, indirizzo, telefono, eta);
+                c.versione = versione;
+                c.id = id;
+                return c;
+        }
+
+        /**
+         * Confronta i dati modificabili dall'utente escluso il telefono, che identifica la voce:
+         * nome, cognome, indirizzo ed età. Versione e identificativo non contano.
+         *
+         * @param altra la persona da confrontare, anche {@code null}.
+         * @return {@code true} se {@code altra} non è {@code null} e ha gli stessi dati.
+         */
+        public boolean stessiDati(@Nullable Persona altra) {
+                return altra != null
+                        && Objects.equals(nome, altra.nome)
+                        && Objects.equals(cognome, altra.cognome)
+                        && Objects.equals(indirizzo, altra.indirizzo)
+                        && eta == altra.eta;
+        }
+
+        /**
+         * Indicizza le persone per telefono, nell'ordine ricevuto; quelle senza telefono sono
+         * saltate e, a parità di telefono, vale l'ultima.
+         *
+         * @param persone le persone da indicizzare.
+         * @return una nuova mappa modificabile dal telefono alla persona.
+         */
+        public static Map<String, Persona> perTelefono(@NotNull Collection<Persona> persone) {
+                Map<String, Persona> out = new LinkedHashMap<>();
+                for (Persona p : persone) {
+                        if (p.getTelefono() != null) out.put(p.getTelefono(), p);
+                }
+                return out;
+        }
+
         /**
          * Restituisce una rappresentazione testuale della persona.
          *
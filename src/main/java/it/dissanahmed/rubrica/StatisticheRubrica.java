@@ -0,0 +1,186 @@
+package it.dissanahmed.rubrica;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Statistiche aggregate di una rubrica, aggiornate a ogni scrittura invece di ricalcolarle
+ * scorrendo tutti i contatti.
+ * <p>
+ * Ogni inserimento, modifica o eliminazione costa O(1) (più il numero di parole dell'indirizzo):
+ * contatti ed età (conteggio per anno, da cui media, minimo, massimo e fasce di dieci anni),
+ * contatti per iniziale del cognome e per parola dell'indirizzo (città, vie), contata una volta
+ * per contatto. Le stesse dimensioni sono mantenute sul server nella tabella
+ * <code>RubricaStatistica</code> (vedi <code>schema_database.sql</code>).
+ * </p>
+ * <p>
+ * Una modifica va registrata con i valori precedenti e quelli nuovi: {@link Persona} è mutabile,
+ * quindi il chiamante passa una copia della voce presa prima di cambiarla.
+ * </p>
+ */
+public final class StatisticheRubrica {
+
+        /** Prima età dell'ultima fascia, che comprende anche le età successive (come sul server). */
+        private static final int FASCIA_MAX = 120;
+        /** Età oltre la quale i conteggi sono tenuti in una mappa invece che nell'array. */
+        private static final int ETA_MAX_ARRAY = 150;
+        private static final Pattern SEGNI = Pattern.compile("\\p{M}+");
+        private static final Pattern NON_LETTERE = Pattern.compile("[^\\p{L}]+");
+        /** Lunghezza minima di una parola dell'indirizzo per essere contata. */
+        private static final int LUNGHEZZA_MIN_TOKEN = 3;
+
+        private int contatti;
+        private long sommaEta;
+        private final int[] perEta = new int[ETA_MAX_ARRAY + 1];
+        private final TreeMap<Integer, Integer> perEtaOltre = new TreeMap<>();
+        private final Map<Character, Integer> perIniziale = new HashMap<>();
+        private final Map<String, Integer> perToken = new HashMap<>();
+
+        /** Statistiche vuote. */
+        public StatisticheRubrica() {
+        }
+
+        /** Statistiche iniziali di {@code persone}: l'unica scansione completa. */
+        public StatisticheRubrica(@NotNull Collection<Persona> persone) {
+                for (Persona p : persone) aggiungi(p);
+        }
+
+        public synchronized void aggiungi(@NotNull Persona p) {
+                applica(p, 1);
+        }
+
+        public synchronized void rimuovi(@NotNull Persona p) {
+                applica(p, -1);
+        }
+
+        /**
+         * @param prima copia della voce prima della modifica.
+         * @param dopo  la voce modificata.
+         */
+        public synchronized void modifica(@NotNull Persona prima, @NotNull Persona dopo) {
+                applica(prima, -1);
+                applica(dopo, 1);
+        }
+
+        /** Ricomincia da {@code persone}, ad esempio dopo un ripristino o una rilettura completa. */
+        public synchronized void ricalcola(@NotNull Collection<Persona> persone) {
+                contatti = 0;
+                sommaEta = 0;
+                Arrays.fill(perEta, 0);
+                perEtaOltre.clear();
+                perIniziale.clear();
+                perToken.clear();
+                for (Persona p : persone) applica(p, 1);
+        }
+
+        private void applica(Persona p, int delta) {
+                contatti += delta;
+                int eta = Math.max(0, p.getEta());
+                sommaEta += (long) delta * eta;
+                if (eta <= ETA_MAX_ARRAY) perEta[eta] += delta;
+                else conta(perEtaOltre, eta, delta);
+                conta(perIniziale, iniziale(p.getCognome()), delta);
+                for (String t : token(p.getIndirizzo())) conta(perToken, t, delta);
+        }
+
+        private static <K> void conta(Map<K, Integer> mappa, K chiave, int delta) {
+                mappa.merge(chiave, delta, (a, b) -> a + b == 0 ? null : a + b);
+        }
+
+        /* ===================== letture ===================== */
+
+        public synchronized int contatti() {
+                return contatti;
+        }
+
+        /** @return l'età media, 0 se la rubrica è vuota. */
+        public synchronized double etaMedia() {
+                return contatti == 0 ? 0 : (double) sommaEta / contatti;
+        }
+
+        /** @return l'età minima, -1 se la rubrica è vuota. */
+        public synchronized int etaMin() {
+                for (int e = 0; e <= ETA_MAX_ARRAY; e++) if (perEta[e] > 0) return e;
+                return perEtaOltre.isEmpty() ? -1 : perEtaOltre.firstKey();
+        }
+
+        /** @return l'età massima, -1 se la rubrica è vuota. */
+        public synchronized int etaMax() {
+                if (!perEtaOltre.isEmpty()) return perEtaOltre.lastKey();
+                for (int e = ETA_MAX_ARRAY; e >= 0; e--) if (perEta[e] > 0) return e;
+                return -1;
+        }
+
+        /**
+         * @return contatti per fascia di dieci anni, indicata dal primo anno (0, 10, 20, ... 120);
+         *         la fascia 120 comprende tutte le età da 120 in su, come in <code>RubricaStatistica</code>.
+         */
+        public synchronized SortedMap<Integer, Integer> perFasciaEta() {
+                SortedMap<Integer, Integer> out = new TreeMap<>();
+                for (int e = 0; e <= ETA_MAX_ARRAY; e++) {
+                        if (perEta[e] != 0) out.merge(fascia(e), perEta[e], Integer::sum);
+                }
+                perEtaOltre.forEach((e, n) -> out.merge(fascia(e), n, Integer::sum));
+                return out;
+        }
+
+        private static int fascia(int eta) {
+                return Math.min(eta, FASCIA_MAX) / 10 * 10;
+        }
+
+        /** @return contatti per iniziale maiuscola del cognome ('?' se assente). */
+        public synchronized SortedMap<Character, Integer> perIniziale() {
+                return new TreeMap<>(perIniziale);
+        }
+
+        /** @return i contatti il cui indirizzo contiene la parola {@code token} (senza accenti, minuscola). */
+        public synchronized int perToken(@NotNull String token) {
+                return perToken.getOrDefault(token, 0);
+        }
+
+        /** @return le {@code n} parole dell'indirizzo più frequenti, dalla più frequente. */
+        public synchronized Map<String, Integer> tokenPiuFrequenti(int n) {
+                List<Map.Entry<String, Integer>> voci = new ArrayList<>(perToken.entrySet());
+                voci.sort(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+                Map<String, Integer> out = new LinkedHashMap<>();
+                for (Map.Entry<String, Integer> e : voci.subList(0, Math.min(n, voci.size()))) out.put(e.getKey(), e.getValue());
+                return out;
+        }
+
+        /* ===================== chiavi ===================== */
+
+        static char iniziale(@Nullable String cognome) {
+                if (cognome == null || cognome.isBlank()) return '?';
+                return Character.toUpperCase(cognome.strip().charAt(0));
+        }
+
+        /**
+         * Parole distinte di almeno tre lettere, minuscole e senza accenti; numeri e sigle esclusi.
+         * Sul server <code>fn_senza_accenti</code> toglie gli stessi segni alle lettere latine.
+         */
+        static Set<String> token(@Nullable String indirizzo) {
+                if (indirizzo == null || indirizzo.isEmpty()) return Set.of();
+                String n = SEGNI.matcher(Normalizer.normalize(indirizzo, Normalizer.Form.NFD)).replaceAll("")
+                        .toLowerCase(Locale.ROOT);
+                Set<String> out = new LinkedHashSet<>();
+                for (String t : NON_LETTERE.split(n)) {
+                        if (t.length() >= LUNGHEZZA_MIN_TOKEN) out.add(t);
+                }
+                return out;
+        }
+}
@@ -0,0 +1,331 @@
+package it.dissanahmed.rubrica.backup;
+
+import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.util.Istogramma;
+import it.dissanahmed.util.Metriche;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Archivio di backup di una rubrica, indipendente dal DAO (file system o DBMS).
+ * <p>
+ * Un backup <b>base</b> contiene l'intera rubrica; i backup <b>incrementali</b> successivi
+ * solo le voci scritte o eliminate dal backup precedente. Ogni backup è un singolo file
+ * compresso con {@link Deflater} e protetto da CRC32C, invece di migliaia di file piccoli.
+ * Le voci cambiate sono individuate confrontando un'impronta a 64 bit per telefono,
+ * conservata in <code>impronte.bin</code>: la scrittura è proporzionale alle modifiche.
+ * </p>
+ * <p>
+ * {@link #ripristina(Instant)} ricostruisce la rubrica com'era all'ultimo backup non successivo
+ * all'istante indicato, applicando la base e gli incrementali della sua catena. Un nuovo base
+ * viene scritto dopo <code>maxIncrementali</code> incrementali o quando questi superano in
+ * dimensione la base, così il ripristino resta rapido.
+ * </p>
+ * <p>
+ * Metriche: istogramma <code>backup.durata</code>, contatori <code>backup.byte</code> e
+ * <code>backup.byteCompressi</code>.
+ * </p>
+ */
+public final class ArchivioBackup {
+
+        public enum Tipo {BASE, INCREMENTALE}
+
+        /** Un backup disponibile: un punto a cui si può ripristinare. */
+        public record Punto(long numero, @NotNull Tipo tipo, @NotNull Instant istante, @NotNull Path file) {
+        }
+
+        /**
+         * Risultato di un backup.
+         *
+         * @param punto          il backup scritto.
+         * @param voci           voci scritte (tutte per un base, le cambiate per un incrementale).
+         * @param byteOriginali  byte prima della compressione.
+         * @param byteCompressi  dimensione del file.
+         * @param durataNanos    durata complessiva, confronto e scrittura.
+         */
+        public record Esito(@NotNull Punto punto, int voci, long byteOriginali, long byteCompressi, long durataNanos) {
+
+                /** @return dimensione compressa su dimensione originale. */
+                public double rapporto() {
+                        return byteOriginali == 0 ? 1 : (double) byteCompressi / byteOriginali;
+                }
+
+                /** @return voci al secondo. */
+                public double vociAlSecondo() {
+                        return durataNanos == 0 ? 0 : voci * 1e9 / durataNanos;
+                }
+
+                /** @return MiB non compressi al secondo. */
+                public double mibAlSecondo() {
+                        return durataNanos == 0 ? 0 : byteOriginali * 1e9 / durataNanos / (1 << 20);
+                }
+        }
+
+        private static final Istogramma DURATA = Metriche.istogramma("backup.durata");
+        private static final LongAdder BYTE = Metriche.contatore("backup.byte");
+        private static final LongAdder BYTE_COMPRESSI = Metriche.contatore("backup.byteCompressi");
+
+        private static final Pattern NOME = Pattern.compile("(\\d{8})-(base|incr)-(\\d+)\\.rbk");
+        private static final String IMPRONTE = "impronte.bin";
+        private static final int MAGIC_IMPRONTE = 0x52424B49;  // "RBKI"
+        private static final int BUFFER = 1 << 16;
+
+        private final Path dir;
+        private final @Nullable String utente;
+        private final int livello;
+        private final int maxIncrementali;
+
+        /** Archivio con compressione predefinita e al più 30 incrementali per base. */
+        public ArchivioBackup(@NotNull Path dir, @Nullable String utente) {
+                this(dir, utente, Deflater.DEFAULT_COMPRESSION, 30);
+        }
+
+        /**
+         * La catena di ogni utente sta in una propria sottocartella (<code>&lt;dir&gt;/&lt;utente&gt;/</code>),
+         * così utenti diversi che usano la stessa cartella non ripristinano l'uno i contatti dell'altro;
+         * la rubrica non autenticata usa <code>dir</code> stessa. Ogni backup registra anche l'utente e il
+         * ripristino rifiuta i file di un altro.
+         *
+         * @param dir             cartella dell'archivio, creata se manca.
+         * @param utente          utente della rubrica, {@code null} per la rubrica non autenticata.
+         * @param livello         livello di compressione {@link Deflater} (0..9, -1 predefinito).
+         * @param maxIncrementali incrementali dopo i quali il backup successivo è un base.
+         */
+        public ArchivioBackup(@NotNull Path dir, @Nullable String utente, int livello, int maxIncrementali) {
+                if (livello < -1 || livello > 9) throw new IllegalArgumentException("livello di compressione non valido: " + livello);
+                this.utente = utente == null || utente.isBlank() ? null : utente.trim();
+                this.dir = this.utente == null ? Objects.requireNonNull(dir)
+                        : dir.resolve(this.utente.replaceAll("[^A-Za-z0-9._-]", "_"));
+                this.livello = livello;
+                this.maxIncrementali = Math.max(0, maxIncrementali);
+        }
+
+        /** @return la cartella che contiene i backup di questo utente. */
+        public Path getCartella() {
+                return dir;
+        }
+
+        /**
+         * Esegue un backup della rubrica: incrementale se possibile, base altrimenti.
+         *
+         * @param contatti  contenuto attuale della rubrica.
+         * @param forzaBase scrive comunque un backup base.
+         */
+        public synchronized Esito backup(@NotNull List<Persona> contatti, boolean forzaBase) throws IOException {
+                long t0 = System.nanoTime();
+                Files.createDirectories(dir);
+                List<Punto> punti = punti();
+                Punto ultimo = punti.isEmpty() ? null : punti.get(punti.size() - 1);
+                // le impronte servono solo per un incrementale
+                boolean base = forzaBase || ultimo == null || serveBase(punti);
+                Map<String, Long> prima = base ? null : leggiImpronte(ultimo.numero());
+                base = prima == null;
+
+                List<String> telefoni = new ArrayList<>(contatti.size());
+                long[] impronte = new long[contatti.size()];
+                List<Segmento.Voce> voci = new ArrayList<>();
+                for (Persona p : contatti) {
+                        String tel = p.getTelefono();
+                        if (tel == null) continue;
+                        long h = impronta(p);
+                        impronte[telefoni.size()] = h;
+                        telefoni.add(tel);
+                        Long vecchia = base ? null : prima.remove(tel);
+                        if (base || vecchia == null || vecchia != h) voci.add(new Segmento.Voce(tel, p));
+                }
+                // rimaste in prima: eliminate dal backup precedente
+                if (!base) for (String tel : prima.keySet()) voci.add(new Segmento.Voce(tel, null));
+
+                long numero = ultimo == null ? 1 : ultimo.numero() + 1;
+                // istanti strettamente crescenti: il ripristino a un istante individua un solo backup
+                long istante = Math.max(System.currentTimeMillis(), ultimo == null ? 0 : ultimo.istante().toEpochMilli() + 1);
+                Tipo tipo = base ? Tipo.BASE : Tipo.INCREMENTALE;
+                Path file = dir.resolve(String.format("%08d-%s-%d.rbk", numero, base ? "base" : "incr", istante));
+                long originali = Segmento.scrivi(file,
+                        new Segmento.Intestazione(tipo, utente, numero, ultimo == null ? 0 : ultimo.numero(), istante, voci.size()),
+                        voci, livello);
+                scriviImpronte(numero, telefoni, impronte);
+
+                long compressi = Files.size(file);
+                long durata = System.nanoTime() - t0;
+                DURATA.registra(durata);
+                BYTE.add(originali);
+                BYTE_COMPRESSI.add(compressi);
+                return new Esito(new Punto(numero, tipo, Instant.ofEpochMilli(istante), file), voci.size(), originali, compressi, durata);
+        }
+
+        /** @return i backup disponibili, dal più vecchio. */
+        public List<Punto> punti() throws IOException {
+                List<Punto> out = new ArrayList<>();
+                if (!Files.isDirectory(dir)) return out;
+                try (DirectoryStream<Path> s = Files.newDirectoryStream(dir, "*.rbk")) {
+                        for (Path f : s) {
+                                Matcher m = NOME.matcher(f.getFileName().toString());
+                                if (!m.matches()) continue;
+                                out.add(new Punto(Long.parseLong(m.group(1)), m.group(2).equals("base") ? Tipo.BASE : Tipo.INCREMENTALE,
+                                        Instant.ofEpochMilli(Long.parseLong(m.group(3))), f));
+                        }
+                }
+                out.sort(Comparator.comparingLong(Punto::numero));
+                return out;
+        }
+
+        /** @return la rubrica all'ultimo backup. */
+        public List<Persona> ripristina() throws IOException {
+                return ripristina(Instant.MAX);
+        }
+
+        /**
+         * Ricostruisce la rubrica com'era all'ultimo backup eseguito non dopo {@code istante}.
+         *
+         * @throws NoSuchElementException   se non esiste un backup anteriore a {@code istante}.
+         * @throws IOException              se un file della catena manca o è danneggiato.
+         */
+        public List<Persona> ripristina(@NotNull Instant istante) throws IOException {
+                List<Punto> punti = punti();
+                int fine = -1;
+                for (int i = 0; i < punti.size(); i++) {
+                        if (!punti.get(i).istante().isAfter(istante)) fine = i;
+                }
+                if (fine < 0) throw new NoSuchElementException("Nessun backup anteriore a " + istante);
+                int inizio = fine;
+                while (inizio >= 0 && punti.get(inizio).tipo() != Tipo.BASE) inizio--;
+                if (inizio < 0) throw new IOException("Catena di backup senza base prima del n. " + punti.get(fine).numero());
+
+                Map<String, Persona> stato = new LinkedHashMap<>();
+                long precedente = -1;
+                for (int i = inizio; i <= fine; i++) {
+                        Punto p = punti.get(i);
+                        Segmento.Intestazione h = Segmento.leggi(p.file(), v -> {
+                                if (v.persona() == null) stato.remove(v.telefono());
+                                else stato.put(v.telefono(), v.persona());
+                        });
+                        if (h.numero() != p.numero() || (i > inizio && h.precedente() != precedente))
+                                throw new IOException("Catena di backup interrotta al n. " + p.numero());
+                        // i backup della versione 1 non registrano l'utente
+                        if (h.utente() != null && !h.utente().equals(utente))
+                                throw new IOException("Il backup n. " + p.numero() + " è dell'utente " + h.utente() + ": " + p.file());
+                        precedente = h.numero();
+                }
+                return new ArrayList<>(stato.values());
+        }
+
+        /**
+         * Elimina le catene interamente precedenti all'ultimo base non successivo a {@code istante}:
+         * dopo la potatura si può ripristinare solo da quel base in poi.
+         *
+         * @return i file eliminati.
+         */
+        public synchronized int potaPrimaDi(@NotNull Instant istante) throws IOException {
+                List<Punto> punti = punti();
+                long primoDaTenere = -1;
+                for (Punto p : punti) {
+                        if (p.tipo() == Tipo.BASE && !p.istante().isAfter(istante)) primoDaTenere = p.numero();
+                }
+                int eliminati = 0;
+                for (Punto p : punti) {
+                        if (p.numero() >= primoDaTenere) break;
+                        Files.deleteIfExists(p.file());
+                        eliminati++;
+                }
+                return eliminati;
+        }
+
+        private boolean serveBase(List<Punto> punti) throws IOException {
+                int incrementali = 0;
+                long dimIncrementali = 0;
+                for (int i = punti.size() - 1; i >= 0; i--) {
+                        Punto p = punti.get(i);
+                        if (p.tipo() == Tipo.BASE) {
+                                return incrementali >= maxIncrementali || dimIncrementali > Files.size(p.file());
+                        }
+                        incrementali++;
+                        dimIncrementali += Files.size(p.file());
+                }
+                return true;
+        }
+
+        /* ===================== impronte ===================== */
+
+        /* FNV-1a a 64 bit sui caratteri dei campi della voce, senza copie in byte[]. */
+        static long impronta(Persona p) {
+                long h = 0xcbf29ce484222325L;
+                h = impronta(h, p.getNome());
+                h = impronta(h, p.getCognome());
+                h = impronta(h, p.getIndirizzo());
+                return (h ^ p.getEta()) * 0x100000001b3L;
+        }
+
+        private static long impronta(long h, String s) {
+                if (s == null) return (h ^ 0x1e) * 0x100000001b3L;
+                for (int i = 0; i < s.length(); i++) h = (h ^ s.charAt(i)) * 0x100000001b3L;
+                return (h ^ 0x1f) * 0x100000001b3L;
+        }
+
+        /** @return le impronte scritte con il backup {@code numero}, o {@code null} se mancano o sono di un altro backup. */
+        private Map<String, Long> leggiImpronte(long numero) {
+                Path f = dir.resolve(IMPRONTE);
+                if (!Files.exists(f)) return null;
+                Inflater inflater = new Inflater();
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(
+                        new BufferedInputStream(Files.newInputStream(f), BUFFER), inflater, BUFFER), BUFFER))) {
+                        if (in.readInt() != MAGIC_IMPRONTE || in.readLong() != numero) return null;
+                        int n = in.readInt();
+                        Map<String, Long> out = new HashMap<>(n * 2);
+                        for (int i = 0; i < n; i++) out.put(in.readUTF(), in.readLong());
+                        return out;
+                } catch (IOException e) {
+                        // impronte illeggibili: il prossimo backup sarà un base
+                        return null;
+                } finally {
+                        inflater.end();
+                }
+        }
+
+        private void scriviImpronte(long numero, List<String> telefoni, long[] impronte) throws IOException {
+                Segmento.scriviAtomico(dir.resolve(IMPRONTE), os -> {
+                        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                        try {
+                                DeflaterOutputStream compresso = new DeflaterOutputStream(new BufferedOutputStream(os, BUFFER), deflater, BUFFER);
+                                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(compresso, BUFFER));
+                                out.writeInt(MAGIC_IMPRONTE);
+                                out.writeLong(numero);
+                                out.writeInt(telefoni.size());
+                                for (int i = 0; i < telefoni.size(); i++) {
+                                        out.writeUTF(telefoni.get(i));
+                                        out.writeLong(impronte[i]);
+                                }
+                                out.flush();
+                                compresso.finish();
+                                compresso.flush();
+                        } finally {
+                                deflater.end();
+                        }
+                });
+        }
+}
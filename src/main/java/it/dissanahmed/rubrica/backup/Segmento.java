@@ -0,0 +1,198 @@
+package it.dissanahmed.rubrica.backup;
+
+import it.dissanahmed.rubrica.Persona;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/*
+ * Formato di un file di backup: un unico flusso Deflate con
+ *   int MAGIC, byte VERSIONE, byte tipo, utente (boolean presente + utf, assente nella versione 1),
+ *   long numero, long precedente, long istante, int voci,
+ *   per ogni voce: byte op (1 = scritta, 2 = eliminata), utf telefono
+ *                  [+ nome, cognome, indirizzo (boolean presente + utf), int eta]
+ *   long CRC32C dei byte precedenti (non compressi).
+ * Il file è scritto su un temporaneo univoco accanto, reso durevole e rinominato solo se completo.
+ */
+final class Segmento {
+
+        private static final int MAGIC = 0x52424B31;  // "RBK1"
+        private static final byte VERSIONE = 2;
+        /** Backup scritti prima che l'archivio fosse per utente: senza il campo utente. */
+        private static final byte VERSIONE_SENZA_UTENTE = 1;
+        private static final byte SCRITTA = 1;
+        private static final byte ELIMINATA = 2;
+        private static final int BUFFER = 1 << 16;
+
+        /** Una voce del backup: {@code persona} è {@code null} per le eliminazioni. */
+        record Voce(@NotNull String telefono, @Nullable Persona persona) {
+        }
+
+        /** {@code utente} è {@code null} per la rubrica non autenticata e per i backup della versione 1. */
+        record Intestazione(ArchivioBackup.Tipo tipo, @Nullable String utente, long numero, long precedente, long istante,
+                            int voci) {
+        }
+
+        private Segmento() {
+        }
+
+        /** Scrive il contenuto di un file su un flusso; il flusso resta aperto. */
+        interface Corpo {
+                void scrivi(OutputStream os) throws IOException;
+        }
+
+        /** @return i byte scritti prima della compressione. */
+        static long scrivi(@NotNull Path file, @NotNull Intestazione h, @NotNull Collection<Voce> voci, int livello)
+                throws IOException {
+                long[] originali = new long[1];
+                scriviAtomico(file, os -> {
+                        Deflater deflater = new Deflater(livello);
+                        try {
+                                DeflaterOutputStream compresso = new DeflaterOutputStream(new BufferedOutputStream(os, BUFFER), deflater, BUFFER);
+                                CheckedOutputStream crc = new CheckedOutputStream(compresso, new CRC32C());
+                                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(crc, BUFFER));
+                                out.writeInt(MAGIC);
+                                out.writeByte(VERSIONE);
+                                out.writeByte(h.tipo().ordinal());
+                                scriviStringa(out, h.utente());
+                                out.writeLong(h.numero());
+                                out.writeLong(h.precedente());
+                                out.writeLong(h.istante());
+                                out.writeInt(voci.size());
+                                for (Voce v : voci) {
+                                        Persona p = v.persona();
+                                        out.writeByte(p == null ? ELIMINATA : SCRITTA);
+                                        out.writeUTF(v.telefono());
+                                        if (p == null) continue;
+                                        scriviStringa(out, p.getNome());
+                                        scriviStringa(out, p.getCognome());
+                                        scriviStringa(out, p.getIndirizzo());
+                                        out.writeInt(p.getEta());
+                                }
+                                out.flush();
+                                originali[0] = out.size() + Long.BYTES;
+                                new DataOutputStream(compresso).writeLong(crc.getChecksum().getValue());
+                                compresso.finish();
+                                compresso.flush();
+                        } finally {
+                                deflater.end();
+                        }
+                });
+                return originali[0];
+        }
+
+        /**
+         * Scrive {@code file} su un temporaneo univoco nella stessa cartella, lo rende durevole e lo
+         * rinomina atomicamente, poi rende durevole il rename: un crash o un altro processo che scrive
+         * nello stesso archivio non lasciano mai un file a metà. Se qualcosa fallisce il temporaneo
+         * viene eliminato.
+         */
+        static void scriviAtomico(@NotNull Path file, @NotNull Corpo corpo) throws IOException {
+                Path dir = file.toAbsolutePath().getParent();
+                Path tmp = Files.createTempFile(dir, "." + file.getFileName() + ".", ".tmp");
+                try {
+                        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                                corpo.scrivi(Channels.newOutputStream(ch));
+                                ch.force(false);
+                        }
+                        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException | RuntimeException e) {
+                        try {
+                                Files.deleteIfExists(tmp);
+                        } catch (IOException ex) {
+                                e.addSuppressed(ex);
+                        }
+                        throw e;
+                }
+                fsync(dir);
+        }
+
+        private static void fsync(Path dir) throws IOException {
+                try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+                        ch.force(true);
+                } catch (IOException e) {
+                        // su Windows una cartella non si apre: lì il rename è già durevole
+                        if (Files.isDirectory(dir) && System.getProperty("os.name", "").startsWith("Windows")) return;
+                        throw e;
+                }
+        }
+
+        /**
+         * Legge un file di backup passando le voci a {@code consumatore} man mano che vengono decompresse.
+         *
+         * @throws IOException se il file non è un backup o è danneggiato (CRC non corrispondente).
+         */
+        static Intestazione leggi(@NotNull Path file, @NotNull Consumer<Voce> consumatore) throws IOException {
+                Inflater inflater = new Inflater();
+                try (InputStream is = Files.newInputStream(file);
+                     InflaterInputStream decompresso = new InflaterInputStream(new BufferedInputStream(is, BUFFER), inflater, BUFFER)) {
+                        // il buffer sta sotto il CRC: il checksum copre solo i byte consumati, non il trailer
+                        BufferedInputStream bufferizzato = new BufferedInputStream(decompresso, BUFFER);
+                        CheckedInputStream crc = new CheckedInputStream(bufferizzato, new CRC32C());
+                        DataInputStream in = new DataInputStream(crc);
+                        if (in.readInt() != MAGIC) throw new IOException("Non è un file di backup: " + file);
+                        byte versione = in.readByte();
+                        if (versione != VERSIONE && versione != VERSIONE_SENZA_UTENTE)
+                                throw new IOException("Versione di backup non supportata (" + versione + "): " + file);
+                        byte t = in.readByte();
+                        ArchivioBackup.Tipo[] tipi = ArchivioBackup.Tipo.values();
+                        if (t < 0 || t >= tipi.length) throw new IOException("Tipo di backup non valido (" + t + "): " + file);
+                        String utente = versione == VERSIONE ? leggiStringa(in) : null;
+                        Intestazione h = new Intestazione(tipi[t], utente, in.readLong(), in.readLong(), in.readLong(), in.readInt());
+                        for (int i = 0; i < h.voci(); i++) {
+                                byte op = in.readByte();
+                                String tel = in.readUTF();
+                                if (op == ELIMINATA) {
+                                        consumatore.accept(new Voce(tel, null));
+                                        continue;
+                                }
+                                if (op != SCRITTA) throw new IOException("Voce non valida in " + file);
+                                String nome = leggiStringa(in);
+                                String cognome = leggiStringa(in);
+                                String indirizzo = leggiStringa(in);
+                                consumatore.accept(new Voce(tel, new Persona(nome, cognome, indirizzo, tel, in.readInt())));
+                        }
+                        long calcolato = crc.getChecksum().getValue();
+                        if (new DataInputStream(bufferizzato).readLong() != calcolato)
+                                throw new IOException("Backup danneggiato (CRC non corrispondente): " + file);
+                        return h;
+                } catch (EOFException | ZipException e) {
+                        throw new IOException("Backup incompleto o danneggiato: " + file, e);
+                } finally {
+                        inflater.end();
+                }
+        }
+
+        private static void scriviStringa(DataOutputStream out, @Nullable String s) throws IOException {
+                out.writeBoolean(s != null);
+                if (s != null) out.writeUTF(s);
+        }
+
+        private static @Nullable String leggiStringa(DataInputStream in) throws IOException {
+                return in.readBoolean() ? in.readUTF() : null;
+        }
+}
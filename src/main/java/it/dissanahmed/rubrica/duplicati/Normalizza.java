@@ -0,0 +1,139 @@
+package it.dissanahmed.rubrica.duplicati;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/* Normalizzazione dei campi, chiavi di blocco e distanza di edit usate da RicercaDuplicati. */
+final class Normalizza {
+
+        private static final Pattern SEGNI = Pattern.compile("\\p{M}+");
+        private static final Pattern NON_LETTERE = Pattern.compile("[^a-z0-9]+");
+        /** Codici Soundex delle lettere a..z; '0' = vocali e lettere ignorate. */
+        private static final String SOUNDEX = "01230120022455012623010202";
+        /** Cifre finali del telefono usate come chiave di blocco. */
+        static final int SUFFISSO_TELEFONO = 7;
+
+        private Normalizza() {
+        }
+
+        /** Minuscolo, senza accenti, con un solo spazio fra le parole. */
+        static @NotNull String testo(@Nullable String s) {
+                if (s == null || s.isEmpty()) return "";
+                String n = Normalizer.normalize(s, Normalizer.Form.NFD);
+                n = SEGNI.matcher(n).replaceAll("").toLowerCase(Locale.ROOT);
+                return NON_LETTERE.matcher(n).replaceAll(" ").strip();
+        }
+
+        /** Solo cifre, senza il prefisso internazionale italiano (<code>+39</code>, <code>0039</code>). */
+        static @NotNull String telefono(@Nullable String s) {
+                if (s == null) return "";
+                StringBuilder b = new StringBuilder(s.length());
+                for (int i = 0; i < s.length(); i++) {
+                        char c = s.charAt(i);
+                        if (c >= '0' && c <= '9') b.append(c);
+                }
+                String t = s.startsWith("+") ? b.toString() : b.toString().startsWith("00") ? b.substring(2) : null;
+                if (t == null) return b.toString();
+                return t.startsWith("39") ? t.substring(2) : t;
+        }
+
+        static @NotNull String suffisso(@NotNull String telefono) {
+                return telefono.length() <= SUFFISSO_TELEFONO ? telefono : telefono.substring(telefono.length() - SUFFISSO_TELEFONO);
+        }
+
+        /** Soundex della prima parola di un testo già normalizzato; stringa vuota se non ci sono lettere. */
+        static @NotNull String fonetica(@NotNull String s) {
+                char[] out = {0, '0', '0', '0'};
+                int n = 0;
+                char ultimo = 0;
+                for (int i = 0; i < s.length() && n < 4; i++) {
+                        char c = s.charAt(i);
+                        if (c == ' ') {
+                                if (n > 0) break;
+                                continue;
+                        }
+                        if (c < 'a' || c > 'z') continue;
+                        char codice = SOUNDEX.charAt(c - 'a');
+                        if (n == 0) {
+                                out[n++] = Character.toUpperCase(c);
+                        } else if (codice != '0' && codice != ultimo) {
+                                out[n++] = codice;
+                        }
+                        // h e w non separano due consonanti con lo stesso codice
+                        if (c != 'h' && c != 'w') ultimo = codice;
+                }
+                return n == 0 ? "" : new String(out);
+        }
+
+        /**
+         * Distanza di Levenshtein limitata: calcola solo la fascia diagonale larga {@code max}
+         * e si ferma appena tutta la riga la supera.
+         *
+         * @return la distanza, o {@code max + 1} se è maggiore di {@code max}.
+         */
+        static int distanza(@NotNull String a, @NotNull String b, int max) {
+                if (a.length() > b.length()) {
+                        String t = a;
+                        a = b;
+                        b = t;
+                }
+                int n = a.length();
+                int m = b.length();
+                if (m - n > max) return max + 1;
+                if (n == 0) return m;
+                int[] prec = new int[n + 1];
+                int[] corr = new int[n + 1];
+                for (int i = 0; i <= n; i++) prec[i] = i;
+                int oltre = max + 1;
+                for (int j = 1; j <= m; j++) {
+                        int da = Math.max(1, j - max);
+                        int a2 = Math.min(n, j + max);
+                        corr[0] = j;
+                        if (da > 1) corr[da - 1] = oltre;
+                        int minimo = da == 1 ? j : oltre;
+                        char cb = b.charAt(j - 1);
+                        for (int i = da; i <= a2; i++) {
+                                int costo = a.charAt(i - 1) == cb ? 0 : 1;
+                                int v = Math.min(Math.min(corr[i - 1] + 1, prec[i] + 1), prec[i - 1] + costo);
+                                corr[i] = Math.min(v, oltre);
+                                minimo = Math.min(minimo, corr[i]);
+                        }
+                        if (a2 < n) corr[a2 + 1] = oltre;
+                        if (minimo > max) return oltre;
+                        int[] t = prec;
+                        prec = corr;
+                        corr = t;
+                }
+                return Math.min(prec[n], oltre);
+        }
+
+        /** Distanza di Levenshtein esattamente 1, senza allocazioni: un carattere cambiato, aggiunto o tolto. */
+        static boolean unRefuso(@NotNull String a, @NotNull String b) {
+                if (a.length() > b.length()) {
+                        String t = a;
+                        a = b;
+                        b = t;
+                }
+                int n = a.length();
+                if (b.length() - n > 1) return false;
+                int i = 0;
+                while (i < n && a.charAt(i) == b.charAt(i)) i++;
+                if (i == n) return b.length() != n;
+                // dopo la prima differenza il resto deve coincidere, allineato secondo le lunghezze
+                int salto = b.length() - n;
+                return a.regionMatches(i + 1 - salto, b, i + 1, n - i - 1 + salto);
+        }
+
+        /** Somiglianza in [0, 1] da distanza di edit; 0 se la distanza supera quella ammessa da {@code minima}. */
+        static double somiglianza(@NotNull String a, @NotNull String b, double minima) {
+                int lunghezza = Math.max(a.length(), b.length());
+                if (lunghezza == 0) return 1;
+                int max = (int) Math.floor((1 - minima) * lunghezza);
+                int d = distanza(a, b, max);
+                return d > max ? 0 : 1 - (double) d / lunghezza;
+        }
+}
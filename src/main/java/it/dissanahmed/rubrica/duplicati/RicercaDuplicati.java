@@ -0,0 +1,367 @@
+package it.dissanahmed.rubrica.duplicati;
+
+import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.util.Istogramma;
+import it.dissanahmed.util.Metriche;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Ricerca dei contatti quasi duplicati: nomi invertiti ("Rossi Mario" / "Mario Rossi"),
+ * errori di battitura, telefoni con e senza <code>+39</code>.
+ * <p>
+ * Invece di confrontare tutte le coppie (O(n²)) i contatti sono divisi in <b>blocchi</b> per
+ * chiave: il Soundex del cognome con l'iniziale del nome (anche a campi scambiati) e le ultime
+ * {@value Normalizza#SUFFISSO_TELEFONO} cifre del telefono normalizzato. Si confrontano solo le
+ * coppie dello stesso blocco, una volta sola anche se condividono più chiavi; i blocchi più grandi
+ * di <code>maxBlocco</code> sono ordinati per nome e confrontati solo entro una finestra scorrevole.
+ * I blocchi sono valutati in parallelo su un {@link ForkJoinPool} dedicato, divisi per numero di
+ * coppie così che un blocco grande non resti su un solo thread insieme a molti altri.
+ * </p>
+ * <p>
+ * Il punteggio di una coppia pesa la somiglianza dei nomi (distanza di Levenshtein, con il migliore
+ * dei due ordini nome/cognome), dei telefoni (uguali o con un solo refuso, così due omonimi con
+ * numeri diversi non vengono uniti) e degli indirizzi; la distanza è calcolata solo fino
+ * al limite oltre il quale la coppia non può più raggiungere la soglia. Le coppie sopra soglia sono
+ * raggruppate per transitività e ogni gruppo diventa un {@link Suggerimento}, applicabile con
+ * {@link it.dissanahmed.rubrica.GestioneContatti#unisciDuplicati(List)}.
+ * </p>
+ * <p>
+ * Metriche: istogramma <code>duplicati.durata</code>, contatore <code>duplicati.coppie</code>.
+ * </p>
+ */
+public final class RicercaDuplicati {
+
+        /**
+         * Un gruppo di contatti che rappresentano la stessa persona.
+         *
+         * @param principale la voce da tenere, la più completa del gruppo.
+         * @param duplicati  le voci da eliminare.
+         * @param punteggio  il punteggio più basso fra le coppie che hanno formato il gruppo.
+         */
+        public record Suggerimento(@NotNull Persona principale, @NotNull List<Persona> duplicati, double punteggio) {
+        }
+
+        /**
+         * Risultato di una ricerca.
+         *
+         * @param blocchi   blocchi con almeno due contatti.
+         * @param coppie    coppie confrontate.
+         */
+        public record Esito(@NotNull List<Suggerimento> suggerimenti, int contatti, int blocchi, long coppie, long durataNanos) {
+        }
+
+        private static final Istogramma DURATA = Metriche.istogramma("duplicati.durata");
+        private static final LongAdder COPPIE = Metriche.contatore("duplicati.coppie");
+
+        private static final double PESO_NOMI = 0.55;
+        private static final double PESO_TELEFONO = 0.30;
+        private static final double PESO_INDIRIZZO = 0.15;
+        /** Somiglianza di due telefoni a distanza di edit 1. */
+        private static final double TELEFONO_REFUSO = 0.8;
+        /** Coppie per foglia del fork-join. */
+        private static final long COPPIE_PER_COMPITO = 20_000;
+
+        private final double soglia;
+        private final int maxBlocco;
+        private final int finestra;
+        private final int parallelismo;
+
+        /** Soglia 0.85, blocchi fino a 1000 voci, un thread per processore. */
+        public RicercaDuplicati() {
+                this(0.85, 1000, 50, Runtime.getRuntime().availableProcessors());
+        }
+
+        /**
+         * @param soglia       punteggio minimo, in (0, 1], perché due contatti siano duplicati.
+         * @param maxBlocco    oltre questa dimensione un blocco è confrontato a finestra.
+         * @param finestra     vicini confrontati per ogni voce nei blocchi grandi.
+         * @param parallelismo thread del pool fork-join.
+         */
+        public RicercaDuplicati(double soglia, int maxBlocco, int finestra, int parallelismo) {
+                if (!(soglia > 0 && soglia <= 1)) throw new IllegalArgumentException("soglia non valida: " + soglia);
+                if (maxBlocco < 2 || finestra < 1 || parallelismo < 1)
+                        throw new IllegalArgumentException("maxBlocco, finestra e parallelismo devono essere positivi");
+                this.soglia = soglia;
+                this.maxBlocco = maxBlocco;
+                this.finestra = finestra;
+                this.parallelismo = parallelismo;
+        }
+
+        /** Cerca i duplicati fra {@code contatti}; la lista non viene modificata. */
+        public Esito cerca(@NotNull List<Persona> contatti) {
+                long t0 = System.nanoTime();
+                Persona[] persone = contatti.toArray(Persona[]::new);
+                Voci voci = new Voci(persone.length);
+                try (ForkJoinPool pool = new ForkJoinPool(parallelismo)) {
+                        pool.submit(() -> IntStream.range(0, persone.length).parallel()
+                                .forEach(i -> voci.prepara(i, persone[i]))).join();
+
+                        Blocco[] blocchi = blocchi(voci);
+                        long[] costi = new long[blocchi.length + 1];
+                        for (int b = 0; b < blocchi.length; b++) costi[b + 1] = costi[b] + coppie(blocchi[b].voci().length);
+                        List<long[]> trovate = pool.invoke(new Confronto(voci, blocchi, costi, 0, blocchi.length));
+
+                        List<Suggerimento> suggerimenti = raggruppa(persone, voci, trovate);
+                        long durata = System.nanoTime() - t0;
+                        DURATA.registra(durata);
+                        COPPIE.add(voci.confrontate.sum());
+                        return new Esito(suggerimenti, persone.length, blocchi.length, voci.confrontate.sum(), durata);
+                }
+        }
+
+        /* ===================== preparazione e blocchi ===================== */
+
+        /* Campi normalizzati per indice, calcolati una volta sola. */
+        private static final class Voci {
+                final String[] nomeCognome;
+                final String[] cognomeNome;
+                /** Nome e cognome nell'ordine alfabetico dei due, poi il telefono: ordina i blocchi grandi. */
+                final String[] ordinamento;
+                final String[] telefono;
+                final String[] indirizzo;
+                String[][] chiavi;
+                final int[][] idChiavi;
+                final LongAdder confrontate = new LongAdder();
+
+                Voci(int n) {
+                        nomeCognome = new String[n];
+                        cognomeNome = new String[n];
+                        ordinamento = new String[n];
+                        telefono = new String[n];
+                        indirizzo = new String[n];
+                        chiavi = new String[n][];
+                        idChiavi = new int[n][];
+                }
+
+                void prepara(int i, Persona p) {
+                        String nome = Normalizza.testo(p.getNome());
+                        String cognome = Normalizza.testo(p.getCognome());
+                        nomeCognome[i] = nome + " " + cognome;
+                        cognomeNome[i] = cognome + " " + nome;
+                        telefono[i] = Normalizza.telefono(p.getTelefono());
+                        indirizzo[i] = Normalizza.testo(p.getIndirizzo());
+                        ordinamento[i] = (nomeCognome[i].compareTo(cognomeNome[i]) <= 0 ? nomeCognome[i] : cognomeNome[i])
+                                + "|" + telefono[i];
+
+                        // stesso ordine per tutte le voci, chiave del telefono per prima: una coppia è
+                        // valutata nel primo blocco che condivide, di solito il piccolo blocco del telefono
+                        List<String> k = new ArrayList<>(3);
+                        if (telefono[i].length() >= Normalizza.SUFFISSO_TELEFONO) k.add("t" + Normalizza.suffisso(telefono[i]));
+                        String diretta = chiaveNome(cognome, nome);
+                        String scambiata = chiaveNome(nome, cognome);
+                        if (diretta != null && scambiata != null && scambiata.compareTo(diretta) < 0) {
+                                String t = diretta;
+                                diretta = scambiata;
+                                scambiata = t;
+                        }
+                        if (diretta != null) k.add(diretta);
+                        if (scambiata != null && !scambiata.equals(diretta)) k.add(scambiata);
+                        chiavi[i] = k.toArray(String[]::new);
+                }
+
+                private static String chiaveNome(String cognome, String nome) {
+                        String f = Normalizza.fonetica(cognome);
+                        if (f.isEmpty()) return null;
+                        return nome.isEmpty() ? "n" + f : "n" + f + nome.charAt(0);
+                }
+        }
+
+        private record Blocco(int chiave, int[] voci) {
+        }
+
+        /* Raggruppa le voci per chiave; le chiavi diventano interi, confrontati coppia per coppia. */
+        private static Blocco[] blocchi(Voci voci) {
+                Map<String, Integer> id = new HashMap<>();
+                List<int[]> membri = new ArrayList<>();  // per id: [inserite, voci...]
+                int[] dimensioni = new int[16];
+                for (int i = 0; i < voci.chiavi.length; i++) {
+                        String[] chiavi = voci.chiavi[i];
+                        int[] ids = new int[chiavi.length];
+                        for (int c = 0; c < chiavi.length; c++) {
+                                int k = id.computeIfAbsent(chiavi[c], x -> id.size());
+                                if (k == dimensioni.length) dimensioni = Arrays.copyOf(dimensioni, k * 2);
+                                dimensioni[k]++;
+                                ids[c] = k;
+                        }
+                        voci.idChiavi[i] = ids;
+                }
+                for (int k = 0; k < id.size(); k++) membri.add(dimensioni[k] < 2 ? null : new int[dimensioni[k] + 1]);
+                for (int i = 0; i < voci.idChiavi.length; i++) {
+                        for (int k : voci.idChiavi[i]) {
+                                int[] b = membri.get(k);
+                                if (b != null) b[++b[0]] = i;
+                        }
+                }
+                List<Blocco> out = new ArrayList<>();
+                for (int k = 0; k < membri.size(); k++) {
+                        int[] b = membri.get(k);
+                        if (b != null) out.add(new Blocco(k, Arrays.copyOfRange(b, 1, b.length)));
+                }
+                voci.chiavi = null;  // non servono più
+                // i più costosi per primi: le foglie pesanti partono subito
+                out.sort(Comparator.comparingInt((Blocco b) -> b.voci().length).reversed());
+                return out.toArray(Blocco[]::new);
+        }
+
+        private long coppie(int n) {
+                return n <= maxBlocco ? (long) n * (n - 1) / 2 : (long) n * finestra;
+        }
+
+        /* ===================== confronto parallelo ===================== */
+
+        private final class Confronto extends RecursiveTask<List<long[]>> {
+                private final Voci voci;
+                private final Blocco[] blocchi;
+                private final long[] costi;
+                private final int da;
+                private final int a;
+
+                Confronto(Voci voci, Blocco[] blocchi, long[] costi, int da, int a) {
+                        this.voci = voci;
+                        this.blocchi = blocchi;
+                        this.costi = costi;
+                        this.da = da;
+                        this.a = a;
+                }
+
+                @Override
+                protected List<long[]> compute() {
+                        if (a - da > 1 && costi[a] - costi[da] > COPPIE_PER_COMPITO) {
+                                // divide a metà del costo, non del numero di blocchi
+                                long meta = (costi[da] + costi[a]) / 2;
+                                int m = Arrays.binarySearch(costi, da + 1, a, meta);
+                                m = Math.max(da + 1, Math.min(a - 1, m < 0 ? -m - 1 : m));
+                                Confronto sinistra = new Confronto(voci, blocchi, costi, da, m);
+                                sinistra.fork();
+                                List<long[]> out = new Confronto(voci, blocchi, costi, m, a).compute();
+                                out.addAll(sinistra.join());
+                                return out;
+                        }
+                        List<long[]> out = new ArrayList<>();
+                        for (int b = da; b < a; b++) confrontaBlocco(b, out);
+                        return out;
+                }
+
+                private void confrontaBlocco(int b, List<long[]> out) {
+                        int[] blocco = blocchi[b].voci();
+                        int chiave = blocchi[b].chiave();
+                        long confrontate = 0;
+                        if (blocco.length <= maxBlocco) {
+                                for (int x = 0; x < blocco.length; x++) {
+                                        for (int y = x + 1; y < blocco.length; y++) {
+                                                confrontate += confronta(blocco[x], blocco[y], chiave, out);
+                                        }
+                                }
+                        } else {
+                                int[] ordinato = IntStream.of(blocco).boxed()
+                                        .sorted(Comparator.comparing((Integer i) -> voci.ordinamento[i]))
+                                        .mapToInt(Integer::intValue).toArray();
+                                for (int x = 0; x < ordinato.length; x++) {
+                                        for (int y = x + 1; y < Math.min(ordinato.length, x + 1 + finestra); y++) {
+                                                confrontate += confronta(ordinato[x], ordinato[y], chiave, out);
+                                        }
+                                }
+                        }
+                        voci.confrontate.add(confrontate);
+                }
+
+                private int confronta(int x, int y, int chiave, List<long[]> out) {
+                        // una coppia con più chiavi in comune è valutata solo nel blocco della prima
+                        if (chiave != primaComune(voci.idChiavi[x], voci.idChiavi[y])) return 0;
+                        double p = punteggio(voci, x, y);
+                        if (p >= soglia) {
+                                out.add(new long[]{Math.min(x, y), Math.max(x, y), Double.doubleToLongBits(p)});
+                        }
+                        return 1;
+                }
+        }
+
+        private static int primaComune(int[] a, int[] b) {
+                for (int k : a) {
+                        for (int j : b) if (k == j) return k;
+                }
+                return -1;
+        }
+
+        private double punteggio(Voci v, int x, int y) {
+                // numeri diversi sono persone diverse: si perdona solo un refuso
+                double telefono = v.telefono[x].isEmpty() ? 0
+                        : v.telefono[x].equals(v.telefono[y]) ? 1
+                        : Normalizza.unRefuso(v.telefono[x], v.telefono[y]) ? TELEFONO_REFUSO : 0;
+                // dal confronto più economico: ogni passo calcola la distanza solo fin dove serve
+                double resto = soglia - PESO_TELEFONO * telefono;
+                if (resto > PESO_NOMI + PESO_INDIRIZZO) return 0;
+                double minimaNomi = Math.max(0, (resto - PESO_INDIRIZZO) / PESO_NOMI);
+                double nomi = Math.max(
+                        Normalizza.somiglianza(v.nomeCognome[x], v.nomeCognome[y], minimaNomi),
+                        Normalizza.somiglianza(v.nomeCognome[x], v.cognomeNome[y], minimaNomi));
+                if (nomi == 0 && minimaNomi > 0) return 0;
+                resto -= PESO_NOMI * nomi;
+                double indirizzo = Normalizza.somiglianza(v.indirizzo[x], v.indirizzo[y], Math.max(0, resto / PESO_INDIRIZZO));
+                return PESO_NOMI * nomi + PESO_TELEFONO * telefono + PESO_INDIRIZZO * indirizzo;
+        }
+
+        /* ===================== gruppi ===================== */
+
+        private static List<Suggerimento> raggruppa(Persona[] persone, Voci voci, List<long[]> coppie) {
+                int[] padre = new int[persone.length];
+                for (int i = 0; i < padre.length; i++) padre[i] = i;
+                Map<Integer, Double> minimo = new HashMap<>();
+                for (long[] c : coppie) {
+                        int a = radice(padre, (int) c[0]);
+                        int b = radice(padre, (int) c[1]);
+                        double p = Double.longBitsToDouble(c[2]);
+                        double m = Math.min(p, Math.min(minimo.getOrDefault(a, 1.0), minimo.getOrDefault(b, 1.0)));
+                        if (a != b) padre[Math.max(a, b)] = Math.min(a, b);
+                        minimo.remove(Math.max(a, b));
+                        minimo.put(Math.min(a, b), m);
+                }
+                Map<Integer, List<Integer>> gruppi = new HashMap<>();
+                for (long[] c : coppie) {
+                        for (int k = 0; k < 2; k++) {
+                                int i = (int) c[k];
+                                List<Integer> g = gruppi.computeIfAbsent(radice(padre, i), x -> new ArrayList<>());
+                                if (!g.contains(i)) g.add(i);
+                        }
+                }
+                List<Suggerimento> out = new ArrayList<>(gruppi.size());
+                for (Map.Entry<Integer, List<Integer>> e : gruppi.entrySet()) {
+                        List<Integer> g = e.getValue();
+                        g.sort(Comparator.comparingInt((Integer i) -> completezza(persone[i], voci.telefono[i])).reversed()
+                                .thenComparingInt(i -> i));
+                        List<Persona> duplicati = new ArrayList<>(g.size() - 1);
+                        for (int i = 1; i < g.size(); i++) duplicati.add(persone[g.get(i)]);
+                        out.add(new Suggerimento(persone[g.get(0)], List.copyOf(duplicati), minimo.get(e.getKey())));
+                }
+                out.sort(Comparator.comparingDouble(Suggerimento::punteggio).reversed()
+                        .thenComparing(s -> s.principale().getTelefono()));
+                return out;
+        }
+
+        private static int radice(int[] padre, int i) {
+                while (padre[i] != i) {
+                        padre[i] = padre[padre[i]];
+                        i = padre[i];
+                }
+                return i;
+        }
+
+        /* Si tiene la voce con più campi compilati; a parità quella con il prefisso internazionale, poi la prima. */
+        private static int completezza(Persona p, String telefonoNormalizzato) {
+                int n = 0;
+                for (String s : new String[]{p.getNome(), p.getCognome(), p.getIndirizzo()}) n += s == null || s.isBlank() ? 0 : 1;
+                if (p.getEta() > 0) n++;
+                return n * 2 + (p.getTelefono() != null && p.getTelefono().length() > telefonoNormalizzato.length() ? 1 : 0);
+        }
+}
@@ -0,0 +1,27 @@
+package it.dissanahmed.rubrica.ex;
+
+/**
+ * La voce da modificare è cambiata dopo la lettura del client: la modifica non è
+ * stata applicata. Va riletta la voce e ripetuta l'operazione.
+ */
+public class ConflittoVersione extends RuntimeException {
+
+        private final String telefono;
+        private final long versioneAttesa;
+
+        public ConflittoVersione(String telefono, long versioneAttesa, Throwable causa) {
+                super("Conflitto di versione sulla voce " + telefono + " (versione attesa " + versioneAttesa + ")", causa);
+                this.telefono = telefono;
+                this.versioneAttesa = versioneAttesa;
+        }
+
+        /** @return il telefono con cui la voce era stata letta. */
+        public String getTelefono() {
+                return telefono;
+        }
+
+        /** @return la versione su cui si basava la modifica. */
+        public long getVersioneAttesa() {
+                return versioneAttesa;
+        }
+}
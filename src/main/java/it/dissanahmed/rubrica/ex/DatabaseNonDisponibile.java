@@ -0,0 +1,13 @@
+package it.dissanahmed.rubrica.ex;
+
+/**
+ * Il database non ha risposto entro la scadenza, non è raggiungibile o l'interruttore
+ * è aperto dopo troppi errori consecutivi. Per una scrittura scaduta l'esito è incerto:
+ * va riletta la rubrica prima di ripeterla.
+ */
+public class DatabaseNonDisponibile extends RuntimeException {
+
+        public DatabaseNonDisponibile(String messaggio, Throwable causa) {
+                super(messaggio, causa);
+        }
+}
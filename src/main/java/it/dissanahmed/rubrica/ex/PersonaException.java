@@ -4,6 +4,7 @@ import org.jetbrains.annotations.NotNull;
 
 public class PersonaException extends Exception{
 
+        private final ExceptionType tipo;
 
         public PersonaException(@NotNull ExceptionType personaExceptionType){
                 this(personaExceptionType, "");
@@ -11,6 +12,11 @@ public class PersonaException extends Exception{
 
         public PersonaException(@NotNull ExceptionType personaExceptionType, String suffix){
                 super(personaExceptionType.message + " " + suffix);
+                this.tipo = personaExceptionType;
+        }
+
+        public ExceptionType getTipo() {
+                return tipo;
         }
 
         public static enum ExceptionType{
@@ -19,7 +25,8 @@ public class PersonaException extends Exception{
                 EMPTY_FIELD("Non possono esserci entry vuote"),
                 WRONG_ADDRESS("L'indirizzo non è valido"),
                 ALREADY_EXIST("Esiste un'altra persona con il numero di telefono:"),
-                NOT_EXISTS("Non esiste la persona:");
+                NOT_EXISTS("Non esiste la persona:"),
+                CONFLICT("La voce è stata modificata da un altro client, riprova:");
 
                 private String message;
                 ExceptionType(String message) {
@@ -0,0 +1,296 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.rubrica.Persona;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Coda persistente delle scritture locali di {@link ContattiIbrido} non ancora confermate dal server.
+ * <p>
+ * Struttura, in <code>&lt;dir&gt;</code>:
+ * <ul>
+ *   <li><code>&lt;utente&gt;.coda</code>: log in sola aggiunta, una {@link Modifica} per riga
+ *       (campi separati da tabulazione);</li>
+ *   <li><code>&lt;utente&gt;.stato</code>: righe del log già confermate e ultima sequenza remota
+ *       ricevuta, riscritto in modo atomico.</li>
+ * </ul>
+ * Quando tutte le voci sono confermate il log viene troncato. Una voce confermata dal server
+ * ma non ancora registrata come tale (arresto a metà) viene reinviata: gli inserimenti e le
+ * eliminazioni sono idempotenti, una modifica condizionata fallisce come conflitto.
+ * </p>
+ */
+final class CodaSincronizzazione {
+
+        private static final String NULLO = "\\0";
+        private static final ScritturaDurevole SCRITTORE = ScritturaDurevole.get(ScritturaDurevole.Durabilita.BATCH, 2);
+
+        private final Path log;
+        private final Path stato;
+        private final @Nullable String utente;
+        private final boolean nuova;
+        private boolean statoPresente;
+
+        private final ArrayDeque<Modifica> voci = new ArrayDeque<>();
+        /** Voci in coda per telefono (nuovo o precedente). */
+        private final Map<String, Integer> perTelefono = new HashMap<>();
+        private int confermate;
+        private long remota;
+        private long ultima;
+
+        /**
+         * Carica la coda e lo stato, se presenti.
+         *
+         * @param dir    cartella dei file di sincronizzazione.
+         * @param utente utente della rubrica, usato per i nomi dei file.
+         */
+        CodaSincronizzazione(@NotNull Path dir, @Nullable String utente) throws IOException {
+                String nome = utente == null ? "_" : utente.replaceAll("[^A-Za-z0-9._-]", "_");
+                this.log = dir.resolve(nome + ".coda");
+                this.stato = dir.resolve(nome + ".stato");
+                this.utente = utente;
+                Files.createDirectories(dir);
+                this.nuova = !Files.exists(stato);
+                this.statoPresente = !nuova;
+                if (nuova) return;
+
+                Properties p = new Properties();
+                try (Reader r = Files.newBufferedReader(stato, StandardCharsets.UTF_8)) {
+                        p.load(r);
+                }
+                this.remota = Long.parseLong(p.getProperty("remota", "0"));
+                this.confermate = Integer.parseInt(p.getProperty("confermate", "0"));
+                if (!Files.exists(log)) {
+                        confermate = 0;
+                        return;
+                }
+                List<String> righe = Files.readAllLines(log, StandardCharsets.UTF_8);
+                boolean incompleta = false;
+                for (int i = confermate; i < righe.size(); i++) {
+                        Modifica m = decodifica(righe.get(i), ultima + 1);
+                        if (m == null) {
+                                incompleta = true;
+                                continue;
+                        }
+                        ultima++;
+                        aggiungi(m);
+                }
+                // riga troncata da un arresto durante la scrittura: il log viene ricompattato
+                if (incompleta || confermate > 0) riscrivi();
+        }
+
+        /** @return {@code true} se non esisteva uno stato salvato: è la prima sincronizzazione. */
+        boolean isNuova() {
+                return nuova;
+        }
+
+        /** Aggiunge in fondo alla coda una scrittura locale e la rende persistente. */
+        synchronized Modifica accoda(@NotNull Modifica.Tipo tipo, @NotNull String telefono,
+                                     @Nullable String telefonoPrecedente, @Nullable Persona persona) {
+                Modifica m = new Modifica(++ultima, System.currentTimeMillis(), utente, tipo, telefono,
+                        telefonoPrecedente, persona);
+                try {
+                        Files.writeString(log, codifica(m) + "\n", StandardCharsets.UTF_8,
+                                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+                        if (!statoPresente) salvaStato();
+                } catch (IOException e) {
+                        throw new RuntimeException("Errore scrittura coda di sincronizzazione: " + e.getMessage(), e);
+                }
+                aggiungi(m);
+                return m;
+        }
+
+        /** @return la voce più vecchia non confermata, o {@code null} se la coda è vuota. */
+        synchronized @Nullable Modifica primo() {
+                return voci.peekFirst();
+        }
+
+        /** Segna come inviata la voce in testa, se è ancora {@code m}. */
+        synchronized void conferma(@NotNull Modifica m) {
+                if (voci.peekFirst() != m) return;
+                rimuovi(voci.pollFirst());
+                confermate++;
+                try {
+                        if (voci.isEmpty()) {
+                                Files.deleteIfExists(log);
+                                confermate = 0;
+                        }
+                        salvaStato();
+                } catch (IOException e) {
+                        throw new RuntimeException("Errore scrittura stato di sincronizzazione: " + e.getMessage(), e);
+                }
+        }
+
+        /**
+         * Elimina dalla coda tutte le voci che riguardano il telefono (come nuovo o precedente)
+         * e riscrive il log.
+         *
+         * @return le voci eliminate.
+         */
+        synchronized List<Modifica> scarta(@NotNull String telefono) {
+                List<Modifica> scartate = new ArrayList<>();
+                for (Iterator<Modifica> it = voci.iterator(); it.hasNext(); ) {
+                        Modifica m = it.next();
+                        if (telefono.equals(m.telefono()) || telefono.equals(m.telefonoPrecedente())) {
+                                it.remove();
+                                rimuovi(m);
+                                scartate.add(m);
+                        }
+                }
+                if (scartate.isEmpty()) return scartate;
+                try {
+                        riscrivi();
+                } catch (IOException e) {
+                        throw new RuntimeException("Errore riscrittura coda di sincronizzazione: " + e.getMessage(), e);
+                }
+                return scartate;
+        }
+
+        /** @return {@code true} se in coda c'è una scrittura non inviata che riguarda il telefono. */
+        synchronized boolean inAttesa(@NotNull String telefono) {
+                return perTelefono.containsKey(telefono);
+        }
+
+        synchronized int dimensione() {
+                return voci.size();
+        }
+
+        /** @return l'ultima sequenza ricevuta dal server (0 se mai sincronizzato). */
+        synchronized long getRemota() {
+                return remota;
+        }
+
+        synchronized void setRemota(long remota) {
+                if (this.remota == remota && statoPresente) return;
+                this.remota = remota;
+                try {
+                        salvaStato();
+                } catch (IOException e) {
+                        throw new RuntimeException("Errore scrittura stato di sincronizzazione: " + e.getMessage(), e);
+                }
+        }
+
+        private void aggiungi(Modifica m) {
+                voci.addLast(m);
+                perTelefono.merge(m.telefono(), 1, Integer::sum);
+                if (m.telefonoPrecedente() != null) perTelefono.merge(m.telefonoPrecedente(), 1, Integer::sum);
+        }
+
+        private void rimuovi(Modifica m) {
+                perTelefono.computeIfPresent(m.telefono(), (k, n) -> n == 1 ? null : n - 1);
+                if (m.telefonoPrecedente() != null)
+                        perTelefono.computeIfPresent(m.telefonoPrecedente(), (k, n) -> n == 1 ? null : n - 1);
+        }
+
+        /* Sostituisce il log con le sole voci in coda. */
+        private void riscrivi() throws IOException {
+                StringBuilder sb = new StringBuilder();
+                for (Modifica m : voci) sb.append(codifica(m)).append('\n');
+                sostituisci(log, sb.toString());
+                confermate = 0;
+                salvaStato();
+        }
+
+        private void salvaStato() throws IOException {
+                Properties p = new Properties();
+                p.setProperty("remota", Long.toString(remota));
+                p.setProperty("confermate", Integer.toString(confermate));
+                StringWriter w = new StringWriter();
+                p.store(w, null);
+                sostituisci(stato, w.toString());
+                statoPresente = true;
+        }
+
+        /*
+         * Rename atomico da un temporaneo univoco, con fsync del file e della cartella prima di
+         * ritornare: due processi sulla stessa cartella non si contendono il temporaneo e lo stato
+         * confermato non torna indietro dopo un crash.
+         */
+        private static void sostituisci(Path file, String contenuto) throws IOException {
+                ScritturaDurevole.attendi(List.of(SCRITTORE.scrivi(file, contenuto, StandardCharsets.UTF_8)));
+        }
+
+        /* ===================== formato di riga ===================== */
+
+        static String codifica(Modifica m) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(m.tipo().name()).append('\t').append(m.istante())
+                        .append('\t').append(escape(m.telefono()))
+                        .append('\t').append(escape(m.telefonoPrecedente()));
+                Persona p = m.persona();
+                if (p != null) {
+                        sb.append('\t').append(escape(p.getNome()))
+                                .append('\t').append(escape(p.getCognome()))
+                                .append('\t').append(escape(p.getIndirizzo()))
+                                .append('\t').append(p.getEta());
+                }
+                return sb.toString();
+        }
+
+        /** @return la modifica, o {@code null} se la riga non è completa. */
+        @Nullable Modifica decodifica(String riga, long sequenza) {
+                String[] c = riga.split("\t", -1);
+                try {
+                        Modifica.Tipo tipo = Modifica.Tipo.valueOf(c[0]);
+                        boolean conPersona = tipo != Modifica.Tipo.ELIMINAZIONE;
+                        if (c.length != (conPersona ? 8 : 4)) return null;
+                        String tel = unescape(c[2]);
+                        Persona p = conPersona
+                                ? new Persona(unescape(c[4]), unescape(c[5]), unescape(c[6]), tel, Integer.parseInt(c[7]))
+                                : null;
+                        return new Modifica(sequenza, Long.parseLong(c[1]), utente, tipo, tel, unescape(c[3]), p);
+                } catch (RuntimeException e) {
+                        return null;
+                }
+        }
+
+        private static String escape(@Nullable String s) {
+                if (s == null) return NULLO;
+                StringBuilder sb = new StringBuilder(s.length());
+                for (int i = 0; i < s.length(); i++) {
+                        char ch = s.charAt(i);
+                        switch (ch) {
+                                case '\\' -> sb.append("\\\\");
+                                case '\t' -> sb.append("\\t");
+                                case '\n' -> sb.append("\\n");
+                                case '\r' -> sb.append("\\r");
+                                default -> sb.append(ch);
+                        }
+                }
+                return sb.toString();
+        }
+
+        private static @Nullable String unescape(String s) {
+                if (NULLO.equals(s)) return null;
+                StringBuilder sb = new StringBuilder(s.length());
+                for (int i = 0; i < s.length(); i++) {
+                        char ch = s.charAt(i);
+                        if (ch != '\\' || i + 1 == s.length()) {
+                                sb.append(ch);
+                                continue;
+                        }
+                        char n = s.charAt(++i);
+                        sb.append(switch (n) {
+                                case 't' -> '\t';
+                                case 'n' -> '\n';
+                                case 'r' -> '\r';
+                                default -> n;
+                        });
+                }
+                return sb.toString();
+        }
+}
@@ -1,16 +1,14 @@
 package it.dissanahmed.rubrica.persistenza;
 
 import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.util.Configurazione;
+import it.dissanahmed.util.DatabaseIncorporato;
 import it.dissanahmed.util.PathUtils;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.List;
-import java.util.Properties;
-
-import static it.dissanahmed.login.persistenza.LoginDao.openConfStream;
+import java.util.stream.Stream;
 
 /**
  * Interfaccia che definisce le operazioni di persistenza per la gestione
@@ -21,7 +19,7 @@ import static it.dissanahmed.login.persistenza.LoginDao.openConfStream;
  * concreta del DAO basata sulla configurazione di sistema.
  * </p>
  */
-public interface ContattiDao {
+public interface ContattiDao extends AutoCloseable {
 
         /**
          * Restituisce la lista completa dei contatti presenti nella rubrica.
@@ -30,6 +28,21 @@ public interface ContattiDao {
          */
         List<Persona> getContatti();
 
+        /**
+         * Scorre i contatti uno alla volta, senza costruire la lista completa: pensato per export
+         * e lavori massivi su rubriche molto grandi, che così usano memoria costante.
+         * <p>
+         * Lo stream tiene aperte le risorse della lettura (file, connessione) finché non viene
+         * chiuso: va sempre usato in un try-with-resources. L'ordine è quello della sorgente.
+         * L'implementazione predefinita scorre {@link #getContatti()}.
+         * </p>
+         *
+         * @return i contatti memorizzati, letti man mano che lo stream avanza.
+         */
+        default Stream<Persona> scorriContatti() {
+                return getContatti().stream();
+        }
+
         /**
          * Salva una lista di contatti sovrascrivendo i dati esistenti.
          *
@@ -59,6 +72,25 @@ public interface ContattiDao {
          */
         void modificaPersona(Persona daModificare, String oldTel);
 
+        /**
+         * Registra l'azione da eseguire quando i contatti memorizzati cambiano senza passare da
+         * questo DAO (voci ricevute dal server, file cambiati da un altro processo): chi ne tiene
+         * una copia in memoria la rilegge. L'azione è eseguita da un thread del DAO, fuori dai suoi
+         * lock. L'implementazione predefinita non avvisa mai.
+         *
+         * @param ascoltatore l'azione, o {@code null} per nessuna.
+         */
+        default void setAscoltatore(Runnable ascoltatore) {
+        }
+
+        /**
+         * Rilascia le risorse associate al DAO (thread di osservazione, connessioni).
+         * L'implementazione predefinita non fa nulla.
+         */
+        @Override
+        default void close() {
+        }
+
         /**
          * Restituisce un'istanza predefinita di {@link ContattiDao} in base
          * alla configurazione specificata nel file <code>conf.properties</code>.
@@ -75,52 +107,112 @@ public interface ContattiDao {
 
         /**
          * Restituisce un'istanza concreta di {@link ContattiDao} in base
-         * alle impostazioni definite nel file <code>conf.properties</code>.
+         * alle impostazioni definite nel file <code>conf.properties</code>,
+         * lette dall'istantanea corrente di {@link Configurazione}.
          * <p>
          * Il metodo legge la proprietà <code>database.instance</code> per determinare
          * il tipo di implementazione:
          * <ul>
-         *   <li><b>dbms</b>: utilizza {@link ContattiDbms}, con connessione a un database relazionale.</li>
+         *   <li><b>dbms</b>: utilizza {@link ContattiDbms}, con connessione a un database relazionale.
+         *       Con <code>db.resilienza.enabled</code> (default <code>true</code>) è avvolto in
+         *       {@link ContattiDaoResiliente}: scadenze <code>db.resilienza.scadenzaLetturaMs</code> (5000) e
+         *       <code>db.resilienza.scadenzaScritturaMs</code> (10000), fino a <code>db.resilienza.tentativi</code>
+         *       (3) letture con attesa base <code>db.resilienza.attesaMs</code> (100), interruttore aperto per
+         *       <code>db.resilienza.aperturaMs</code> (10000) dopo <code>db.resilienza.soglia</code> (5) errori
+         *       consecutivi, al massimo <code>db.resilienza.chiamateMax</code> (8) chiamate in corso,
+         *       ultima rubrica letta servita se il database non risponde con
+         *       <code>db.resilienza.cache</code> (default <code>false</code>).</li>
          *   <li><b>fs</b> (default): utilizza {@link ContattiFs}, basato su file system locale.</li>
+         *   <li><b>ibrido</b>: utilizza {@link ContattiIbrido}, che serve tutto dalla rubrica locale
+         *       ({@link ContattiFs}, stesse proprietà <code>fs.*</code>) e la sincronizza in background con
+         *       {@link ContattiDbms} ogni <code>sync.intervalMs</code> (default 5000) o dopo una scrittura;
+         *       dopo un errore l'attesa raddoppia fino a <code>sync.backoffMaxMs</code> (default 60000).
+         *       Senza username equivale a <b>fs</b>.</li>
+         *   <li><b>incorporato</b>: utilizza {@link ContattiIncorporato}, un database H2 nel processo
+         *       (vedi {@link DatabaseIncorporato}) con le stesse tabelle e la stessa logica delle stored
+         *       procedure, senza server esterno. Senza username equivale a <b>fs</b>.</li>
          * </ul>
          * </p>
          * <p>
          * Inoltre, se la modalità <b>fs</b> è selezionata, viene determinata la
          * directory base tramite {@link PathUtils#getBaseDirectory(Class)} e
-         * la proprietà <code>fs.baseDir</code>.
+         * la proprietà <code>fs.baseDir</code>; <code>fs.watch</code> (default <code>false</code>)
+         * abilita l'aggiornamento della cache sulle modifiche esterne alla cartella, con un thread che
+         * resta attivo fino a {@link #close()};
+         * <code>fs.durability</code> (<code>none</code>, <code>batch</code> - default -, <code>per_op</code>)
+         * e <code>fs.durability.windowMs</code> regolano la durabilità delle scritture;
+         * <code>fs.shard.userDepth</code> e <code>fs.shard.contactDepth</code> (0..3, default 0)
+         * distribuiscono cartelle utente e file contatto su livelli di sottocartelle
+         * (vedi {@link LayoutCartelle}), migrando a caldo i dati già presenti.
+         * </p>
+         * <p>
+         * Con <code>cdc.enabled</code> (default <code>true</code>) le scritture sono pubblicate su
+         * {@link FlussoModifiche#get()} tramite {@link ContattiDaoTracciato}; con
+         * <code>metrics.enabled</code> (default <code>true</code>) il DAO è avvolto in
+         * {@link ContattiDaoStrumentato}.
          * </p>
          *
          * @param username l'username dell'utente corrente, utilizzato per gestire
          *                 directory o schemi dedicati; può essere <code>null</code>.
          * @return un'istanza di {@link ContattiDao} conforme alla configurazione.
-         * @throws IllegalArgumentException se si verifica un errore nella lettura
-         *                                  del file di configurazione.
+         * @see Configurazione#get()
          */
         static ContattiDao getInstance(String username) {
-                Properties properties = new Properties();
-                try (InputStream inputStream = openConfStream()) {
-                        properties.load(inputStream);
-                } catch (IOException e) {
-                        throw new IllegalArgumentException("Errore nella lettura di conf.properties: " + e.getMessage(), e);
-                }
-
-                String instanceType = properties.getProperty("database.instance", "fs").trim().toLowerCase();
+                Configurazione conf = Configurazione.get();
+                ContattiDao dao = creaDao(conf, username);
+                if (conf.getBoolean("cdc.enabled", true)) dao = new ContattiDaoTracciato(dao, normalize(username), FlussoModifiche.get());
+                return conf.getBoolean("metrics.enabled", true) ? new ContattiDaoStrumentato(dao) : dao;
+        }
 
-                switch (instanceType) {
+        private static ContattiDao creaDao(Configurazione conf, String username) {
+                switch (conf.getIstanzaDatabase()) {
                         case "dbms": {
-                                return new ContattiDbms(properties, normalize(username));
+                                ContattiDbms dbms = new ContattiDbms(conf.toProperties(), normalize(username));
+                                if (!conf.getBoolean("db.resilienza.enabled", true)) return dbms;
+                                String url = conf.get("db.url", "");
+                                // senza parametri: l'URL finisce nelle metriche
+                                int q = url.indexOf('?');
+                                InterruttoreCircuito interruttore = InterruttoreCircuito.per(q < 0 ? url : url.substring(0, q),
+                                        conf.getInt("db.resilienza.soglia", 5), conf.getLong("db.resilienza.aperturaMs", 10_000));
+                                return new ContattiDaoResiliente(dbms, interruttore, ContattiDaoResiliente.Politica.da(conf));
+                        }
+                        case "incorporato": {
+                                String utente = normalize(username);
+                                if (utente == null) return creaFs(conf, null);
+                                return new ContattiIncorporato(DatabaseIncorporato.get(conf.toProperties()), utente);
+                        }
+                        case "ibrido": {
+                                String utente = normalize(username);
+                                ContattiFs locale = creaFs(conf, utente);
+                                if (utente == null) return locale;
+                                return new ContattiIbrido(locale, new ContattiDbms(conf.toProperties(), utente),
+                                        baseDirFs(conf).resolve(".sync"), utente,
+                                        conf.getLong("sync.intervalMs", 5_000), conf.getLong("sync.backoffMaxMs", 60_000)).avvia();
                         }
                         case "fs":
                         default: {
-                                String baseDirName = properties.getProperty("fs.baseDir",
-                                        PathUtils.INFORMAZIONI).trim();
-                                File confDir = PathUtils.getBaseDirectory(ContattiDao.class);
-                                Path baseDir = confDir.toPath().resolve(baseDirName);
-                                return new ContattiFs(baseDir, normalize(username));
+                                return creaFs(conf, normalize(username));
                         }
                 }
         }
 
+        private static ContattiFs creaFs(Configurazione conf, String username) {
+                Path baseDir = baseDirFs(conf);
+                ScritturaDurevole scrittore = ScritturaDurevole.get(
+                        ScritturaDurevole.Durabilita.parse(conf.get("fs.durability")),
+                        conf.getLong("fs.durability.windowMs", 2));
+                LayoutCartelle layout = new LayoutCartelle(conf.getInt("fs.shard.userDepth", 0),
+                        conf.getInt("fs.shard.contactDepth", 0));
+                MigrazioneLayout.avviaInBackground(baseDir, layout);
+                return new ContattiFs(baseDir, username, conf.getBoolean("fs.watch", false), scrittore, layout);
+        }
+
+        private static Path baseDirFs(Configurazione conf) {
+                String baseDirName = conf.get("fs.baseDir", PathUtils.INFORMAZIONI).trim();
+                File confDir = PathUtils.getBaseDirectory(ContattiDao.class);
+                return confDir.toPath().resolve(baseDirName);
+        }
+
         /**
          * Normalizza una stringa eliminando spazi vuoti e restituendo {@code null}
          * se la stringa risulta vuota dopo il trim.
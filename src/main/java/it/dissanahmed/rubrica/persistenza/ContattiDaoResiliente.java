@@ -0,0 +1,429 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.rubrica.ex.DatabaseNonDisponibile;
+import it.dissanahmed.util.Configurazione;
+import it.dissanahmed.util.Metriche;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Decoratore di {@link ContattiDao} che limita il tempo in cui un database lento o fermo
+ * può bloccare il chiamante (spesso l'EDT, tramite {@code GestioneContatti}).
+ * <ul>
+ *   <li><b>Scadenze</b>: ogni operazione ha un tempo massimo (letture e scritture separati), oltre
+ *       il quale il chiamante riceve {@link DatabaseNonDisponibile}; la chiamata abbandonata finisce
+ *       in background entro i timeout JDBC di {@link ContattiDbms}. Una scrittura scaduta può quindi
+ *       essere applicata dopo che il chiamante ha ricevuto l'errore: in quel caso la cache viene
+ *       scartata e l'ascoltatore ({@link #setAscoltatore(Runnable)}) avvisato, così la rubrica in
+ *       memoria viene riletta dal database. Il delegato scrive sempre una copia delle persone ricevute,
+ *       così una scrittura abbandonata non vede né modifica gli oggetti del chiamante.</li>
+ *   <li><b>Compartimento</b> (bulkhead): al massimo {@link Politica#chiamateMax()} chiamate per DAO,
+ *       comprese quelle abbandonate e non ancora finite, occupano un thread; oltre, le chiamate sono
+ *       rifiutate subito. Un server bloccato non accumula così thread senza limite.</li>
+ *   <li><b>Nuovi tentativi</b>: solo le letture, idempotenti, sono ripetute dopo un errore transitorio
+ *       (connessione non riuscita o persa, timeout), con attesa esponenziale casuale ("full jitter") ed entro
+ *       la stessa scadenza. Le scritture non sono mai ripetute: l'esito di una scrittura scaduta è
+ *       incerto.</li>
+ *   <li><b>Interruttore</b>: dopo troppi errori transitori consecutivi {@link InterruttoreCircuito}
+ *       rifiuta subito le chiamate finché il server non risponde di nuovo.</li>
+ *   <li><b>Letture dalla cache</b> (opzionali): se il database non risponde viene restituita l'ultima
+ *       rubrica letta, aggiornata con le scritture riuscite da allora.</li>
+ * </ul>
+ * Gli errori applicativi (sessione scaduta, conflitti di versione, dati non validi) provano che il
+ * server risponde: passano invariati e non contano per l'interruttore.
+ */
+public class ContattiDaoResiliente implements ContattiDao {
+
+        private static final Logger LOG = Logger.getLogger(ContattiDaoResiliente.class.getName());
+        private static final AtomicInteger THREAD = new AtomicInteger();
+
+        /** Thread al massimo per tutti i DAO insieme; ognuno ne usa fino a {@link Politica#chiamateMax()}. */
+        static final int LIMITE_THREAD = 64;
+
+        /*
+         * Thread di piattaforma, non virtuali: il chiamante può essere un virtual thread dentro un
+         * metodo synchronized (GestioneContatti), che attendendo blocca il suo carrier; la chiamata
+         * deve poter proseguire anche se tutti i carrier sono bloccati così.
+         * Nessuna coda: oltre LIMITE_THREAD chiamate in corso la successiva è rifiutata.
+         */
+        private static final ThreadPoolExecutor ESECUTORE = new ThreadPoolExecutor(0, LIMITE_THREAD,
+                30, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                        Thread t = new Thread(r, "contatti-dbms-" + THREAD.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                });
+
+        private static final LongAdder SCADUTE = Metriche.contatore("contattiDbms.resilienza.scadute");
+        private static final LongAdder RITENTATE = Metriche.contatore("contattiDbms.resilienza.ritentate");
+        private static final LongAdder RIFIUTATE = Metriche.contatore("contattiDbms.resilienza.rifiutate");
+        private static final LongAdder DALLA_CACHE = Metriche.contatore("contattiDbms.resilienza.letteDallaCache");
+        private static final LongAdder TARDIVE = Metriche.contatore("contattiDbms.resilienza.scrittureTardive");
+
+        /* Stati di una chiamata fra il chiamante che attende e il thread che la esegue. */
+        private static final int IN_ATTESA = 0;
+        private static final int CONCLUSA = 1;
+        private static final int ABBANDONATA = 2;
+
+        /**
+         * Parametri del decoratore.
+         *
+         * @param scadenzaLetturaMs   tempo massimo di una lettura, tentativi compresi.
+         * @param scadenzaScritturaMs tempo massimo di una scrittura.
+         * @param tentativi           tentativi al massimo per una lettura (1 = nessun nuovo tentativo).
+         * @param attesaMs            attesa base prima del secondo tentativo, raddoppiata a ogni tentativo.
+         * @param letturaDaCache      se servire l'ultima rubrica letta quando il database non risponde.
+         * @param chiamateMax         chiamate al massimo in corso nello stesso momento, abbandonate comprese.
+         */
+        public record Politica(long scadenzaLetturaMs, long scadenzaScritturaMs, int tentativi, long attesaMs,
+                               boolean letturaDaCache, int chiamateMax) {
+
+                /** Chiamate in corso al massimo se non indicato. */
+                public static final int CHIAMATE_MAX = 8;
+
+                public Politica {
+                        chiamateMax = Math.max(1, Math.min(chiamateMax, LIMITE_THREAD));
+                }
+
+                public Politica(long scadenzaLetturaMs, long scadenzaScritturaMs, int tentativi, long attesaMs,
+                                boolean letturaDaCache) {
+                        this(scadenzaLetturaMs, scadenzaScritturaMs, tentativi, attesaMs, letturaDaCache, CHIAMATE_MAX);
+                }
+
+                /** Dalle proprietà <code>db.resilienza.*</code>. */
+                public static Politica da(@NotNull Configurazione conf) {
+                        return new Politica(conf.getLong("db.resilienza.scadenzaLetturaMs", 5_000),
+                                conf.getLong("db.resilienza.scadenzaScritturaMs", 10_000),
+                                conf.getInt("db.resilienza.tentativi", 3),
+                                conf.getLong("db.resilienza.attesaMs", 100),
+                                conf.getBoolean("db.resilienza.cache", false),
+                                conf.getInt("db.resilienza.chiamateMax", CHIAMATE_MAX));
+                }
+        }
+
+        private final ContattiDao delegate;
+        private final InterruttoreCircuito interruttore;
+        private final Politica politica;
+        /** Posti del compartimento: uno per chiamata, rilasciato quando la chiamata finisce davvero. */
+        private final Semaphore posti;
+        private volatile Runnable ascoltatore;
+
+        /** Ultima rubrica nota per telefono, solo con {@link Politica#letturaDaCache()}; protetta da this. */
+        private Map<String, Persona> ultimaLettura;
+
+        public ContattiDaoResiliente(@NotNull ContattiDao delegate, @NotNull InterruttoreCircuito interruttore,
+                                     @NotNull Politica politica) {
+                this.delegate = Objects.requireNonNull(delegate);
+                this.interruttore = Objects.requireNonNull(interruttore);
+                this.politica = Objects.requireNonNull(politica);
+                this.posti = new Semaphore(politica.chiamateMax());
+        }
+
+        /** @return il DAO decorato. */
+        public ContattiDao getDelegate() {
+                return delegate;
+        }
+
+        @Override
+        public List<Persona> getContatti() {
+                try {
+                        List<Persona> letti = esegui(delegate::getContatti, politica.scadenzaLetturaMs(), politica.tentativi());
+                        if (politica.letturaDaCache()) ricorda(letti);
+                        return letti;
+                } catch (RuntimeException e) {
+                        List<Persona> vecchi = dallaCache(e);
+                        if (vecchi == null) throw e;
+                        return vecchi;
+                }
+        }
+
+        /* La scadenza e i tentativi valgono per l'apertura: le righe le legge il chiamante. */
+        @Override
+        public Stream<Persona> scorriContatti() {
+                try {
+                        return esegui(delegate::scorriContatti, politica.scadenzaLetturaMs(), politica.tentativi());
+                } catch (RuntimeException e) {
+                        List<Persona> vecchi = dallaCache(e);
+                        if (vecchi == null) throw e;
+                        return vecchi.stream();
+                }
+        }
+
+        @Override
+        public void salvaContatti(List<Persona> personaList) {
+                List<Persona> copie = personaList == null ? null : copie(personaList);
+                scrivi(() -> delegate.salvaContatti(copie));
+                if (copie != null) {
+                        for (int i = 0; i < copie.size(); i++) riporta(copie.get(i), personaList.get(i));
+                }
+                aggiornaCache(voci -> {
+                        voci.clear();
+                        if (copie != null) {
+                                for (Persona p : copie) {
+                                        if (p != null && p.getTelefono() != null) voci.put(p.getTelefono(), p.copia());
+                                }
+                        }
+                });
+        }
+
+        @Override
+        public void salvaPersona(Persona persona) {
+                Persona copia = persona.copia();
+                scrivi(() -> delegate.salvaPersona(copia));
+                riporta(copia, persona);
+                aggiornaCache(voci -> voci.put(copia.getTelefono(), copia.copia()));
+        }
+
+        @Override
+        public void rimuoviPersona(Persona daEliminare) {
+                Persona copia = daEliminare.copia();
+                scrivi(() -> delegate.rimuoviPersona(copia));
+                aggiornaCache(voci -> voci.remove(copia.getTelefono()));
+        }
+
+        @Override
+        public void modificaPersona(Persona daModificare, String oldTel) {
+                Persona copia = daModificare.copia();
+                scrivi(() -> delegate.modificaPersona(copia, oldTel));
+                riporta(copia, daModificare);
+                aggiornaCache(voci -> {
+                        voci.remove(oldTel);
+                        voci.put(copia.getTelefono(), copia.copia());
+                });
+        }
+
+        @Override
+        public void setAscoltatore(Runnable ascoltatore) {
+                this.ascoltatore = ascoltatore;
+                delegate.setAscoltatore(ascoltatore);
+        }
+
+        @Override
+        public void close() {
+                delegate.close();
+        }
+
+        /*
+         * Le scritture ricevono una copia: se scadono continuano in background su quella, mentre il
+         * chiamante può già riportare la sua persona ai valori precedenti. Versione e identificativo
+         * assegnati dal delegato tornano al chiamante solo se la scrittura finisce entro la scadenza.
+         */
+        private static List<Persona> copie(List<Persona> persone) {
+                List<Persona> out = new ArrayList<>(persone.size());
+                for (Persona p : persone) out.add(p == null ? null : p.copia());
+                return out;
+        }
+
+        private static void riporta(Persona da, Persona a) {
+                if (da == null || a == null) return;
+                a.setVersione(da.getVersione());
+                a.setId(da.getId());
+        }
+
+        /* ===================== scadenze, tentativi, interruttore ===================== */
+
+        private void scrivi(Runnable scrittura) {
+                esegui(() -> {
+                        scrittura.run();
+                        return null;
+                }, politica.scadenzaScritturaMs(), 1, true);
+        }
+
+        private <T> T esegui(Callable<T> chiamata, long scadenzaMs, int tentativi) {
+                return esegui(chiamata, scadenzaMs, tentativi, false);
+        }
+
+        private <T> T esegui(Callable<T> chiamata, long scadenzaMs, int tentativi, boolean scrittura) {
+                long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(scadenzaMs);
+                for (int tentativo = 1; ; tentativo++) {
+                        // prima del compartimento: una chiamata rifiutata qui non consuma la prova dell'interruttore
+                        if (!posti.tryAcquire()) {
+                                RIFIUTATE.increment();
+                                throw new DatabaseNonDisponibile("Database non disponibile: troppe chiamate ancora in corso", null);
+                        }
+                        if (!interruttore.consenti()) {
+                                posti.release();
+                                RIFIUTATE.increment();
+                                throw new DatabaseNonDisponibile("Database non disponibile: troppi errori recenti, riprova più tardi", null);
+                        }
+                        RuntimeException errore;
+                        try {
+                                T risultato = entro(chiamata, limite, scadenzaMs, scrittura);
+                                interruttore.successo();
+                                return risultato;
+                        } catch (RuntimeException e) {
+                                if (!transitorio(e)) {
+                                        interruttore.successo();
+                                        throw e;
+                                }
+                                interruttore.fallimento();
+                                errore = e;
+                        }
+                        long attesa = attesa(tentativo);
+                        if (tentativo >= tentativi || System.nanoTime() + attesa >= limite) throw errore;
+                        RITENTATE.increment();
+                        try {
+                                TimeUnit.NANOSECONDS.sleep(attesa);
+                        } catch (InterruptedException ie) {
+                                Thread.currentThread().interrupt();
+                                throw errore;
+                        }
+                }
+        }
+
+        /* Full jitter: uniforme fra 0 e attesaMs * 2^(tentativo-1). */
+        private long attesa(int tentativo) {
+                long massima = TimeUnit.MILLISECONDS.toNanos(politica.attesaMs()) << Math.min(tentativo - 1, 16);
+                return massima <= 0 ? 0 : ThreadLocalRandom.current().nextLong(massima + 1);
+        }
+
+        /*
+         * Esegue la chiamata su un thread del pool, con un posto del compartimento già preso, e attende
+         * fino al limite. Il posto torna libero quando la chiamata finisce, anche dopo la scadenza.
+         * Le letture scadute sono interrotte; le scritture no, perché il loro esito conta: se una
+         * scrittura abbandonata va a buon fine, concludiTardi() lo segnala.
+         */
+        private <T> T entro(Callable<T> chiamata, long limite, long scadenzaMs, boolean scrittura) {
+                FutureTask<T> futuro = new FutureTask<>(chiamata);
+                AtomicInteger stato = new AtomicInteger(IN_ATTESA);
+                try {
+                        ESECUTORE.execute(() -> {
+                                try {
+                                        futuro.run();
+                                } finally {
+                                        posti.release();
+                                        if (!stato.compareAndSet(IN_ATTESA, CONCLUSA) && scrittura) concludiTardi(futuro);
+                                }
+                        });
+                } catch (RejectedExecutionException e) {
+                        posti.release();
+                        RIFIUTATE.increment();
+                        throw new DatabaseNonDisponibile("Database non disponibile: troppe chiamate ancora in corso", e);
+                }
+                try {
+                        return futuro.get(Math.max(0, limite - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                        if (!stato.compareAndSet(IN_ATTESA, ABBANDONATA)) return risultato(futuro);
+                        if (!scrittura) futuro.cancel(true);
+                        SCADUTE.increment();
+                        throw new DatabaseNonDisponibile("Nessuna risposta dal database entro " + scadenzaMs + " ms", e);
+                } catch (InterruptedException e) {
+                        if (stato.compareAndSet(IN_ATTESA, ABBANDONATA) && !scrittura) futuro.cancel(true);
+                        Thread.currentThread().interrupt();
+                        throw new DatabaseNonDisponibile("Interrotto in attesa del database", e);
+                } catch (ExecutionException e) {
+                        Throwable causa = e.getCause();
+                        if (causa instanceof RuntimeException r) throw r;
+                        if (causa instanceof Error err) throw err;
+                        throw new RuntimeException(causa.getMessage(), causa);
+                }
+        }
+
+        /* La chiamata è finita mentre il chiamante rinunciava: il risultato è già disponibile. */
+        private static <T> T risultato(FutureTask<T> futuro) {
+                try {
+                        return futuro.get();
+                } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new DatabaseNonDisponibile("Interrotto in attesa del database", e);
+                } catch (ExecutionException e) {
+                        Throwable causa = e.getCause();
+                        if (causa instanceof RuntimeException r) throw r;
+                        if (causa instanceof Error err) throw err;
+                        throw new RuntimeException(causa.getMessage(), causa);
+                }
+        }
+
+        /*
+         * Una scrittura scaduta è finita dopo che il chiamante ha ricevuto l'errore. Se è riuscita il
+         * database contiene una modifica che la rubrica in memoria e la cache non conoscono.
+         */
+        private void concludiTardi(FutureTask<?> futuro) {
+                try {
+                        futuro.get();
+                } catch (InterruptedException | ExecutionException | RuntimeException e) {
+                        LOG.fine(() -> "Scrittura scaduta e poi fallita: " + e.getMessage());
+                        return;
+                }
+                TARDIVE.increment();
+                LOG.warning("Scrittura applicata dal database dopo la scadenza: la rubrica verrà riletta");
+                synchronized (this) {
+                        ultimaLettura = null;
+                }
+                Runnable a = ascoltatore;
+                if (a == null) return;
+                try {
+                        a.run();
+                } catch (RuntimeException e) {
+                        LOG.log(Level.WARNING, "Ascoltatore delle modifiche fallito", e);
+                }
+        }
+
+        /**
+         * @return {@code true} se l'errore dipende dalla disponibilità del server (scadenza, connessione,
+         *         timeout) e non dalla richiesta.
+         */
+        static boolean transitorio(@NotNull Throwable t) {
+                for (Throwable c = t; c != null; c = c.getCause()) {
+                        if (c instanceof DatabaseNonDisponibile || c instanceof SQLTransientException
+                                || c instanceof SQLRecoverableException) return true;
+                        if (c instanceof SQLException sql && sql.getSQLState() != null) {
+                                String stato = sql.getSQLState();
+                                // 08 = connessione, HY008 = query annullata per timeout
+                                return stato.startsWith("08") || stato.equals("HY008");
+                        }
+                }
+                return false;
+        }
+
+        /* ===================== cache delle letture ===================== */
+
+        private List<Persona> dallaCache(RuntimeException e) {
+                if (!politica.letturaDaCache() || !transitorio(e)) return null;
+                List<Persona> out;
+                synchronized (this) {
+                        if (ultimaLettura == null) return null;
+                        out = new ArrayList<>(ultimaLettura.size());
+                        for (Persona p : ultimaLettura.values()) out.add(p.copia());
+                }
+                DALLA_CACHE.increment();
+                LOG.fine(() -> "Database non disponibile, rubrica servita dalla cache: " + e.getMessage());
+                return out;
+        }
+
+        private synchronized void ricorda(List<Persona> letti) {
+                Map<String, Persona> voci = new LinkedHashMap<>();
+                for (Persona p : letti) {
+                        if (p.getTelefono() != null) voci.put(p.getTelefono(), p.copia());
+                }
+                ultimaLettura = voci;
+        }
+
+        private synchronized void aggiornaCache(Consumer<Map<String, Persona>> modifica) {
+                if (ultimaLettura != null) modifica.accept(ultimaLettura);
+        }
+}
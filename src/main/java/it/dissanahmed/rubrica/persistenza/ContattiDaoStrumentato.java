@@ -0,0 +1,125 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.util.Istogramma;
+import it.dissanahmed.util.Metriche;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * Decoratore di {@link ContattiDao} che registra in {@link Metriche} la latenza
+ * di ogni operazione (<code>contatti.&lt;operazione&gt;</code>) e gli errori
+ * classificati per SQLSTATE.
+ */
+public class ContattiDaoStrumentato implements ContattiDao {
+
+        private static final Istogramma GET = Metriche.istogramma("contatti.getContatti");
+        private static final Istogramma SCORRI = Metriche.istogramma("contatti.scorriContatti");
+        private static final Istogramma SALVA_TUTTI = Metriche.istogramma("contatti.salvaContatti");
+        private static final Istogramma SALVA = Metriche.istogramma("contatti.salvaPersona");
+        private static final Istogramma MODIFICA = Metriche.istogramma("contatti.modificaPersona");
+        private static final Istogramma RIMUOVI = Metriche.istogramma("contatti.rimuoviPersona");
+
+        private final ContattiDao delegate;
+
+        public ContattiDaoStrumentato(@NotNull ContattiDao delegate) {
+                this.delegate = Objects.requireNonNull(delegate);
+        }
+
+        /** @return il DAO decorato. */
+        public ContattiDao getDelegate() {
+                return delegate;
+        }
+
+        @Override
+        public List<Persona> getContatti() {
+                long t0 = System.nanoTime();
+                try {
+                        return delegate.getContatti();
+                } catch (RuntimeException e) {
+                        Metriche.errore("contatti.getContatti", e);
+                        throw e;
+                } finally {
+                        GET.registra(System.nanoTime() - t0);
+                }
+        }
+
+        /* Misura l'apertura dello stream: la lettura delle righe dipende dal chiamante. */
+        @Override
+        public Stream<Persona> scorriContatti() {
+                long t0 = System.nanoTime();
+                try {
+                        return delegate.scorriContatti();
+                } catch (RuntimeException e) {
+                        Metriche.errore("contatti.scorriContatti", e);
+                        throw e;
+                } finally {
+                        SCORRI.registra(System.nanoTime() - t0);
+                }
+        }
+
+        @Override
+        public void salvaContatti(List<Persona> personaList) {
+                long t0 = System.nanoTime();
+                try {
+                        delegate.salvaContatti(personaList);
+                } catch (RuntimeException e) {
+                        Metriche.errore("contatti.salvaContatti", e);
+                        throw e;
+                } finally {
+                        SALVA_TUTTI.registra(System.nanoTime() - t0);
+                }
+        }
+
+        @Override
+        public void salvaPersona(Persona persona) {
+                long t0 = System.nanoTime();
+                try {
+                        delegate.salvaPersona(persona);
+                } catch (RuntimeException e) {
+                        Metriche.errore("contatti.salvaPersona", e);
+                        throw e;
+                } finally {
+                        SALVA.registra(System.nanoTime() - t0);
+                }
+        }
+
+        @Override
+        public void rimuoviPersona(Persona daEliminare) {
+                long t0 = System.nanoTime();
+                try {
+                        delegate.rimuoviPersona(daEliminare);
+                } catch (RuntimeException e) {
+                        Metriche.errore("contatti.rimuoviPersona", e);
+                        throw e;
+                } finally {
+                        RIMUOVI.registra(System.nanoTime() - t0);
+                }
+        }
+
+        @Override
+        public void modificaPersona(Persona daModificare, String oldTel) {
+                long t0 = System.nanoTime();
+                try {
+                        delegate.modificaPersona(daModificare, oldTel);
+                } catch (RuntimeException e) {
+                        Metriche.errore("contatti.modificaPersona", e);
+                        throw e;
+                } finally {
+                        MODIFICA.registra(System.nanoTime() - t0);
+                }
+        }
+
+        @Override
+        public void setAscoltatore(Runnable ascoltatore) {
+                delegate.setAscoltatore(ascoltatore);
+        }
+
+        @Override
+        public void close() {
+                delegate.close();
+        }
+}
@@ -0,0 +1,151 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.rubrica.Persona;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Decoratore di {@link ContattiDao} che pubblica su {@link FlussoModifiche} ogni
+ * scrittura riuscita.
+ * <p>
+ * Le scritture della stessa istanza sono serializzate, così l'ordine delle sequenze
+ * coincide con l'ordine in cui le modifiche sono state applicate. Per
+ * {@link #salvaContatti(List)} vengono pubblicate solo le voci effettivamente
+ * cambiate, confrontando con una copia delle voci tenuta aggiornata a ogni scrittura: la
+ * rubrica viene riletta dal delegato solo al primo salvataggio completo, dopo una scrittura
+ * fallita o dopo un avviso di variazione esterna. La copia è indipendente dalle voci dei
+ * chiamanti, che possono modificare sul posto le persone prima di salvarle.
+ * </p>
+ */
+public class ContattiDaoTracciato implements ContattiDao {
+
+        private final ContattiDao delegate;
+        private final @Nullable String utente;
+        private final FlussoModifiche flusso;
+
+        /** Copie delle voci dopo l'ultima scrittura, per telefono; {@code null} se da rileggere. */
+        private Map<String, Persona> voci;
+        /** Valore di {@link #epoca} all'inizio della scrittura che ha prodotto {@link #voci}. */
+        private long epocaVoci;
+        /** Incrementata a ogni variazione esterna: le copie prese prima non valgono più. */
+        private final AtomicLong epoca = new AtomicLong();
+
+        public ContattiDaoTracciato(@NotNull ContattiDao delegate, @Nullable String utente, @NotNull FlussoModifiche flusso) {
+                this.delegate = Objects.requireNonNull(delegate);
+                this.utente = utente;
+                this.flusso = Objects.requireNonNull(flusso);
+        }
+
+        @Override
+        public List<Persona> getContatti() {
+                return delegate.getContatti();
+        }
+
+        @Override
+        public Stream<Persona> scorriContatti() {
+                return delegate.scorriContatti();
+        }
+
+        @Override
+        public synchronized void salvaContatti(List<Persona> personaList) {
+                long inizio = epoca.get();
+                Map<String, Persona> prima = prendiVoci(inizio);
+                if (prima == null) prima = copie(delegate.getContatti());
+                delegate.salvaContatti(personaList);
+                Map<String, Persona> dopo = copie(personaList == null ? List.of() : personaList);
+                for (Persona p : dopo.values()) {
+                        if (!p.stessiDati(prima.get(p.getTelefono())))
+                                flusso.pubblica(utente, Modifica.Tipo.INSERIMENTO, p.getTelefono(), null, p.copia());
+                }
+                for (String tel : prima.keySet()) {
+                        if (!dopo.containsKey(tel)) flusso.pubblica(utente, Modifica.Tipo.ELIMINAZIONE, tel, null, null);
+                }
+                conserva(inizio, dopo);
+        }
+
+        @Override
+        public synchronized void salvaPersona(Persona persona) {
+                long inizio = epoca.get();
+                Map<String, Persona> attuali = prendiVoci(inizio);
+                delegate.salvaPersona(persona);
+                Persona copia = persona.copia();
+                flusso.pubblica(utente, Modifica.Tipo.INSERIMENTO, persona.getTelefono(), null, copia);
+                if (attuali != null) {
+                        attuali.put(copia.getTelefono(), copia);
+                        conserva(inizio, attuali);
+                }
+        }
+
+        @Override
+        public synchronized void rimuoviPersona(Persona daEliminare) {
+                long inizio = epoca.get();
+                Map<String, Persona> attuali = prendiVoci(inizio);
+                delegate.rimuoviPersona(daEliminare);
+                flusso.pubblica(utente, Modifica.Tipo.ELIMINAZIONE, daEliminare.getTelefono(), null, null);
+                if (attuali != null) {
+                        attuali.remove(daEliminare.getTelefono());
+                        conserva(inizio, attuali);
+                }
+        }
+
+        @Override
+        public synchronized void modificaPersona(Persona daModificare, String oldTel) {
+                long inizio = epoca.get();
+                Map<String, Persona> attuali = prendiVoci(inizio);
+                delegate.modificaPersona(daModificare, oldTel);
+                Persona copia = daModificare.copia();
+                flusso.pubblica(utente, Modifica.Tipo.MODIFICA, daModificare.getTelefono(), oldTel, copia);
+                if (attuali != null) {
+                        attuali.remove(oldTel);
+                        attuali.put(copia.getTelefono(), copia);
+                        conserva(inizio, attuali);
+                }
+        }
+
+        /*
+         * La copia passa alla scrittura e resta a null finché questa non riesce: se il delegato
+         * fallisce va riletta. Una copia presa prima di una variazione esterna non vale più.
+         */
+        private Map<String, Persona> prendiVoci(long adesso) {
+                Map<String, Persona> out = epocaVoci == adesso ? voci : null;
+                voci = null;
+                return out;
+        }
+
+        private void conserva(long inizio, Map<String, Persona> dopo) {
+                voci = dopo;
+                epocaVoci = inizio;
+        }
+
+        @Override
+        public void setAscoltatore(Runnable ascoltatore) {
+                // le voci sono cambiate senza passare di qui: la copia va riletta al prossimo salvataggio
+                delegate.setAscoltatore(() -> {
+                        invalida();
+                        if (ascoltatore != null) ascoltatore.run();
+                });
+        }
+
+        /* Senza lock: l'ascoltatore non attende una scrittura in corso, la cui copia resta comunque scartata. */
+        private void invalida() {
+                epoca.incrementAndGet();
+        }
+
+        @Override
+        public void close() {
+                delegate.close();
+        }
+
+        /* Le Persona sono mutabili: la copia delle voci e gli eventi non devono condividerle con i chiamanti. */
+        private static Map<String, Persona> copie(List<Persona> persone) {
+                Map<String, Persona> out = Persona.perTelefono(persone);
+                out.replaceAll((tel, p) -> p.copia());
+                return out;
+        }
+}
@@ -2,33 +2,96 @@ package it.dissanahmed.rubrica.persistenza;
 
 import it.dissanahmed.login.persistenza.LoginDaoDBMS;
 import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.rubrica.ex.ConflittoVersione;
+import it.dissanahmed.util.Json;
+import it.dissanahmed.util.Metriche;
+import it.dissanahmed.util.jfr.ChiamataDbEvent;
+import it.dissanahmed.util.jfr.ConnessioneDbEvent;
 import org.jetbrains.annotations.NotNull;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
- * Implementazione DBMS di ContattiDao che dialoga con MySQL/MariaDB
+ * Implementazione DBMS di ContattiDao che dialoga con MySQL 8 (JSON_TABLE in sp_salva_rubrica)
  * tramite stored procedure protette da token (sessione).
  *
  * SP usate:
- *  - sp_get_rubrica(IN p_token)
- *  - sp_inserisci_persona(IN p_token, IN nome, cognome, indirizzo, telefono, eta)
- *  - sp_modifica_persona(IN p_token, IN telefono, IN nome, cognome, indirizzo, eta)
+ *  - sp_get_rubrica(IN p_token)                      -> righe con l'id stabile della voce
+ *  - sp_inserisci_persona(IN p_token, IN nome, cognome, indirizzo, telefono, eta, OUT version)
+ *  - sp_modifica_persona(IN p_token, IN old_tel, IN new_tel, IN nome, cognome, indirizzo, eta,
+ *                        IN version, OUT nuova_version)
  *  - sp_elimina_persona(IN p_token, IN telefono)
+ *  - sp_salva_rubrica(IN p_token, IN persone JSON)
+ *  - sp_modifiche_rubrica(IN p_token, IN da_seq, OUT ultima_seq, OUT completa)
+ *  - sp_bind_session(IN p_token), sp_unbind_session(IN p_token)
+ *
+ * Con db.session.bound=true viene mantenuta una connessione dedicata su cui il token
+ * è validato una sola volta (sp_bind_session): le SP successive risolvono l'utente
+ * dal binding della connessione invece che da LoginSession. Il binding è sciolto
+ * (sp_unbind_session) prima di chiudere la connessione: dopo un cambio di token, una
+ * sessione scaduta, una connessione non più valida e in {@link #close()}.
+ *
+ * Ogni connessione e ogni chiamata hanno un limite di tempo: <code>db.timeout.connessioneMs</code>
+ * (default 5000) e <code>db.timeout.socketMs</code> (default 60000) sono passati al driver come
+ * <code>connectTimeout</code> e <code>socketTimeout</code>, <code>db.timeout.queryMs</code>
+ * (default 30000) diventa il query timeout degli statement; 0 disattiva il limite. Scadenze per
+ * operazione, nuovi tentativi e interruttore sono in {@link ContattiDaoResiliente}.
+ *
+ * Le modifiche sono compare-and-set sulla versione letta ({@link Persona#getVersione()}):
+ * se la voce è cambiata nel frattempo la SP risponde 45013 e il DAO lancia
+ * {@link ConflittoVersione}, senza attendere lock. Le modifiche condizionate e i
+ * conflitti sono esposti dalla sonda <code>contattiDbms.concorrenza</code>.
  */
-public class ContattiDbms implements ContattiDao {
+public class ContattiDbms implements ContattiSincronizzabili {
+
+        /** Fotografia delle modifiche condizionate alla versione. */
+        public record Concorrenza(long modifiche, long conflitti) {
+                public double tassoConflitti() {
+                        return modifiche == 0 ? 0 : (double) conflitti / modifiche;
+                }
+        }
+
+        private static final Logger LOG = Logger.getLogger(ContattiDbms.class.getName());
+        private static final LongAdder MODIFICHE = new LongAdder();
+        private static final LongAdder CONFLITTI = new LongAdder();
+
+        static {
+                Metriche.registraSonda("contattiDbms.concorrenza", ContattiDbms::concorrenza);
+        }
 
         private final String url;
         private final String user;         // utente DB: LOGGED
         private final String password;     // password DB
         private final String usernameApp;  // username applicativo (per cercare il token)
+        private final boolean sessioneVincolata;
+        private final Properties proprietaConnessione;
+        private final int queryTimeoutSecondi;
+
+        private Connection connessioneVincolata;  // solo con sessioneVincolata, protetta da this
+        private String tokenVincolato;
 
         public ContattiDbms(@NotNull Properties props, String usernameApp) {
                 this.url = req(props, "db.url");
                 this.user = req(props, "db.user.logged", props.getProperty("db.user"));
                 this.password = req(props, "db.pass.logged", props.getProperty("db.password"));
                 this.usernameApp = Objects.requireNonNull(usernameApp, "username applicativo nullo");
+                this.sessioneVincolata = Boolean.parseBoolean(props.getProperty("db.session.bound", "false").trim());
+                this.proprietaConnessione = new Properties();
+                proprietaConnessione.setProperty("user", user);
+                proprietaConnessione.setProperty("password", password);
+                long connessioneMs = Long.parseLong(props.getProperty("db.timeout.connessioneMs", "5000").trim());
+                long socketMs = Long.parseLong(props.getProperty("db.timeout.socketMs", "60000").trim());
+                if (connessioneMs > 0) proprietaConnessione.setProperty("connectTimeout", String.valueOf(connessioneMs));
+                if (socketMs > 0) proprietaConnessione.setProperty("socketTimeout", String.valueOf(socketMs));
+                long queryMs = Long.parseLong(props.getProperty("db.timeout.queryMs", "30000").trim());
+                // il query timeout JDBC è in secondi: arrotondato per eccesso, 0 = nessun limite
+                this.queryTimeoutSecondi = (int) Math.min(Integer.MAX_VALUE, (Math.max(0, queryMs) + 999) / 1000);
         }
 
 
@@ -43,6 +106,11 @@ public class ContattiDbms implements ContattiDao {
                 return v;
         }
 
+        /** @return modifiche condizionate e conflitti dall'avvio del processo. */
+        public static Concorrenza concorrenza() {
+                return new Concorrenza(MODIFICHE.sum(), CONFLITTI.sum());
+        }
+
         private String token() {
                 String t = LoginDaoDBMS.TOKEN_REGISTRY.get(usernameApp);
                 if (t == null || t.isBlank()) {
@@ -52,90 +120,335 @@ public class ContattiDbms implements ContattiDao {
         }
 
         private Connection conn() throws SQLException {
-                return DriverManager.getConnection(url, user, password);
+                ConnessioneDbEvent ev = new ConnessioneDbEvent();
+                ev.begin();
+                try {
+                        return DriverManager.getConnection(url, proprietaConnessione);
+                } catch (SQLException ex) {
+                        ev.sqlState = ex.getSQLState();
+                        throw ex;
+                } finally {
+                        if (ev.shouldCommit()) {
+                                ev.utenteDb = user;
+                                ev.commit();
+                        }
+                }
+        }
+
+        @FunctionalInterface
+        private interface Chiamata<T> {
+                T esegui(CallableStatement cs) throws SQLException;
+        }
+
+        /**
+         * Esegue una chiamata a SP: su una connessione nuova, oppure sulla connessione
+         * vincolata alla sessione se {@code db.session.bound} è attivo.
+         */
+        private <T> T chiama(String sql, Chiamata<T> chiamata) throws SQLException {
+                ChiamataDbEvent ev = new ChiamataDbEvent();
+                ev.begin();
+                T risultato = null;
+                try {
+                        risultato = eseguiChiamata(sql, chiamata);
+                        return risultato;
+                } catch (SQLException ex) {
+                        ev.sqlState = ex.getSQLState();
+                        throw ex;
+                } finally {
+                        if (ev.shouldCommit()) {
+                                ev.chiamata = sql;
+                                ev.vincolata = sessioneVincolata;
+                                if (risultato instanceof Collection<?> righe) ev.righe = righe.size();
+                                ev.commit();
+                        }
+                }
+        }
+
+        private <T> T eseguiChiamata(String sql, Chiamata<T> chiamata) throws SQLException {
+                if (!sessioneVincolata) {
+                        try (Connection c = conn();
+                             CallableStatement cs = prepara(c, sql)) {
+                                return chiamata.esegui(cs);
+                        }
+                }
+                synchronized (this) {
+                        Connection c = connessioneVincolata(token());
+                        try (CallableStatement cs = prepara(c, sql)) {
+                                return chiamata.esegui(cs);
+                        } catch (SQLException ex) {
+                                if ("45010".equals(ex.getSQLState()) || !valida(c)) chiudiConnessioneVincolata();
+                                throw ex;
+                        }
+                }
+        }
+
+        private CallableStatement prepara(Connection c, String sql) throws SQLException {
+                CallableStatement cs = c.prepareCall(sql);
+                if (queryTimeoutSecondi > 0) cs.setQueryTimeout(queryTimeoutSecondi);
+                return cs;
+        }
+
+        private Connection connessioneVincolata(String token) throws SQLException {
+                if (connessioneVincolata != null && token.equals(tokenVincolato) && !connessioneVincolata.isClosed()) {
+                        return connessioneVincolata;
+                }
+                chiudiConnessioneVincolata();
+                Connection c = conn();
+                try (CallableStatement cs = prepara(c, "{ call sp_bind_session(?) }")) {
+                        cs.setString(1, token);
+                        cs.execute();
+                } catch (SQLException ex) {
+                        c.close();
+                        throw ex;
+                }
+                connessioneVincolata = c;
+                tokenVincolato = token;
+                return c;
+        }
+
+        /* isValid può fallire a sua volta: non deve nascondere l'errore della chiamata. */
+        private static boolean valida(Connection c) {
+                try {
+                        return c.isValid(1);
+                } catch (SQLException ex) {
+                        return false;
+                }
+        }
+
+        private void chiudiConnessioneVincolata() {
+                if (connessioneVincolata == null) return;
+                Connection c = connessioneVincolata;
+                String token = tokenVincolato;
+                connessioneVincolata = null;
+                tokenVincolato = null;
+                if (valida(c)) {
+                        try (CallableStatement cs = prepara(c, "{ call sp_unbind_session(?) }")) {
+                                cs.setString(1, token);
+                                cs.execute();
+                        } catch (SQLException ex) {
+                                // il binding resta fino alla scadenza del token, poi ev_purge_expired_tokens lo rimuove
+                                LOG.fine(() -> "sp_unbind_session non riuscita: " + ex.getMessage());
+                        }
+                }
+                chiudi(c);
+        }
+
+        /** Scioglie il binding della sessione e chiude la connessione vincolata, se presente. */
+        @Override
+        public synchronized void close() {
+                chiudiConnessioneVincolata();
         }
 
         @Override
         public List<Persona> getContatti() {
                 String sql = "{ call sp_get_rubrica(?) }";
                 List<Persona> out = new ArrayList<>();
-                try (Connection c = conn();
-                     CallableStatement cs = c.prepareCall(sql)) {
-                        cs.setString(1, token());
-                        try (ResultSet rs = cs.executeQuery()) {
-                                while (rs.next()) {
-                                        String nome = rs.getString("nome");
-                                        String cognome = rs.getString("cognome");
-                                        String indirizzo = rs.getString("indirizzo");
-                                        String telefono = rs.getString("telefono");
-                                        int eta = rs.getInt("eta");
-                                        out.add(new Persona(nome, cognome, indirizzo, telefono, eta));
+                try {
+                        chiama(sql, cs -> {
+                                cs.setString(1, token());
+                                try (ResultSet rs = cs.executeQuery()) {
+                                        while (rs.next()) out.add(persona(rs));
                                 }
-                        }
+                                return out;
+                        });
                 } catch (SQLException ex) {
                         handleSqlException(ex, "Errore getContatti");
                 }
                 return out;
         }
 
+        /**
+         * {@inheritDoc}
+         * <p>
+         * Le righe di <code>sp_get_rubrica</code> vengono lette dal server man mano che lo stream
+         * avanza invece di essere accumulate dal driver: il driver MySQL riceve il result set in
+         * streaming, una riga alla volta dal buffer del socket. Il fetch a blocchi con cursore
+         * lato server (<code>useCursorFetch</code>) non si applica ai result set di una
+         * <code>CALL</code>, quindi non è configurabile.
+         * Lo stream usa una connessione propria, anche con <code>db.session.bound</code>, occupata
+         * finché lo stream non è chiuso o letto fino in fondo; nel frattempo il server tiene
+         * aperta la lettura.
+         * </p>
+         */
         @Override
-        public void salvaContatti(List<Persona> personaList) {
+        public Stream<Persona> scorriContatti() {
+                String sql = "{ call sp_get_rubrica(?) }";
+                ChiamataDbEvent ev = new ChiamataDbEvent();
+                ev.begin();
+                Connection c = null;
+                try {
+                        c = conn();
+                        CallableStatement cs = c.prepareCall(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                        // Integer.MIN_VALUE: result set in streaming nel driver MySQL
+                        cs.setFetchSize(Integer.MIN_VALUE);
+                        if (queryTimeoutSecondi > 0) cs.setQueryTimeout(queryTimeoutSecondi);
+                        cs.setString(1, token());
+                        Cursore cursore = new Cursore(c, cs.executeQuery(), ev, sql);
+                        return StreamSupport.stream(cursore, false).onClose(cursore::chiudi);
+                } catch (SQLException ex) {
+                        chiudi(c);
+                        ev.sqlState = ex.getSQLState();
+                        if (ev.shouldCommit()) {
+                                ev.chiamata = sql;
+                                ev.commit();
+                        }
+                        handleSqlException(ex, "Errore scorriContatti");
+                        return Stream.empty();
+                } catch (RuntimeException ex) {
+                        chiudi(c);
+                        throw ex;
+                }
+        }
 
-                List<Persona> nuovi = personaList == null ? Collections.emptyList() : new ArrayList<>(personaList);
-                List<Persona> attuali = getContatti();
+        /* Le righe di un result set come Spliterator; la connessione si chiude con lo stream. */
+        private final class Cursore extends Spliterators.AbstractSpliterator<Persona> {
+
+                private final Connection connessione;
+                private final ResultSet rs;
+                private final ChiamataDbEvent ev;
+                private final String sql;
+                private int righe;
+                private boolean chiuso;
 
-                Map<String, Persona> byTelNuovi = indexByTel(nuovi);
-                Map<String, Persona> byTelAttuali = indexByTel(attuali);
+                Cursore(Connection connessione, ResultSet rs, ChiamataDbEvent ev, String sql) {
+                        super(Long.MAX_VALUE, ORDERED | NONNULL);
+                        this.connessione = connessione;
+                        this.rs = rs;
+                        this.ev = ev;
+                        this.sql = sql;
+                }
 
-                for (Persona p : nuovi) {
-                        salvaPersona(p);
+                @Override
+                public boolean tryAdvance(Consumer<? super Persona> azione) {
+                        if (chiuso) return false;
+                        try {
+                                if (!rs.next()) {
+                                        chiudi();
+                                        return false;
+                                }
+                                azione.accept(persona(rs));
+                                righe++;
+                                return true;
+                        } catch (SQLException ex) {
+                                ev.sqlState = ex.getSQLState();
+                                chiudi();
+                                handleSqlException(ex, "Errore scorriContatti");
+                                return false;
+                        }
                 }
 
-                // elimina quelli non presenti più nella lista
-                for (String tel : byTelAttuali.keySet()) {
-                        if (!byTelNuovi.containsKey(tel)) {
-                                rimuoviPersona(byTelAttuali.get(tel));
+                void chiudi() {
+                        if (chiuso) return;
+                        chiuso = true;
+                        // chiudere la connessione chiude anche statement e result set
+                        ContattiDbms.chiudi(connessione);
+                        if (ev.shouldCommit()) {
+                                ev.chiamata = sql;
+                                ev.righe = righe;
+                                ev.commit();
                         }
                 }
         }
 
+        private static void chiudi(Connection c) {
+                if (c == null) return;
+                try {
+                        c.close();
+                } catch (SQLException ignored) {
+                        // ignored
+                }
+        }
+
+        private static Persona persona(ResultSet rs) throws SQLException {
+                Persona p = new Persona(rs.getString("nome"), rs.getString("cognome"), rs.getString("indirizzo"),
+                        rs.getString("telefono"), rs.getInt("eta"));
+                p.setVersione(rs.getLong("version"));
+                p.setId(rs.getString("id"));
+                return p;
+        }
+
+        @Override
+        public void salvaContatti(List<Persona> personaList) {
+
+                List<Persona> nuovi = personaList == null ? Collections.emptyList() : new ArrayList<>(personaList);
+
+                // una sola chiamata (e un solo controllo del token) per l'intera rubrica
+                String sql = "{ call sp_salva_rubrica(?, ?) }";
+                try {
+                        chiama(sql, cs -> {
+                                cs.setString(1, token());
+                                cs.setString(2, toJson(indexByTel(nuovi).values()));
+                                cs.execute();
+                                return null;
+                        });
+                } catch (SQLException ex) {
+                        handleSqlException(ex, "Errore salvaContatti");
+                }
+        }
+
         @Override
         public void salvaPersona(Persona persona) {
                 if (persona == null || persona.getTelefono() == null)
                         throw new IllegalArgumentException("Persona o telefono null");
 
-                String sql = "{ call sp_inserisci_persona(?, ?, ?, ?, ?, ?) }";
-                try (Connection c = conn();
-                     CallableStatement cs = c.prepareCall(sql)) {
-                        cs.setString(1, token());
-                        cs.setString(2, persona.getNome());
-                        cs.setString(3, persona.getCognome());
-                        cs.setString(4, persona.getIndirizzo());
-                        cs.setString(5, persona.getTelefono());
-                        cs.setInt(6, persona.getEta());
-                        cs.execute();
+                String sql = "{ call sp_inserisci_persona(?, ?, ?, ?, ?, ?, ?) }";
+                try {
+                        long versione = chiama(sql, cs -> {
+                                cs.setString(1, token());
+                                cs.setString(2, persona.getNome());
+                                cs.setString(3, persona.getCognome());
+                                cs.setString(4, persona.getIndirizzo());
+                                cs.setString(5, persona.getTelefono());
+                                cs.setInt(6, persona.getEta());
+                                cs.registerOutParameter(7, Types.BIGINT);
+                                cs.execute();
+                                return cs.getLong(7);
+                        });
+                        persona.setVersione(versione);
                 } catch (SQLException ex) {
                         handleSqlException(ex, "Errore salvaPersona");
                 }
         }
 
+        /**
+         * {@inheritDoc}
+         * <p>
+         * Se {@code daModificare} porta una versione (letta da {@link #getContatti()} o
+         * restituita da una scrittura precedente) la modifica è applicata solo se la voce
+         * è ancora a quella versione; in caso di successo la persona riceve la nuova versione.
+         * </p>
+         *
+         * @throws ConflittoVersione se la voce è stata modificata o eliminata da un altro client.
+         */
         @Override
         public void modificaPersona(Persona daModificare, String oldTel) {
                 if (daModificare == null || daModificare.getTelefono() == null)
                         throw new IllegalArgumentException("Persona o telefono null");
 
-                String sql = "{ call sp_modifica_persona(?, ?, ?, ?, ?, ?, ?) }";
-                try (Connection c = conn();
-                     CallableStatement cs = c.prepareCall(sql)) {
-                        cs.setString(1, token());
-                        cs.setString(2, oldTel);
-                        cs.setString(3, daModificare.getTelefono());
-                        cs.setString(4, daModificare.getNome());
-                        cs.setString(5, daModificare.getCognome());
-                        cs.setString(6, daModificare.getIndirizzo());
-                        cs.setInt(7, daModificare.getEta());
-                        cs.execute();
+                long attesa = daModificare.getVersione();
+                if (attesa > 0) MODIFICHE.increment();
+                String sql = "{ call sp_modifica_persona(?, ?, ?, ?, ?, ?, ?, ?, ?) }";
+                try {
+                        long versione = chiama(sql, cs -> {
+                                cs.setString(1, token());
+                                cs.setString(2, oldTel);
+                                cs.setString(3, daModificare.getTelefono());
+                                cs.setString(4, daModificare.getNome());
+                                cs.setString(5, daModificare.getCognome());
+                                cs.setString(6, daModificare.getIndirizzo());
+                                cs.setInt(7, daModificare.getEta());
+                                if (attesa > 0) cs.setLong(8, attesa);
+                                else cs.setNull(8, Types.BIGINT);
+                                cs.registerOutParameter(9, Types.BIGINT);
+                                cs.execute();
+                                return cs.getLong(9);
+                        });
+                        daModificare.setVersione(versione);
                 } catch (SQLException ex) {
+                        if ("45013".equals(ex.getSQLState())) {
+                                CONFLITTI.increment();
+                                throw new ConflittoVersione(oldTel, attesa, ex);
+                        }
                         if ("45011".equals(ex.getSQLState())) {
                                 throw new RuntimeException("Voce non trovata nella tua rubrica (tel=" + daModificare.getTelefono() + ")", ex);
                         }
@@ -149,16 +462,55 @@ public class ContattiDbms implements ContattiDao {
                         throw new IllegalArgumentException("Persona o telefono null");
 
                 String sql = "{ call sp_elimina_persona(?, ?) }";
-                try (Connection c = conn();
-                     CallableStatement cs = c.prepareCall(sql)) {
-                        cs.setString(1, token());
-                        cs.setString(2, daEliminare.getTelefono());
-                        cs.execute();
+                try {
+                        chiama(sql, cs -> {
+                                cs.setString(1, token());
+                                cs.setString(2, daEliminare.getTelefono());
+                                return cs.execute();
+                        });
                 } catch (SQLException ex) {
                         handleSqlException(ex, "Errore rimuoviPersona");
                 }
         }
 
+        @Override
+        public Variazioni variazioniDa(long daSequenza) {
+                String sql = "{ call sp_modifiche_rubrica(?, ?, ?, ?) }";
+                try {
+                        return chiama(sql, cs -> {
+                                cs.setString(1, token());
+                                if (daSequenza > 0) cs.setLong(2, daSequenza);
+                                else cs.setNull(2, Types.BIGINT);
+                                cs.registerOutParameter(3, Types.BIGINT);
+                                cs.registerOutParameter(4, Types.BOOLEAN);
+                                List<Variazione> voci = new ArrayList<>();
+                                // i parametri OUT sono disponibili solo dopo aver letto il result set
+                                if (cs.execute()) {
+                                        try (ResultSet rs = cs.getResultSet()) {
+                                                while (rs.next()) voci.add(variazione(rs));
+                                        }
+                                }
+                                while (cs.getMoreResults() || cs.getUpdateCount() != -1) {
+                                        // consuma i risultati restanti
+                                }
+                                return new Variazioni(cs.getLong(3), cs.getBoolean(4), voci);
+                        });
+                } catch (SQLException ex) {
+                        handleSqlException(ex, "Errore variazioniDa");
+                        return null;
+                }
+        }
+
+        private static Variazione variazione(ResultSet rs) throws SQLException {
+                String telefono = rs.getString("telefono");
+                long seq = rs.getLong("seq");
+                if (rs.getBoolean("eliminata")) return new Variazione(seq, telefono, null);
+                Persona p = new Persona(rs.getString("nome"), rs.getString("cognome"), rs.getString("indirizzo"),
+                        telefono, rs.getInt("eta"));
+                p.setVersione(rs.getLong("version"));
+                return new Variazione(seq, telefono, p);
+        }
+
         /* ===================== helpers ===================== */
 
         private static Map<String, Persona> indexByTel(List<Persona> list) {
@@ -169,6 +521,20 @@ public class ContattiDbms implements ContattiDao {
                 return map;
         }
 
+        private static String toJson(Collection<Persona> persone) {
+                StringBuilder sb = new StringBuilder("[");
+                for (Persona p : persone) {
+                        if (sb.length() > 1) sb.append(',');
+                        sb.append("{\"nome\":").append(Json.stringa(p.getNome()))
+                                .append(",\"cognome\":").append(Json.stringa(p.getCognome()))
+                                .append(",\"indirizzo\":").append(Json.stringa(p.getIndirizzo()))
+                                .append(",\"telefono\":").append(Json.stringa(p.getTelefono()))
+                                .append(",\"eta\":").append(p.getEta())
+                                .append('}');
+                }
+                return sb.append(']').toString();
+        }
+
         private void handleSqlException(SQLException ex, String prefix) {
                 // 45010 = sessione non valida/scaduta
                 if ("45010".equals(ex.getSQLState())) {
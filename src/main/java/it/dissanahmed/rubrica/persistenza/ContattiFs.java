@@ -1,6 +1,10 @@
 package it.dissanahmed.rubrica.persistenza;
 
 import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.util.Metriche;
+import it.dissanahmed.util.Ulid;
+import it.dissanahmed.util.jfr.ScansioneContattiEvent;
+import it.dissanahmed.util.jfr.ScritturaContattiEvent;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -9,22 +13,69 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Pattern;
-
+import java.util.stream.Stream;
+
+/**
+ * Implementazione di {@link ContattiDao} su file system.
+ * <p>
+ * In modalità multiutente ogni contatto è un file <code>&lt;id&gt;.txt</code>, dove <i>id</i> è
+ * l'{@linkplain Persona#getId() identificativo} ULID assegnato al primo salvataggio: modificare
+ * una voce, anche il telefono, riscrive lo stesso file. Il telefono resta univoco nella rubrica
+ * attraverso un indice in memoria costruito con la cache e, fra processi diversi sulla stessa
+ * cartella, attraverso <code>.telefoni/</code>: un file per telefono, creato in modo esclusivo, con
+ * l'identificativo della voce che lo usa. Chi salva un telefono già prenotato da un altro processo
+ * riscrive quella voce invece di crearne un doppione. L'identificativo vale solo per questa
+ * rubrica: quello ricevuto con la persona viene sempre sostituito.
+ * I file scritti prima, con nome <code>nome-cognome-telefono.txt</code>, vengono rinominati al
+ * primo caricamento con un identificativo ricavato dal telefono.
+ * In modalità singola tutti i contatti sono righe di <code>informazioni.txt</code>.
+ * </p>
+ */
 public class ContattiFs implements ContattiDao {
 
+        private static final Logger LOG = Logger.getLogger(ContattiFs.class.getName());
+
+        /** Attesa senza nuovi eventi prima di applicare un gruppo di modifiche. */
+        private static final long DEBOUNCE_MS = 50;
+        /** Attesa massima durante una raffica continua di eventi. */
+        private static final long DEBOUNCE_MAX_MS = 500;
+
+        private static final LongAdder CACHE_HIT = Metriche.contatore("contattiFs.cache.hit");
+        private static final LongAdder CACHE_MISS = Metriche.contatore("contattiFs.cache.miss");
+
         private static final String EXT = ".txt";
         private static final String SEP = ";";
         private static final Charset CHARSET = StandardCharsets.UTF_8;
         private static final String NL = System.lineSeparator();
         private static final String INFORMATION = "informazioni.txt";
         private static final String INFO_FILE = "info.txt";
+        /** Cartella dell'indice dei telefoni, dentro la cartella utente. */
+        private static final String TELEFONI = ".telefoni";
+        private static final Base64.Encoder CHIAVE_TELEFONO = Base64.getUrlEncoder().withoutPadding();
 
         private final Path baseDir;
         private final @Nullable String username;
+        private final LayoutCartelle layout;
 
         private List<Persona> localCache;
+        /** Indice della cache per telefono, aggiornato insieme a {@link #localCache}. */
+        private final Map<String, Persona> perTelefono = new HashMap<>();
         private boolean enableCleanup = false;
+        private boolean migrato;
+
+        private final boolean watch;
+        private final ScritturaDurevole scrittore;
+        /** Operazioni non ancora durevoli del thread corrente, attese fuori dal lock. */
+        private final ThreadLocal<List<CompletableFuture<Void>>> commitInSospeso = ThreadLocal.withInitial(ArrayList::new);
+        private WatchService watchService;
+        private Thread watcher;
+        private volatile Runnable ascoltatore;
 
         /**
          * Costruttore principale che consente di specificare la directory base
@@ -35,6 +86,37 @@ public class ContattiFs implements ContattiDao {
          *                 abilita la modalità multiutente.
          */
         public ContattiFs(@NotNull Path baseDir, @Nullable String username) {
+                this(baseDir, username, false);
+        }
+
+        /**
+         * Come {@link #ContattiFs(Path, String)}, con la possibilità di osservare la cartella
+         * dell'utente: le modifiche fatte da altri processi vengono applicate alla cache
+         * rileggendo solo i file coinvolti.
+         *
+         * @param baseDir  la directory base di salvataggio.
+         * @param username il nome utente (può essere {@code null}).
+         * @param watch    se {@code true} avvia un {@link WatchService} sulla cartella dopo il primo caricamento.
+         */
+        public ContattiFs(@NotNull Path baseDir, @Nullable String username, boolean watch) {
+                this(baseDir, username, watch, ScritturaDurevole.get(ScritturaDurevole.Durabilita.BATCH, 2));
+        }
+
+        ContattiFs(@NotNull Path baseDir, @Nullable String username, boolean watch, @NotNull ScritturaDurevole scrittore) {
+                this(baseDir, username, watch, scrittore, LayoutCartelle.PIATTO);
+        }
+
+        /**
+         * @param layout disposizione delle cartelle utente e dei file contatto; se non piatta,
+         *               i contatti ancora nella disposizione precedente vengono spostati al
+         *               primo caricamento (vedi {@link MigrazioneLayout}); con i file contatto in
+         *               sottocartelle {@code watch} è ignorato.
+         */
+        ContattiFs(@NotNull Path baseDir, @Nullable String username, boolean watch, @NotNull ScritturaDurevole scrittore,
+                   @NotNull LayoutCartelle layout) {
+                this.layout = Objects.requireNonNull(layout);
+                this.scrittore = Objects.requireNonNull(scrittore);
+                this.watch = watch;
                 this.baseDir = Objects.requireNonNull(baseDir);
                 if (username != null) {
                         this.enableCleanup = true;
@@ -54,11 +136,47 @@ public class ContattiFs implements ContattiDao {
          */
         @Override
         public synchronized List<Persona> getContatti() {
-                if (localCache != null) return new ArrayList<>(localCache);
-                localCache = readAllFromUserDir();
-                System.out.println(baseDir.toString());
+                caricaCache();
                 return new ArrayList<>(localCache);
         }
+
+        /**
+         * {@inheritDoc}
+         * <p>
+         * Se la cache è già caricata scorre una sua copia. Altrimenti legge i file man mano che lo
+         * stream avanza, senza popolare la cache né avviare l'osservazione della cartella: la cartella
+         * utente è percorsa in modo lazy fino alla profondità del layout e ogni file contatto è letto
+         * solo quando serve; in modalità singola il file unico è letto riga per riga. Le scritture
+         * concorrenti possono essere viste o no, come in ogni scansione di cartella; i file spariti
+         * nel frattempo vengono saltati.
+         * </p>
+         */
+        @Override
+        public Stream<Persona> scorriContatti() {
+                synchronized (this) {
+                        if (localCache != null) {
+                                CACHE_HIT.increment();
+                                return new ArrayList<>(localCache).stream();
+                        }
+                        migraSeServe();
+                }
+                Path dir = resolveUserDir();
+                try {
+                        if (username == null) {
+                                Path file = dir.resolve(INFORMATION);
+                                if (!Files.exists(file)) return Stream.empty();
+                                return Files.lines(file, CHARSET).map(this::rigaSingola).filter(Objects::nonNull);
+                        }
+                        if (!Files.isDirectory(dir)) return Stream.empty();
+                        int profondita = layout.getLivelliContatti() + 1;
+                        return Files.walk(dir, profondita)
+                                .filter(p -> dir.relativize(p).getNameCount() == profondita && isFileContatto(p))
+                                .map(this::readPersonaFile)
+                                .filter(Objects::nonNull);
+                } catch (IOException e) {
+                        throw new RuntimeException("Errore durante la scansione dei contatti: " + e.getMessage(), e);
+                }
+        }
         /**
          * Salva un’intera lista di contatti sul file system.
          * <p>
@@ -69,33 +187,42 @@ public class ContattiFs implements ContattiDao {
          * @param personaList la lista di persone da salvare.
          */
         @Override
-        public synchronized void salvaContatti(List<Persona> personaList) {
-                if (username == null) {
-                        writeAllToSingleFile(personaList);
-                        localCache = new ArrayList<>(personaList);
-                        return;
+        public void salvaContatti(List<Persona> personaList) {
+                try {
+                        salvaContattiInterno(personaList);
+                } catch (RuntimeException e) {
+                        commitInSospeso.get().clear();
+                        throw e;
                 }
+                attendiCommit();
+        }
 
+        private synchronized void salvaContattiInterno(List<Persona> personaList) {
                 List<Persona> nuovaLista = personaList == null ? Collections.emptyList() : new ArrayList<>(personaList);
                 ensureUserDirExists();
 
-                if (localCache == null) localCache = readAllFromUserDir();
+                caricaCache();
 
                 Map<String, Persona> attuali = indexByTelefono(localCache);
                 Map<String, Persona> nuovi = indexByTelefono(nuovaLista);
+                for (Persona p : nuovi.values()) p.setId(idPer(p.getTelefono()));
 
-                for (Map.Entry<String, Persona> e : nuovi.entrySet()) {
-                        String tel = e.getKey();
-                        Persona pNuova = e.getValue();
-                        Persona pAttuale = attuali.get(tel);
-                        upsertPersonaFile(pAttuale, pNuova);
+                if (username == null) {
+                        writeAllToSingleFile(nuovaLista);
+                        impostaCache(nuovaLista);
+                        return;
                 }
 
+                for (Persona p : nuovi.values()) scriviPersonaFile(p);
+
                 for (String tel : attuali.keySet()) {
-                        if (!nuovi.containsKey(tel)) doRimuoviPersonaDalFile(attuali.get(tel));
+                        if (nuovi.containsKey(tel)) continue;
+                        Persona tolta = attuali.get(tel);
+                        doRimuoviPersonaDalFile(tolta);
+                        rilasciaTelefono(tel, tolta.getId());
                 }
 
-                localCache = new ArrayList<>(nuovaLista);
+                impostaCache(nuovaLista);
                 cleanupOrphans();
         }
         /**
@@ -105,64 +232,62 @@ public class ContattiFs implements ContattiDao {
          * @throws IllegalArgumentException se {@code persona} o il numero di telefono sono null.
          */
         @Override
-        public synchronized void salvaPersona(Persona persona) {
+        public void salvaPersona(Persona persona) {
+                try {
+                        salvaPersonaInterno(persona);
+                } catch (RuntimeException e) {
+                        commitInSospeso.get().clear();
+                        throw e;
+                }
+                attendiCommit();
+        }
+
+        private synchronized void salvaPersonaInterno(Persona persona) {
                 if (persona == null || persona.getTelefono() == null)
                         throw new IllegalArgumentException("Persona o telefono null");
 
                 ensureUserDirExists();
-                if (localCache == null) localCache = readAllFromUserDir();
-
-                if (username == null) {
-                        upsertSingleFile(persona);
-                        int idx = indexByTelefono(localCache, persona.getTelefono());
-                        if (idx >= 0) localCache.set(idx, persona);
-                        else localCache.add(persona);
-                        return;
-                }
-
-                Path dir = ensureUserDirExists();
-                Path file = dir.resolve(fileNameFor(persona));
-                try {
-                        Files.writeString(file, serialize(persona) + NL, CHARSET,
-                                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                } catch (IOException e) {
-                        throw new RuntimeException("Errore salvataggio persona: " + e.getMessage(), e);
-                }
+                caricaCache();
+                persona.setId(idPer(persona.getTelefono()));
 
-                int idx = indexByTelefono(localCache, persona.getTelefono());
-                if (idx >= 0) localCache.set(idx, persona);
-                else localCache.add(persona);
+                if (username == null) upsertSingleFile(persona);
+                else scriviPersonaFile(persona);
+                mettiInCache(persona);
         }
 
 
         /**
-         * Modifica le informazioni di una persona già esistente, eventualmente rinominando il file.
+         * Modifica le informazioni di una persona già esistente, riscrivendo sul posto il suo file
+         * anche quando cambia il telefono.
          *
          * @param aggiornata la persona con i nuovi dati aggiornati.
          * @param oldTel     il vecchio numero di telefono per individuare la voce originale.
          * @throws IllegalArgumentException se {@code aggiornata} o il suo telefono sono null.
+         * @throws RuntimeException         se il nuovo telefono appartiene già a un'altra voce.
          */
         @Override
-        public synchronized void modificaPersona(Persona aggiornata, String oldTel) {
+        public void modificaPersona(Persona aggiornata, String oldTel) {
+                try {
+                        modificaPersonaInterno(aggiornata, oldTel);
+                } catch (RuntimeException e) {
+                        commitInSospeso.get().clear();
+                        throw e;
+                }
+                attendiCommit();
+        }
+
+        private synchronized void modificaPersonaInterno(Persona aggiornata, String oldTel) {
                 if (aggiornata == null || aggiornata.getTelefono() == null)
                         throw new IllegalArgumentException("Persona o telefono null");
 
                 ensureUserDirExists();
-                if (localCache == null) localCache = readAllFromUserDir();
+                caricaCache();
 
-                if (username == null) {
-                        upsertSingleFile(aggiornata);
-                        int idx = indexByTelefono(localCache, aggiornata.getTelefono());
-                        if (idx >= 0) localCache.set(idx, aggiornata);
-                        else localCache.add(aggiornata);
-                        return;
-                }
-
-                Persona vecchia = null;
-                int idxOld = indexByTelefono(localCache, oldTel);
-                if (idxOld >= 0) {
-                        vecchia = localCache.get(idxOld);
-                } else {
+                String nuovoTel = aggiornata.getTelefono();
+                Persona vecchia = perTelefono.get(oldTel);
+                Persona occupata = perTelefono.get(nuovoTel);
+                if (vecchia == null) vecchia = occupata;
+                if (vecchia == null) {
                         for (Persona p : localCache) {
                                 if (safeEq(p.getNome(), aggiornata.getNome()) && safeEq(p.getCognome(),
                                         aggiornata.getCognome())) {
@@ -171,41 +296,246 @@ public class ContattiFs implements ContattiDao {
                                 }
                         }
                 }
+                if (occupata != null && occupata != vecchia)
+                        throw new RuntimeException("Telefono già presente nella tua rubrica (tel=" + nuovoTel + ")");
+
+                String id = vecchia != null ? vecchia.getId() : idPer(nuovoTel);
+                String telPrima = vecchia != null ? vecchia.getTelefono() : null;
+                boolean cambiaTelefono = username != null && telPrima != null && !telPrima.equals(nuovoTel);
+                // il telefono nuovo può essere stato preso da un altro processo dopo il caricamento della cache
+                if (cambiaTelefono && !id.equals(prenotaTelefono(nuovoTel, id)))
+                        throw new RuntimeException("Telefono già presente nella tua rubrica (tel=" + nuovoTel + ")");
+                aggiornata.setId(id);
+                if (username == null) upsertSingleFile(aggiornata);
+                else scriviPersonaFile(aggiornata);
+                if (cambiaTelefono) rilasciaTelefono(telPrima, id);
+                // la voce in cache può essere proprio aggiornata, che ha già il telefono nuovo
+                if (vecchia != null && perTelefono.get(oldTel) == vecchia) perTelefono.remove(oldTel);
+                mettiInCache(aggiornata);
+        }
 
-                Path dir = ensureUserDirExists();
-                Path nuovoFile = dir.resolve(fileNameFor(aggiornata));
-                try {
-                        Files.writeString(nuovoFile, serialize(aggiornata) + NL, CHARSET,
-                                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        private void scrivi(Path file, String contenuto) throws IOException {
+                ScritturaContattiEvent ev = new ScritturaContattiEvent();
+                ev.begin();
+                if (layout.getLivelliContatti() > 0) Files.createDirectories(file.getParent());
+                commitInSospeso.get().add(scrittore.scrivi(file, contenuto, CHARSET));
+                if (ev.shouldCommit()) {
+                        ev.operazione = "scrittura";
+                        ev.file = file.getFileName().toString();
+                        ev.byteScritti = contenuto.getBytes(CHARSET).length;
+                        ev.durabilita = scrittore.getDurabilita().name();
+                        ev.commit();
+                }
+        }
 
-                        if (vecchia != null) {
-                                Path vecchioFile = dir.resolve(fileNameFor(vecchia));
-                                if (!nuovoFile.equals(vecchioFile)) {
-                                        Files.deleteIfExists(vecchioFile);
+        private void elimina(Path file) throws IOException {
+                ScritturaContattiEvent ev = new ScritturaContattiEvent();
+                ev.begin();
+                commitInSospeso.get().add(scrittore.elimina(file));
+                if (ev.shouldCommit()) {
+                        ev.operazione = "eliminazione";
+                        ev.file = file.getFileName().toString();
+                        ev.durabilita = scrittore.getDurabilita().name();
+                        ev.commit();
+                }
+        }
+
+        /* Attende, senza tenere il lock del DAO, che le operazioni del thread siano durevoli. */
+        private void attendiCommit() {
+                List<CompletableFuture<Void>> commit = commitInSospeso.get();
+                if (commit.isEmpty()) return;
+                List<CompletableFuture<Void>> copia = new ArrayList<>(commit);
+                commit.clear();
+                ScritturaDurevole.attendi(copia);
+        }
+
+        private void caricaCache() {
+                if (localCache != null) {
+                        CACHE_HIT.increment();
+                        return;
+                }
+                CACHE_MISS.increment();
+                migraSeServe();
+                pulisciTemporanei();
+                impostaCache(senzaDoppioni(readAllFromUserDir()));
+                if (username != null && !Files.isDirectory(resolveUserDir().resolve(TELEFONI))) costruisciIndice();
+                if (watch) avviaWatcher();
+        }
+
+        private void impostaCache(@NotNull List<Persona> persone) {
+                localCache = new ArrayList<>(persone);
+                perTelefono.clear();
+                for (Persona p : localCache)
+                        if (p.getTelefono() != null) perTelefono.put(p.getTelefono(), p);
+        }
+
+        /* Sostituisce nella cache la voce con lo stesso identificativo, o la aggiunge. */
+        private void mettiInCache(@NotNull Persona persona) {
+                int idx = indexById(localCache, persona.getId());
+                if (idx >= 0) togliDallIndice(localCache.set(idx, persona));
+                else localCache.add(persona);
+                perTelefono.put(persona.getTelefono(), persona);
+        }
+
+        private void togliDallaCache(@NotNull String id) {
+                int idx = indexById(localCache, id);
+                if (idx >= 0) togliDallIndice(localCache.remove(idx));
+        }
+
+        private void togliDallIndice(@NotNull Persona p) {
+                // l'indice può già puntare a un'altra voce con lo stesso telefono
+                if (perTelefono.get(p.getTelefono()) == p) perTelefono.remove(p.getTelefono());
+        }
+
+        /*
+         * L'identificativo della voce con quel telefono: dalla cache, dall'indice condiviso se un altro
+         * processo l'ha appena creata, altrimenti uno nuovo prenotato nell'indice.
+         */
+        private @NotNull String idPer(String tel) {
+                Persona p = perTelefono.get(tel);
+                if (p != null && p.getId() != null) return p.getId();
+                String nuovo = Ulid.nuovo();
+                return username == null ? nuovo : prenotaTelefono(tel, nuovo);
+        }
+
+        /* ===================== indice dei telefoni fra processi ===================== */
+
+        private @NotNull Path fileTelefono(@NotNull String tel) {
+                return resolveUserDir().resolve(TELEFONI).resolve(CHIAVE_TELEFONO.encodeToString(tel.getBytes(CHARSET)));
+        }
+
+        /*
+         * Prenota il telefono per la voce id: la creazione esclusiva del file è atomica anche fra
+         * processi. Se il telefono è già prenotato restituisce l'identificativo di quella voce; una
+         * prenotazione rimasta da una voce che nel frattempo ha cambiato telefono viene sostituita.
+         */
+        private @NotNull String prenotaTelefono(@NotNull String tel, @NotNull String id) {
+                Path indice = fileTelefono(tel);
+                try {
+                        Files.createDirectories(indice.getParent());
+                        for (int tentativo = 0; tentativo < 3; tentativo++) {
+                                try {
+                                        Files.writeString(indice, id, CHARSET, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                                        return id;
+                                } catch (FileAlreadyExistsException e) {
+                                        String altro = leggiPrenotazione(indice);
+                                        if (altro == null) continue;
+                                        if (altro.equals(id) || !prenotazioneScaduta(tel, altro)) return altro;
+                                        Files.deleteIfExists(indice);
                                 }
-                        } else {
-                                deleteDuplicatesByName(dir, aggiornata);
                         }
                 } catch (IOException e) {
-                        throw new RuntimeException("Errore modifica persona: " + e.getMessage(), e);
+                        throw new RuntimeException("Errore nell'indice dei telefoni (tel=" + tel + "): " + e.getMessage(), e);
                 }
+                throw new RuntimeException("Telefono conteso da un altro processo, riprova (tel=" + tel + ")");
+        }
 
-                if (vecchia != null) {
-                        localCache.remove(vecchia);
-                } else {
-                        int i = indexByTelefono(localCache, aggiornata.getTelefono());
-                        if (i >= 0) localCache.remove(i);
+        /*
+         * L'identificativo nel file dell'indice. Il file è creato vuoto e poi scritto: subito dopo la
+         * creazione da parte di un altro processo può essere ancora vuoto, quindi si attende un poco.
+         * @return null se il file è sparito o non contiene un identificativo.
+         */
+        private static @Nullable String leggiPrenotazione(@NotNull Path indice) throws IOException {
+                for (int i = 0; i < 5; i++) {
+                        try {
+                                String id = Files.readString(indice, CHARSET).trim();
+                                if (Ulid.valido(id)) return id;
+                        } catch (NoSuchFileException e) {
+                                return null;
+                        }
+                        try {
+                                Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                break;
+                        }
                 }
-                localCache.add(aggiornata);
+                return null;
+        }
 
-                cleanupOrphans();
+        /*
+         * Una prenotazione è scaduta se la sua voce esiste con un altro telefono. Se il file della voce
+         * manca la prenotazione resta valida: l'altro processo lo sta scrivendo, oppure è stato
+         * eliminato e riscriverlo con lo stesso identificativo non crea doppioni.
+         */
+        private boolean prenotazioneScaduta(@NotNull String tel, @NotNull String id) {
+                Path file = fileFor(resolveUserDir(), id);
+                if (!Files.exists(file)) return false;
+                Persona p = readPersonaFile(file);
+                return p != null && !tel.equals(p.getTelefono());
         }
 
+        private @Nullable String prenotazione(@NotNull String tel) {
+                Path indice = fileTelefono(tel);
+                try {
+                        return Files.exists(indice) ? leggiPrenotazione(indice) : null;
+                } catch (IOException e) {
+                        return null;
+                }
+        }
+
+        /* Libera il telefono, solo se è ancora prenotato per la voce id. */
+        private void rilasciaTelefono(@NotNull String tel, @NotNull String id) {
+                Path indice = fileTelefono(tel);
+                try {
+                        if (id.equals(prenotazione(tel))) Files.deleteIfExists(indice);
+                } catch (IOException e) {
+                        // una prenotazione rimasta è riconosciuta come scaduta alla prossima prenotazione
+                        LOG.fine(() -> "Prenotazione di " + tel + " non eliminata: " + e.getMessage());
+                }
+        }
+
+        /* Rubriche scritte prima dell'indice: prenota i telefoni delle voci già presenti. */
+        private void costruisciIndice() {
+                for (Persona p : localCache) {
+                        if (p.getTelefono() != null) prenotaTelefono(p.getTelefono(), p.getId());
+                }
+        }
+
+        /*
+         * Due processi che hanno salvato lo stesso telefono prima dell'indice, o durante una sua
+         * ricostruzione, possono aver lasciato due voci: resta quella prenotata nell'indice o, se
+         * nessuna lo è, la più recente; i file delle altre vengono eliminati.
+         */
+        private @NotNull List<Persona> senzaDoppioni(@NotNull List<Persona> lette) {
+                if (username == null) return lette;
+                Map<String, List<Persona>> perTel = new HashMap<>();
+                for (Persona p : lette) perTel.computeIfAbsent(p.getTelefono(), t -> new ArrayList<>()).add(p);
+                if (perTel.size() == lette.size()) return lette;
+
+                Set<Persona> scartate = Collections.newSetFromMap(new IdentityHashMap<>());
+                Path dir = resolveUserDir();
+                for (Map.Entry<String, List<Persona>> e : perTel.entrySet()) {
+                        List<Persona> voci = e.getValue();
+                        if (voci.size() < 2) continue;
+                        String prenotato = prenotazione(e.getKey());
+                        Persona tenuta = voci.stream().filter(p -> p.getId().equals(prenotato)).findFirst()
+                                .orElseGet(() -> Collections.max(voci, Comparator.comparing(Persona::getId)));
+                        for (Persona p : voci) {
+                                if (p == tenuta) continue;
+                                scartate.add(p);
+                                try {
+                                        Files.deleteIfExists(fileFor(dir, p.getId()));
+                                } catch (IOException ex) {
+                                        LOG.warning(() -> "Doppione " + p.getId() + " non eliminato: " + ex.getMessage());
+                                }
+                        }
+                }
+                LOG.warning(() -> "Eliminati " + scartate.size() + " contatti doppi di " + username);
+                List<Persona> out = new ArrayList<>(lette.size() - scartate.size());
+                for (Persona p : lette) {
+                        if (!scartate.contains(p)) out.add(p);
+                }
+                return out;
+        }
+
+        /* Sostituisce la riga con lo stesso identificativo o, per le righe di prima, con lo stesso telefono. */
         private void upsertSingleFile(@NotNull Persona persona) {
                 Path file = resolveUserDir().resolve(INFORMATION);
                 List<Persona> all = readFromSingleFile(file);
 
-                int idx = indexByTelefono(all, persona.getTelefono());
+                int idx = indexById(all, persona.getId());
+                if (idx < 0) idx = indexByTelefono(all, persona.getTelefono());
                 if (idx >= 0) all.set(idx, persona);
                 else all.add(persona);
 
@@ -219,19 +549,6 @@ public class ContattiFs implements ContattiDao {
                 return a.equalsIgnoreCase(b);
         }
 
-        private void deleteDuplicatesByName(Path dir, Persona aggiornata) {
-                String basePrefix = sanitizeForPath(aggiornata.getNome()) + "-"
-                        + sanitizeForPath(aggiornata.getCognome()) + "-";
-                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, basePrefix + "*.txt")) {
-                        for (Path p : stream) {
-                                if (!p.getFileName().toString().equals(fileNameFor(aggiornata))
-                                        && !p.getFileName().toString().equals(INFORMATION)) {
-                                        Files.deleteIfExists(p);
-                                }
-                        }
-                } catch (IOException ignored) {
-                }
-        }
         /**
          * Rimuove una persona dal file system.
          *
@@ -240,26 +557,34 @@ public class ContattiFs implements ContattiDao {
          */
 
         @Override
-        public synchronized void rimuoviPersona(Persona daRimuovere) {
+        public void rimuoviPersona(Persona daRimuovere) {
+                try {
+                        rimuoviPersonaInterno(daRimuovere);
+                } catch (RuntimeException e) {
+                        commitInSospeso.get().clear();
+                        throw e;
+                }
+                attendiCommit();
+        }
+
+        private synchronized void rimuoviPersonaInterno(Persona daRimuovere) {
                 if (daRimuovere == null || daRimuovere.getTelefono() == null)
                         throw new IllegalArgumentException("Persona o telefono null");
 
-                if (localCache == null) localCache = readAllFromUserDir();
+                caricaCache();
 
                 if (username == null) {
                         removeFromSingleFile(daRimuovere);
-                        localCache.removeIf(p -> Objects.equals(p.getTelefono(), daRimuovere.getTelefono()));
+                        impostaCache(localCache.stream()
+                                .filter(p -> !Objects.equals(p.getTelefono(), daRimuovere.getTelefono())).toList());
                         return;
                 }
 
-                String tel = daRimuovere.getTelefono();
-                Path dir = ensureUserDirExists();
-                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*-" + sanitizeForPath(tel) + ".txt")) {
-                        for (Path p : stream) Files.deleteIfExists(p);
-                } catch (Exception e) {
-                        throw new RuntimeException("Errore durante l'eliminazione per telefono '" + tel + "': " + e.getMessage(), e);
-                }
-                localCache.removeIf(p -> Objects.equals(p.getTelefono(), tel));
+                Persona voce = perTelefono.get(daRimuovere.getTelefono());
+                if (voce == null) return;
+                doRimuoviPersonaDalFile(voce);
+                rilasciaTelefono(voce.getTelefono(), voce.getId());
+                togliDallaCache(voce.getId());
         }
 
 
@@ -267,55 +592,57 @@ public class ContattiFs implements ContattiDao {
                 Path dir = resolveUserDir();
                 if (!Files.exists(dir)) return new ArrayList<>();
 
-                if (username == null) return readFromSingleFile(dir.resolve(INFORMATION));
-
+                ScansioneContattiEvent ev = new ScansioneContattiEvent();
+                ev.begin();
                 List<Persona> res = new ArrayList<>();
-                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + EXT)) {
-                        for (Path p : stream) {
-                                if (p.getFileName().toString().equals(INFORMATION)) continue;
-                                Persona persona = readPersonaFile(p);
-                                if (persona != null) res.add(persona);
+                if (username == null) {
+                        Path file = dir.resolve(INFORMATION);
+                        res = readFromSingleFile(file);
+                        ev.file = 1;
+                        if (ev.isEnabled()) ev.byteLetti = file.toFile().length();
+                } else {
+                        try {
+                                for (Path p : fileContatti(dir)) {
+                                        byte[] dati;
+                                        try {
+                                                dati = Files.readAllBytes(p);
+                                        } catch (IOException e) {
+                                                continue;
+                                        }
+                                        ev.file++;
+                                        ev.byteLetti += dati.length;
+                                        Persona persona = parsePersona(new String(dati, CHARSET));
+                                        if (persona == null) continue;
+                                        persona.setId(idDelFile(p, persona));
+                                        res.add(persona);
+                                }
+                        } catch (IOException ignore) {
+                                // ignored
                         }
-                } catch (IOException ignore) {
-                        // ignored
+                }
+                if (ev.shouldCommit()) {
+                        ev.utente = username;
+                        ev.contatti = res.size();
+                        ev.commit();
                 }
                 return res;
         }
 
-        private void upsertPersonaFile(@Nullable Persona attuale, @NotNull Persona nuova) {
-                Path dir = ensureUserDirExists();
-                Path nuovoFile = dir.resolve(fileNameFor(nuova));
-
+        /* Scrive il file della voce, che ha già il suo identificativo: sempre lo stesso file. */
+        private void scriviPersonaFile(@NotNull Persona p) {
+                Path file = fileFor(ensureUserDirExists(), p.getId());
                 try {
-                        String contenuto = serialize(nuova) + NL;
-
-                        Path vecchioFile = attuale == null ? null : dir.resolve(fileNameFor(attuale));
-
-                        if (vecchioFile == null || !Files.exists(vecchioFile)) {
-                                Files.writeString(nuovoFile, contenuto, CHARSET,
-                                        StandardOpenOption.CREATE,
-                                        StandardOpenOption.TRUNCATE_EXISTING);
-                                return;
-                        }
-
-                        if (!vecchioFile.equals(nuovoFile)) {
-                                Files.writeString(nuovoFile, contenuto, CHARSET,
-                                        StandardOpenOption.CREATE,
-                                        StandardOpenOption.TRUNCATE_EXISTING);
-                                Files.deleteIfExists(vecchioFile);
-                        } else {
-                                Files.writeString(vecchioFile, contenuto, CHARSET, StandardOpenOption.TRUNCATE_EXISTING);
-                        }
+                        scrivi(file, serialize(p) + NL);
                 } catch (IOException e) {
-                        throw new RuntimeException("Errore durante upsert della persona: " + e.getMessage(), e);
+                        throw new RuntimeException("Errore salvataggio persona: " + e.getMessage(), e);
                 }
         }
 
         private void doRimuoviPersonaDalFile(@NotNull Persona p) {
                 Path dir = ensureUserDirExists();
-                Path file = dir.resolve(fileNameFor(p));
+                Path file = fileFor(dir, p.getId());
                 try {
-                        Files.deleteIfExists(file);
+                        elimina(file);
                 } catch (IOException e) {
                         throw new RuntimeException("Errore durante l'eliminazione del file: " + e.getMessage(), e);
                 }
@@ -326,11 +653,9 @@ public class ContattiFs implements ContattiDao {
                 Path file = resolveUserDir().resolve(INFORMATION);
                 ensureUserDirExists();
                 StringBuilder sb = new StringBuilder();
-                for (Persona p : persone) sb.append(serialize(p)).append(NL);
+                for (Persona p : persone) sb.append(serialize(p)).append(SEP).append(p.getId()).append(NL);
                 try {
-                        Files.writeString(file, sb.toString(), CHARSET,
-                                StandardOpenOption.CREATE,
-                                StandardOpenOption.TRUNCATE_EXISTING);
+                        scrivi(file, sb.toString());
                 } catch (IOException e) {
                         throw new RuntimeException("Errore nel salvataggio in file unico: " + e.getMessage(), e);
                 }
@@ -342,7 +667,7 @@ public class ContattiFs implements ContattiDao {
                 try {
                         List<String> lines = Files.readAllLines(file, CHARSET);
                         for (String l : lines) {
-                                Persona p = deserialize(l);
+                                Persona p = rigaSingola(l);
                                 if (p != null) res.add(p);
                         }
                 } catch (IOException ignored) {
@@ -350,20 +675,6 @@ public class ContattiFs implements ContattiDao {
                 return res;
         }
 
-        private void updateSingleFile(Persona persona) {
-                Path file = resolveUserDir().resolve(INFORMATION);
-                List<Persona> all = readFromSingleFile(file);
-
-                int idx = -1;
-                for (int i = 0; i < all.size(); i++)
-                        if (Objects.equals(all.get(i).getTelefono(), persona.getTelefono())) idx = i;
-
-                if (idx >= 0) all.set(idx, persona);
-                else all.add(persona);
-
-                writeAllToSingleFile(all);
-        }
-
         private void removeFromSingleFile(Persona daRimuovere) {
                 Path file = resolveUserDir().resolve(INFORMATION);
                 List<Persona> all = readFromSingleFile(file);
@@ -373,16 +684,178 @@ public class ContattiFs implements ContattiDao {
 
         private @Nullable Persona readPersonaFile(@NotNull Path file) {
                 try {
-                        String line = Files.readString(file, CHARSET).trim();
-                        if (line.isEmpty()) return null;
-                        return deserialize(line);
+                        Persona p = parsePersona(Files.readString(file, CHARSET));
+                        if (p != null) p.setId(idDelFile(file, p));
+                        return p;
                 } catch (IOException e) {
                         return null;
                 }
         }
 
+        /*
+         * L'identificativo è il nome del file. Un file col nome di prima (nome-cognome-telefono.txt),
+         * scritto da un processo non aggiornato dopo la migrazione, riceve l'identificativo che gli
+         * darebbe la migrazione e sparisce alla prossima pulizia degli orfani.
+         */
+        private static @NotNull String idDelFile(@NotNull Path file, @NotNull Persona p) {
+                String id = idDaNome(file.getFileName().toString());
+                return Ulid.valido(id) ? id : idDaTelefono(p.getTelefono());
+        }
+
+        private static @NotNull String idDaNome(@NotNull String nome) {
+                return nome.endsWith(EXT) ? nome.substring(0, nome.length() - EXT.length()) : nome;
+        }
+
+        /*
+         * Identificativo delle voci di prima, ricavato dal contenuto e non dal file: lo stesso in ogni
+         * processo e dopo copie o ripristini che cambiano data e nome del file, così una migrazione
+         * interrotta e ripetuta riscrive lo stesso file invece di duplicare la voce.
+         */
+        private static @NotNull String idDaTelefono(String tel) {
+                return Ulid.da(0, "telefono:" + tel);
+        }
+
+        /*
+         * Una riga di informazioni.txt. Le righe di prima, senza identificativo, ne ricevono uno
+         * ricavato dal telefono, uguale a ogni lettura finché la riga non viene riscritta con il suo.
+         */
+        private @Nullable Persona rigaSingola(@NotNull String riga) {
+                Persona p = deserialize(riga);
+                if (p != null && p.getId() == null) p.setId(idDaTelefono(p.getTelefono()));
+                return p;
+        }
+
+        private @Nullable Persona parsePersona(@NotNull String contenuto) {
+                String line = contenuto.trim();
+                if (line.isEmpty()) return null;
+                return deserialize(line);
+        }
+
         private @NotNull Path resolveUserDir() {
-                return (username == null) ? baseDir : baseDir.resolve(sanitizeForPath(username));
+                return (username == null) ? baseDir : layout.cartellaUtente(baseDir, sanitizeForPath(username));
+        }
+
+        private @NotNull Path fileFor(@NotNull Path userDir, @NotNull String id) {
+                return layout.cartellaContatto(userDir, id).resolve(id + EXT);
+        }
+
+        /* I file contatto dell'utente, alla profondità prevista dal layout. */
+        private @NotNull List<Path> fileContatti(@NotNull Path userDir) throws IOException {
+                List<Path> out = new ArrayList<>();
+                raccogliFile(userDir, layout.getLivelliContatti(), out);
+                return out;
+        }
+
+        private static boolean isFileContatto(Path p) {
+                String nome = p.getFileName().toString();
+                return nome.endsWith(EXT) && !nome.equals(INFORMATION) && !nome.equals(INFO_FILE);
+        }
+
+        private static void raccogliCartelle(Path dir, int livelli, List<Path> out) throws IOException {
+                if (!Files.isDirectory(dir)) return;
+                if (livelli == 0) {
+                        out.add(dir);
+                        return;
+                }
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, Files::isDirectory)) {
+                        for (Path p : stream) raccogliCartelle(p, livelli - 1, out);
+                }
+        }
+
+        /* Elimina i temporanei lasciati da processi terminati a metà scrittura nelle cartelle dei contatti. */
+        private void pulisciTemporanei() {
+                Path dir = resolveUserDir();
+                try {
+                        List<Path> cartelle = new ArrayList<>();
+                        raccogliCartelle(dir, username == null ? 0 : layout.getLivelliContatti(), cartelle);
+                        int n = 0;
+                        for (Path c : cartelle) n += ScritturaDurevole.pulisciTemporanei(c, ScritturaDurevole.ETA_TEMPORANEI_MS);
+                        if (n > 0) {
+                                int eliminati = n;
+                                LOG.info(() -> "Eliminati " + eliminati + " file temporanei abbandonati in " + dir);
+                        }
+                } catch (IOException e) {
+                        LOG.warning(() -> "Pulizia dei file temporanei in " + dir + " non riuscita: " + e.getMessage());
+                }
+        }
+
+        private static void raccogliFile(Path dir, int livelli, List<Path> out) throws IOException {
+                if (!Files.isDirectory(dir)) return;
+                if (livelli == 0) {
+                        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + EXT)) {
+                                for (Path p : stream) {
+                                        if (isFileContatto(p)) out.add(p);
+                                }
+                        }
+                        return;
+                }
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, Files::isDirectory)) {
+                        for (Path p : stream) raccogliFile(p, livelli - 1, out);
+                }
+        }
+
+        /*
+         * Una volta sola: sposta i contatti ancora nella disposizione precedente del layout e dà un
+         * identificativo a quelli salvati col nome di prima.
+         */
+        private void migraSeServe() {
+                if (migrato || username == null) return;
+                if (!layout.isPiatto()) migraUtente();
+                migraIdentificativi();
+                migrato = true;
+        }
+
+        /*
+         * Rinomina i file nome-cognome-telefono.txt in <id>.txt. I nuovi file sono resi durevoli prima
+         * di eliminare i vecchi, così un'interruzione lascia al più una copia che la ripetizione
+         * riscrive con lo stesso identificativo; di più file per uno stesso telefono resta il più recente.
+         */
+        private void migraIdentificativi() {
+                Path dir = resolveUserDir();
+                try {
+                        Map<String, Path> perTel = new HashMap<>();
+                        Map<Path, Persona> lette = new HashMap<>();
+                        List<Path> daEliminare = new ArrayList<>();
+                        for (Path f : fileContatti(dir)) {
+                                if (Ulid.valido(idDaNome(f.getFileName().toString()))) continue;
+                                Persona p = readPersonaFile(f);
+                                if (p == null) continue;
+                                lette.put(f, p);
+                                Path prima = perTel.get(p.getTelefono());
+                                if (prima != null && Files.getLastModifiedTime(prima).compareTo(Files.getLastModifiedTime(f)) > 0) {
+                                        daEliminare.add(f);
+                                        continue;
+                                }
+                                if (prima != null) daEliminare.add(prima);
+                                perTel.put(p.getTelefono(), f);
+                        }
+                        if (lette.isEmpty()) return;
+
+                        List<CompletableFuture<Void>> scritti = new ArrayList<>();
+                        for (Path f : perTel.values()) {
+                                Persona p = lette.get(f);
+                                Path nuovo = fileFor(dir, p.getId());
+                                Files.createDirectories(nuovo.getParent());
+                                scritti.add(scrittore.scrivi(nuovo, serialize(p) + NL, CHARSET));
+                                daEliminare.add(f);
+                        }
+                        ScritturaDurevole.attendi(scritti);
+                        List<CompletableFuture<Void>> eliminati = new ArrayList<>();
+                        for (Path f : daEliminare) eliminati.add(scrittore.elimina(f));
+                        ScritturaDurevole.attendi(eliminati);
+                        LOG.info(() -> "Assegnati gli identificativi a " + perTel.size() + " contatti di " + username);
+                } catch (IOException e) {
+                        throw new RuntimeException("Errore migrazione identificativi per '" + username + "': " + e.getMessage(), e);
+                }
+        }
+
+        private void migraUtente() {
+                try {
+                        int n = MigrazioneLayout.migraUtente(baseDir, sanitizeForPath(username), layout);
+                        if (n > 0) LOG.info(() -> "Spostati " + n + " contatti di " + username + " nel nuovo layout (" + layout + ")");
+                } catch (IOException e) {
+                        throw new RuntimeException("Errore migrazione layout per '" + username + "': " + e.getMessage(), e);
+                }
         }
 
         private @NotNull Path ensureUserDirExists() {
@@ -395,13 +868,6 @@ public class ContattiFs implements ContattiDao {
                 return dir;
         }
 
-        private @NotNull String fileNameFor(@NotNull Persona p) {
-                String nome = (p.getNome() == null ? "" : p.getNome());
-                String cognome = (p.getCognome() == null ? "" : p.getCognome());
-                String tel = Objects.requireNonNull(p.getTelefono(), "telefono obbligatorio");
-                return sanitizeForPath(nome) + "-" + sanitizeForPath(cognome) + "-" + sanitizeForPath(tel) + EXT;
-        }
-
         private @NotNull String sanitizeForPath(String s) {
                 if (s == null) return "";
                 return s.replaceAll("[^A-Za-z0-9._-]", "_");
@@ -421,16 +887,26 @@ public class ContattiFs implements ContattiDao {
                         String.valueOf(p.getEta()));
         }
 
+        /* Cinque campi; in modalità singola il sesto è l'identificativo, assente nelle righe di prima. */
         private @Nullable Persona deserialize(@NotNull String line) {
                 String[] parts = line.split("\\s*" + Pattern.quote(SEP) + "\\s*", -1);
-                if (parts.length != 5) return null;
+                if (parts.length != 5 && parts.length != 6) return null;
                 try {
-                        return new Persona(parts[0], parts[1], parts[2], parts[3], Integer.parseInt(parts[4].trim()));
+                        Persona p = new Persona(parts[0], parts[1], parts[2], parts[3], Integer.parseInt(parts[4].trim()));
+                        if (parts.length == 6 && Ulid.valido(parts[5])) p.setId(parts[5]);
+                        return p;
                 } catch (Exception e) {
                         return null;
                 }
         }
 
+        private int indexById(@NotNull List<Persona> list, String id) {
+                if (id == null) return -1;
+                for (int i = 0; i < list.size(); i++)
+                        if (id.equals(list.get(i).getId())) return i;
+                return -1;
+        }
+
         private int indexByTelefono(@NotNull List<Persona> list, String tel) {
                 for (int i = 0; i < list.size(); i++)
                         if (Objects.equals(tel, list.get(i).getTelefono())) return i;
@@ -457,19 +933,157 @@ public class ContattiFs implements ContattiDao {
                 if (localCache == null) return;
 
                 Set<String> validFiles = new HashSet<>();
-                for (Persona p : localCache)
-                        validFiles.add(sanitizeForPath(p.getNome()) + "-" +
-                                sanitizeForPath(p.getCognome()) + "-" + sanitizeForPath(p.getTelefono()) + EXT);
+                for (Persona p : localCache) validFiles.add(p.getId() + EXT);
 
-                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.txt")) {
-                        for (Path p : stream) {
+                try {
+                        for (Path p : fileContatti(dir)) {
                                 String fileName = p.getFileName().toString();
-                                if (fileName.equals(INFORMATION) || fileName.equals(INFO_FILE)) continue;
                                 if (!validFiles.contains(fileName))
-                                        Files.deleteIfExists(p);
+                                        elimina(p);
                         }
                 } catch (IOException e) {
                         throw new RuntimeException("Errore cleanup orfani: " + e.getMessage(), e);
                 }
         }
+
+        /** L'ascoltatore è avvisato quando l'osservazione della cartella ha cambiato la cache. */
+        @Override
+        public void setAscoltatore(Runnable ascoltatore) {
+                this.ascoltatore = ascoltatore;
+        }
+
+        /**
+         * Ferma il thread di osservazione della cartella, se attivo.
+         */
+        @Override
+        public synchronized void close() {
+                if (watcher != null) watcher.interrupt();
+                if (watchService != null) {
+                        try {
+                                watchService.close();
+                        } catch (IOException ignored) {
+                                // ignored
+                        }
+                }
+                watcher = null;
+                watchService = null;
+        }
+
+        /*
+         * Solo con i file contatto direttamente nella cartella utente: con il layout frammentato
+         * servirebbe un watch per ogni sottocartella (fino a 256^livelli), esaurendo i watch inotify
+         * del sistema, mentre un watch sulla sola cartella utente non vede i file nelle sottocartelle.
+         */
+        private void avviaWatcher() {
+                if (watcher != null) return;
+                Path dir = ensureUserDirExists();
+                if (username != null && layout.getLivelliContatti() > 0) {
+                        LOG.info(() -> "Osservazione di " + dir + " disattivata: i contatti sono in sottocartelle (" + layout + ")");
+                        return;
+                }
+                try {
+                        watchService = dir.getFileSystem().newWatchService();
+                        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                } catch (IOException e) {
+                        LOG.warning(() -> "Impossibile osservare " + dir + ": " + e.getMessage());
+                        return;
+                }
+                WatchService ws = watchService;
+                watcher = new Thread(() -> osserva(ws), "contatti-watcher-" + dir.getFileName());
+                watcher.setDaemon(true);
+                watcher.start();
+        }
+
+        /*
+         * Raccoglie gli eventi finché la cartella resta quieta per DEBOUNCE_MS (al massimo
+         * DEBOUNCE_MAX_MS), così una raffica di scritture su uno stesso file diventa un'unica
+         * rilettura; poi applica le modifiche alla cache.
+         */
+        private void osserva(WatchService ws) {
+                try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                                WatchKey key = ws.take();
+                                Set<Path> toccati = new LinkedHashSet<>();
+                                boolean overflow = raccogli(key, toccati);
+                                long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MAX_MS);
+                                while (System.nanoTime() < limite) {
+                                        WatchKey altro = ws.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+                                        if (altro == null) break;
+                                        overflow |= raccogli(altro, toccati);
+                                }
+                                if (applicaModifiche(toccati, overflow)) avvisa();
+                        }
+                } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                } catch (ClosedWatchServiceException ignored) {
+                        // ignored
+                }
+        }
+
+        private static boolean raccogli(WatchKey key, Set<Path> toccati) {
+                boolean overflow = false;
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> ev : key.pollEvents()) {
+                        if (ev.kind() == StandardWatchEventKinds.OVERFLOW) overflow = true;
+                        else if (ev.context() instanceof Path p) toccati.add(dir.resolve(p));
+                }
+                key.reset();
+                return overflow;
+        }
+
+        /* @return se la cache è cambiata: le scritture di questo DAO tornano come eventi ma non cambiano nulla. */
+        private synchronized boolean applicaModifiche(Set<Path> toccati, boolean overflow) {
+                if (localCache == null || watcher == null) return false;
+                if (overflow) {
+                        impostaCache(readAllFromUserDir());
+                        return true;
+                }
+                Path dir = resolveUserDir();
+                if (username == null) {
+                        if (!toccati.contains(dir.resolve(INFORMATION))) return false;
+                        List<Persona> lette = readFromSingleFile(dir.resolve(INFORMATION));
+                        boolean cambiata = !serializzate(lette).equals(serializzate(localCache));
+                        if (cambiata) impostaCache(lette);
+                        return cambiata;
+                }
+                boolean cambiata = false;
+                for (Path file : toccati) {
+                        if (!isFileContatto(file)) continue;
+                        String id = idDaNome(file.getFileName().toString());
+                        // i file col nome di prima scritti da altri processi arrivano con la prossima rilettura completa
+                        if (!Ulid.valido(id)) continue;
+                        int idx = indexById(localCache, id);
+                        if (Files.exists(file)) {
+                                Persona letta = readPersonaFile(file);
+                                // file scritto a metà: arriverà un altro ENTRY_MODIFY
+                                if (letta == null) continue;
+                                if (idx >= 0 && serialize(localCache.get(idx)).equals(serialize(letta))) continue;
+                                // con il telefono cambiato mettiInCache toglie dall'indice anche quello vecchio
+                                mettiInCache(letta);
+                                cambiata = true;
+                        } else if (idx >= 0) {
+                                togliDallaCache(id);
+                                cambiata = true;
+                        }
+                }
+                return cambiata;
+        }
+
+        private @NotNull List<String> serializzate(@NotNull List<Persona> persone) {
+                List<String> out = new ArrayList<>(persone.size());
+                for (Persona p : persone) out.add(serialize(p) + SEP + p.getId());
+                return out;
+        }
+
+        /* Fuori dal lock del DAO: l'ascoltatore rilegge i contatti. */
+        private void avvisa() {
+                Runnable a = ascoltatore;
+                if (a == null) return;
+                try {
+                        a.run();
+                } catch (RuntimeException e) {
+                        LOG.log(Level.WARNING, "Aggiornamento dopo una modifica esterna non riuscito", e);
+                }
+        }
 }
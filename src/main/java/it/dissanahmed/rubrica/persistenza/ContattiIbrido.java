@@ -0,0 +1,457 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.rubrica.ex.ConflittoVersione;
+import it.dissanahmed.util.Istogramma;
+import it.dissanahmed.util.Metriche;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Rubrica offline-first: letture e scritture sono servite da un {@link ContattiDao} locale
+ * (tipicamente {@link ContattiFs}) e sincronizzate con un {@link ContattiSincronizzabili}
+ * remoto ({@link ContattiDbms}) da un thread in background.
+ * <p>
+ * Ogni scrittura locale finisce in una {@link CodaSincronizzazione} persistente. Un ciclo di
+ * sincronizzazione prima <b>riceve</b> le voci cambiate sul server dopo l'ultima sequenza già
+ * ricevuta (watermark), poi <b>invia</b> la coda in ordine; se il server non è raggiungibile
+ * il ciclo viene ripetuto con attesa crescente, senza che l'utente veda errori. Sia la rete sia
+ * il database lavorano solo sulle voci cambiate, non sull'intera rubrica.
+ * </p>
+ * <p>
+ * Conflitti: se la stessa voce (telefono) è stata cambiata sul server dopo l'ultima ricezione
+ * e ha scritture locali in coda, vince la scrittura già registrata sul server, che ne
+ * determina l'ordine per tutti i client. Le scritture locali per quel telefono vengono
+ * scartate e la voce locale riallineata. Le modifiche inviate sono condizionate alla
+ * versione ricevuta ({@link ContattiDbms#modificaPersona(Persona, String)}), quindi un
+ * cambiamento arrivato sul server fra ricezione e invio è rilevato allo stesso modo.
+ * Per le voci create da due client con lo stesso telefono resta l'ultima inviata.
+ * </p>
+ * <p>
+ * Le voci locali e quelle sul server sono abbinate per telefono. Gli identificativi no: la rubrica
+ * locale usa i suoi ULID, il server i suoi numeri, e ogni lato riceve le voci dell'altro senza
+ * identificativo, così non ne adotta mai uno assegnato dall'altra parte.
+ * </p>
+ * <p>
+ * Metriche: <code>sync.inviate</code>, <code>sync.ricevute</code>, <code>sync.conflitti</code>,
+ * <code>sync.errori</code> e l'istogramma <code>sync.ciclo</code>.
+ * </p>
+ */
+public class ContattiIbrido implements ContattiDao {
+
+        private static final Logger LOG = Logger.getLogger(ContattiIbrido.class.getName());
+
+        private static final LongAdder INVIATE = Metriche.contatore("sync.inviate");
+        private static final LongAdder RICEVUTE = Metriche.contatore("sync.ricevute");
+        private static final LongAdder CONFLITTI = Metriche.contatore("sync.conflitti");
+        private static final LongAdder ERRORI = Metriche.contatore("sync.errori");
+        private static final Istogramma CICLO = Metriche.istogramma("sync.ciclo");
+
+        /** Voce eliminata da questo client, in {@link #scritte}. */
+        private static final long ELIMINATA = -1;
+        /** Ricezioni consecutive dopo un conflitto nello stesso ciclo. */
+        private static final int MAX_RIPETIZIONI = 8;
+
+        private final ContattiDao locale;
+        private final ContattiSincronizzabili remoto;
+        private final CodaSincronizzazione coda;
+        private final @Nullable String utente;
+        private final long intervalloMs;
+        private final long attesaMaxMs;
+
+        /** Serializza le scritture locali e l'applicazione delle voci ricevute. */
+        private final ReentrantLock scrittura = new ReentrantLock();
+        /** Versione remota nota per telefono: base delle modifiche condizionate. */
+        private final Map<String, Long> versioni = new ConcurrentHashMap<>();
+        /** Ultima versione scritta sul server da questo client, per riconoscerne l'eco in ricezione. */
+        private final Map<String, Long> scritte = new ConcurrentHashMap<>();
+        private final Semaphore sveglia = new Semaphore(0);
+        /** Avvisato quando la ricezione cambia la rubrica locale. */
+        private volatile Runnable ascoltatore;
+
+        /** Alla prima ricezione del processo le versioni non sono note: si chiede l'intera rubrica. */
+        private volatile boolean riallineaTutto = true;
+        private volatile boolean chiuso;
+        private Thread sincronizzatore;
+
+        /**
+         * @param locale       rubrica locale, fonte di tutte le letture.
+         * @param remoto       rubrica sul server.
+         * @param dirStato     cartella della coda e dello stato di sincronizzazione.
+         * @param utente       utente della rubrica.
+         * @param intervalloMs attesa fra due cicli senza scritture locali.
+         * @param attesaMaxMs  attesa massima dopo cicli falliti consecutivi.
+         */
+        public ContattiIbrido(@NotNull ContattiDao locale, @NotNull ContattiSincronizzabili remoto, @NotNull Path dirStato,
+                              @Nullable String utente, long intervalloMs, long attesaMaxMs) {
+                this.locale = Objects.requireNonNull(locale);
+                this.remoto = Objects.requireNonNull(remoto);
+                this.utente = utente;
+                this.intervalloMs = Math.max(1, intervalloMs);
+                this.attesaMaxMs = Math.max(this.intervalloMs, attesaMaxMs);
+                try {
+                        this.coda = new CodaSincronizzazione(dirStato, utente);
+                } catch (IOException e) {
+                        throw new RuntimeException("Errore apertura coda di sincronizzazione: " + e.getMessage(), e);
+                }
+                // prima sincronizzazione: la rubrica locale esistente va unita a quella sul server
+                if (coda.isNuova()) {
+                        for (Persona p : locale.getContatti()) {
+                                if (p.getTelefono() != null)
+                                        coda.accoda(Modifica.Tipo.INSERIMENTO, p.getTelefono(), null, p.copia());
+                        }
+                }
+        }
+
+        /** Avvia il thread di sincronizzazione in background. */
+        public synchronized ContattiIbrido avvia() {
+                if (sincronizzatore != null || chiuso) return this;
+                sincronizzatore = new Thread(this::ciclo, "sync-" + (utente == null ? "rubrica" : utente));
+                sincronizzatore.setDaemon(true);
+                sincronizzatore.start();
+                return this;
+        }
+
+        /** @return scritture locali non ancora confermate dal server. */
+        public int inAttesa() {
+                return coda.dimensione();
+        }
+
+        /** @return l'ultima sequenza ricevuta dal server. */
+        public long sequenzaRemota() {
+                return coda.getRemota();
+        }
+
+        /* ===================== letture e scritture locali ===================== */
+
+        /** L'ascoltatore è avvisato dopo ogni ricezione che ha cambiato la rubrica locale. */
+        @Override
+        public void setAscoltatore(Runnable ascoltatore) {
+                this.ascoltatore = ascoltatore;
+        }
+
+        @Override
+        public List<Persona> getContatti() {
+                return locale.getContatti();
+        }
+
+        @Override
+        public Stream<Persona> scorriContatti() {
+                return locale.scorriContatti();
+        }
+
+        @Override
+        public void salvaContatti(List<Persona> personaList) {
+                List<Persona> nuove = personaList == null ? List.of() : personaList;
+                scrittura.lock();
+                try {
+                        Map<String, Persona> prima = Persona.perTelefono(locale.getContatti());
+                        locale.salvaContatti(nuove);
+                        Map<String, Persona> dopo = Persona.perTelefono(nuove);
+                        for (Persona p : dopo.values()) {
+                                if (!p.stessiDati(prima.get(p.getTelefono())))
+                                        coda.accoda(Modifica.Tipo.INSERIMENTO, p.getTelefono(), null, p.copia());
+                        }
+                        for (String tel : prima.keySet()) {
+                                if (!dopo.containsKey(tel)) coda.accoda(Modifica.Tipo.ELIMINAZIONE, tel, null, null);
+                        }
+                } finally {
+                        scrittura.unlock();
+                }
+                sveglia.release();
+        }
+
+        @Override
+        public void salvaPersona(Persona persona) {
+                scrittura.lock();
+                try {
+                        locale.salvaPersona(persona);
+                        coda.accoda(Modifica.Tipo.INSERIMENTO, persona.getTelefono(), null, persona.copia());
+                } finally {
+                        scrittura.unlock();
+                }
+                sveglia.release();
+        }
+
+        @Override
+        public void rimuoviPersona(Persona daEliminare) {
+                scrittura.lock();
+                try {
+                        locale.rimuoviPersona(daEliminare);
+                        coda.accoda(Modifica.Tipo.ELIMINAZIONE, daEliminare.getTelefono(), null, null);
+                } finally {
+                        scrittura.unlock();
+                }
+                sveglia.release();
+        }
+
+        @Override
+        public void modificaPersona(Persona daModificare, String oldTel) {
+                scrittura.lock();
+                try {
+                        locale.modificaPersona(daModificare, oldTel);
+                        coda.accoda(Modifica.Tipo.MODIFICA, daModificare.getTelefono(), oldTel, daModificare.copia());
+                } finally {
+                        scrittura.unlock();
+                }
+                sveglia.release();
+        }
+
+        /** Ferma la sincronizzazione; le scritture non inviate restano in coda per il prossimo avvio. */
+        @Override
+        public void close() {
+                Thread t;
+                synchronized (this) {
+                        chiuso = true;
+                        t = sincronizzatore;
+                }
+                sveglia.release();
+                if (t != null) {
+                        try {
+                                t.join(TimeUnit.SECONDS.toMillis(5));
+                        } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                        }
+                }
+                locale.close();
+                remoto.close();
+        }
+
+        /* ===================== sincronizzazione ===================== */
+
+        private void ciclo() {
+                long attesa = intervalloMs;
+                while (!chiuso) {
+                        try {
+                                sincronizza();
+                                attesa = intervalloMs;
+                        } catch (RuntimeException e) {
+                                ERRORI.increment();
+                                Metriche.errore("sync", e);
+                                attesa = Math.min(attesaMaxMs, attesa * 2);
+                                long a = attesa;
+                                LOG.log(Level.FINE, e, () -> "Sincronizzazione non riuscita, nuovo tentativo fra " + a + " ms");
+                        }
+                        try {
+                                // una scrittura locale anticipa il ciclo, salvo dopo un errore
+                                if (attesa == intervalloMs) sveglia.tryAcquire(attesa, TimeUnit.MILLISECONDS);
+                                else Thread.sleep(attesa);
+                                sveglia.drainPermits();
+                        } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return;
+                        }
+                }
+        }
+
+        /**
+         * Esegue un ciclo completo: ricezione delle variazioni remote e invio della coda.
+         *
+         * @throws RuntimeException se il server non è raggiungibile o rifiuta una scrittura
+         *                          per un motivo diverso da un conflitto; la coda resta invariata.
+         */
+        void sincronizza() {
+                long t0 = System.nanoTime();
+                try {
+                        int ripetizioni = 0;
+                        do {
+                                ricevi();
+                        } while (!invia() && ++ripetizioni < MAX_RIPETIZIONI);
+                } finally {
+                        CICLO.registra(System.nanoTime() - t0);
+                }
+        }
+
+        private void ricevi() {
+                boolean completa = riallineaTutto;
+                long watermark = coda.getRemota();
+                ContattiSincronizzabili.Variazioni v = remoto.variazioniDa(completa ? 0 : watermark);
+                riallineaTutto = false;
+                if (v.voci().isEmpty() && !v.completa()) {
+                        coda.setRemota(v.ultimaSequenza());
+                        return;
+                }
+
+                boolean cambiata = false;
+                scrittura.lock();
+                try {
+                        Map<String, Persona> locali = Persona.perTelefono(locale.getContatti());
+                        Set<String> presenti = new HashSet<>();
+                        for (ContattiSincronizzabili.Variazione x : v.voci()) {
+                                presenti.add(x.telefono());
+                                cambiata |= applica(x, x.sequenza() > watermark, locali);
+                        }
+                        if (v.completa()) {
+                                // le voci assenti sul server e senza scritture locali in coda sono state eliminate
+                                for (String tel : locali.keySet()) {
+                                        if (!presenti.contains(tel) && !coda.inAttesa(tel)) {
+                                                locale.rimuoviPersona(locali.get(tel));
+                                                versioni.remove(tel);
+                                                cambiata = true;
+                                        }
+                                }
+                        }
+                        coda.setRemota(v.ultimaSequenza());
+                } finally {
+                        scrittura.unlock();
+                }
+                RICEVUTE.add(v.voci().size());
+                Runnable a = ascoltatore;
+                if (cambiata && a != null) {
+                        try {
+                                a.run();
+                        } catch (RuntimeException e) {
+                                LOG.log(Level.WARNING, "Aggiornamento dopo la ricezione non riuscito", e);
+                        }
+                }
+        }
+
+        /* Da invocare sotto il lock di scrittura; restituisce true se la rubrica locale è cambiata. */
+        private boolean applica(ContattiSincronizzabili.Variazione x, boolean nuova, Map<String, Persona> locali) {
+                String tel = x.telefono();
+                Persona remota = x.persona();
+                if (remota != null) versioni.put(tel, remota.getVersione());
+                else versioni.remove(tel);
+
+                Long scritta = scritte.remove(tel);
+                boolean eco = scritta != null && scritta == (remota == null ? ELIMINATA : remota.getVersione());
+                if (coda.inAttesa(tel)) {
+                        // la voce locale è più recente di quanto già ricevuto, o è la nostra stessa scrittura
+                        if (!nuova || eco) return false;
+                        CONFLITTI.increment();
+                        LOG.info(() -> "Conflitto sulla voce " + tel + ": vince la versione sul server");
+                        scarta(tel);
+                }
+                if (eco) return false;
+
+                Persona attuale = locali.get(tel);
+                if (remota == null) {
+                        if (attuale == null) return false;
+                        locale.rimuoviPersona(attuale);
+                        locali.remove(tel);
+                        return true;
+                }
+                if (remota.stessiDati(attuale)) return false;
+                Persona p = senzaId(remota);
+                if (attuale != null) locale.modificaPersona(p, tel);
+                else locale.salvaPersona(p);
+                locali.put(tel, p);
+                return true;
+        }
+
+        /**
+         * Invia le scritture in coda, nell'ordine in cui sono state fatte.
+         *
+         * @return {@code false} se un conflitto ha scartato delle voci: va ripetuta la ricezione.
+         */
+        private boolean invia() {
+                while (!chiuso) {
+                        Modifica m = coda.primo();
+                        if (m == null) break;
+                        try {
+                                invia(m);
+                        } catch (RuntimeException e) {
+                                if (!isConflitto(e)) throw e;
+                                CONFLITTI.increment();
+                                LOG.info(() -> "Conflitto inviando la voce " + m.telefono() + ": vince la versione sul server");
+                                scrittura.lock();
+                                try {
+                                        scarta(m.telefono());
+                                        if (m.telefonoPrecedente() != null) scarta(m.telefonoPrecedente());
+                                } finally {
+                                        scrittura.unlock();
+                                }
+                                // voce eliminata sul server: la ricezione incrementale non la riporterebbe
+                                // se l'eliminazione precede l'ultima ricezione completa
+                                if (!(e instanceof ConflittoVersione)) riallineaTutto = true;
+                                return false;
+                        }
+                        coda.conferma(m);
+                        INVIATE.increment();
+                }
+                return true;
+        }
+
+        private void invia(Modifica m) {
+                String tel = m.telefono();
+                switch (m.tipo()) {
+                        case INSERIMENTO -> {
+                                Persona p = senzaId(Objects.requireNonNull(m.persona()));
+                                Long base = versioni.get(tel);
+                                if (base != null) {
+                                        // voce già sul server: la sovrascrittura è condizionata alla versione ricevuta
+                                        p.setVersione(base);
+                                        remoto.modificaPersona(p, tel);
+                                } else {
+                                        remoto.salvaPersona(p);
+                                }
+                                registraScrittura(tel, p.getVersione());
+                        }
+                        case MODIFICA -> {
+                                Persona p = senzaId(Objects.requireNonNull(m.persona()));
+                                String prec = m.telefonoPrecedente() == null ? tel : m.telefonoPrecedente();
+                                Long base = versioni.get(prec);
+                                if (base == null) {
+                                        // voce mai arrivata sul server (inserimento scartato): si scrive per telefono
+                                        remoto.salvaPersona(p);
+                                } else {
+                                        p.setVersione(base);
+                                        remoto.modificaPersona(p, prec);
+                                }
+                                if (!prec.equals(tel)) {
+                                        versioni.remove(prec);
+                                        scritte.put(prec, ELIMINATA);
+                                }
+                                registraScrittura(tel, p.getVersione());
+                        }
+                        case ELIMINAZIONE -> {
+                                remoto.rimuoviPersona(new Persona(tel));
+                                versioni.remove(tel);
+                                scritte.put(tel, ELIMINATA);
+                        }
+                }
+        }
+
+        private void registraScrittura(String tel, long versione) {
+                versioni.put(tel, versione);
+                scritte.put(tel, versione);
+        }
+
+        /* Scarta le scritture in coda per il telefono; un cambio di numero scartato lascia voci locali orfane. */
+        private void scarta(String tel) {
+                for (Modifica s : coda.scarta(tel)) {
+                        if (s.telefonoPrecedente() != null && !s.telefonoPrecedente().equals(s.telefono()))
+                                riallineaTutto = true;
+                }
+        }
+
+        /** Conflitto di versione o voce non più presente sul server (SQLSTATE 45011). */
+        private static boolean isConflitto(RuntimeException e) {
+                return e instanceof ConflittoVersione || "45011".equals(Metriche.classifica(e));
+        }
+
+        /* ===================== helpers ===================== */
+
+        /* Copia per l'altro lato della sincronizzazione, che assegna il proprio identificativo. */
+        private static Persona senzaId(Persona p) {
+                Persona c = p.copia();
+                c.setId(null);
+                return c;
+        }
+}
@@ -0,0 +1,258 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.rubrica.ex.ConflittoVersione;
+import it.dissanahmed.util.DatabaseIncorporato;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Implementazione di {@link ContattiDao} su {@link DatabaseIncorporato}: le stesse tabelle e la
+ * stessa logica delle stored procedure di <code>schema_database.sql</code>, eseguite come
+ * transazioni locali nel processo.
+ * <p>
+ * Non c'è un token di sessione: il DAO è legato all'utente già autenticato dal processo, come
+ * {@link ContattiFs}. Ogni voce ha una versione; {@link #modificaPersona(Persona, String)} con una
+ * versione nota applica la modifica solo se la voce è ancora a quella versione
+ * (come <code>sp_modifica_persona</code>), altrimenti lancia {@link ConflittoVersione}.
+ * </p>
+ */
+public class ContattiIncorporato implements ContattiDao {
+
+        private final DatabaseIncorporato db;
+        private final String username;
+
+        /**
+         * @param db       il database incorporato.
+         * @param username l'utente proprietario della rubrica, già registrato in <code>LoginUser</code>.
+         */
+        public ContattiIncorporato(@NotNull DatabaseIncorporato db, @NotNull String username) {
+                this.db = Objects.requireNonNull(db);
+                this.username = Objects.requireNonNull(username, "username nullo");
+        }
+
+        /* come sp_get_rubrica */
+        @Override
+        public List<Persona> getContatti() {
+                try {
+                        return db.transazione(c -> {
+                                List<Persona> out = new ArrayList<>();
+                                try (PreparedStatement ps = c.prepareStatement(
+                                        "SELECT nome, cognome, indirizzo, telefono, eta, version, id FROM Persona "
+                                                + "WHERE username = ? ORDER BY cognome, nome")) {
+                                        ps.setString(1, username);
+                                        try (ResultSet rs = ps.executeQuery()) {
+                                                while (rs.next()) {
+                                                        Persona p = new Persona(rs.getString(1), rs.getString(2), rs.getString(3),
+                                                                rs.getString(4), rs.getInt(5));
+                                                        p.setVersione(rs.getLong(6));
+                                                        p.setId(rs.getString(7));
+                                                        out.add(p);
+                                                }
+                                        }
+                                }
+                                return out;
+                        });
+                } catch (SQLException ex) {
+                        throw new RuntimeException("Errore getContatti: " + ex.getMessage(), ex);
+                }
+        }
+
+        /* come sp_salva_rubrica: elimina le voci assenti, aggiorna (e incrementa la versione) solo quelle cambiate */
+        @Override
+        public void salvaContatti(List<Persona> personaList) {
+                Map<String, Persona> nuove = new LinkedHashMap<>();
+                if (personaList != null) {
+                        for (Persona p : personaList) {
+                                if (p != null && p.getTelefono() != null) nuove.put(p.getTelefono(), p);
+                        }
+                }
+                try {
+                        db.transazione(c -> {
+                                Map<String, Persona> attuali = new HashMap<>();
+                                try (PreparedStatement ps = c.prepareStatement(
+                                        "SELECT nome, cognome, indirizzo, telefono, eta FROM Persona WHERE username = ? FOR UPDATE")) {
+                                        ps.setString(1, username);
+                                        try (ResultSet rs = ps.executeQuery()) {
+                                                while (rs.next()) {
+                                                        attuali.put(rs.getString(4), new Persona(rs.getString(1), rs.getString(2),
+                                                                rs.getString(3), rs.getString(4), rs.getInt(5)));
+                                                }
+                                        }
+                                }
+                                try (PreparedStatement elimina = c.prepareStatement(
+                                             "DELETE FROM Persona WHERE username = ? AND telefono = ?");
+                                     PreparedStatement aggiorna = c.prepareStatement(
+                                             "UPDATE Persona SET nome = ?, cognome = ?, indirizzo = ?, eta = ?, version = version + 1 "
+                                                     + "WHERE username = ? AND telefono = ?");
+                                     PreparedStatement inserisci = c.prepareStatement(
+                                             "INSERT INTO Persona(nome, cognome, indirizzo, eta, username, telefono) VALUES (?, ?, ?, ?, ?, ?)")) {
+                                        for (String tel : attuali.keySet()) {
+                                                if (nuove.containsKey(tel)) continue;
+                                                elimina.setString(1, username);
+                                                elimina.setString(2, tel);
+                                                elimina.addBatch();
+                                        }
+                                        for (Persona p : nuove.values()) {
+                                                Persona prima = attuali.get(p.getTelefono());
+                                                if (prima == null) aggiungi(inserisci, p);
+                                                else if (!p.stessiDati(prima)) aggiungi(aggiorna, p);
+                                        }
+                                        elimina.executeBatch();
+                                        aggiorna.executeBatch();
+                                        inserisci.executeBatch();
+                                }
+                                return null;
+                        });
+                } catch (SQLException ex) {
+                        throw new RuntimeException("Errore salvaContatti: " + ex.getMessage(), ex);
+                }
+        }
+
+        /* Stessi parametri per UPDATE e INSERT: dati, poi chiave. */
+        private void aggiungi(PreparedStatement ps, Persona p) throws SQLException {
+                imposta(ps, p);
+                ps.setString(5, username);
+                ps.setString(6, p.getTelefono());
+                ps.addBatch();
+        }
+
+        /* I dati della voce nei parametri 1..4. */
+        private static void imposta(PreparedStatement ps, Persona p) throws SQLException {
+                ps.setString(1, p.getNome());
+                ps.setString(2, p.getCognome());
+                ps.setString(3, p.getIndirizzo());
+                ps.setInt(4, p.getEta());
+        }
+
+        /* come sp_inserisci_persona: inserisce, o aggiorna incrementando la versione se il telefono esiste già */
+        @Override
+        public void salvaPersona(Persona persona) {
+                if (persona == null || persona.getTelefono() == null)
+                        throw new IllegalArgumentException("Persona o telefono null");
+                try {
+                        long versione = db.transazione(c -> {
+                                long v = aggiornaVersione(c, persona, persona.getTelefono(), -1);
+                                if (v > 0) return v;
+                                try (PreparedStatement ps = c.prepareStatement(
+                                        "INSERT INTO Persona(nome, cognome, indirizzo, eta, username, telefono) VALUES (?, ?, ?, ?, ?, ?)")) {
+                                        imposta(ps, persona);
+                                        ps.setString(5, username);
+                                        ps.setString(6, persona.getTelefono());
+                                        ps.executeUpdate();
+                                }
+                                return 1L;
+                        });
+                        persona.setVersione(versione);
+                } catch (SQLException ex) {
+                        // inserita da un'altra transazione fra l'UPDATE e l'INSERT: ora l'UPDATE la trova
+                        if (DatabaseIncorporato.chiaveDuplicata(ex)) {
+                                salvaPersona(persona);
+                                return;
+                        }
+                        throw new RuntimeException("Errore salvaPersona: " + ex.getMessage(), ex);
+                }
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p>
+         * Come <code>sp_modifica_persona</code>: con una versione letta da {@link #getContatti()} o
+         * restituita da una scrittura precedente la modifica è un compare-and-set sulla versione; anche
+         * un cambio di telefono aggiorna la stessa riga, che conserva il suo id.
+         * </p>
+         *
+         * @throws ConflittoVersione se la voce è stata modificata o eliminata nel frattempo.
+         */
+        @Override
+        public void modificaPersona(Persona daModificare, String oldTel) {
+                if (daModificare == null || daModificare.getTelefono() == null)
+                        throw new IllegalArgumentException("Persona o telefono null");
+
+                long attesa = daModificare.getVersione();
+                String nuovoTel = daModificare.getTelefono();
+                try {
+                        long versione = db.transazione(c -> {
+                                long attuale = versione(c, oldTel);
+                                if (attuale < 0) {
+                                        throw new SQLException("Voce non trovata nella tua rubrica", "45011");
+                                }
+                                long v = attesa > 0 ? attesa : attuale;
+                                long nuova = aggiornaVersione(c, daModificare, oldTel, v);
+                                if (nuova < 0) throw new SQLException("Conflitto di versione", "45013");
+                                return nuova;
+                        });
+                        daModificare.setVersione(versione);
+                } catch (SQLException ex) {
+                        if ("45013".equals(ex.getSQLState())) throw new ConflittoVersione(oldTel, attesa, ex);
+                        if ("45011".equals(ex.getSQLState())) {
+                                throw new RuntimeException("Voce non trovata nella tua rubrica (tel=" + nuovoTel + ")", ex);
+                        }
+                        if (DatabaseIncorporato.chiaveDuplicata(ex)) {
+                                throw new RuntimeException("Telefono già presente nella tua rubrica (tel=" + nuovoTel + ")", ex);
+                        }
+                        throw new RuntimeException("Errore modificaPersona: " + ex.getMessage(), ex);
+                }
+        }
+
+        /* come sp_elimina_persona */
+        @Override
+        public void rimuoviPersona(Persona daEliminare) {
+                if (daEliminare == null || daEliminare.getTelefono() == null)
+                        throw new IllegalArgumentException("Persona o telefono null");
+                try {
+                        db.transazione(c -> {
+                                try (PreparedStatement ps = c.prepareStatement(
+                                        "DELETE FROM Persona WHERE username = ? AND telefono = ?")) {
+                                        ps.setString(1, username);
+                                        ps.setString(2, daEliminare.getTelefono());
+                                        return ps.executeUpdate();
+                                }
+                        });
+                } catch (SQLException ex) {
+                        throw new RuntimeException("Errore rimuoviPersona: " + ex.getMessage(), ex);
+                }
+        }
+
+        /* @return la versione della voce, -1 se non esiste. */
+        private long versione(Connection c, String telefono) throws SQLException {
+                try (PreparedStatement ps = c.prepareStatement(
+                        "SELECT version FROM Persona WHERE username = ? AND telefono = ?")) {
+                        ps.setString(1, username);
+                        ps.setString(2, telefono);
+                        try (ResultSet rs = ps.executeQuery()) {
+                                return rs.next() ? rs.getLong(1) : -1;
+                        }
+                }
+        }
+
+        /*
+         * Aggiorna sul posto i dati della voce con il telefono indicato, compreso il telefono di
+         * {@code p} se è cambiato, e ne incrementa la versione, solo se è ancora a {@code attesa}
+         * (-1 = qualunque). @return la nuova versione, -1 se nessuna riga è stata aggiornata.
+         */
+        private long aggiornaVersione(Connection c, Persona p, String telefono, long attesa) throws SQLException {
+                String sql = "UPDATE Persona SET nome = ?, cognome = ?, indirizzo = ?, eta = ?, telefono = ?, "
+                        + "version = version + 1 WHERE username = ? AND telefono = ?" + (attesa < 0 ? "" : " AND version = ?");
+                try (PreparedStatement ps = c.prepareStatement(sql)) {
+                        imposta(ps, p);
+                        ps.setString(5, p.getTelefono());
+                        ps.setString(6, username);
+                        ps.setString(7, telefono);
+                        if (attesa >= 0) ps.setLong(8, attesa);
+                        if (ps.executeUpdate() == 0) return -1;
+                }
+                // la riga resta bloccata dall'UPDATE fino al commit: la versione letta è la nostra
+                return versione(c, p.getTelefono());
+        }
+}
@@ -0,0 +1,45 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.rubrica.Persona;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * {@link ContattiDao} in grado di restituire le sole voci cambiate dopo una certa
+ * sequenza, usato da {@link ContattiIbrido} per la sincronizzazione incrementale.
+ * <p>
+ * Ogni scrittura sulla rubrica riceve una sequenza crescente per utente; chi sincronizza
+ * conserva l'ultima ricevuta (watermark) e alla volta successiva chiede solo quello che
+ * è cambiato dopo, quindi il costo dipende dalle modifiche e non dalla dimensione della rubrica.
+ * </p>
+ */
+public interface ContattiSincronizzabili extends ContattiDao {
+
+        /**
+         * Una voce scritta o eliminata.
+         *
+         * @param sequenza sequenza dell'ultima scrittura della voce.
+         * @param telefono telefono della voce.
+         * @param persona  la voce, con la sua versione; {@code null} se eliminata.
+         */
+        record Variazione(long sequenza, @NotNull String telefono, @Nullable Persona persona) {
+        }
+
+        /**
+         * @param ultimaSequenza sequenza da passare alla richiesta successiva.
+         * @param completa       {@code true} se {@link #voci()} è l'intera rubrica: le voci che non
+         *                       compaiono vanno considerate eliminate.
+         * @param voci           voci cambiate, in ordine di sequenza.
+         */
+        record Variazioni(long ultimaSequenza, boolean completa, @NotNull List<Variazione> voci) {
+        }
+
+        /**
+         * @param daSequenza ultima sequenza già ricevuta; 0 per l'intera rubrica.
+         * @return le voci scritte o eliminate dopo {@code daSequenza}; l'intera rubrica se
+         * {@code daSequenza} è 0 o le eliminazioni di quel periodo non sono più conservate.
+         */
+        Variazioni variazioniDa(long daSequenza);
+}
@@ -0,0 +1,254 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.util.Configurazione;
+import it.dissanahmed.util.Metriche;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Flusso delle modifiche ai contatti (change data capture) del processo.
+ * <p>
+ * Ogni scrittura riuscita su un {@link ContattiDao} ottenuto da {@link ContattiDao#getInstance(String)}
+ * produce una {@link Modifica} con numero di sequenza crescente. Le ultime modifiche restano in
+ * un buffer circolare (<code>cdc.capacita</code>, default 16384): un abbonato può ripartire da una
+ * sequenza passata, ad esempio l'ultima elaborata, e riceve poi quelle nuove. Cache, indici ed
+ * esportazioni possono così aggiornarsi in modo incrementale invece di rileggere la rubrica.
+ * </p>
+ * <p>
+ * Contropressione: un abbonamento è solo un cursore sul buffer e gli eventi sono consegnati
+ * nella quantità richiesta con {@link Flow.Subscription#request(long)}, quindi un abbonato lento
+ * non rallenta né i DAO né gli altri abbonati. Se resta indietro oltre la capacità del buffer
+ * riceve {@code onError} con {@link SequenzaScaduta} e deve riallinearsi con una lettura completa.
+ * Il flusso non termina mai con {@code onComplete}.
+ * </p>
+ */
+public final class FlussoModifiche implements Flow.Publisher<Modifica> {
+
+        private static final Logger LOG = Logger.getLogger(FlussoModifiche.class.getName());
+
+        /** Fotografia dello stato del flusso. */
+        public record Statistiche(long ultimaSequenza, long primaDisponibile, long abbonati, long scaduti) {
+        }
+
+        /** La sequenza richiesta non è più nel buffer. */
+        public static final class SequenzaScaduta extends RuntimeException {
+
+                private final long primaDisponibile;
+
+                SequenzaScaduta(long richiesta, long primaDisponibile) {
+                        super("Sequenza " + richiesta + " non più disponibile, la prima è " + primaDisponibile);
+                        this.primaDisponibile = primaDisponibile;
+                }
+
+                /** @return la sequenza più vecchia ancora nel buffer. */
+                public long getPrimaDisponibile() {
+                        return primaDisponibile;
+                }
+        }
+
+        private static final class Globale {
+                static final FlussoModifiche ISTANZA = new FlussoModifiche(
+                        Configurazione.get().getInt("cdc.capacita", 16_384), ForkJoinPool.commonPool());
+
+                static {
+                        Metriche.registraSonda("cdc", ISTANZA::statistiche);
+                }
+        }
+
+        private final Modifica[] anello;
+        private final int maschera;
+        private final Executor esecutore;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        /** Ultima sequenza pubblicata, protetta da {@link #lock}. */
+        private long ultima;
+
+        private final Set<Abbonamento> abbonamenti = ConcurrentHashMap.newKeySet();
+        private final LongAdder scaduti = new LongAdder();
+
+        /**
+         * @param capacita  modifiche conservate per gli abbonati in ritardo (arrotondata alla potenza di due).
+         * @param esecutore esegue le consegne agli abbonati.
+         */
+        public FlussoModifiche(int capacita, @NotNull Executor esecutore) {
+                if (capacita <= 0 || capacita > (1 << 30)) throw new IllegalArgumentException("capacità non valida: " + capacita);
+                int n = capacita == 1 ? 1 : Integer.highestOneBit(capacita - 1) << 1;
+                this.anello = new Modifica[n];
+                this.maschera = n - 1;
+                this.esecutore = Objects.requireNonNull(esecutore);
+        }
+
+        /** @return il flusso condiviso dal processo. */
+        public static FlussoModifiche get() {
+                return Globale.ISTANZA;
+        }
+
+        /** Registra una modifica e la notifica agli abbonati; restituisce la sua sequenza. */
+        long pubblica(@Nullable String utente, @NotNull Modifica.Tipo tipo, @NotNull String telefono,
+                      @Nullable String telefonoPrecedente, @Nullable Persona persona) {
+                long seq;
+                lock.lock();
+                try {
+                        seq = ++ultima;
+                        anello[(int) seq & maschera] = new Modifica(seq, System.currentTimeMillis(), utente, tipo,
+                                telefono, telefonoPrecedente, persona);
+                } finally {
+                        lock.unlock();
+                }
+                for (Abbonamento a : abbonamenti) a.pianifica();
+                return seq;
+        }
+
+        /** @return l'ultima sequenza pubblicata, 0 se nessuna. */
+        public long ultimaSequenza() {
+                lock.lock();
+                try {
+                        return ultima;
+                } finally {
+                        lock.unlock();
+                }
+        }
+
+        /** Abbona dalla prossima modifica. */
+        @Override
+        public void subscribe(Flow.Subscriber<? super Modifica> abbonato) {
+                subscribe(abbonato, ultimaSequenza() + 1);
+        }
+
+        /**
+         * Abbona a partire dalla modifica con la sequenza indicata (inclusa).
+         *
+         * @param daSequenza prima sequenza da ricevere; se già uscita dal buffer l'abbonato
+         *                   riceve subito {@link SequenzaScaduta}.
+         */
+        public void subscribe(@NotNull Flow.Subscriber<? super Modifica> abbonato, long daSequenza) {
+                Abbonamento a = new Abbonamento(Objects.requireNonNull(abbonato), Math.max(1, daSequenza));
+                abbonamenti.add(a);
+                abbonato.onSubscribe(a);
+                a.pianifica();
+        }
+
+        /** @return sequenze disponibili, abbonati attivi e abbonamenti chiusi per ritardo. */
+        public Statistiche statistiche() {
+                lock.lock();
+                try {
+                        return new Statistiche(ultima, primaDisponibile(), abbonamenti.size(), scaduti.sum());
+                } finally {
+                        lock.unlock();
+                }
+        }
+
+        /* Da invocare sotto lock. */
+        private long primaDisponibile() {
+                return Math.max(1, ultima - anello.length + 1);
+        }
+
+        /** @return la modifica con la sequenza indicata, o {@code null} se non ancora pubblicata. */
+        private Modifica leggi(long seq) {
+                lock.lock();
+                try {
+                        if (seq > ultima) return null;
+                        if (seq < primaDisponibile()) throw new SequenzaScaduta(seq, primaDisponibile());
+                        return anello[(int) seq & maschera];
+                } finally {
+                        lock.unlock();
+                }
+        }
+
+        /*
+         * Cursore di un abbonato. Le consegne avvengono sull'esecutore, una alla volta:
+         * il contatore lavoro garantisce un solo ciclo di consegna attivo e che nessuna
+         * richiesta o pubblicazione arrivata durante il ciclo vada persa.
+         */
+        private final class Abbonamento implements Flow.Subscription {
+
+                private final Flow.Subscriber<? super Modifica> abbonato;
+                private final AtomicLong domanda = new AtomicLong();
+                private final AtomicInteger lavoro = new AtomicInteger();
+                /** Prossima sequenza da consegnare, letta e scritta solo dal ciclo di consegna. */
+                private long prossima;
+                private volatile boolean chiuso;
+                private volatile Throwable richiestaNonValida;
+
+                Abbonamento(Flow.Subscriber<? super Modifica> abbonato, long daSequenza) {
+                        this.abbonato = abbonato;
+                        this.prossima = daSequenza;
+                }
+
+                @Override
+                public void request(long n) {
+                        if (n <= 0) {
+                                richiestaNonValida = new IllegalArgumentException("request(" + n + "): la domanda deve essere positiva");
+                        } else {
+                                domanda.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+                        }
+                        pianifica();
+                }
+
+                @Override
+                public void cancel() {
+                        chiuso = true;
+                        abbonamenti.remove(this);
+                }
+
+                void pianifica() {
+                        if (lavoro.getAndIncrement() != 0) return;
+                        try {
+                                esecutore.execute(this::consegna);
+                        } catch (RejectedExecutionException e) {
+                                lavoro.set(0);
+                                termina(e);
+                        }
+                }
+
+                private void consegna() {
+                        int mancati = 1;
+                        do {
+                                while (!chiuso) {
+                                        if (richiestaNonValida != null) {
+                                                termina(richiestaNonValida);
+                                                break;
+                                        }
+                                        Modifica m;
+                                        try {
+                                                m = leggi(prossima);
+                                        } catch (SequenzaScaduta e) {
+                                                scaduti.increment();
+                                                termina(e);
+                                                break;
+                                        }
+                                        if (m == null || domanda.get() == 0) break;
+                                        prossima++;
+                                        domanda.decrementAndGet();
+                                        try {
+                                                abbonato.onNext(m);
+                                        } catch (RuntimeException e) {
+                                                LOG.warning(() -> "Abbonato del flusso modifiche rimosso: " + e);
+                                                cancel();
+                                        }
+                                }
+                                mancati = lavoro.addAndGet(-mancati);
+                        } while (mancati != 0);
+                }
+
+                private void termina(Throwable t) {
+                        if (chiuso) return;
+                        cancel();
+                        abbonato.onError(t);
+                }
+        }
+}
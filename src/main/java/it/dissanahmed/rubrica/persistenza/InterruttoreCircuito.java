@@ -0,0 +1,137 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.util.Metriche;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Interruttore (circuit breaker) delle chiamate verso un database, condiviso da tutti i DAO
+ * che lo usano: un server fermo è fermo per ogni utente.
+ * <ul>
+ *   <li><b>CHIUSO</b>: le chiamate passano; dopo {@code soglia} fallimenti consecutivi si apre.</li>
+ *   <li><b>APERTO</b>: le chiamate sono rifiutate subito, senza attendere il server, per
+ *       {@code aperturaMs}; poi diventa semiaperto.</li>
+ *   <li><b>SEMIAPERTO</b>: passa una sola chiamata di prova; se riesce si richiude, altrimenti
+ *       si riapre per un altro intervallo.</li>
+ * </ul>
+ * Stato, aperture e chiamate rifiutate sono esposti dalla sonda <code>contattiDbms.interruttore</code>.
+ */
+public final class InterruttoreCircuito {
+
+        private static final Logger LOG = Logger.getLogger(InterruttoreCircuito.class.getName());
+        private static final Map<String, InterruttoreCircuito> PER_NOME = new ConcurrentHashMap<>();
+
+        static {
+                Metriche.registraSonda("contattiDbms.interruttore", InterruttoreCircuito::fotografie);
+        }
+
+        public enum Stato { CHIUSO, APERTO, SEMIAPERTO }
+
+        /** Fotografia dell'interruttore. */
+        public record Fotografia(Stato stato, int fallimentiConsecutivi, long aperture, long rifiutate) {
+        }
+
+        private final String nome;
+        private int soglia;
+        private long aperturaNanos;
+
+        private Stato stato = Stato.CHIUSO;
+        private int fallimenti;
+        private long riaperturaNanos;
+        private long aperture;
+        private long rifiutate;
+
+        InterruttoreCircuito(@NotNull String nome, int soglia, long aperturaMs) {
+                this.nome = nome;
+                configura(soglia, aperturaMs);
+        }
+
+        /**
+         * Restituisce l'interruttore con il nome indicato (di solito l'URL del database),
+         * creandolo al primo uso. Stato e contatori sono condivisi fra le chiamate; soglia e
+         * apertura diventano quelle passate, così una configurazione ricaricata vale anche
+         * per un interruttore già creato.
+         */
+        public static InterruttoreCircuito per(@NotNull String nome, int soglia, long aperturaMs) {
+                InterruttoreCircuito i = PER_NOME.computeIfAbsent(nome, n -> new InterruttoreCircuito(n, soglia, aperturaMs));
+                i.configura(soglia, aperturaMs);
+                return i;
+        }
+
+        /* Vale dal prossimo fallimento; un'apertura in corso mantiene la sua scadenza. */
+        private synchronized void configura(int soglia, long aperturaMs) {
+                this.soglia = Math.max(1, soglia);
+                this.aperturaNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, aperturaMs));
+        }
+
+        /**
+         * @return {@code true} se la chiamata può partire; in stato semiaperto solo la prima
+         *         chiamata dopo l'intervallo di apertura, che fa da prova.
+         */
+        public synchronized boolean consenti() {
+                switch (stato) {
+                        case CHIUSO:
+                                return true;
+                        case APERTO:
+                                if (System.nanoTime() - riaperturaNanos >= 0) {
+                                        stato = Stato.SEMIAPERTO;
+                                        return true;
+                                }
+                                break;
+                        case SEMIAPERTO:
+                        default:
+                                break;
+                }
+                rifiutate++;
+                return false;
+        }
+
+        /** La chiamata ha avuto una risposta dal server, anche un errore applicativo. */
+        public void successo() {
+                boolean richiuso;
+                synchronized (this) {
+                        richiuso = stato != Stato.CHIUSO;
+                        stato = Stato.CHIUSO;
+                        fallimenti = 0;
+                }
+                if (richiuso) LOG.info(() -> "Database di nuovo raggiungibile: interruttore " + nome + " chiuso");
+        }
+
+        /** La chiamata è scaduta o il server non era raggiungibile. */
+        public void fallimento() {
+                int errori;
+                long apertura;
+                synchronized (this) {
+                        fallimenti++;
+                        if (stato != Stato.SEMIAPERTO && (stato != Stato.CHIUSO || fallimenti < soglia)) return;
+                        stato = Stato.APERTO;
+                        riaperturaNanos = System.nanoTime() + aperturaNanos;
+                        aperture++;
+                        errori = fallimenti;
+                        apertura = aperturaNanos;
+                }
+                // fuori dal monitor: un virtual thread che lo tiene mentre attende la console blocca il carrier
+                LOG.warning(() -> "Database non disponibile dopo " + errori + " errori: interruttore " + nome
+                        + " aperto per " + TimeUnit.NANOSECONDS.toMillis(apertura) + " ms");
+        }
+
+        /** @return lo stato attuale. */
+        public synchronized Stato getStato() {
+                return stato;
+        }
+
+        public synchronized Fotografia fotografia() {
+                return new Fotografia(stato, fallimenti, aperture, rifiutate);
+        }
+
+        private static Map<String, Fotografia> fotografie() {
+                Map<String, Fotografia> out = new TreeMap<>();
+                PER_NOME.forEach((n, i) -> out.put(n, i.fotografia()));
+                return out;
+        }
+}
@@ -0,0 +1,80 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+
+/**
+ * Disposizione su disco delle cartelle utente e dei file contatto di {@link ContattiFs}.
+ * <p>
+ * Con profondità 0 (default) ogni utente è in <code>baseDir/&lt;utente&gt;</code> e ogni
+ * contatto direttamente nella sua cartella. Con profondità <i>n</i> si aggiungono <i>n</i>
+ * livelli di due cifre esadecimali ricavati da un hash del nome, ad esempio
+ * <code>baseDir/3f/a0/&lt;utente&gt;</code>: ogni cartella contiene al più 256 sottocartelle,
+ * così lookup e scansioni restano veloci anche con centinaia di migliaia di utenti.
+ * I contatti sono distribuiti in base al loro identificativo, che non cambia mai: un
+ * contatto si trova sempre leggendo una sola cartella e una modifica non lo sposta.
+ * </p>
+ */
+final class LayoutCartelle {
+
+        static final int MAX_LIVELLI = 3;
+
+        static final LayoutCartelle PIATTO = new LayoutCartelle(0, 0);
+
+        private final int livelliUtente;
+        private final int livelliContatti;
+
+        LayoutCartelle(int livelliUtente, int livelliContatti) {
+                if (livelliUtente < 0 || livelliUtente > MAX_LIVELLI || livelliContatti < 0 || livelliContatti > MAX_LIVELLI)
+                        throw new IllegalArgumentException("profondità non valida (0.." + MAX_LIVELLI + "): "
+                                + livelliUtente + ", " + livelliContatti);
+                this.livelliUtente = livelliUtente;
+                this.livelliContatti = livelliContatti;
+        }
+
+        int getLivelliUtente() {
+                return livelliUtente;
+        }
+
+        int getLivelliContatti() {
+                return livelliContatti;
+        }
+
+        boolean isPiatto() {
+                return livelliUtente == 0 && livelliContatti == 0;
+        }
+
+        /** @return la cartella dell'utente, con nome già reso sicuro per il file system. */
+        Path cartellaUtente(@NotNull Path baseDir, @NotNull String utente) {
+                return frammenta(baseDir, utente, livelliUtente).resolve(utente);
+        }
+
+        /**
+         * @return la cartella che contiene il file del contatto con la chiave indicata: l'identificativo,
+         *         o il telefono (già reso sicuro) per i file col nome di prima.
+         */
+        Path cartellaContatto(@NotNull Path cartellaUtente, @NotNull String chiave) {
+                return frammenta(cartellaUtente, chiave, livelliContatti);
+        }
+
+        private static Path frammenta(Path dir, String chiave, int livelli) {
+                if (livelli == 0) return dir;
+                CRC32C crc = new CRC32C();
+                crc.update(chiave.getBytes(StandardCharsets.UTF_8));
+                long h = crc.getValue();
+                Path out = dir;
+                for (int i = 0; i < livelli; i++) {
+                        int b = (int) (h >>> (24 - 8 * i)) & 0xff;
+                        out = out.resolve(Character.forDigit(b >>> 4, 16) + "" + Character.forDigit(b & 0xf, 16));
+                }
+                return out;
+        }
+
+        @Override
+        public String toString() {
+                return "utenti=" + livelliUtente + ", contatti=" + livelliContatti;
+        }
+}
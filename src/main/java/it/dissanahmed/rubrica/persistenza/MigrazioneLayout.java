@@ -0,0 +1,185 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.util.Ulid;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/*
+ * Migrazione a caldo dei file contatto verso un nuovo LayoutCartelle:
+ * - ogni file viene spostato con un rename atomico, quindi in ogni istante si trova
+ *   o nella posizione vecchia o in quella nuova, mai in entrambe né in nessuna
+ * - se la destinazione esiste già è più recente (scritta col nuovo layout): vince
+ *   e la copia vecchia viene eliminata
+ * - ContattiFs migra l'utente al primo caricamento, prima di leggere; il thread di
+ *   background migra gli utenti non ancora usati, senza fermare l'applicazione
+ * - info.txt (credenziali di LoginDaoFs) resta nella cartella originale; l'indice dei telefoni
+ *   (.telefoni/) segue i contatti nella nuova cartella utente
+ * - i file <id>.txt vanno nella cartella del loro identificativo, quelli col nome di prima
+ *   (nome-cognome-telefono.txt) in quella del telefono: li rinomina poi ContattiFs
+ * Supporta il passaggio da cartelle utente piatte a frammentate e qualsiasi cambio
+ * della profondità dei contatti; non il ritorno a cartelle utente piatte.
+ */
+final class MigrazioneLayout {
+
+        private static final Logger LOG = Logger.getLogger(MigrazioneLayout.class.getName());
+
+        private static final String EXT = ".txt";
+        private static final Set<String> NON_CONTATTI = Set.of("info.txt", "informazioni.txt");
+        private static final String INDICE_TELEFONI = ".telefoni";
+
+        private static final Set<String> AVVIATE = ConcurrentHashMap.newKeySet();
+
+        private MigrazioneLayout() {}
+
+        /**
+         * Porta i contatti dell'utente nel layout indicato.
+         *
+         * @param utente nome della cartella utente, già reso sicuro per il file system.
+         * @return il numero di file spostati.
+         */
+        static int migraUtente(@NotNull Path baseDir, @NotNull String utente, @NotNull LayoutCartelle layout) throws IOException {
+                Path nuova = layout.cartellaUtente(baseDir, utente);
+                Path vecchia = baseDir.resolve(utente);
+                int spostati = 0;
+                if (!vecchia.equals(nuova)) {
+                        for (Path f : contattiDiretti(vecchia)) {
+                                if (sposta(f, nuova, layout)) spostati++;
+                        }
+                        spostaIndice(vecchia.resolve(INDICE_TELEFONI), nuova.resolve(INDICE_TELEFONI));
+                }
+                // contatti già nella cartella utente ma a una profondità diversa da quella configurata
+                if (Files.isDirectory(nuova)) {
+                        List<Path> fuoriPosto = new ArrayList<>();
+                        try (Stream<Path> s = Files.walk(nuova, LayoutCartelle.MAX_LIVELLI + 1)) {
+                                s.filter(MigrazioneLayout::isContatto)
+                                        .filter(f -> !f.getParent().equals(destinazione(f, nuova, layout, true)))
+                                        .forEach(fuoriPosto::add);
+                        } catch (java.io.UncheckedIOException e) {
+                                throw e.getCause();
+                        }
+                        for (Path f : fuoriPosto) {
+                                if (sposta(f, nuova, layout)) spostati++;
+                        }
+                }
+                return spostati;
+        }
+
+        /**
+         * Migra tutti gli utenti con cartella piatta sotto {@code baseDir}.
+         *
+         * @return il numero di file spostati.
+         */
+        static int migraTutto(@NotNull Path baseDir, @NotNull LayoutCartelle layout) throws IOException {
+                if (!Files.isDirectory(baseDir)) return 0;
+                List<String> utenti = new ArrayList<>();
+                try (DirectoryStream<Path> dirs = Files.newDirectoryStream(baseDir, Files::isDirectory)) {
+                        // le cartelle di frammentazione contengono solo cartelle: restano escluse
+                        for (Path d : dirs) {
+                                if (!contattiDiretti(d).isEmpty()) utenti.add(d.getFileName().toString());
+                        }
+                }
+                int spostati = 0;
+                for (String u : utenti) spostati += migraUtente(baseDir, u, layout);
+                return spostati;
+        }
+
+        /** Avvia, una sola volta per cartella e layout, la migrazione di tutti gli utenti in un thread di background. */
+        static void avviaInBackground(@NotNull Path baseDir, @NotNull LayoutCartelle layout) {
+                if (layout.getLivelliUtente() == 0) return;
+                if (!AVVIATE.add(baseDir.toAbsolutePath().normalize() + "|" + layout)) return;
+                Thread t = new Thread(() -> {
+                        try {
+                                long inizio = System.nanoTime();
+                                int n = migraTutto(baseDir, layout);
+                                long ms = (System.nanoTime() - inizio) / 1_000_000;
+                                if (n > 0) LOG.info(() -> "Migrati " + n + " file contatto in " + ms + " ms (" + layout + ")");
+                        } catch (IOException | RuntimeException e) {
+                                LOG.warning(() -> "Migrazione layout fallita: " + e.getMessage());
+                        }
+                }, "migrazione-layout-fs");
+                t.setDaemon(true);
+                t.start();
+        }
+
+        /** @return il telefono (già reso sicuro) contenuto nel nome di un file contatto di prima, o {@code null}. */
+        static @Nullable String telefonoDaNome(@NotNull String nome) {
+                if (!nome.endsWith(EXT)) return null;
+                int trattino = nome.lastIndexOf('-');
+                if (trattino < 0 || trattino + 1 >= nome.length() - EXT.length()) return null;
+                return nome.substring(trattino + 1, nome.length() - EXT.length());
+        }
+
+        private static boolean sposta(Path file, Path cartellaUtente, LayoutCartelle layout) throws IOException {
+                Path dir = destinazione(file, cartellaUtente, layout, false);
+                if (dir == null) return false;
+                Path dest = dir.resolve(file.getFileName());
+                if (dest.equals(file)) return false;
+                Files.createDirectories(dir);
+                try {
+                        if (Files.exists(dest)) {
+                                Files.deleteIfExists(file);
+                                return false;
+                        }
+                        Files.move(file, dest, StandardCopyOption.ATOMIC_MOVE);
+                        return true;
+                } catch (NoSuchFileException e) {
+                        return false;  // spostato nel frattempo da un'altra migrazione
+                }
+        }
+
+        /* L'indice va spostato intero; se nella nuova cartella ce n'è già uno, quello vecchio è superato. */
+        private static void spostaIndice(Path vecchio, Path nuovo) throws IOException {
+                if (!Files.isDirectory(vecchio)) return;
+                if (!Files.exists(nuovo)) {
+                        Files.createDirectories(nuovo.getParent());
+                        try {
+                                Files.move(vecchio, nuovo, StandardCopyOption.ATOMIC_MOVE);
+                                return;
+                        } catch (NoSuchFileException | FileAlreadyExistsException e) {
+                                // spostato nel frattempo da un'altra migrazione
+                        }
+                }
+                try (DirectoryStream<Path> s = Files.newDirectoryStream(vecchio)) {
+                        for (Path p : s) Files.deleteIfExists(p);
+                }
+                Files.deleteIfExists(vecchio);
+        }
+
+        private static Path destinazione(Path file, Path cartellaUtente, LayoutCartelle layout, boolean perConfronto) {
+                String nome = file.getFileName().toString();
+                String chiave = nome.substring(0, nome.length() - EXT.length());
+                if (!Ulid.valido(chiave)) chiave = telefonoDaNome(nome);
+                if (chiave == null) return perConfronto ? file.getParent() : null;
+                return layout.cartellaContatto(cartellaUtente, chiave);
+        }
+
+        private static boolean isContatto(Path p) {
+                String nome = p.getFileName().toString();
+                return nome.endsWith(EXT) && !NON_CONTATTI.contains(nome) && !nome.startsWith(".") && Files.isRegularFile(p);
+        }
+
+        private static List<Path> contattiDiretti(Path dir) throws IOException {
+                List<Path> out = new ArrayList<>();
+                if (!Files.isDirectory(dir)) return out;
+                try (DirectoryStream<Path> s = Files.newDirectoryStream(dir, "*" + EXT)) {
+                        for (Path p : s) {
+                                if (isContatto(p)) out.add(p);
+                        }
+                }
+                return out;
+        }
+}
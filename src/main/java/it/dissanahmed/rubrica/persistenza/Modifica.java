@@ -0,0 +1,30 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.rubrica.Persona;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Evento del flusso di modifiche ({@link FlussoModifiche}): una scrittura riuscita su un
+ * {@link ContattiDao}.
+ *
+ * @param sequenza           numero progressivo nel processo, a partire da 1, senza buchi.
+ * @param istante            istante della scrittura, in millisecondi epoch.
+ * @param utente             utente proprietario della rubrica ({@code null} in modalità singola).
+ * @param tipo               tipo di modifica.
+ * @param telefono           telefono della voce dopo la modifica (o eliminata).
+ * @param telefonoPrecedente per {@link Tipo#MODIFICA}, il telefono prima della modifica.
+ * @param persona            copia della voce scritta; {@code null} per {@link Tipo#ELIMINAZIONE}.
+ */
+public record Modifica(long sequenza, long istante, @Nullable String utente, @NotNull Tipo tipo,
+                       @NotNull String telefono, @Nullable String telefonoPrecedente, @Nullable Persona persona) {
+
+        public enum Tipo {
+                /** Voce scritta per telefono: nuova, o sostituisce quella con lo stesso telefono. */
+                INSERIMENTO,
+                /** Voce modificata, eventualmente cambiando telefono. */
+                MODIFICA,
+                /** Voce eliminata. */
+                ELIMINAZIONE
+        }
+}
@@ -0,0 +1,233 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scritture atomiche su file con livello di durabilità configurabile.
+ * <p>
+ * Ogni scrittura avviene su un file temporaneo nella stessa cartella, poi rinominato
+ * atomicamente sul file di destinazione: un crash non lascia mai un file troncato.
+ * Il livello di {@link Durabilita} stabilisce quando i dati sono su disco:
+ * </p>
+ * <ul>
+ *   <li>{@link Durabilita#NONE}: nessun fsync, solo rename atomico;</li>
+ *   <li>{@link Durabilita#BATCH}: fsync del file, mentre l'fsync della cartella
+ *       (che rende durevole il rename) è condiviso da tutte le scritture arrivate
+ *       nella stessa finestra (group commit);</li>
+ *   <li>{@link Durabilita#PER_OP}: fsync del file e della cartella a ogni operazione.</li>
+ * </ul>
+ * <p>
+ * I metodi restituiscono un {@link CompletableFuture} completato quando l'operazione
+ * è durevole, così il chiamante può rilasciare i propri lock prima di attendere.
+ * </p>
+ */
+final class ScritturaDurevole {
+
+        enum Durabilita {
+                NONE, BATCH, PER_OP;
+
+                /**
+                 * @param s valore di {@code fs.durability}; vuoto o {@code null} vale {@link #BATCH}.
+                 * @throws IllegalArgumentException se il valore non è uno dei livelli, con i valori ammessi.
+                 */
+                static Durabilita parse(String s) {
+                        if (s == null || s.isBlank()) return BATCH;
+                        try {
+                                return valueOf(s.trim().toUpperCase(Locale.ROOT));
+                        } catch (IllegalArgumentException e) {
+                                throw new IllegalArgumentException("Valore non valido per fs.durability: " + s
+                                        + " (ammessi: " + Arrays.toString(values()) + ")", e);
+                        }
+                }
+        }
+
+        /** Prefisso e suffisso dei file temporanei, che restano solo se un processo muore a metà scrittura. */
+        private static final String PREFISSO_TMP = ".";
+        private static final String SUFFISSO_TMP = ".tmp";
+        /** Età oltre la quale un file temporaneo è certamente abbandonato: una scrittura dura millisecondi. */
+        static final long ETA_TEMPORANEI_MS = TimeUnit.MINUTES.toMillis(10);
+
+        private static final CompletableFuture<Void> FATTO = CompletableFuture.completedFuture(null);
+        private static final Map<String, ScritturaDurevole> ISTANZE = new ConcurrentHashMap<>();
+
+        private final Durabilita durabilita;
+        private final long finestraNanos;
+
+        // cartelle in attesa di fsync, protette da this
+        private Map<Path, List<CompletableFuture<Void>>> inAttesa = new HashMap<>();
+        private Thread committer;
+
+        private ScritturaDurevole(Durabilita durabilita, long finestraMs) {
+                this.durabilita = durabilita;
+                this.finestraNanos = TimeUnit.MILLISECONDS.toNanos(finestraMs);
+        }
+
+        /**
+         * Restituisce lo scrittore condiviso per il livello e la finestra indicati:
+         * le scritture di tutti i DAO del processo partecipano allo stesso group commit.
+         */
+        static ScritturaDurevole get(@NotNull Durabilita durabilita, long finestraMs) {
+                return ISTANZE.computeIfAbsent(durabilita + "/" + finestraMs,
+                        k -> new ScritturaDurevole(durabilita, finestraMs));
+        }
+
+        Durabilita getDurabilita() {
+                return durabilita;
+        }
+
+        /**
+         * Scrive atomicamente {@code contenuto} su {@code file}.
+         * <p>
+         * Il file temporaneo ha un nome univoco, così scrittori concorrenti sullo stesso file (anche
+         * di processi diversi) non si sovrascrivono a vicenda il temporaneo: vince l'ultimo rename,
+         * ma il file resta sempre intero. Se la scrittura fallisce il temporaneo viene eliminato.
+         * </p>
+         */
+        CompletableFuture<Void> scrivi(@NotNull Path file, @NotNull String contenuto, @NotNull Charset cs) throws IOException {
+                Path dir = file.toAbsolutePath().getParent();
+                Path tmp = Files.createTempFile(dir, PREFISSO_TMP + file.getFileName() + ".", SUFFISSO_TMP);
+                try {
+                        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                                ByteBuffer buf = cs.encode(contenuto);
+                                while (buf.hasRemaining()) ch.write(buf);
+                                if (durabilita != Durabilita.NONE) ch.force(false);
+                        }
+                        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException | RuntimeException e) {
+                        try {
+                                Files.deleteIfExists(tmp);
+                        } catch (IOException ex) {
+                                e.addSuppressed(ex);
+                        }
+                        throw e;
+                }
+                return syncCartella(dir);
+        }
+
+        /**
+         * Elimina da {@code dir} i file temporanei più vecchi di {@code etaMinimaMs}, lasciati da
+         * processi terminati durante una scrittura. Quelli più recenti possono essere di una scrittura
+         * ancora in corso e restano.
+         *
+         * @return quanti file sono stati eliminati.
+         */
+        static int pulisciTemporanei(@NotNull Path dir, long etaMinimaMs) throws IOException {
+                if (!Files.isDirectory(dir)) return 0;
+                long limite = System.currentTimeMillis() - etaMinimaMs;
+                int n = 0;
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFISSO_TMP + "*" + SUFFISSO_TMP)) {
+                        for (Path p : stream) {
+                                try {
+                                        if (Files.isRegularFile(p) && Files.getLastModifiedTime(p).toMillis() < limite
+                                                && Files.deleteIfExists(p)) n++;
+                                } catch (IOException ignored) {
+                                        // rinominato o eliminato nel frattempo
+                                }
+                        }
+                }
+                return n;
+        }
+
+        /**
+         * Elimina {@code file}, se esiste, rendendo durevole la rimozione secondo il livello.
+         */
+        CompletableFuture<Void> elimina(@NotNull Path file) throws IOException {
+                if (!Files.deleteIfExists(file)) return FATTO;
+                return syncCartella(file.toAbsolutePath().getParent());
+        }
+
+        /** Attende il completamento delle operazioni indicate. */
+        static void attendi(@NotNull List<CompletableFuture<Void>> commit) {
+                for (CompletableFuture<Void> f : commit) {
+                        try {
+                                f.join();
+                        } catch (RuntimeException e) {
+                                Throwable causa = e.getCause() == null ? e : e.getCause();
+                                throw new RuntimeException("Errore sync su disco: " + causa.getMessage(), causa);
+                        }
+                }
+        }
+
+        private CompletableFuture<Void> syncCartella(Path dir) throws IOException {
+                switch (durabilita) {
+                        case NONE:
+                                return FATTO;
+                        case PER_OP:
+                                fsync(dir);
+                                return FATTO;
+                        default:
+                                CompletableFuture<Void> f = new CompletableFuture<>();
+                                synchronized (this) {
+                                        inAttesa.computeIfAbsent(dir, d -> new ArrayList<>()).add(f);
+                                        avviaCommitter();
+                                        notifyAll();
+                                }
+                                return f;
+                }
+        }
+
+        private void avviaCommitter() {
+                if (committer != null) return;
+                committer = new Thread(this::ciclo, "group-commit-fs");
+                committer.setDaemon(true);
+                committer.start();
+        }
+
+        private void ciclo() {
+                while (true) {
+                        Map<Path, List<CompletableFuture<Void>>> gruppo;
+                        try {
+                                synchronized (this) {
+                                        while (inAttesa.isEmpty()) wait();
+                                }
+                                // finestra di raccolta: le scritture concorrenti si accodano allo stesso fsync
+                                if (finestraNanos > 0) TimeUnit.NANOSECONDS.sleep(finestraNanos);
+                                synchronized (this) {
+                                        gruppo = inAttesa;
+                                        inAttesa = new HashMap<>();
+                                }
+                        } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return;
+                        }
+                        for (Map.Entry<Path, List<CompletableFuture<Void>>> e : gruppo.entrySet()) {
+                                try {
+                                        fsync(e.getKey());
+                                        e.getValue().forEach(f -> f.complete(null));
+                                } catch (IOException ex) {
+                                        e.getValue().forEach(f -> f.completeExceptionally(ex));
+                                }
+                        }
+                }
+        }
+
+        private static void fsync(Path dir) throws IOException {
+                try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+                        ch.force(true);
+                } catch (IOException e) {
+                        // alcuni file system (es. Windows) non permettono di aprire una cartella:
+                        // lì il rename è già durevole quando move() ritorna
+                        if (Files.isDirectory(dir) && System.getProperty("os.name", "").startsWith("Windows")) return;
+                        throw e;
+                }
+        }
+}
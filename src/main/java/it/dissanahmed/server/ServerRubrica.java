@@ -0,0 +1,522 @@
+package it.dissanahmed.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import it.dissanahmed.login.GestioneLogin;
+import it.dissanahmed.login.ex.ProblemaAutenticazione;
+import it.dissanahmed.login.ex.UtenteNonTrovato;
+import it.dissanahmed.rubrica.GestioneContatti;
+import it.dissanahmed.rubrica.GestoreRubriche;
+import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.rubrica.ex.PersonaException;
+import it.dissanahmed.util.CachePesata;
+import it.dissanahmed.util.Configurazione;
+import it.dissanahmed.util.Istogramma;
+import it.dissanahmed.util.Json;
+import it.dissanahmed.util.Metriche;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Server HTTP/JSON integrato che espone la rubrica a più client contemporaneamente.
+ * <p>
+ * Basato su {@link HttpServer} del JDK: un solo thread di dispatch gestisce tutte le
+ * connessioni tramite selector (keep-alive HTTP/1.1 incluso) e ogni richiesta viene
+ * eseguita su un virtual thread, così migliaia di connessioni aperte non occupano
+ * thread di piattaforma. Le richieste in pipeline sulla stessa connessione vengono
+ * servite in ordine.
+ * </p>
+ * <pre>
+ * POST   /api/login              {"username":..., "password":...} -&gt; {"token":..., "scadenza":...}
+ * POST   /api/logout             (Authorization: Bearer &lt;token&gt;)
+ * GET    /api/contatti           ?q=&amp;campo=&amp;offset=&amp;limit= lista paginata, filtrata se q è presente
+ * GET    /api/contatti/{tel}     dettaglio
+ * POST   /api/contatti           inserimento
+ * PUT    /api/contatti/{tel}     modifica dei soli campi presenti nel corpo, tutti o nessuno
+ * DELETE /api/contatti/{tel}     eliminazione
+ * GET    /api/stats              latenze per endpoint e metriche del processo (sessione richiesta)
+ * </pre>
+ * <p>
+ * Le rubriche sono condivise tra le sessioni dello stesso utente e gestite da un
+ * {@link GestoreRubriche}: ogni richiesta ottiene la {@link GestioneContatti} corrente
+ * dell'utente, e le modifiche vengono serializzate sulla sua istanza.
+ * </p>
+ */
+public final class ServerRubrica implements AutoCloseable {
+
+        private static final Logger LOG = Logger.getLogger(ServerRubrica.class.getName());
+
+        private static final String CONTATTI = "/api/contatti";
+        private static final int MAX_CORPO = 64 * 1024;
+        private static final int LIMIT_DEFAULT = 100;
+        private static final int LIMIT_MAX = 1000;
+        private static final SecureRandom RANDOM = new SecureRandom();
+
+        private static final Map<String, Function<Persona, String>> CAMPI = Map.of(
+                "nome", Persona::getNome,
+                "cognome", Persona::getCognome,
+                "indirizzo", Persona::getIndirizzo,
+                "telefono", Persona::getTelefono);
+
+        /** Verifica le credenziali e restituisce il controller con l'utente autenticato. */
+        @FunctionalInterface
+        public interface Autenticatore {
+                GestioneLogin accedi(String username, String password) throws UtenteNonTrovato, ProblemaAutenticazione;
+        }
+
+        private record Sessione(String username, Instant scadenza) {
+        }
+
+        private record Risposta(String endpoint, int stato, String corpo) {
+                Risposta conEndpoint(String altro) {
+                        return new Risposta(altro, stato, corpo);
+                }
+        }
+
+        @FunctionalInterface
+        private interface Gestore {
+                Risposta gestisci(HttpExchange ex) throws IOException;
+        }
+
+        /** Errore da restituire al client con lo stato indicato. */
+        private static final class ErroreHttp extends RuntimeException {
+                private final int stato;
+
+                ErroreHttp(int stato, String messaggio) {
+                        super(messaggio);
+                        this.stato = stato;
+                }
+        }
+
+        private final HttpServer server;
+        private final ExecutorService esecutore = Executors.newVirtualThreadPerTaskExecutor();
+        private final ScheduledExecutorService pulizia;
+        private final Autenticatore autenticatore;
+        private final GestoreRubriche rubriche;
+        private final Duration ttlSessione;
+
+        private final ConcurrentHashMap<String, Sessione> sessioni = new ConcurrentHashMap<>();
+
+        /**
+         * @param indirizzo     indirizzo e porta di ascolto (porta 0 per una porta libera).
+         * @param backlog       coda delle connessioni in attesa di accept.
+         * @param ttlSessione   inattività dopo cui una sessione scade.
+         * @param autenticatore verifica delle credenziali.
+         * @param rubriche      rubriche degli utenti autenticati, chiuse alla chiusura del server.
+         */
+        public ServerRubrica(@NotNull InetSocketAddress indirizzo, int backlog, @NotNull Duration ttlSessione,
+                             @NotNull Autenticatore autenticatore,
+                             @NotNull GestoreRubriche rubriche) throws IOException {
+                this.autenticatore = Objects.requireNonNull(autenticatore);
+                this.rubriche = Objects.requireNonNull(rubriche);
+                this.ttlSessione = Objects.requireNonNull(ttlSessione);
+                this.server = HttpServer.create(indirizzo, backlog);
+                server.setExecutor(esecutore);
+                server.createContext("/api/login", gestore("login", this::login));
+                server.createContext("/api/logout", gestore("logout", this::logout));
+                server.createContext("/api/stats", gestore("stats", this::stats));
+                server.createContext(CONTATTI, gestore("contatti", this::contatti));
+                pulizia = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "server-sessioni");
+                        t.setDaemon(true);
+                        return t;
+                });
+                Metriche.registraSonda("server.sessioni", sessioni::size);
+        }
+
+        /**
+         * Crea il server secondo <code>conf.properties</code>: <code>server.bind</code>
+         * (default <code>127.0.0.1</code>), <code>server.port</code> (default 8080),
+         * <code>server.backlog</code> (default 4096), <code>server.session.ttlMinutes</code>
+         * (default 30) e <code>server.maxIdleConnections</code> (default 10000, connessioni
+         * keep-alive inattive mantenute aperte).
+         */
+        public static ServerRubrica daConfigurazione(@NotNull Configurazione conf) throws IOException {
+                // letta da HttpServer alla prima creazione: il default del JDK (200) chiuderebbe le connessioni in eccesso
+                if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+                        System.setProperty("sun.net.httpserver.maxIdleConnections",
+                                String.valueOf(conf.getInt("server.maxIdleConnections", 10_000)));
+                }
+                InetSocketAddress indirizzo = new InetSocketAddress(conf.get("server.bind", "127.0.0.1").trim(),
+                        conf.getInt("server.port", 8080));
+                return new ServerRubrica(indirizzo, conf.getInt("server.backlog", 4096),
+                        Duration.ofMinutes(conf.getLong("server.session.ttlMinutes", 30)),
+                        (u, p) -> {
+                                GestioneLogin login = new GestioneLogin();
+                                login.signIn(u, p);
+                                return login;
+                        },
+                        GestoreRubriche.daConfigurazione(conf));
+        }
+
+        /** Avvia l'ascolto. */
+        public void avvia() {
+                server.start();
+                pulizia.scheduleWithFixedDelay(this::rimuoviScadute, 1, 1, TimeUnit.MINUTES);
+                LOG.info(() -> "Server rubrica in ascolto su " + getIndirizzo());
+        }
+
+        /** @return l'indirizzo effettivo di ascolto. */
+        public InetSocketAddress getIndirizzo() {
+                return server.getAddress();
+        }
+
+        @Override
+        public void close() {
+                server.stop(1);
+                pulizia.shutdownNow();
+                esecutore.shutdown();
+                rubriche.close();
+        }
+
+        void rimuoviScadute() {
+                Instant adesso = Instant.now();
+                sessioni.entrySet().removeIf(e -> !adesso.isBefore(e.getValue().scadenza()));
+        }
+
+        /* ---------------------------------------------------------------- endpoint */
+
+        private Risposta login(HttpExchange ex) throws IOException {
+                richiediMetodo(ex, "POST");
+                Map<String, Object> corpo = leggiCorpo(ex);
+                String username = testo(corpo, "username");
+                String password = testo(corpo, "password");
+                if (username == null || password == null) throw new ErroreHttp(400, "username e password sono obbligatori");
+                GestioneLogin login;
+                try {
+                        login = autenticatore.accedi(username, password);
+                } catch (UtenteNonTrovato | ProblemaAutenticazione e) {
+                        throw new ErroreHttp(401, "Credenziali non valide");
+                } catch (IllegalArgumentException e) {
+                        throw new ErroreHttp(400, e.getMessage());
+                }
+                String utente = login.getLoggedUser();
+                rubriche.prendi(utente).close();  // carica la rubrica prima della prima richiesta
+                byte[] casuali = new byte[32];
+                RANDOM.nextBytes(casuali);
+                String token = Base64.getUrlEncoder().withoutPadding().encodeToString(casuali);
+                Instant scadenza = Instant.now().plus(ttlSessione);
+                sessioni.put(token, new Sessione(utente, scadenza));
+                return new Risposta("login", 200, "{\"token\":" + Json.stringa(token)
+                        + ",\"scadenza\":" + Json.stringa(scadenza.toString()) + "}");
+        }
+
+        private Risposta logout(HttpExchange ex) {
+                richiediMetodo(ex, "POST");
+                String token = token(ex);
+                if (token == null || sessioni.remove(token) == null) throw new ErroreHttp(401, "Sessione non valida");
+                return new Risposta("logout", 204, null);
+        }
+
+        private Risposta stats(HttpExchange ex) {
+                richiediMetodo(ex, "GET");
+                sessione(ex);
+                StringBuilder sb = new StringBuilder("{");
+                Metriche.snapshot().forEach((nome, valore) -> {
+                        if (sb.length() > 1) sb.append(',');
+                        Json.appendStringa(sb, nome);
+                        sb.append(':');
+                        if (valore instanceof Istogramma.Snapshot s) {
+                                sb.append("{\"count\":").append(s.count())
+                                        .append(",\"media_us\":").append(String.format(Locale.ROOT, "%.1f", s.media() / 1000.0))
+                                        .append(",\"p50_us\":").append(s.p50() / 1000)
+                                        .append(",\"p90_us\":").append(s.p90() / 1000)
+                                        .append(",\"p99_us\":").append(s.p99() / 1000)
+                                        .append(",\"p999_us\":").append(s.p999() / 1000)
+                                        .append(",\"max_us\":").append(s.max() / 1000).append('}');
+                        } else if (valore instanceof Number n) {
+                                sb.append(n);
+                        } else {
+                                Json.appendStringa(sb, String.valueOf(valore));
+                        }
+                });
+                return new Risposta("stats", 200, sb.append('}').toString());
+        }
+
+        private Risposta contatti(HttpExchange ex) throws IOException {
+                Sessione sessione = sessione(ex);
+                try (CachePesata.Prestito<GestioneContatti> prestito = rubriche.prendi(sessione.username())) {
+                        return contatti(ex, prestito.valore());
+                }
+        }
+
+        private Risposta contatti(HttpExchange ex, GestioneContatti rubrica) throws IOException {
+                String resto = ex.getRequestURI().getRawPath().substring(CONTATTI.length());
+                String metodo = ex.getRequestMethod();
+                if (resto.isEmpty() || resto.equals("/")) {
+                        return switch (metodo) {
+                                case "GET" -> lista(ex, rubrica);
+                                case "POST" -> inserisci(ex, rubrica);
+                                default -> throw new ErroreHttp(405, "Metodo non consentito: " + metodo);
+                        };
+                }
+                if (!resto.startsWith("/") || resto.indexOf('/', 1) >= 0) throw new ErroreHttp(404, "Risorsa inesistente");
+                String telefono = URLDecoder.decode(resto.substring(1), StandardCharsets.UTF_8);
+                return switch (metodo) {
+                        case "GET" -> dettaglio(rubrica, telefono);
+                        case "PUT" -> modifica(ex, rubrica, telefono);
+                        case "DELETE" -> elimina(rubrica, telefono);
+                        default -> throw new ErroreHttp(405, "Metodo non consentito: " + metodo);
+                };
+        }
+
+        private Risposta lista(HttpExchange ex, GestioneContatti rubrica) {
+                Map<String, String> parametri = parametri(ex);
+                int offset = intero(parametri, "offset", 0);
+                int limit = Math.min(intero(parametri, "limit", LIMIT_DEFAULT), LIMIT_MAX);
+                if (offset < 0 || limit < 0) throw new ErroreHttp(400, "offset e limit devono essere positivi");
+                String q = parametri.get("q");
+                String campo = parametri.get("campo");
+                Function<Persona, String> estrattore = null;
+                if (campo != null) {
+                        estrattore = CAMPI.get(campo);
+                        if (estrattore == null) throw new ErroreHttp(400, "campo non valido: " + campo);
+                }
+
+                List<Persona> tutti = rubrica.getContatti();
+                List<Persona> filtrati = tutti;
+                if (q != null && !q.isEmpty()) {
+                        String ago = q.toLowerCase(Locale.ROOT);
+                        filtrati = new ArrayList<>();
+                        for (Persona p : tutti) {
+                                if (corrisponde(p, estrattore, ago)) filtrati.add(p);
+                        }
+                }
+                int da = Math.min(offset, filtrati.size());
+                int a = Math.min(filtrati.size(), da + limit);
+                StringBuilder sb = new StringBuilder(64 + (a - da) * 96);
+                sb.append("{\"totale\":").append(filtrati.size())
+                        .append(",\"offset\":").append(offset)
+                        .append(",\"limit\":").append(limit)
+                        .append(",\"contatti\":[");
+                for (int i = da; i < a; i++) {
+                        if (i > da) sb.append(',');
+                        appendPersona(sb, filtrati.get(i));
+                }
+                return new Risposta(q == null ? "lista" : "query", 200, sb.append("]}").toString());
+        }
+
+        private Risposta dettaglio(GestioneContatti rubrica, String telefono) {
+                Persona p = trova(rubrica, telefono);
+                if (p == null) throw new ErroreHttp(404, "Contatto inesistente: " + telefono);
+                StringBuilder sb = new StringBuilder();
+                appendPersona(sb, p);
+                return new Risposta("dettaglio", 200, sb.toString());
+        }
+
+        private Risposta inserisci(HttpExchange ex, GestioneContatti rubrica) throws IOException {
+                Map<String, Object> corpo = leggiCorpo(ex);
+                Object eta = corpo.get("eta");
+                if (!(eta instanceof Long n) || n < 0 || n > Integer.MAX_VALUE)
+                        throw new ErroreHttp(400, "eta deve essere un intero non negativo");
+                String telefono = testo(corpo, "telefono");
+                try {
+                        rubrica.inserisciDatiPersona(testo(corpo, "nome"), testo(corpo, "cognome"),
+                                testo(corpo, "indirizzo"), telefono, n.intValue());
+                } catch (PersonaException e) {
+                        throw errorePersona(e);
+                }
+                ex.getResponseHeaders().set("Location", CONTATTI + "/" + URLEncoder.encode(telefono, StandardCharsets.UTF_8));
+                Persona p = trova(rubrica, telefono);
+                StringBuilder sb = new StringBuilder();
+                appendPersona(sb, p);
+                return new Risposta("inserisci", 201, sb.toString());
+        }
+
+        private Risposta modifica(HttpExchange ex, GestioneContatti rubrica, String telefono) throws IOException {
+                Map<String, Object> corpo = leggiCorpo(ex);
+                for (String campo : corpo.keySet()) {
+                        if (!Persona.VALID_FIELDS.containsKey(campo)) throw new ErroreHttp(400, "campo non valido: " + campo);
+                }
+                Map<String, String> modifiche = new HashMap<>();
+                corpo.forEach((campo, valore) -> modifiche.put(campo, String.valueOf(valore)));
+                try {
+                        // tutti i campi sono validati prima di scrivere: la voce cambia per intero o per niente
+                        rubrica.modificaPersona(telefono, modifiche);
+                } catch (PersonaException e) {
+                        throw errorePersona(e);
+                }
+                String attuale = modifiche.getOrDefault("telefono", telefono);
+                return dettaglio(rubrica, attuale).conEndpoint("modifica");
+        }
+
+        private Risposta elimina(GestioneContatti rubrica, String telefono) {
+                synchronized (rubrica) {
+                        if (trova(rubrica, telefono) == null) throw new ErroreHttp(404, "Contatto inesistente: " + telefono);
+                        rubrica.rimuoviPersona(telefono);
+                }
+                return new Risposta("elimina", 204, null);
+        }
+
+        /* ---------------------------------------------------------------- infrastruttura */
+
+        private com.sun.net.httpserver.HttpHandler gestore(String contesto, Gestore g) {
+                return ex -> {
+                        long inizio = System.nanoTime();
+                        Risposta r;
+                        try {
+                                r = g.gestisci(ex);
+                        } catch (ErroreHttp e) {
+                                Metriche.contatore("http." + contesto + ".errori." + e.stato).increment();
+                                r = new Risposta(contesto, e.stato, "{\"errore\":" + Json.stringa(e.getMessage()) + "}");
+                        } catch (RuntimeException e) {
+                                LOG.warning(() -> "Errore " + ex.getRequestMethod() + " " + ex.getRequestURI() + ": " + e);
+                                Metriche.errore("http." + contesto, e);
+                                r = new Risposta(contesto, 500, "{\"errore\":\"Errore interno\"}");
+                        }
+                        try {
+                                scrivi(ex, r);
+                        } finally {
+                                Metriche.istogramma("http." + r.endpoint()).registra(System.nanoTime() - inizio);
+                                Metriche.contatore("http.stato." + r.stato()).increment();
+                        }
+                };
+        }
+
+        private static void scrivi(HttpExchange ex, Risposta r) throws IOException {
+                try (ex) {
+                        if (r.corpo() == null) {
+                                ex.sendResponseHeaders(r.stato(), -1);
+                                return;
+                        }
+                        byte[] dati = r.corpo().getBytes(StandardCharsets.UTF_8);
+                        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                        ex.sendResponseHeaders(r.stato(), dati.length);
+                        try (OutputStream os = ex.getResponseBody()) {
+                                os.write(dati);
+                        }
+                }
+        }
+
+        private Sessione sessione(HttpExchange ex) {
+                String token = token(ex);
+                Sessione s = token == null ? null : sessioni.get(token);
+                Instant adesso = Instant.now();
+                if (s == null || !adesso.isBefore(s.scadenza())) {
+                        if (s != null) sessioni.remove(token, s);
+                        throw new ErroreHttp(401, "Sessione non valida o scaduta");
+                }
+                // scadenza scorrevole, aggiornata al più una volta al minuto per sessione
+                Instant nuova = adesso.plus(ttlSessione);
+                if (Duration.between(s.scadenza(), nuova).toSeconds() >= 60) {
+                        sessioni.replace(token, s, new Sessione(s.username(), nuova));
+                }
+                return s;
+        }
+
+        private static String token(HttpExchange ex) {
+                String h = ex.getRequestHeaders().getFirst("Authorization");
+                if (h == null || !h.regionMatches(true, 0, "Bearer ", 0, 7)) return null;
+                return h.substring(7).trim();
+        }
+
+        private static void richiediMetodo(HttpExchange ex, String metodo) {
+                if (!ex.getRequestMethod().equals(metodo))
+                        throw new ErroreHttp(405, "Metodo non consentito: " + ex.getRequestMethod());
+        }
+
+        private static Map<String, Object> leggiCorpo(HttpExchange ex) throws IOException {
+                byte[] dati;
+                try (InputStream in = ex.getRequestBody()) {
+                        dati = in.readNBytes(MAX_CORPO + 1);
+                }
+                if (dati.length > MAX_CORPO) throw new ErroreHttp(413, "Corpo della richiesta troppo grande");
+                try {
+                        return Json.leggiOggetto(new String(dati, StandardCharsets.UTF_8));
+                } catch (IllegalArgumentException e) {
+                        throw new ErroreHttp(400, e.getMessage());
+                }
+        }
+
+        private static Map<String, String> parametri(HttpExchange ex) {
+                Map<String, String> out = new HashMap<>();
+                String query = ex.getRequestURI().getRawQuery();
+                if (query == null || query.isEmpty()) return out;
+                for (String coppia : query.split("&")) {
+                        int uguale = coppia.indexOf('=');
+                        String k = uguale < 0 ? coppia : coppia.substring(0, uguale);
+                        String v = uguale < 0 ? "" : coppia.substring(uguale + 1);
+                        out.put(URLDecoder.decode(k, StandardCharsets.UTF_8), URLDecoder.decode(v, StandardCharsets.UTF_8));
+                }
+                return out;
+        }
+
+        private static int intero(Map<String, String> parametri, String nome, int def) {
+                String v = parametri.get(nome);
+                if (v == null || v.isEmpty()) return def;
+                try {
+                        return Integer.parseInt(v);
+                } catch (NumberFormatException e) {
+                        throw new ErroreHttp(400, nome + " non valido: " + v);
+                }
+        }
+
+        private static String testo(Map<String, Object> corpo, String chiave) {
+                Object v = corpo.get(chiave);
+                return v == null ? null : String.valueOf(v);
+        }
+
+        private static boolean corrisponde(Persona p, Function<Persona, String> estrattore, String ago) {
+                if (estrattore != null) {
+                        String v = estrattore.apply(p);
+                        return v != null && v.toLowerCase(Locale.ROOT).contains(ago);
+                }
+                for (Function<Persona, String> f : CAMPI.values()) {
+                        String v = f.apply(p);
+                        if (v != null && v.toLowerCase(Locale.ROOT).contains(ago)) return true;
+                }
+                return false;
+        }
+
+        private static Persona trova(GestioneContatti rubrica, String telefono) {
+                for (Persona p : rubrica.getContatti()) {
+                        if (Objects.equals(p.getTelefono(), telefono)) return p;
+                }
+                return null;
+        }
+
+        private static ErroreHttp errorePersona(PersonaException e) {
+                int stato = switch (e.getTipo()) {
+                        case NOT_EXISTS -> 404;
+                        case ALREADY_EXIST, CONFLICT -> 409;
+                        default -> 400;
+                };
+                return new ErroreHttp(stato, e.getMessage().strip());
+        }
+
+        private static void appendPersona(StringBuilder sb, Persona p) {
+                sb.append("{\"nome\":");
+                Json.appendStringa(sb, p.getNome());
+                sb.append(",\"cognome\":");
+                Json.appendStringa(sb, p.getCognome());
+                sb.append(",\"indirizzo\":");
+                Json.appendStringa(sb, p.getIndirizzo());
+                sb.append(",\"telefono\":");
+                Json.appendStringa(sb, p.getTelefono());
+                sb.append(",\"eta\":").append(p.getEta()).append('}');
+        }
+}
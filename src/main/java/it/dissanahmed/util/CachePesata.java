@@ -0,0 +1,334 @@
+package it.dissanahmed.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Cache LRU limitata sia nel numero di voci sia nel peso complessivo.
+ * <p>
+ * Il caricamento di una chiave assente avviene fuori dal lock e una sola volta anche
+ * con accessi concorrenti: i thread successivi attendono lo stesso caricamento.
+ * Le voci meno usate di recente vengono sfrattate quando uno dei due limiti è
+ * superato; la callback di sfratto è invocata fuori dal lock e, finché non termina,
+ * un nuovo caricamento della stessa chiave resta in attesa (così non legge dati che
+ * lo sfratto sta ancora scrivendo).
+ * </p>
+ * <p>
+ * Chi usa un valore oltre la singola lettura lo prende in {@link #prendi(Object) prestito}:
+ * una voce con prestiti aperti (o ancora in caricamento) non è scelta per lo sfratto LRU (i
+ * limiti possono essere superati fino alla restituzione) e, se viene rimossa da {@link #invalida(Object)} o {@link #svuota()}, la callback di sfratto
+ * è rinviata alla restituzione dell'ultimo prestito. Un prestito non va chiesto di nuovo per
+ * la stessa chiave mentre è aperto: se nel frattempo la voce è stata rimossa, il nuovo
+ * caricamento attenderebbe lo sfratto, che attende il prestito.
+ * </p>
+ * <p>
+ * Il peso di una voce viene ricalcolato a ogni accesso, per seguire oggetti che crescono.
+ * </p>
+ *
+ * @param <K> tipo delle chiavi.
+ * @param <V> tipo dei valori.
+ */
+public final class CachePesata<K, V> {
+
+        /** Fotografia delle metriche della cache. */
+        public record Statistiche(long voci, long peso, long hit, long miss, long caricamenti,
+                                  long caricamentiFalliti, long sfratti) {
+        }
+
+        /**
+         * Uso di un valore della cache: finché non è chiuso il valore non viene passato alla callback
+         * di sfratto. Va chiuso una volta, dal thread che lo ha preso.
+         *
+         * @param <V> tipo del valore.
+         */
+        public static final class Prestito<V> implements AutoCloseable {
+                private final V valore;
+                private Runnable restituzione;
+
+                private Prestito(V valore, Runnable restituzione) {
+                        this.valore = valore;
+                        this.restituzione = restituzione;
+                }
+
+                public V valore() {
+                        return valore;
+                }
+
+                /** Restituisce il prestito; le chiamate successive non hanno effetto. */
+                @Override
+                public void close() {
+                        Runnable r = restituzione;
+                        restituzione = null;
+                        if (r != null) r.run();
+                }
+        }
+
+        /** Campi diversi da {@code valore} e {@code chiave} protetti da {@link #lock}. */
+        private static final class Voce<K, V> {
+                final K chiave;
+                final CompletableFuture<V> valore = new CompletableFuture<>();
+                long peso;
+                /** Prestiti aperti, compreso quello di chi sta caricando. */
+                int prestiti;
+                /** Non nulli dopo la rimozione dalla mappa: lo sfratto e quello precedente della stessa chiave. */
+                CompletableFuture<Void> fatto;
+                CompletableFuture<Void> precedente;
+                /** La callback di sfratto è stata affidata a un thread. */
+                boolean avviato;
+
+                Voce(K chiave) {
+                        this.chiave = chiave;
+                }
+        }
+
+        private final int maxVoci;
+        private final long maxPeso;
+        private final Function<K, V> caricatore;
+        private final ToLongFunction<V> pesatore;
+        private final BiConsumer<K, V> sfratto;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        /** Voci in ordine di accesso, protette da {@link #lock}. */
+        private final LinkedHashMap<K, Voce<K, V>> voci = new LinkedHashMap<>(16, 0.75f, true);
+        private long pesoTotale;
+        /** Sfratti in corso o rinviati, per chiave. */
+        private final ConcurrentHashMap<K, CompletableFuture<Void>> inSfratto = new ConcurrentHashMap<>();
+
+        private final LongAdder hit = new LongAdder();
+        private final LongAdder miss = new LongAdder();
+        private final LongAdder caricamenti = new LongAdder();
+        private final LongAdder caricamentiFalliti = new LongAdder();
+        private final LongAdder sfratti = new LongAdder();
+
+        /**
+         * @param maxVoci    numero massimo di voci residenti.
+         * @param maxPeso    peso complessivo massimo delle voci residenti.
+         * @param caricatore crea il valore di una chiave assente.
+         * @param pesatore   peso di un valore (es. numero di contatti).
+         * @param sfratto    invocata per ogni voce rimossa (es. per salvarne lo stato), quando
+         *                   non ha più prestiti aperti.
+         */
+        public CachePesata(int maxVoci, long maxPeso, @NotNull Function<K, V> caricatore,
+                           @NotNull ToLongFunction<V> pesatore, @NotNull BiConsumer<K, V> sfratto) {
+                if (maxVoci <= 0 || maxPeso <= 0) throw new IllegalArgumentException("limiti non validi");
+                this.maxVoci = maxVoci;
+                this.maxPeso = maxPeso;
+                this.caricatore = Objects.requireNonNull(caricatore);
+                this.pesatore = Objects.requireNonNull(pesatore);
+                this.sfratto = Objects.requireNonNull(sfratto);
+        }
+
+        /**
+         * Restituisce il valore della chiave, caricandolo se assente, senza prestito: il valore
+         * può essere sfrattato subito dopo.
+         *
+         * @throws RuntimeException se il caricamento fallisce (il fallimento non viene memorizzato).
+         */
+        public V get(@NotNull K chiave) {
+                try (Prestito<V> p = prendi(chiave)) {
+                        return p.valore();
+                }
+        }
+
+        /**
+         * Prende in prestito il valore della chiave, caricandolo se assente: fino alla chiusura del
+         * prestito la callback di sfratto non lo riceve.
+         *
+         * @throws RuntimeException se il caricamento fallisce (il fallimento non viene memorizzato).
+         */
+        public Prestito<V> prendi(@NotNull K chiave) {
+                Voce<K, V> voce;
+                boolean carica = false;
+                lock.lock();
+                try {
+                        voce = voci.get(chiave);
+                        if (voce == null) {
+                                voce = new Voce<>(chiave);
+                                voci.put(chiave, voce);
+                                carica = true;
+                        }
+                        voce.prestiti++;
+                } finally {
+                        lock.unlock();
+                }
+
+                if (!carica) {
+                        V v;
+                        try {
+                                v = attendi(voce.valore);
+                        } catch (RuntimeException | Error e) {
+                                restituisci(voce);
+                                throw e;
+                        }
+                        hit.increment();
+                        aggiornaPeso(voce, v);
+                        return prestito(voce, v);
+                }
+
+                miss.increment();
+                V v;
+                try {
+                        CompletableFuture<Void> sfrattoInCorso = inSfratto.get(chiave);
+                        if (sfrattoInCorso != null) sfrattoInCorso.join();
+                        v = Objects.requireNonNull(caricatore.apply(chiave), "caricatore ha restituito null");
+                } catch (RuntimeException | Error e) {
+                        caricamentiFalliti.increment();
+                        lock.lock();
+                        try {
+                                voci.remove(chiave, voce);
+                        } finally {
+                                lock.unlock();
+                        }
+                        voce.valore.completeExceptionally(e);
+                        restituisci(voce);
+                        throw e;
+                }
+                caricamenti.increment();
+                voce.valore.complete(v);
+                aggiornaPeso(voce, v);
+                return prestito(voce, v);
+        }
+
+        /**
+         * Rimuove la voce, se presente, invocando la callback di sfratto; se la voce è in prestito
+         * o in caricamento, la callback è invocata da chi restituisce l'ultimo prestito.
+         */
+        public void invalida(@NotNull K chiave) {
+                List<Voce<K, V>> uscenti = new ArrayList<>(1);
+                lock.lock();
+                try {
+                        Voce<K, V> voce = voci.remove(chiave);
+                        if (voce != null && rimossa(voce)) uscenti.add(voce);
+                } finally {
+                        lock.unlock();
+                }
+                sfratta(uscenti);
+        }
+
+        /** Svuota la cache invocando la callback di sfratto per ogni voce, come {@link #invalida(Object)}. */
+        public void svuota() {
+                List<Voce<K, V>> uscenti = new ArrayList<>();
+                lock.lock();
+                try {
+                        for (Voce<K, V> voce : voci.values()) {
+                                if (rimossa(voce)) uscenti.add(voce);
+                        }
+                        voci.clear();
+                } finally {
+                        lock.unlock();
+                }
+                sfratta(uscenti);
+        }
+
+        /** @return le metriche correnti. */
+        public Statistiche statistiche() {
+                lock.lock();
+                try {
+                        return new Statistiche(voci.size(), pesoTotale, hit.sum(), miss.sum(), caricamenti.sum(),
+                                caricamentiFalliti.sum(), sfratti.sum());
+                } finally {
+                        lock.unlock();
+                }
+        }
+
+        private Prestito<V> prestito(Voce<K, V> voce, V valore) {
+                return new Prestito<>(valore, () -> restituisci(voce));
+        }
+
+        private void restituisci(Voce<K, V> voce) {
+                List<Voce<K, V>> uscenti = new ArrayList<>(1);
+                lock.lock();
+                try {
+                        voce.prestiti--;
+                        if (daSfrattare(voce)) uscenti.add(voce);
+                        // i limiti superati mentre la voce era in prestito
+                        else if (voce.prestiti == 0 && voci.get(voce.chiave) == voce) rientra(uscenti);
+                } finally {
+                        lock.unlock();
+                }
+                sfratta(uscenti);
+        }
+
+        private void aggiornaPeso(Voce<K, V> voce, V valore) {
+                long peso = Math.max(1, pesatore.applyAsLong(valore));
+                List<Voce<K, V>> uscenti = new ArrayList<>();
+                lock.lock();
+                try {
+                        if (voci.get(voce.chiave) != voce) return;  // già sfrattata o sostituita
+                        pesoTotale += peso - voce.peso;
+                        voce.peso = peso;
+                        rientra(uscenti);
+                } finally {
+                        lock.unlock();
+                }
+                sfratta(uscenti);
+        }
+
+        /* Sotto lock: sfratta dalla meno recente finché i limiti sono rispettati; una voce sola resta anche se supera il peso. */
+        private void rientra(List<Voce<K, V>> uscenti) {
+                Iterator<Voce<K, V>> it = voci.values().iterator();
+                while ((voci.size() > maxVoci || pesoTotale > maxPeso) && voci.size() > 1 && it.hasNext()) {
+                        Voce<K, V> v = it.next();
+                        // in prestito o in caricamento: resta, al più oltre i limiti fino alla restituzione
+                        if (v.prestiti > 0) continue;
+                        it.remove();
+                        if (rimossa(v)) uscenti.add(v);
+                }
+        }
+
+        /*
+         * Da invocare sotto lock dopo aver tolto la voce dalla mappa: da qui un nuovo caricamento attende lo sfratto.
+         * @return se la callback può partire subito.
+         */
+        private boolean rimossa(Voce<K, V> voce) {
+                pesoTotale -= voce.peso;
+                voce.fatto = new CompletableFuture<>();
+                voce.precedente = inSfratto.put(voce.chiave, voce.fatto);
+                return daSfrattare(voce);
+        }
+
+        /* Sotto lock: rimossa, senza prestiti e con il caricamento concluso. */
+        private boolean daSfrattare(Voce<K, V> voce) {
+                if (voce.fatto == null || voce.avviato || voce.prestiti > 0 || !voce.valore.isDone()) return false;
+                voce.avviato = true;
+                return true;
+        }
+
+        private void sfratta(List<Voce<K, V>> uscenti) {
+                for (Voce<K, V> u : uscenti) {
+                        try {
+                                if (u.precedente != null) u.precedente.join();
+                                if (!u.valore.isCompletedExceptionally()) {
+                                        sfratti.increment();
+                                        sfratto.accept(u.chiave, u.valore.join());
+                                }
+                        } finally {
+                                inSfratto.remove(u.chiave, u.fatto);
+                                u.fatto.complete(null);
+                        }
+                }
+        }
+
+        private static <V> V attendi(CompletableFuture<V> f) {
+                try {
+                        return f.join();
+                } catch (CompletionException e) {
+                        if (e.getCause() instanceof RuntimeException re) throw re;
+                        if (e.getCause() instanceof Error err) throw err;
+                        throw e;
+                }
+        }
+}
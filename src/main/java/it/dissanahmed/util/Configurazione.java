@@ -0,0 +1,286 @@
+package it.dissanahmed.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Servizio di configurazione condiviso dall'intero processo.
+ * <p>
+ * Il file <code>conf.properties</code> viene letto una sola volta e pubblicato
+ * come istantanea immutabile; tutti i consumatori (DAO, {@code Main}) leggono da
+ * {@link #get()} invece di rileggere il file. Se la configurazione proviene da un
+ * file esterno al JAR, questo viene osservato con un {@link WatchService} e, a ogni
+ * modifica, una nuova istantanea sostituisce atomicamente la precedente.
+ * </p>
+ * <p>
+ * Ordine di ricerca:
+ * <ol>
+ *   <li><code>conf/conf.properties</code> accanto al JAR,</li>
+ *   <li><code>credenziali_database.properties</code> accanto al JAR,</li>
+ *   <li>la risorsa <code>conf.properties</code> nel classpath.</li>
+ * </ol>
+ * </p>
+ */
+public final class Configurazione {
+
+        private static final Logger LOG = Logger.getLogger(Configurazione.class.getName());
+
+        private static volatile Configurazione corrente;
+        private static final CopyOnWriteArrayList<Consumer<Configurazione>> ASCOLTATORI = new CopyOnWriteArrayList<>();
+        private static Thread osservatore;
+
+        private final Map<String, String> valori;
+        private final Path sorgente;
+        private final boolean caricata;
+
+        Configurazione(Map<String, String> valori, Path sorgente, boolean caricata) {
+                this.valori = Map.copyOf(valori);
+                this.sorgente = sorgente;
+                this.caricata = caricata;
+        }
+
+        /**
+         * Restituisce l'istantanea corrente, caricandola al primo accesso.
+         *
+         * @return la configurazione attiva; mai {@code null}.
+         */
+        public static @NotNull Configurazione get() {
+                Configurazione c = corrente;
+                if (c != null) return c;
+                synchronized (Configurazione.class) {
+                        if (corrente == null) {
+                                corrente = carica();
+                                avviaOsservatore(corrente.sorgente);
+                        }
+                        return corrente;
+                }
+        }
+
+        /**
+         * Rilegge la configurazione e la pubblica atomicamente, notificando gli ascoltatori.
+         * <p>
+         * Una lettura non riuscita (ad esempio mentre un editor salva il file) o una sorgente
+         * scomparsa non sostituiscono con i valori di default una configurazione funzionante:
+         * resta in vigore quella corrente e viene registrato un avviso.
+         * </p>
+         *
+         * @return {@code true} se la configurazione riletta è stata pubblicata.
+         */
+        public static boolean ricarica() {
+                return ricarica(carica());
+        }
+
+        /* Decide se pubblicare una configurazione già letta: separata da carica() per le prove. */
+        static boolean ricarica(@NotNull Configurazione letta) {
+                synchronized (Configurazione.class) {
+                        Configurazione attuale = corrente;
+                        if (attuale != null && !letta.caricata) {
+                                LOG.warning("Configurazione non riletta: resta in vigore quella corrente");
+                                return false;
+                        }
+                        if (attuale != null && attuale.sorgente != null && Files.notExists(attuale.sorgente)) {
+                                LOG.warning(() -> "Configurazione non riletta: " + attuale.sorgente
+                                        + " non esiste più, resta in vigore quella letta in precedenza");
+                                return false;
+                        }
+                        corrente = letta;
+                }
+                notifica(letta);
+                return true;
+        }
+
+        /**
+         * Pubblica una configurazione costruita in memoria al posto di quella letta dalla
+         * sorgente, notificando gli ascoltatori come {@link #ricarica()}. Serve agli strumenti
+         * che avviano l'applicazione con impostazioni proprie (generatori di carico, prove).
+         *
+         * @param valori le proprietà della nuova configurazione.
+         */
+        public static void imposta(@NotNull Map<String, String> valori) {
+                pubblica(new Configurazione(valori, null, true));
+        }
+
+        private static void pubblica(Configurazione nuova) {
+                synchronized (Configurazione.class) {
+                        corrente = nuova;
+                }
+                notifica(nuova);
+        }
+
+        private static void notifica(Configurazione nuova) {
+                for (Consumer<Configurazione> a : ASCOLTATORI) {
+                        try {
+                                a.accept(nuova);
+                        } catch (RuntimeException e) {
+                                LOG.warning(() -> "Ascoltatore configurazione fallito: " + e.getMessage());
+                        }
+                }
+        }
+
+        /** Registra un ascoltatore invocato dopo ogni ricarica. */
+        public static void addAscoltatore(@NotNull Consumer<Configurazione> ascoltatore) {
+                ASCOLTATORI.add(ascoltatore);
+        }
+
+        /**
+         * Apre la sorgente di configurazione secondo l'ordine di ricerca.
+         *
+         * @return lo stream della configurazione.
+         * @throws IOException se nessuna sorgente è disponibile.
+         */
+        public static InputStream apriSorgente() throws IOException {
+                Path file = fileEsterno();
+                if (file != null) {
+                        return new FileInputStream(file.toFile());
+                }
+                InputStream is = Configurazione.class.getClassLoader().getResourceAsStream("conf.properties");
+                if (is == null) {
+                        throw new FileNotFoundException(
+                                "conf.properties non trovato né accanto al JAR né nelle risorse!");
+                }
+                return is;
+        }
+
+        /** @return il valore della chiave, o {@code def} se assente. */
+        public String get(String key, String def) {
+                return valori.getOrDefault(key, def);
+        }
+
+        /** @return il valore della chiave, o {@code null} se assente. */
+        public String get(String key) {
+                return valori.get(key);
+        }
+
+        public int getInt(String key, int def) {
+                String v = valori.get(key);
+                if (v == null || v.isBlank()) return def;
+                try {
+                        return Integer.parseInt(v.trim());
+                } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Valore non valido per " + key + ": " + v, e);
+                }
+        }
+
+        public long getLong(String key, long def) {
+                String v = valori.get(key);
+                if (v == null || v.isBlank()) return def;
+                try {
+                        return Long.parseLong(v.trim());
+                } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Valore non valido per " + key + ": " + v, e);
+                }
+        }
+
+        public boolean getBoolean(String key, boolean def) {
+                String v = valori.get(key);
+                return (v == null || v.isBlank()) ? def : Boolean.parseBoolean(v.trim());
+        }
+
+        /** @return il tipo di persistenza (<code>database.instance</code>), normalizzato in minuscolo. */
+        public String getIstanzaDatabase() {
+                return get("database.instance", "fs").trim().toLowerCase();
+        }
+
+        /** @return una copia modificabile dei valori, per le API che accettano {@link Properties}. */
+        public Properties toProperties() {
+                Properties p = new Properties();
+                p.putAll(valori);
+                return p;
+        }
+
+        /** @return il file da cui è stata letta la configurazione, se esterno al JAR. */
+        public Optional<Path> getSorgente() {
+                return Optional.ofNullable(sorgente);
+        }
+
+        /** @return {@code true} se una sorgente di configurazione è stata letta con successo. */
+        public boolean isCaricata() {
+                return caricata;
+        }
+
+        private static Configurazione carica() {
+                Properties props = new Properties();
+                boolean ok = true;
+                try (InputStream is = apriSorgente()) {
+                        props.load(is);
+                } catch (IOException e) {
+                        ok = false;
+                        LOG.warning(() -> "Configurazione non disponibile, uso i valori di default: " + e.getMessage());
+                }
+                Map<String, String> valori = new HashMap<>();
+                for (String k : props.stringPropertyNames()) valori.put(k, props.getProperty(k));
+                return new Configurazione(valori, fileEsterno(), ok);
+        }
+
+        private static Path fileEsterno() {
+                File baseDir = PathUtils.getBaseDirectory(Configurazione.class);
+                File confFile = new File(baseDir, "conf" + File.separator + "conf.properties");
+                if (confFile.exists()) return confFile.toPath();
+                confFile = new File(baseDir, "credenziali_database.properties");
+                if (confFile.exists()) return confFile.toPath();
+                return null;
+        }
+
+        private static void avviaOsservatore(Path file) {
+                if (file == null || osservatore != null) return;
+                Path dir = file.toAbsolutePath().getParent();
+                Path nome = file.getFileName();
+                WatchService ws;
+                try {
+                        ws = FileSystems.getDefault().newWatchService();
+                        dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                } catch (IOException e) {
+                        LOG.warning(() -> "Impossibile osservare " + file + ": " + e.getMessage());
+                        return;
+                }
+                osservatore = new Thread(() -> osserva(ws, nome), "conf-watcher");
+                osservatore.setDaemon(true);
+                osservatore.start();
+        }
+
+        private static void osserva(WatchService ws, Path nome) {
+                try {
+                        while (true) {
+                                WatchKey key = ws.take();
+                                boolean cambiato = false;
+                                for (WatchEvent<?> ev : key.pollEvents()) {
+                                        if (nome.equals(ev.context())) cambiato = true;
+                                }
+                                key.reset();
+                                if (!cambiato) continue;
+                                // gli editor scrivono spesso in più passi: attende e assorbe gli eventi successivi
+                                Thread.sleep(200);
+                                WatchKey altro;
+                                while ((altro = ws.poll()) != null) {
+                                        altro.pollEvents();
+                                        altro.reset();
+                                }
+                                if (ricarica()) LOG.info("Configurazione ricaricata");
+                        }
+                } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                } catch (ClosedWatchServiceException ignored) {
+                        // ignored
+                }
+        }
+}
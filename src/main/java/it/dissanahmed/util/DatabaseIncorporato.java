@@ -0,0 +1,232 @@
+package it.dissanahmed.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Database SQL incorporato nel processo (H2), condiviso da {@code ContattiIncorporato} e
+ * {@code LoginDaoIncorporato} per <code>database.instance=incorporato</code>. Sta in {@code util}
+ * perché serve sia al login sia alla rubrica, senza che uno dei due dipenda dall'altro.
+ * <p>
+ * Il database viene aperto al primo uso e lo schema di <code>schema_incorporato.sql</code> creato se
+ * manca. Le connessioni restano aperte in un piccolo pool: ogni operazione costa una transazione
+ * locale, senza connessione nuova, giro di rete né chiamata a stored procedure. Un semaforo limita
+ * le connessioni in uso; chi non ne ottiene una entro <code>db.incorporato.attesaMs</code> riceve un
+ * errore invece di attendere per sempre. Una connessione chiusa o persa viene scartata e sostituita
+ * alla richiesta successiva; dopo {@link #close()} ogni richiesta fallisce subito.
+ * </p>
+ * <p>
+ * Proprietà: <code>db.incorporato.url</code> (default un file H2 <code>rubrica</code> nella cartella
+ * dei dati <code>fs.baseDir</code>; con <code>jdbc:h2:mem:nome;DB_CLOSE_DELAY=-1</code> resta solo
+ * in memoria, per le prove), <code>db.incorporato.connessioni</code> (default 4) e
+ * <code>db.incorporato.attesaMs</code> (default 5000).
+ * </p>
+ */
+public final class DatabaseIncorporato implements AutoCloseable {
+
+        private static final Map<String, DatabaseIncorporato> APERTI = new ConcurrentHashMap<>();
+        private static final String SCHEMA = "schema_incorporato.sql";
+        /** SQLSTATE standard della violazione di chiave unica. */
+        private static final String CHIAVE_DUPLICATA = "23505";
+
+        /** Lavoro eseguito in una transazione, su una connessione del pool. */
+        @FunctionalInterface
+        public interface Lavoro<T> {
+                T esegui(Connection c) throws SQLException;
+        }
+
+        private final String url;
+        private final long attesaMs;
+        /** Un permesso per connessione utilizzabile: chi lo ottiene ne prende una libera o ne apre una. */
+        private final Semaphore permessi;
+        private final Queue<Connection> libere = new ConcurrentLinkedQueue<>();
+        private volatile boolean chiuso;
+
+        private DatabaseIncorporato(String url, int massimo, long attesaMs) {
+                this.url = url;
+                this.attesaMs = attesaMs;
+                this.permessi = new Semaphore(Math.max(1, massimo), true);
+                try {
+                        String schema = leggiSchema();
+                        transazione(c -> {
+                                try (Statement st = c.createStatement()) {
+                                        for (String istruzione : schema.split(";")) {
+                                                if (!istruzione.isBlank()) st.execute(istruzione);
+                                        }
+                                }
+                                migraChiavePersona(c);
+                                return null;
+                        });
+                } catch (SQLException | IOException e) {
+                        chiudiConnessioni();
+                        throw new RuntimeException("Errore apertura database incorporato " + url + ": " + e.getMessage(), e);
+                }
+        }
+
+        /**
+         * Restituisce il database indicato dalle proprietà, aprendolo al primo uso: tutti i DAO dello
+         * stesso URL condividono schema e connessioni.
+         */
+        public static DatabaseIncorporato get(@NotNull Properties props) {
+                String url = props.getProperty("db.incorporato.url");
+                if (url == null || url.isBlank()) {
+                        String dati = props.getProperty("fs.baseDir", PathUtils.INFORMAZIONI).trim();
+                        url = "jdbc:h2:file:" + PathUtils.getBaseDirectory(DatabaseIncorporato.class).toPath()
+                                .resolve(dati).resolve("rubrica").toAbsolutePath();
+                }
+                int massimo = Integer.parseInt(props.getProperty("db.incorporato.connessioni", "4").trim());
+                long attesaMs = Long.parseLong(props.getProperty("db.incorporato.attesaMs", "5000").trim());
+                return APERTI.computeIfAbsent(url.trim(), u -> new DatabaseIncorporato(u, massimo, attesaMs));
+        }
+
+        /** @return l'URL JDBC del database. */
+        public String getUrl() {
+                return url;
+        }
+
+        /**
+         * Esegue {@code lavoro} in una transazione: commit se termina normalmente, rollback se lancia.
+         * Se tutte le connessioni sono in uso attende che se ne liberi una, al massimo
+         * <code>db.incorporato.attesaMs</code>.
+         *
+         * @throws SQLTransientConnectionException se nessuna connessione si libera in tempo.
+         * @throws SQLNonTransientConnectionException se il database è stato chiuso.
+         */
+        public <T> T transazione(@NotNull Lavoro<T> lavoro) throws SQLException {
+                Connection c = prendi();
+                boolean riuscita = false;
+                try {
+                        T risultato = lavoro.esegui(c);
+                        c.commit();
+                        riuscita = true;
+                        return risultato;
+                } finally {
+                        if (!riuscita) {
+                                try {
+                                        c.rollback();
+                                } catch (SQLException ignored) {
+                                        // la connessione viene scartata da restituisci se non è più valida
+                                }
+                        }
+                        restituisci(c);
+                }
+        }
+
+        /** @return {@code true} se l'errore è la violazione di una chiave primaria o unica. */
+        public static boolean chiaveDuplicata(@NotNull SQLException e) {
+                return CHIAVE_DUPLICATA.equals(e.getSQLState());
+        }
+
+        private Connection prendi() throws SQLException {
+                if (chiuso) throw chiuso();
+                try {
+                        if (!permessi.tryAcquire(attesaMs, TimeUnit.MILLISECONDS)) {
+                                throw new SQLTransientConnectionException("Nessuna connessione libera entro " + attesaMs
+                                        + " ms su " + url, "08001");
+                        }
+                } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrotto in attesa di una connessione", "08001", e);
+                }
+                try {
+                        if (chiuso) throw chiuso();
+                        Connection c;
+                        while ((c = libere.poll()) != null) {
+                                if (!c.isClosed()) return c;
+                        }
+                        // nessuna libera o tutte perse: il permesso consente di aprirne una nuova
+                        c = DriverManager.getConnection(url);
+                        c.setAutoCommit(false);
+                        c.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+                        return c;
+                } catch (SQLException | RuntimeException e) {
+                        permessi.release();
+                        throw e;
+                }
+        }
+
+        private void restituisci(Connection c) {
+                try {
+                        if (!chiuso && !c.isClosed()) {
+                                libere.offer(c);
+                                // close() concorrente: non deve restare una connessione aperta in coda
+                                if (chiuso) chiudiConnessioni();
+                                return;
+                        }
+                        c.close();
+                } catch (SQLException ignored) {
+                        // connessione già persa: la prossima richiesta ne apre un'altra
+                } finally {
+                        permessi.release();
+                }
+        }
+
+        private SQLException chiuso() {
+                return new SQLNonTransientConnectionException("Database incorporato chiuso: " + url, "08003");
+        }
+
+        /*
+         * Database creati prima di Persona.id: la chiave primaria passa da (username, telefono) a id,
+         * il telefono resta univoco. Il vincolo verso LoginUser usa l'indice della vecchia chiave,
+         * quindi viene ricreato.
+         */
+        private static void migraChiavePersona(Connection c) throws SQLException {
+                boolean vecchia = false;
+                try (ResultSet rs = c.getMetaData().getPrimaryKeys(null, null, "PERSONA")) {
+                        while (rs.next()) vecchia |= "TELEFONO".equalsIgnoreCase(rs.getString("COLUMN_NAME"));
+                }
+                if (!vecchia) return;
+                try (Statement st = c.createStatement()) {
+                        st.execute("ALTER TABLE Persona DROP CONSTRAINT fk_persona_user");
+                        st.execute("ALTER TABLE Persona DROP PRIMARY KEY");
+                        st.execute("ALTER TABLE Persona ADD PRIMARY KEY (id)");
+                        st.execute("ALTER TABLE Persona ADD CONSTRAINT uq_persona_telefono UNIQUE (username, telefono)");
+                        st.execute("ALTER TABLE Persona ADD CONSTRAINT fk_persona_user FOREIGN KEY (username) "
+                                + "REFERENCES LoginUser(username) ON DELETE CASCADE ON UPDATE CASCADE");
+                }
+        }
+
+        /* Lo schema senza commenti, con le istruzioni separate da ';'. */
+        private static String leggiSchema() throws IOException {
+                try (InputStream is = DatabaseIncorporato.class.getClassLoader().getResourceAsStream(SCHEMA)) {
+                        if (is == null) throw new IOException(SCHEMA + " non trovato nelle risorse");
+                        return new String(is.readAllBytes(), StandardCharsets.UTF_8).replaceAll("--[^\\n]*", "");
+                }
+        }
+
+        /** Chiude le connessioni libere; quelle in uso vengono chiuse alla restituzione. */
+        @Override
+        public void close() {
+                APERTI.remove(url, this);
+                chiudiConnessioni();
+        }
+
+        private void chiudiConnessioni() {
+                chiuso = true;
+                Connection c;
+                while ((c = libere.poll()) != null) {
+                        try {
+                                c.close();
+                        } catch (SQLException ignored) {
+                                // in chiusura
+                        }
+                }
+        }
+}
@@ -0,0 +1,91 @@
+package it.dissanahmed.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Istogramma di latenze a bucket log-lineari, nello stile di HdrHistogram.
+ * <p>
+ * Ogni potenza di due è divisa in {@value #SUB_BUCKET} sotto-intervalli lineari,
+ * quindi l'errore relativo dei percentili è inferiore al 7% su tutto l'intervallo
+ * di un {@code long}. La registrazione è lock-free (un incremento su un
+ * {@link AtomicLongArray}) e non alloca.
+ * </p>
+ */
+public final class Istogramma {
+
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKET = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKET;
+
+        /**
+         * Fotografia dell'istogramma; tempi in nanosecondi.
+         */
+        public record Snapshot(long count, double media, long p50, long p90, long p99, long p999, long max) {
+                @Override
+                public String toString() {
+                        return String.format("count=%d media=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                                count, media / 1e3, p50 / 1e3, p90 / 1e3, p99 / 1e3, p999 / 1e3, max / 1e3);
+                }
+        }
+
+        private final AtomicLongArray conteggi = new AtomicLongArray(BUCKETS);
+        private final LongAdder totale = new LongAdder();
+        private final LongAdder somma = new LongAdder();
+        private final LongAccumulator massimo = new LongAccumulator(Math::max, 0);
+
+        /** Registra un valore (negativi trattati come zero). */
+        public void registra(long valore) {
+                long v = Math.max(0, valore);
+                conteggi.incrementAndGet(indice(v));
+                totale.increment();
+                somma.add(v);
+                massimo.accumulate(v);
+        }
+
+        /** @return il numero di valori registrati. */
+        public long count() {
+                return totale.sum();
+        }
+
+        public Snapshot snapshot() {
+                long[] c = new long[BUCKETS];
+                long n = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                        c[i] = conteggi.get(i);
+                        n += c[i];
+                }
+                if (n == 0) return new Snapshot(0, 0, 0, 0, 0, 0, 0);
+                long max = massimo.get();
+                return new Snapshot(n, (double) somma.sum() / n,
+                        percentile(c, n, 0.50, max), percentile(c, n, 0.90, max),
+                        percentile(c, n, 0.99, max), percentile(c, n, 0.999, max), max);
+        }
+
+        private static long percentile(long[] c, long n, double q, long max) {
+                long soglia = (long) Math.ceil(q * n);
+                long cumulato = 0;
+                for (int i = 0; i < c.length; i++) {
+                        cumulato += c[i];
+                        if (cumulato >= soglia) return Math.min(max, limiteSuperiore(i));
+                }
+                return max;
+        }
+
+        static int indice(long v) {
+                if (v < SUB_BUCKET) return (int) v;
+                int exp = 63 - Long.numberOfLeadingZeros(v);
+                int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_BUCKET - 1);
+                return (exp - SUB_BITS + 1) * SUB_BUCKET + sub;
+        }
+
+        static long limiteSuperiore(int indice) {
+                if (indice < SUB_BUCKET) return indice;
+                int exp = indice / SUB_BUCKET + SUB_BITS - 1;
+                int sub = indice % SUB_BUCKET;
+                long base = (long) (SUB_BUCKET + sub) << (exp - SUB_BITS);
+                long ampiezza = 1L << (exp - SUB_BITS);
+                return base + ampiezza - 1 < 0 ? Long.MAX_VALUE : base + ampiezza - 1;
+        }
+}
@@ -0,0 +1,172 @@
+package it.dissanahmed.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Codifica e decodifica JSON minimale, sufficiente per i formati della rubrica
+ * (oggetti piatti con stringhe, numeri, booleani e null) senza dipendenze esterne.
+ */
+public final class Json {
+
+        private Json() {}
+
+        /** @return la stringa come letterale JSON (con escape), oppure <code>null</code>. */
+        public static String stringa(String s) {
+                if (s == null) return "null";
+                StringBuilder sb = new StringBuilder(s.length() + 2);
+                appendStringa(sb, s);
+                return sb.toString();
+        }
+
+        /** Accoda a {@code sb} la stringa come letterale JSON. */
+        public static void appendStringa(@NotNull StringBuilder sb, String s) {
+                if (s == null) {
+                        sb.append("null");
+                        return;
+                }
+                sb.append('"');
+                for (int i = 0; i < s.length(); i++) {
+                        char ch = s.charAt(i);
+                        switch (ch) {
+                                case '"' -> sb.append("\\\"");
+                                case '\\' -> sb.append("\\\\");
+                                case '\n' -> sb.append("\\n");
+                                case '\r' -> sb.append("\\r");
+                                case '\t' -> sb.append("\\t");
+                                default -> {
+                                        if (ch < 0x20) sb.append(String.format("\\u%04x", (int) ch));
+                                        else sb.append(ch);
+                                }
+                        }
+                }
+                sb.append('"');
+        }
+
+        /**
+         * Legge un oggetto JSON piatto. I valori sono {@link String}, {@link Long},
+         * {@link Double}, {@link Boolean} o {@code null}; oggetti e array annidati non sono ammessi.
+         *
+         * @throws IllegalArgumentException se il testo non è un oggetto piatto valido.
+         */
+        public static Map<String, Object> leggiOggetto(@NotNull String testo) {
+                Lettore l = new Lettore(testo);
+                Map<String, Object> out = new LinkedHashMap<>();
+                l.atteso('{');
+                if (!l.consuma('}')) {
+                        do {
+                                String chiave = l.stringa();
+                                l.atteso(':');
+                                out.put(chiave, l.valore());
+                        } while (l.consuma(','));
+                        l.atteso('}');
+                }
+                l.spazi();
+                if (l.pos != testo.length()) throw l.errore("contenuto dopo la fine dell'oggetto");
+                return out;
+        }
+
+        private static final class Lettore {
+                private final String s;
+                private int pos;
+
+                Lettore(String s) {
+                        this.s = s;
+                }
+
+                void spazi() {
+                        while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+                }
+
+                boolean consuma(char c) {
+                        spazi();
+                        if (pos < s.length() && s.charAt(pos) == c) {
+                                pos++;
+                                return true;
+                        }
+                        return false;
+                }
+
+                void atteso(char c) {
+                        if (!consuma(c)) throw errore("atteso '" + c + "'");
+                }
+
+                Object valore() {
+                        spazi();
+                        if (pos >= s.length()) throw errore("valore mancante");
+                        char c = s.charAt(pos);
+                        if (c == '"') return stringa();
+                        if (s.startsWith("null", pos)) {
+                                pos += 4;
+                                return null;
+                        }
+                        if (s.startsWith("true", pos)) {
+                                pos += 4;
+                                return Boolean.TRUE;
+                        }
+                        if (s.startsWith("false", pos)) {
+                                pos += 5;
+                                return Boolean.FALSE;
+                        }
+                        if (c == '-' || (c >= '0' && c <= '9')) return numero();
+                        throw errore("valore non supportato");
+                }
+
+                Object numero() {
+                        int inizio = pos;
+                        boolean decimale = false;
+                        while (pos < s.length()) {
+                                char c = s.charAt(pos);
+                                if (c == '.' || c == 'e' || c == 'E') decimale = true;
+                                else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) break;
+                                pos++;
+                        }
+                        String n = s.substring(inizio, pos);
+                        try {
+                                return decimale ? (Object) Double.parseDouble(n) : (Object) Long.parseLong(n);
+                        } catch (NumberFormatException e) {
+                                throw errore("numero non valido: " + n);
+                        }
+                }
+
+                String stringa() {
+                        atteso('"');
+                        StringBuilder sb = new StringBuilder();
+                        while (pos < s.length()) {
+                                char c = s.charAt(pos++);
+                                if (c == '"') return sb.toString();
+                                if (c != '\\') {
+                                        sb.append(c);
+                                        continue;
+                                }
+                                if (pos >= s.length()) break;
+                                char e = s.charAt(pos++);
+                                switch (e) {
+                                        case '"', '\\', '/' -> sb.append(e);
+                                        case 'b' -> sb.append('\b');
+                                        case 'f' -> sb.append('\f');
+                                        case 'n' -> sb.append('\n');
+                                        case 'r' -> sb.append('\r');
+                                        case 't' -> sb.append('\t');
+                                        case 'u' -> {
+                                                if (pos + 4 > s.length()) throw errore("escape unicode incompleto");
+                                                try {
+                                                        sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                                                } catch (NumberFormatException ex) {
+                                                        throw errore("escape unicode non valido");
+                                                }
+                                                pos += 4;
+                                        }
+                                        default -> throw errore("escape non valido: \\" + e);
+                                }
+                        }
+                        throw errore("stringa non terminata");
+                }
+
+                IllegalArgumentException errore(String msg) {
+                        return new IllegalArgumentException("JSON non valido (posizione " + pos + "): " + msg);
+                }
+        }
+}
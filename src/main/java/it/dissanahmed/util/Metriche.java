@@ -0,0 +1,111 @@
+package it.dissanahmed.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Registro delle metriche del processo: istogrammi di latenza, contatori e sonde.
+ * <p>
+ * Le metriche sono identificate da nomi puntati (es. <code>contatti.getContatti</code>);
+ * {@link #snapshot()} ne restituisce una fotografia interrogabile in-process e
+ * {@link #dump(Path)} la scrive su file.
+ * </p>
+ */
+public final class Metriche {
+
+        private static final ConcurrentHashMap<String, Istogramma> ISTOGRAMMI = new ConcurrentHashMap<>();
+        private static final ConcurrentHashMap<String, LongAdder> CONTATORI = new ConcurrentHashMap<>();
+        private static final ConcurrentHashMap<String, Supplier<?>> SONDE = new ConcurrentHashMap<>();
+        private static final long AVVIO = System.nanoTime();
+
+        private Metriche() {}
+
+        /** @return l'istogramma con il nome indicato, creato al primo uso. */
+        public static Istogramma istogramma(@NotNull String nome) {
+                return ISTOGRAMMI.computeIfAbsent(nome, n -> new Istogramma());
+        }
+
+        /** @return il contatore con il nome indicato, creato al primo uso. */
+        public static LongAdder contatore(@NotNull String nome) {
+                return CONTATORI.computeIfAbsent(nome, n -> new LongAdder());
+        }
+
+        /**
+         * Registra una sonda: il suo valore viene letto a ogni snapshot
+         * (es. le statistiche di una cache).
+         */
+        public static void registraSonda(@NotNull String nome, @NotNull Supplier<?> sonda) {
+                SONDE.put(nome, sonda);
+        }
+
+        /**
+         * Conta un errore dell'operazione indicata, classificato per SQLSTATE
+         * se la causa è una {@link SQLException}, altrimenti per tipo di eccezione.
+         */
+        public static void errore(@NotNull String operazione, @NotNull Throwable t) {
+                contatore(operazione + ".errori." + classifica(t)).increment();
+        }
+
+        /** @return la SQLSTATE della prima {@link SQLException} nella catena, o il nome della classe. */
+        public static String classifica(@NotNull Throwable t) {
+                for (Throwable c = t; c != null; c = c.getCause()) {
+                        if (c instanceof SQLException sql && sql.getSQLState() != null) return sql.getSQLState();
+                }
+                return t.getClass().getSimpleName();
+        }
+
+        /**
+         * Fotografia ordinata di tutte le metriche. Per ogni istogramma è incluso
+         * anche il throughput medio dall'avvio del processo (<code>.ops_s</code>).
+         */
+        public static Map<String, Object> snapshot() {
+                Map<String, Object> out = new TreeMap<>();
+                double secondi = Math.max(1e-9, (System.nanoTime() - AVVIO) / 1e9);
+                ISTOGRAMMI.forEach((n, h) -> {
+                        Istogramma.Snapshot s = h.snapshot();
+                        out.put(n, s);
+                        out.put(n + ".ops_s", String.format("%.2f", s.count() / secondi));
+                });
+                CONTATORI.forEach((n, c) -> out.put(n, c.sum()));
+                SONDE.forEach((n, s) -> {
+                        try {
+                                out.put(n, s.get());
+                        } catch (RuntimeException e) {
+                                out.put(n, "errore: " + e.getMessage());
+                        }
+                });
+                return out;
+        }
+
+        /** @return lo snapshot formattato, una metrica per riga. */
+        public static String formatta() {
+                StringBuilder sb = new StringBuilder("# metriche ").append(Instant.now()).append(System.lineSeparator());
+                snapshot().forEach((k, v) -> sb.append(k).append(" = ").append(v).append(System.lineSeparator()));
+                return sb.toString();
+        }
+
+        /** Scrive lo snapshot corrente sul file indicato, sovrascrivendolo. */
+        public static void dump(@NotNull Path file) throws IOException {
+                Path dir = file.toAbsolutePath().getParent();
+                if (dir != null) Files.createDirectories(dir);
+                Files.writeString(file, formatta(), StandardCharsets.UTF_8);
+        }
+
+        /** Azzera tutte le metriche (per i test). */
+        static void reset() {
+                ISTOGRAMMI.clear();
+                CONTATORI.clear();
+                SONDE.clear();
+        }
+}
@@ -0,0 +1,120 @@
+package it.dissanahmed.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Identificativi ULID: 26 caratteri Crockford base32, 48 bit di millisecondi seguiti da 80 bit
+ * casuali. Sono generati senza coordinamento (nessun contatore condiviso fra processi),
+ * hanno lunghezza fissa, sono sicuri come nomi di file e si ordinano per istante di creazione.
+ * <p>
+ * Nello stesso millisecondo la parte casuale viene incrementata, così gli identificativi
+ * generati da un processo restano strettamente crescenti.
+ * </p>
+ */
+public final class Ulid {
+
+        /** Lunghezza di un ULID. */
+        public static final int LUNGHEZZA = 26;
+
+        private static final char[] ALFABETO = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+        private static final SecureRandom RANDOM = new SecureRandom();
+
+        private static long ultimoMillis = -1;
+        private static long casualeAlto;   // 16 bit
+        private static long casualeBasso;  // 64 bit
+
+        private Ulid() {}
+
+        /** @return un nuovo identificativo, maggiore di tutti quelli generati prima da questo processo. */
+        public static synchronized @NotNull String nuovo() {
+                long millis = Math.max(System.currentTimeMillis(), ultimoMillis);
+                if (millis == ultimoMillis) {
+                        if (++casualeBasso == 0 && ++casualeAlto > 0xFFFF) {
+                                // 2^80 identificativi nello stesso millisecondo: passa al successivo
+                                millis++;
+                                casualeAlto = RANDOM.nextInt(0x10000);
+                                casualeBasso = RANDOM.nextLong();
+                        }
+                } else {
+                        casualeAlto = RANDOM.nextInt(0x10000);
+                        casualeBasso = RANDOM.nextLong();
+                }
+                ultimoMillis = millis;
+                return codifica(millis, casualeAlto, casualeBasso);
+        }
+
+        /**
+         * Identificativo deterministico: la stessa coppia di argomenti dà sempre lo stesso ULID.
+         * Serve alle migrazioni, che possono essere interrotte e ripetute senza creare doppioni.
+         *
+         * @param millis istante da usare come parte temporale.
+         * @param seme   testo da cui ricavare la parte casuale.
+         */
+        public static @NotNull String da(long millis, @NotNull String seme) {
+                byte[] h;
+                try {
+                        h = MessageDigest.getInstance("SHA-256").digest(seme.getBytes(StandardCharsets.UTF_8));
+                } catch (NoSuchAlgorithmException e) {
+                        throw new IllegalStateException("SHA-256 non disponibile", e);
+                }
+                long alto = ((h[0] & 0xFFL) << 8) | (h[1] & 0xFFL);
+                long basso = 0;
+                for (int i = 2; i < 10; i++) basso = (basso << 8) | (h[i] & 0xFFL);
+                return codifica(Math.max(0, millis), alto, basso);
+        }
+
+        /** @return {@code true} se {@code s} è un ULID ben formato. */
+        public static boolean valido(String s) {
+                if (s == null || s.length() != LUNGHEZZA || s.charAt(0) > '7') return false;
+                for (int i = 0; i < LUNGHEZZA; i++) {
+                        char c = s.charAt(i);
+                        if (!((c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z' && c != 'I' && c != 'L' && c != 'O' && c != 'U')))
+                                return false;
+                }
+                return true;
+        }
+
+        /** @return i millisecondi contenuti nell'identificativo. */
+        public static long millis(@NotNull String ulid) {
+                if (!valido(ulid)) throw new IllegalArgumentException("ULID non valido: " + ulid);
+                long m = 0;
+                for (int i = 0; i < 10; i++) m = (m << 5) | valore(ulid.charAt(i));
+                return m;
+        }
+
+        private static int valore(char c) {
+                for (int i = 0; i < ALFABETO.length; i++) {
+                        if (ALFABETO[i] == c) return i;
+                }
+                throw new IllegalArgumentException("carattere non valido: " + c);
+        }
+
+        /* 48 bit di tempo in 10 caratteri, poi 80 bit (16 alti + 64 bassi) in 16 caratteri. */
+        private static String codifica(long millis, long alto, long basso) {
+                char[] out = new char[LUNGHEZZA];
+                long t = millis & 0xFFFF_FFFF_FFFFL;
+                for (int i = 9; i >= 0; i--) {
+                        out[i] = ALFABETO[(int) (t & 31)];
+                        t >>>= 5;
+                }
+                for (int i = 0; i < 16; i++) {
+                        int shift = 75 - 5 * i;   // posizione del gruppo di 5 bit negli 80
+                        int v;
+                        if (shift >= 64) {
+                                v = (int) (alto >>> (shift - 64)) & 31;
+                        } else if (shift > 59) {
+                                // gruppo a cavallo fra la parte alta e quella bassa
+                                v = (int) (((alto << (64 - shift)) | (basso >>> shift)) & 31);
+                        } else {
+                                v = (int) (basso >>> shift) & 31;
+                        }
+                        out[10 + i] = ALFABETO[v];
+                }
+                return new String(out);
+        }
+}
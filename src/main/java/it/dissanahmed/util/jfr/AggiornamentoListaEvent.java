@@ -0,0 +1,19 @@
+package it.dissanahmed.util.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Ricostruzione della tabella contatti in {@code HomeMenu.updateListaPersone}.
+ */
+@Name("it.dissanahmed.AggiornamentoLista")
+@Label("Aggiornamento lista GUI")
+@Description("Ricostruzione del modello della tabella contatti")
+@Category({"Rubrica", "GUI"})
+public class AggiornamentoListaEvent extends jdk.jfr.Event {
+
+        @Label("Contatti")
+        public int contatti;
+}
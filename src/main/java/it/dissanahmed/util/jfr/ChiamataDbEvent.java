@@ -0,0 +1,29 @@
+package it.dissanahmed.util.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Chiamata a una stored procedure da {@code ContattiDbms}, inclusa l'eventuale apertura della connessione.
+ */
+@Name("it.dissanahmed.ChiamataDb")
+@Label("Chiamata stored procedure")
+@Description("Esecuzione di una stored procedure della rubrica")
+@Category({"Rubrica", "Database"})
+public class ChiamataDbEvent extends jdk.jfr.Event {
+
+        @Label("Chiamata")
+        public String chiamata;
+
+        @Label("Sessione vincolata")
+        public boolean vincolata;
+
+        @Label("Righe lette")
+        public int righe;
+
+        @Label("SQLSTATE")
+        @Description("SQLSTATE dell'errore, vuoto se la chiamata è riuscita")
+        public String sqlState;
+}
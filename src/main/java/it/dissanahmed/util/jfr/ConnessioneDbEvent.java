@@ -0,0 +1,22 @@
+package it.dissanahmed.util.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Apertura di una connessione JDBC da {@code ContattiDbms}.
+ */
+@Name("it.dissanahmed.ConnessioneDb")
+@Label("Connessione database")
+@Description("Apertura di una connessione JDBC verso il DBMS")
+@Category({"Rubrica", "Database"})
+public class ConnessioneDbEvent extends jdk.jfr.Event {
+
+        @Label("Utente DB")
+        public String utenteDb;
+
+        @Label("SQLSTATE")
+        public String sqlState;
+}
@@ -0,0 +1,25 @@
+package it.dissanahmed.util.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Derivazione PBKDF2 in {@code PasswordHasher}.
+ */
+@Name("it.dissanahmed.HashPassword")
+@Label("Hash password")
+@Description("Derivazione PBKDF2 per hash o verifica di una password")
+@Category({"Rubrica", "Login"})
+public class HashPasswordEvent extends jdk.jfr.Event {
+
+        @Label("Operazione")
+        public String operazione;
+
+        @Label("Iterazioni")
+        public int iterazioni;
+
+        @Label("Lunghezza chiave (bit)")
+        public int bitChiave;
+}
@@ -0,0 +1,30 @@
+package it.dissanahmed.util.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Lettura completa della rubrica di un utente da file system ({@code ContattiFs}).
+ */
+@Name("it.dissanahmed.ScansioneContatti")
+@Label("Scansione contatti FS")
+@Description("Lettura di tutti i file contatto della cartella utente")
+@Category({"Rubrica", "Storage"})
+public class ScansioneContattiEvent extends jdk.jfr.Event {
+
+        @Label("Utente")
+        public String utente;
+
+        @Label("Contatti letti")
+        public int contatti;
+
+        @Label("File letti")
+        public int file;
+
+        @Label("Byte letti")
+        @DataAmount
+        public long byteLetti;
+}
@@ -0,0 +1,30 @@
+package it.dissanahmed.util.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Scrittura o eliminazione di un file contatto ({@code ContattiFs}).
+ */
+@Name("it.dissanahmed.ScritturaContatti")
+@Label("Scrittura contatti FS")
+@Description("Scrittura atomica o eliminazione di un file contatto")
+@Category({"Rubrica", "Storage"})
+public class ScritturaContattiEvent extends jdk.jfr.Event {
+
+        @Label("Operazione")
+        public String operazione;
+
+        @Label("File")
+        public String file;
+
+        @Label("Byte scritti")
+        @DataAmount
+        public long byteScritti;
+
+        @Label("Durabilità")
+        public String durabilita;
+}
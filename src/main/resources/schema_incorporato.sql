@@ -0,0 +1,32 @@
+-- Schema del database incorporato (database.instance=incorporato, H2 nel processo).
+-- Porta da schema_database.sql le tabelle usate da login e rubrica; niente utenti DB, token di
+-- sessione, sequenze di sincronizzazione o statistiche: il processo è l'unico client.
+-- Eseguito a ogni apertura, quindi solo istruzioni idempotenti separate da ';'.
+
+CREATE TABLE IF NOT EXISTS LoginUser (
+    username       VARCHAR(64)  PRIMARY KEY,
+    password_hash  VARCHAR(255) NOT NULL,      -- PasswordHasher, come LoginDaoFs
+    created_at     TIMESTAMP    NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+-- id è la chiave stabile della voce (un cambio di telefono aggiorna la riga sul posto), il telefono
+-- resta univoco per utente. Nei database creati prima ADD COLUMN numera le righe esistenti e
+-- DatabaseIncorporato sposta la chiave primaria da (username, telefono) a id.
+CREATE TABLE IF NOT EXISTS Persona (
+    id        BIGINT       GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    username  VARCHAR(64)  NOT NULL,
+    telefono  VARCHAR(20)  NOT NULL,
+    nome      VARCHAR(64)  NOT NULL,
+    cognome   VARCHAR(64)  NOT NULL,
+    indirizzo VARCHAR(128) NOT NULL,
+    eta       INT          NOT NULL CHECK (eta >= 0),
+    version   BIGINT       NOT NULL DEFAULT 1,
+    CONSTRAINT uq_persona_telefono UNIQUE (username, telefono),
+    CONSTRAINT fk_persona_user
+        FOREIGN KEY (username) REFERENCES LoginUser(username)
+        ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+ALTER TABLE Persona ADD COLUMN IF NOT EXISTS id BIGINT GENERATED BY DEFAULT AS IDENTITY;
+
+CREATE INDEX IF NOT EXISTS ix_persona_cognome_nome ON Persona(username, cognome, nome);
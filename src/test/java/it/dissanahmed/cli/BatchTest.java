@@ -0,0 +1,144 @@
+package it.dissanahmed.cli;
+
+import it.dissanahmed.util.Configurazione;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Comandi di {@link Batch} su una rubrica su file system: codici di uscita, formato di
+ * import/export e chiusura della rubrica al termine del comando, anche quando fallisce.
+ */
+class BatchTest {
+
+        @TempDir
+        Path cartella;
+
+        private ByteArrayOutputStream out;
+        private ByteArrayOutputStream err;
+
+        @BeforeEach
+        void setUp() {
+                Map<String, String> conf = new HashMap<>();
+                conf.put("database.instance", "fs");
+                conf.put("fs.baseDir", cartella.resolve("rubrica").toString());
+                // il watcher rende osservabile la chiusura del DAO: il suo thread termina con close()
+                conf.put("fs.watch", "true");
+                Configurazione.imposta(conf);
+        }
+
+        @AfterEach
+        void tearDown() {
+                Configurazione.ricarica();
+        }
+
+        private int esegui(String... args) {
+                out = new ByteArrayOutputStream();
+                err = new ByteArrayOutputStream();
+                return Batch.esegui(args, new PrintStream(out, true, StandardCharsets.UTF_8),
+                        new PrintStream(err, true, StandardCharsets.UTF_8));
+        }
+
+        private String out() {
+                return out.toString(StandardCharsets.UTF_8);
+        }
+
+        private String err() {
+                return err.toString(StandardCharsets.UTF_8);
+        }
+
+        private Path file(String nome, String... righe) throws Exception {
+                return Files.write(cartella.resolve(nome), List.of(righe), StandardCharsets.UTF_8);
+        }
+
+        @Test
+        void import_righeNonValide_scartateConIlNumeroDiRiga_esitoParziale() throws Exception {
+                Path sorgente = file("contatti.csv",
+                        "# intestazione",
+                        "Anna;Rossi;Via Po 1;333;30",
+                        "Luca;Bianchi;Via Roma 2;444;quaranta",
+                        "Sara;Verdi;Via Dante 3;555;25");
+
+                assertThat(esegui("import", sorgente.toString())).isEqualTo(Batch.PARZIALE);
+                assertThat(err()).contains("riga 3:").contains("importati: 2, scartati: 1");
+
+                assertThat(esegui("query", "rossi", "--campo", "cognome")).isEqualTo(Batch.OK);
+                assertThat(out()).isEqualTo("Anna;Rossi;Via Po 1;333;30" + System.lineSeparator());
+                assertThat(err()).contains("trovati: 1");
+        }
+
+        @Test
+        void export_stessoFormatoDellImport() throws Exception {
+                Path sorgente = file("contatti.csv", "Anna;Rossi;Via Po 1;333;30", "Sara;Verdi;Via Dante 3;555;25");
+                assertThat(esegui("import", sorgente.toString())).isEqualTo(Batch.OK);
+
+                Path destinazione = cartella.resolve("export.csv");
+                assertThat(esegui("export", destinazione.toString())).isEqualTo(Batch.OK);
+                assertThat(err()).contains("esportati: 2");
+                assertThat(Files.readAllLines(destinazione, StandardCharsets.UTF_8))
+                        .containsExactlyInAnyOrder("Anna;Rossi;Via Po 1;333;30", "Sara;Verdi;Via Dante 3;555;25");
+        }
+
+        @Test
+        void stats_contaIContattiImportati() throws Exception {
+                Path sorgente = file("contatti.csv", "Anna;Rossi;Via Po 1;333;30", "Sara;Verdi;Via Dante 3;555;25");
+                esegui("import", sorgente.toString());
+
+                assertThat(esegui("stats")).isEqualTo(Batch.OK);
+                assertThat(out()).contains("contatti: 2").contains("eta: min=25 media=27.5 max=30");
+        }
+
+        @Test
+        void argomentiErrati_usoErrato_conLAiuto() {
+                assertThat(esegui()).isEqualTo(Batch.USO_ERRATO);
+                assertThat(err()).contains("comando mancante").contains("Uso:");
+
+                assertThat(esegui("cancella")).isEqualTo(Batch.USO_ERRATO);
+                assertThat(err()).contains("comando sconosciuto: cancella");
+
+                assertThat(esegui("dedup", "--soglia", "2")).isEqualTo(Batch.USO_ERRATO);
+                assertThat(err()).contains("soglia non valida");
+        }
+
+        @Test
+        void rubricaChiusaAlTermineDelComando_ancheSeFallisce() throws Exception {
+                Path sorgente = file("contatti.csv", "Anna;Rossi;Via Po 1;333;30");
+                Set<Thread> prima = watcherAttivi();
+
+                assertThat(esegui("import", sorgente.toString())).isEqualTo(Batch.OK);
+                assertThat(nuoviWatcherAttivi(prima)).isEmpty();
+
+                // fallisce dopo aver aperto la rubrica
+                assertThat(esegui("query", "anna", "--campo", "eta")).isEqualTo(Batch.USO_ERRATO);
+                assertThat(err()).contains("campo non valido: eta");
+                assertThat(nuoviWatcherAttivi(prima)).isEmpty();
+        }
+
+        private static Set<Thread> watcherAttivi() {
+                return Thread.getAllStackTraces().keySet().stream()
+                        .filter(t -> t.getName().startsWith("contatti-watcher-"))
+                        .collect(Collectors.toSet());
+        }
+
+        private static Set<Thread> nuoviWatcherAttivi(Set<Thread> prima) throws InterruptedException {
+                Set<Thread> nuovi = watcherAttivi();
+                nuovi.removeAll(prima);
+                for (Thread t : nuovi) t.join(2_000);
+                nuovi.removeIf(t -> !t.isAlive());
+                return nuovi;
+        }
+}
@@ -0,0 +1,85 @@
+package it.dissanahmed.login.persistenza;
+
+import it.dissanahmed.login.UtenteLogin;
+import it.dissanahmed.login.ex.ProblemaAutenticazione;
+import it.dissanahmed.login.ex.UtenteGiaEsiste;
+import it.dissanahmed.login.ex.UtenteNonTrovato;
+import it.dissanahmed.login.util.PasswordHasher;
+import it.dissanahmed.util.PathUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Verifica registrazione, accesso e migrazione dal layout una cartella per utente.
+ */
+class LoginDaoFsIndicizzatoTest {
+
+        @TempDir
+        Path baseDir;
+
+        @Test
+        void signUp_poi_signIn_conNuovaIstanza_leggeDalFileUnico() throws Exception {
+                new LoginDaoFsIndicizzato(baseDir).signUp(new UtenteLogin("mario", "Segreta1"));
+
+                LoginDaoFsIndicizzato riaperto = new LoginDaoFsIndicizzato(baseDir);
+                assertThat(riaperto.size()).isEqualTo(1);
+                riaperto.signIn(new UtenteLogin("mario", "Segreta1"));
+
+                assertThatThrownBy(() -> riaperto.signIn(new UtenteLogin("mario", "Sbagliata")))
+                        .isInstanceOf(ProblemaAutenticazione.class);
+                assertThatThrownBy(() -> riaperto.signIn(new UtenteLogin("luigi", "x")))
+                        .isInstanceOf(UtenteNonTrovato.class);
+                assertThatThrownBy(() -> riaperto.signUp(new UtenteLogin("mario", "altra")))
+                        .isInstanceOf(UtenteGiaEsiste.class);
+        }
+
+        @Test
+        void signUp_daAltraIstanza_vieneVistoSenzaRiaprire() throws Exception {
+                LoginDaoFsIndicizzato a = new LoginDaoFsIndicizzato(baseDir);
+                LoginDaoFsIndicizzato b = new LoginDaoFsIndicizzato(baseDir);
+
+                a.signUp(new UtenteLogin("anna", "Segreta1"));
+
+                b.signIn(new UtenteLogin("anna", "Segreta1"));
+                assertThatThrownBy(() -> b.signUp(new UtenteLogin("anna", "x")))
+                        .isInstanceOf(UtenteGiaEsiste.class);
+        }
+
+        @Test
+        void revocaECambioPassword_daAltraIstanza_valgonoAncheSeLUtenteEraGiaIndicizzato() throws Exception {
+                LoginDaoFsIndicizzato a = new LoginDaoFsIndicizzato(baseDir);
+                LoginDaoFsIndicizzato b = new LoginDaoFsIndicizzato(baseDir);
+                a.signUp(new UtenteLogin("anna", "Segreta1"));
+                b.signUp(new UtenteLogin("luca", "Segreta1"));
+                a.signIn(new UtenteLogin("anna", "Segreta1"));
+                a.signIn(new UtenteLogin("luca", "Segreta1"));
+
+                b.impostaPassword(new UtenteLogin("anna", "Nuova1"));
+                assertThatThrownBy(() -> a.signIn(new UtenteLogin("anna", "Segreta1")))
+                        .isInstanceOf(ProblemaAutenticazione.class);
+                a.signIn(new UtenteLogin("anna", "Nuova1"));
+
+                b.revoca("luca");
+                assertThatThrownBy(() -> a.signIn(new UtenteLogin("luca", "Segreta1")))
+                        .isInstanceOf(UtenteNonTrovato.class);
+        }
+
+        @Test
+        void primoUtilizzo_migraLeCredenzialiDelVecchioLayout() throws Exception {
+                Path dir = baseDir.resolve(PathUtils.INFORMAZIONI).resolve("vecchio");
+                Files.createDirectories(dir);
+                Files.writeString(dir.resolve("info.txt"), "vecchio," + PasswordHasher.hash("Segreta1"));
+
+                LoginDaoFsIndicizzato dao = new LoginDaoFsIndicizzato(baseDir);
+
+                assertThat(dao.size()).isEqualTo(1);
+                dao.signIn(new UtenteLogin("vecchio", "Segreta1"));
+                assertThat(Files.exists(baseDir.resolve(PathUtils.INFORMAZIONI)
+                        .resolve(LoginDaoFsIndicizzato.FILE_CREDENZIALI))).isTrue();
+        }
+}
@@ -0,0 +1,40 @@
+package it.dissanahmed.login.persistenza;
+
+import it.dissanahmed.login.UtenteLogin;
+import it.dissanahmed.login.ex.ProblemaAutenticazione;
+import it.dissanahmed.login.ex.UtenteGiaEsiste;
+import it.dissanahmed.login.ex.UtenteNonTrovato;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Ciclo di vita delle credenziali in {@link LoginDaoFs}: dopo la revoca l'utente non accede
+ * finché non si registra di nuovo, e la nuova registrazione è possibile.
+ */
+class LoginDaoFsTest {
+
+        @TempDir
+        Path baseDir;
+
+        @Test
+        void revoca_poiSignUp_poiSignIn_conLaNuovaPassword() throws Exception {
+                LoginDaoFs dao = new LoginDaoFs(baseDir);
+                dao.signUp(new UtenteLogin("mario", "Vecchia1"));
+                dao.signIn(new UtenteLogin("mario", "Vecchia1"));
+
+                dao.revoca("mario");
+                assertThatThrownBy(() -> dao.signIn(new UtenteLogin("mario", "Vecchia1")))
+                        .isInstanceOf(UtenteNonTrovato.class);
+
+                dao.signUp(new UtenteLogin("mario", "Nuova1"));
+                dao.signIn(new UtenteLogin("mario", "Nuova1"));
+                assertThatThrownBy(() -> dao.signIn(new UtenteLogin("mario", "Vecchia1")))
+                        .isInstanceOf(ProblemaAutenticazione.class);
+                assertThatThrownBy(() -> dao.signUp(new UtenteLogin("mario", "Altra1")))
+                        .isInstanceOf(UtenteGiaEsiste.class);
+        }
+}
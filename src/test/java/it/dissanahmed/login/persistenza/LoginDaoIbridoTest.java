@@ -0,0 +1,111 @@
+package it.dissanahmed.login.persistenza;
+
+import it.dissanahmed.login.UtenteLogin;
+import it.dissanahmed.login.ex.ProblemaAutenticazione;
+import it.dissanahmed.login.ex.UtenteGiaEsiste;
+import it.dissanahmed.login.ex.UtenteNonTrovato;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Allineamento delle credenziali locali a quelle del server nel login ibrido.
+ */
+class LoginDaoIbridoTest {
+
+        @TempDir
+        Path baseDir;
+
+        /** Server delle credenziali in memoria, spegnibile. */
+        private static final class ServerFinto implements LoginDao {
+                final Map<String, String> password = new ConcurrentHashMap<>();
+                volatile boolean offline;
+
+                @Override
+                public void signUp(UtenteLogin user) throws UtenteGiaEsiste {
+                        controlla();
+                        if (password.putIfAbsent(user.getUsername(), user.getPassword()) != null)
+                                throw new UtenteGiaEsiste(user.getUsername());
+                }
+
+                @Override
+                public void signIn(UtenteLogin user) throws UtenteNonTrovato, ProblemaAutenticazione {
+                        controlla();
+                        String p = password.get(user.getUsername());
+                        if (p == null) throw new UtenteNonTrovato(user.getUsername());
+                        if (!p.equals(user.getPassword())) throw new ProblemaAutenticazione("Password non corretta");
+                }
+
+                private void controlla() {
+                        if (offline) throw new RuntimeException("Errore", new SQLException("Communications link failure", "08S01"));
+                }
+        }
+
+        @Test
+        void passwordCambiataSulServer_sostituisceQuellaLocale() throws Exception {
+                ServerFinto server = new ServerFinto();
+                LoginDaoFs locale = new LoginDaoFs(baseDir);
+                LoginDaoIbrido dao = new LoginDaoIbrido(server, locale, 50);
+                dao.signUp(new UtenteLogin("mario", "Vecchia1"));
+
+                // cambiata da un altro dispositivo
+                server.password.put("mario", "Nuova1");
+                dao.signIn(new UtenteLogin("mario", "Nuova1"));
+
+                server.offline = true;
+                dao.signIn(new UtenteLogin("mario", "Nuova1"));
+                assertThatThrownBy(() -> dao.signIn(new UtenteLogin("mario", "Vecchia1")))
+                        .isInstanceOf(ProblemaAutenticazione.class);
+        }
+
+        @Test
+        void accessoOfflineRifiutatoDalServer_revocaLeCredenzialiLocali() throws Exception {
+                ServerFinto server = new ServerFinto();
+                LoginDaoFsIndicizzato locale = new LoginDaoFsIndicizzato(baseDir);
+                LoginDaoIbrido dao = new LoginDaoIbrido(server, locale, 20);
+                dao.signUp(new UtenteLogin("anna", "Vecchia1"));
+
+                server.offline = true;
+                dao.signIn(new UtenteLogin("anna", "Vecchia1"));
+                // revocata sul server mentre il client era offline
+                server.password.put("anna", "Nuova1");
+                server.offline = false;
+
+                long limite = System.nanoTime() + 5_000_000_000L;
+                while (locale.size() > 0 && System.nanoTime() < limite) Thread.sleep(10);
+
+                server.offline = true;
+                assertThatThrownBy(() -> dao.signIn(new UtenteLogin("anna", "Vecchia1")))
+                        .isInstanceOf(UtenteNonTrovato.class);
+                // anche un'altra istanza sullo stesso file vede la revoca
+                assertThatThrownBy(() -> new LoginDaoFsIndicizzato(baseDir).signIn(new UtenteLogin("anna", "Vecchia1")))
+                        .isInstanceOf(UtenteNonTrovato.class);
+
+                server.offline = false;
+                dao.signIn(new UtenteLogin("anna", "Nuova1"));
+                server.offline = true;
+                dao.signIn(new UtenteLogin("anna", "Nuova1"));
+        }
+
+        @Test
+        void dopoLaRevocaLocale_unaNuovaRegistrazioneVieneCopiataInLocale() throws Exception {
+                ServerFinto server = new ServerFinto();
+                LoginDaoFs locale = new LoginDaoFs(baseDir);
+                LoginDaoIbrido dao = new LoginDaoIbrido(server, locale, 50);
+                dao.signUp(new UtenteLogin("mario", "Vecchia1"));
+
+                // account eliminato sul server e credenziali locali revocate
+                server.password.remove("mario");
+                locale.revoca("mario");
+
+                dao.signUp(new UtenteLogin("mario", "Nuova1"));
+                server.offline = true;
+                dao.signIn(new UtenteLogin("mario", "Nuova1"));
+        }
+}
@@ -0,0 +1,66 @@
+package it.dissanahmed.login.persistenza;
+
+import it.dissanahmed.login.UtenteLogin;
+import it.dissanahmed.login.ex.ProblemaAutenticazione;
+import it.dissanahmed.login.ex.UtenteNonTrovato;
+import it.dissanahmed.login.util.PasswordHasher;
+import it.dissanahmed.util.DatabaseIncorporato;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.mockStatic;
+
+/**
+ * Accesso con {@link LoginDaoIncorporato}: password verificata sul pool di {@link PasswordHasher}
+ * e pool saturo riportato come troppi tentativi, non come errore generico.
+ */
+class LoginDaoIncorporatoTest {
+
+        private DatabaseIncorporato db;
+        private LoginDaoIncorporato dao;
+
+        @BeforeEach
+        void setUp() throws Exception {
+                Properties p = new Properties();
+                p.setProperty("db.incorporato.url", "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+                db = DatabaseIncorporato.get(p);
+                dao = new LoginDaoIncorporato(db);
+                dao.signUp(new UtenteLogin("mario", "Segreta1!"));
+        }
+
+        @AfterEach
+        void tearDown() {
+                db.close();
+        }
+
+        @Test
+        void signIn_passwordCorretta_errata_utenteAssente() {
+                assertThatCode(() -> dao.signIn(new UtenteLogin("mario", "Segreta1!"))).doesNotThrowAnyException();
+                assertThatThrownBy(() -> dao.signIn(new UtenteLogin("mario", "Sbagliata1!")))
+                        .isInstanceOf(ProblemaAutenticazione.class).hasMessage("Password errata");
+                assertThatThrownBy(() -> dao.signIn(new UtenteLogin("luca", "Segreta1!")))
+                        .isInstanceOf(UtenteNonTrovato.class);
+        }
+
+        @Test
+        void poolDiVerificaSaturo_troppiTentativi() {
+                try (MockedStatic<PasswordHasher> hasher = mockStatic(PasswordHasher.class, CALLS_REAL_METHODS)) {
+                        hasher.when(() -> PasswordHasher.verify(anyString(), anyString()))
+                                .thenThrow(new RejectedExecutionException("Troppe verifiche password in coda"));
+
+                        assertThatThrownBy(() -> dao.signIn(new UtenteLogin("mario", "Segreta1!")))
+                                .isInstanceOf(ProblemaAutenticazione.class)
+                                .hasMessage(LoginDaoLimitato.TROPPI_TENTATIVI);
+                }
+                assertThatCode(() -> dao.signIn(new UtenteLogin("mario", "Segreta1!"))).doesNotThrowAnyException();
+        }
+}
@@ -0,0 +1,189 @@
+package it.dissanahmed.login.persistenza;
+
+import it.dissanahmed.login.UtenteLogin;
+import it.dissanahmed.login.ex.ProblemaAutenticazione;
+import it.dissanahmed.util.Configurazione;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Verifica che i tentativi in eccesso vengano rifiutati senza raggiungere il DAO
+ * e prima di creare il secchio dell'utente, che i secchi si ricarichino col tempo e che
+ * quelli per utente restino limitati, e che una ricarica della configurazione cambi i limiti
+ * senza ricostruire i secchi.
+ */
+class LoginDaoLimitatoTest {
+
+        private final AtomicInteger chiamate = new AtomicInteger();
+        private long adessoNano;
+        private LoginDaoLimitato limitato;
+
+        @BeforeEach
+        void setUp() {
+                LoginDao contatore = new LoginDao() {
+                        @Override
+                        public void signUp(UtenteLogin user) {
+                                chiamate.incrementAndGet();
+                        }
+
+                        @Override
+                        public void signIn(UtenteLogin user) {
+                                chiamate.incrementAndGet();
+                        }
+                };
+                // globale: 4 in burst, 1/s; utente: 2 in burst, 1 ogni 10 s
+                limitato = new LoginDaoLimitato(contatore, 4, 1, 2, 0.1, () -> adessoNano);
+        }
+
+        @AfterEach
+        void tearDown() {
+                Configurazione.ricarica();
+        }
+
+        @Test
+        void signIn_oltreIlBurstUtente_rifiutaSenzaChiamareIlDao() throws Exception {
+                limitato.signIn(new UtenteLogin("mario", "pwd"));
+                limitato.signIn(new UtenteLogin("mario", "pwd"));
+
+                assertThatThrownBy(() -> limitato.signIn(new UtenteLogin("mario", "pwd")))
+                        .isInstanceOf(ProblemaAutenticazione.class)
+                        .hasMessageContaining("Troppi tentativi");
+                assertThat(chiamate.get()).isEqualTo(2);
+
+                limitato.signIn(new UtenteLogin("luigi", "pwd"));
+                assertThat(chiamate.get()).isEqualTo(3);
+
+                LoginDaoLimitato.Statistiche st = limitato.statistiche();
+                assertThat(st.accettati()).isEqualTo(3);
+                assertThat(st.rifiutatiUtente()).isEqualTo(1);
+        }
+
+        @Test
+        void signIn_oltreIlBurstGlobale_rifiutaAncheUtentiDiversi() throws Exception {
+                for (String u : new String[]{"a", "b", "c", "d"}) {
+                        limitato.signIn(new UtenteLogin(u, "pwd"));
+                }
+
+                assertThatThrownBy(() -> limitato.signIn(new UtenteLogin("e", "pwd")))
+                        .isInstanceOf(ProblemaAutenticazione.class);
+                assertThat(limitato.statistiche().rifiutatiGlobale()).isEqualTo(1);
+                // il rifiuto globale arriva prima: nessun secchio per "e"
+                assertThat(limitato.secchiUtente()).isEqualTo(4);
+        }
+
+        @Test
+        void signUp_oltreIlBurstGlobale_problemaAutenticazione() throws Exception {
+                for (int i = 0; i < 4; i++) limitato.signUp(new UtenteLogin("u" + i, "pwd"));
+
+                assertThatThrownBy(() -> limitato.signUp(new UtenteLogin("u5", "pwd")))
+                        .isInstanceOf(ProblemaAutenticazione.class)
+                        .hasMessageContaining("Troppi tentativi");
+                assertThat(chiamate.get()).isEqualTo(4);
+        }
+
+        @Test
+        void secchiUtente_limitati_scartaIlMenoRecente() throws Exception {
+                LoginDaoLimitato largo = new LoginDaoLimitato(new LoginDao() {
+                        @Override
+                        public void signUp(UtenteLogin user) {
+                        }
+
+                        @Override
+                        public void signIn(UtenteLogin user) {
+                        }
+                }, 1e9, 1, 1, 0.1, () -> adessoNano);
+                largo.signIn(new UtenteLogin("mario", "pwd"));
+                for (int i = 0; i < LoginDaoLimitato.MAX_SECCHI_UTENTE; i++) largo.signIn(new UtenteLogin("u" + i, "pwd"));
+
+                assertThat(largo.secchiUtente()).isEqualTo(LoginDaoLimitato.MAX_SECCHI_UTENTE);
+                // il secchio di mario, il meno recente, è stato scartato: ne riceve uno nuovo e pieno
+                largo.signIn(new UtenteLogin("mario", "pwd"));
+                assertThatThrownBy(() -> largo.signIn(new UtenteLogin("mario", "pwd")))
+                        .isInstanceOf(ProblemaAutenticazione.class);
+        }
+
+        @Test
+        void signIn_dopoLaRicarica_vieneDiNuovoAccettato() throws Exception {
+                limitato.signIn(new UtenteLogin("mario", "pwd"));
+                limitato.signIn(new UtenteLogin("mario", "pwd"));
+                assertThatThrownBy(() -> limitato.signIn(new UtenteLogin("mario", "pwd")))
+                        .isInstanceOf(ProblemaAutenticazione.class);
+
+                adessoNano += TimeUnit.SECONDS.toNanos(10);
+
+                limitato.signIn(new UtenteLogin("mario", "pwd"));
+                assertThat(chiamate.get()).isEqualTo(3);
+        }
+
+        @Test
+        void limiti_nuoviValori_mantengonoIGettoniConsumati() throws Exception {
+                limitato.signIn(new UtenteLogin("mario", "pwd"));
+                limitato.signIn(new UtenteLogin("mario", "pwd"));
+
+                Properties p = new Properties();
+                p.setProperty("login.rate.global.burst", "100");
+                p.setProperty("login.rate.global.perSecond", "1");
+                p.setProperty("login.rate.user.burst", "3");
+                p.setProperty("login.rate.user.perMinute", "6");
+                limitato.limiti(p);
+
+                // il secchio di mario resta vuoto: la capacità più alta non regala tentativi
+                assertThatThrownBy(() -> limitato.signIn(new UtenteLogin("mario", "pwd")))
+                        .isInstanceOf(ProblemaAutenticazione.class);
+                // la nuova ricarica (1 ogni 10 s) vale per il secchio esistente
+                adessoNano += TimeUnit.SECONDS.toNanos(10);
+                limitato.signIn(new UtenteLogin("mario", "pwd"));
+                // un utente nuovo ha la nuova capacità
+                for (int i = 0; i < 3; i++) limitato.signIn(new UtenteLogin("luigi", "pwd"));
+                assertThatThrownBy(() -> limitato.signIn(new UtenteLogin("luigi", "pwd")))
+                        .isInstanceOf(ProblemaAutenticazione.class);
+        }
+
+        @Test
+        void condiviso_dopoLaRicaricaDellaConfigurazione_stessiSecchiNuovoDelegato() throws Exception {
+                String utente = UUID.randomUUID().toString();
+                Configurazione.imposta(Map.of("login.rate.user.burst", "2", "login.rate.user.perMinute", "1"));
+                AtomicInteger primo = new AtomicInteger();
+                LoginDaoLimitato a = LoginDaoLimitato.condiviso(Configurazione.get(), () -> contaAccessi(primo));
+                a.signIn(new UtenteLogin(utente, "pwd"));
+                a.signIn(new UtenteLogin(utente, "pwd"));
+                assertThatThrownBy(() -> a.signIn(new UtenteLogin(utente, "pwd"))).isInstanceOf(ProblemaAutenticazione.class);
+
+                // la ricarica notifica l'ascoltatore: i limiti cambiano subito, i secchi restano
+                Configurazione.imposta(Map.of("login.rate.user.burst", "5", "login.rate.user.perMinute", "1"));
+                assertThatThrownBy(() -> a.signIn(new UtenteLogin(utente, "pwd"))).isInstanceOf(ProblemaAutenticazione.class);
+                String nuovo = UUID.randomUUID().toString();
+                for (int i = 0; i < 3; i++) a.signIn(new UtenteLogin(nuovo, "pwd"));
+
+                AtomicInteger secondo = new AtomicInteger();
+                LoginDaoLimitato b = LoginDaoLimitato.condiviso(Configurazione.get(), () -> contaAccessi(secondo));
+                assertThat(b).isSameAs(a);
+                assertThatThrownBy(() -> b.signIn(new UtenteLogin(utente, "pwd"))).isInstanceOf(ProblemaAutenticazione.class);
+                b.signIn(new UtenteLogin(UUID.randomUUID().toString(), "pwd"));
+                assertThat(primo.get()).isEqualTo(5);
+                assertThat(secondo.get()).isEqualTo(1);
+        }
+
+        private static LoginDao contaAccessi(AtomicInteger accessi) {
+                return new LoginDao() {
+                        @Override
+                        public void signUp(UtenteLogin user) {
+                                accessi.incrementAndGet();
+                        }
+
+                        @Override
+                        public void signIn(UtenteLogin user) {
+                                accessi.incrementAndGet();
+                        }
+                };
+        }
+}
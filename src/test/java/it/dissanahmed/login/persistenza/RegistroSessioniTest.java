@@ -0,0 +1,110 @@
+package it.dissanahmed.login.persistenza;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Verifica scadenza, rinnovo e metriche del registro dei token,
+ * usando un orologio controllato dal test.
+ */
+class RegistroSessioniTest {
+
+        private OrologioManuale clock;
+        private RegistroSessioni registro;
+
+        @BeforeEach
+        void setUp() {
+                clock = new OrologioManuale(Instant.parse("2025-01-01T00:00:00Z"));
+                registro = new RegistroSessioni(clock, Duration.ofHours(12), Duration.ofHours(1));
+        }
+
+        @Test
+        void get_tokenValido_restituisceToken_e_contaHit() {
+                registro.registra("mario", "TOK", null);
+
+                assertThat(registro.get("mario")).isEqualTo("TOK");
+                assertThat(registro.get("luigi")).isNull();
+
+                RegistroSessioni.Statistiche st = registro.statistiche();
+                assertThat(st.hit()).isEqualTo(1);
+                assertThat(st.miss()).isEqualTo(1);
+        }
+
+        @Test
+        void get_tokenScaduto_restituisceNull_e_rimuoveVoce() {
+                registro.registra("mario", "TOK", null);
+                clock.avanza(Duration.ofHours(12));
+
+                assertThat(registro.get("mario")).isNull();
+                assertThat(registro.statistiche().sessioniAttive()).isZero();
+                assertThat(registro.statistiche().scadute()).isEqualTo(1);
+        }
+
+        @Test
+        void rinnovaInScadenza_rinnovaSoloVociVicineAllaScadenza() {
+                List<String> rinnovati = new ArrayList<>();
+                registro.registra("mario", "TOK", rinnovati::add);
+
+                registro.rinnovaInScadenza();
+                assertThat(rinnovati).isEmpty();
+
+                clock.avanza(Duration.ofHours(11).plusMinutes(30));
+                registro.rinnovaInScadenza();
+                assertThat(rinnovati).containsExactly("TOK");
+
+                clock.avanza(Duration.ofHours(2));
+                assertThat(registro.get("mario")).isEqualTo("TOK");
+                assertThat(registro.statistiche().rinnovi()).isEqualTo(1);
+        }
+
+        @Test
+        void rinnovaInScadenza_sessioneInvalidaSulServer_rimuoveVoce() {
+                registro.registra("mario", "TOK", t -> {
+                        throw new SQLException("Sessione non valida o scaduta", "45010");
+                });
+                clock.avanza(Duration.ofHours(11).plusMinutes(30));
+
+                registro.rinnovaInScadenza();
+
+                assertThat(registro.get("mario")).isNull();
+                assertThat(registro.statistiche().rinnoviFalliti()).isEqualTo(1);
+        }
+
+        private static final class OrologioManuale extends Clock {
+                private Instant adesso;
+
+                OrologioManuale(Instant adesso) {
+                        this.adesso = adesso;
+                }
+
+                void avanza(Duration d) {
+                        adesso = adesso.plus(d);
+                }
+
+                @Override
+                public ZoneId getZone() {
+                        return ZoneOffset.UTC;
+                }
+
+                @Override
+                public Clock withZone(ZoneId zone) {
+                        return this;
+                }
+
+                @Override
+                public Instant instant() {
+                        return adesso;
+                }
+        }
+}
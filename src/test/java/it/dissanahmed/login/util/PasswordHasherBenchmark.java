@@ -0,0 +1,63 @@
+package it.dissanahmed.login.util;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark JMH di {@link PasswordHasher}.
+ * <p>
+ * I benchmark a thread singolo misurano gli hash al secondo per core;
+ * {@code verifyPool} misura la verifica passando dal pool dedicato con
+ * tutti i thread disponibili, per vedere il limite imposto dal pool.
+ * </p>
+ * Dopo {@code mvn test-compile}, con le classi di test e le dipendenze di test nel classpath
+ * (ad esempio da {@code mvn dependency:build-classpath -Dmdep.outputFile=cp.txt}):
+ * <pre>
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) it.dissanahmed.login.util.PasswordHasherBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PasswordHasherBenchmark {
+
+        private String stored;
+
+        @Setup
+        public void setUp() {
+                stored = PasswordHasher.hash("Password123!");
+        }
+
+        @Benchmark
+        @Threads(1)
+        public String hash() {
+                return PasswordHasher.hash("Password123!");
+        }
+
+        @Benchmark
+        @Threads(1)
+        public boolean verifyLocal() {
+                return PasswordHasher.verifyLocal("Password123!", stored);
+        }
+
+        @Benchmark
+        @Threads(Threads.MAX)
+        public boolean verifyPool() {
+                return PasswordHasher.verify("Password123!", stored);
+        }
+
+        public static void main(String[] args) throws RunnerException {
+                Options opt = new OptionsBuilder()
+                        .include(PasswordHasherBenchmark.class.getSimpleName())
+                        .build();
+                new Runner(opt).run();
+        }
+}
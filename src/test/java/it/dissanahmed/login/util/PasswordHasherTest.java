@@ -0,0 +1,110 @@
+package it.dissanahmed.login.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Verifiche di {@link PasswordHasher} sul pool dedicato: esito, rifiuto immediato a coda
+ * piena e interruzione del chiamante in attesa. Il pool qui è piccolo per saturarlo.
+ */
+class PasswordHasherTest {
+
+        private static String stored;
+
+        private ThreadPoolExecutor pool;
+        private final CountDownLatch rilascia = new CountDownLatch(1);
+
+        @BeforeAll
+        static void hash() {
+                stored = PasswordHasher.hash("Segreta1!");
+        }
+
+        @AfterEach
+        void tearDown() {
+                rilascia.countDown();
+                if (pool != null) pool.shutdownNow();
+        }
+
+        /* Pool con un thread e una posizione in coda, entrambi occupati finché non si rilascia. */
+        private void saturaPool() throws InterruptedException {
+                pool = PasswordHasher.creaPoolVerifiche(1, 1);
+                CountDownLatch occupato = new CountDownLatch(1);
+                Runnable attesa = () -> {
+                        occupato.countDown();
+                        try {
+                                rilascia.await();
+                        } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                        }
+                };
+                pool.execute(attesa);
+                occupato.await();
+                pool.execute(attesa);
+        }
+
+        @Test
+        void verify_passaDalPool_eConfrontaLaPassword() {
+                pool = PasswordHasher.creaPoolVerifiche(1, 1);
+
+                // argomenti assenti: nessun task, nessun thread avviato
+                assertThat(PasswordHasher.verify(pool, null, stored)).isFalse();
+                assertThat(pool.getLargestPoolSize()).isZero();
+
+                assertThat(PasswordHasher.verify(pool, "Segreta1!", stored)).isTrue();
+                assertThat(PasswordHasher.verify(pool, "Sbagliata1!", stored)).isFalse();
+                assertThat(PasswordHasher.verify(pool, "Segreta1!", "md5$abc")).isFalse();
+                assertThat(pool.getLargestPoolSize()).isEqualTo(1);
+        }
+
+        @Test
+        void poolSaturo_rifiutaSubito_eDopoTornaDisponibile() throws Exception {
+                saturaPool();
+
+                long t0 = System.nanoTime();
+                assertThatThrownBy(() -> PasswordHasher.verify(pool, "Segreta1!", stored))
+                        .isInstanceOf(RejectedExecutionException.class)
+                        .hasMessageContaining("Troppe verifiche password in coda");
+                assertThat((System.nanoTime() - t0) / 1_000_000).isLessThan(100L);
+
+                rilascia.countDown();
+                attendiCodaVuota();
+                assertThat(PasswordHasher.verify(pool, "Segreta1!", stored)).isTrue();
+        }
+
+        private void attendiCodaVuota() throws InterruptedException {
+                long scadenza = System.nanoTime() + 2_000_000_000L;
+                while (!pool.getQueue().isEmpty() && System.nanoTime() < scadenza) Thread.sleep(5);
+                assertThat(pool.getQueue()).isEmpty();
+        }
+
+        @Test
+        void chiamanteInterrotto_inAttesaDelPool_erroreEFlagConservato() throws Exception {
+                pool = PasswordHasher.creaPoolVerifiche(1, 2);
+                CountDownLatch occupato = new CountDownLatch(1);
+                pool.execute(() -> {
+                        occupato.countDown();
+                        try {
+                                rilascia.await();
+                        } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                        }
+                });
+                occupato.await();
+
+                Thread.currentThread().interrupt();
+                assertThatThrownBy(() -> PasswordHasher.verify(pool, "Segreta1!", stored))
+                        .isInstanceOf(IllegalStateException.class)
+                        .hasMessageContaining("interrotta");
+                assertThat(Thread.interrupted()).isTrue();
+
+                rilascia.countDown();
+                assertThat(PasswordHasher.verify(pool, "Segreta1!", stored)).isTrue();
+        }
+}
@@ -0,0 +1,139 @@
+package it.dissanahmed.rubrica;
+
+import it.dissanahmed.login.UtenteLogin;
+import it.dissanahmed.login.persistenza.LoginDaoDBMS;
+import it.dissanahmed.rubrica.persistenza.ContattiDbms;
+import it.dissanahmed.rubrica.persistenza.DbmsInMemoria;
+import it.dissanahmed.util.Configurazione;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Due client sulla stessa rubrica DBMS (un {@link DbmsInMemoria} con le stesse procedure),
+ * direttamente o tramite la rubrica ibrida: chi esce con una copia in memoria ormai vecchia non
+ * deve cancellare né sovrascrivere le modifiche dell'altro.
+ */
+class GestioneContattiDueClientTest {
+
+        @TempDir
+        Path cartella;
+
+        private String utente;
+        private DbmsInMemoria db;
+
+        @BeforeEach
+        void setUp() throws Exception {
+                utente = UUID.randomUUID().toString();
+                db = DbmsInMemoria.crea(utente, 0);
+                configura("dbms");
+                LoginDaoDBMS login = new LoginDaoDBMS(db.getUrl(), "login", "login");
+                login.signUp(new UtenteLogin(utente, "segreta"));
+                login.signIn(new UtenteLogin(utente, "segreta"));
+        }
+
+        @AfterEach
+        void tearDown() {
+                Configurazione.ricarica();
+        }
+
+        private void configura(String istanza) {
+                Map<String, String> conf = new HashMap<>();
+                conf.put("database.instance", istanza);
+                conf.put("db.url", db.getUrl());
+                conf.put("db.user", "logged");
+                conf.put("db.password", "logged");
+                conf.put("fs.baseDir", cartella.toString());
+                conf.put("sync.intervalMs", "20");
+                Configurazione.imposta(conf);
+        }
+
+        private static void attendi(BooleanSupplier condizione) throws InterruptedException {
+                long limite = System.nanoTime() + 5_000_000_000L;
+                while (!condizione.getAsBoolean()) {
+                        if (System.nanoTime() > limite) fail("condizione non raggiunta entro 5 s");
+                        Thread.sleep(10);
+                }
+        }
+
+        @Test
+        void chiusuraConCopiaVecchia_nonCancellaNeSovrascriveLAltroClient() throws Exception {
+                GestioneContatti a = GestioneContatti.gestita(utente);
+                a.inserisciDatiPersona("Anna", "Rossi", "Via Po 1", "333", 30);
+
+                GestioneContatti b = GestioneContatti.gestita(utente);
+                b.inserisciDatiPersona("Luca", "Bianchi", "Via Roma 2", "444", 40);
+                b.modificaPersona("333", "indirizzo", "Corso Francia 9");
+                b.close();
+
+                // a non ha mai visto Luca né il nuovo indirizzo di Anna
+                a.inserisciDatiPersona("Sara", "Verdi", "Via Dante 3", "555", 25);
+                a.close();
+
+                GestioneContatti c = GestioneContatti.gestita(utente);
+                try {
+                        assertThat(c.getContatti()).extracting(Persona::getTelefono)
+                                .containsExactlyInAnyOrder("333", "444", "555");
+                        assertThat(c.getContatti()).filteredOn(p -> p.getTelefono().equals("333"))
+                                .extracting(Persona::getIndirizzo).containsExactly("Corso Francia 9");
+                } finally {
+                        c.close();
+                }
+        }
+
+        @Test
+        void scritturaRifiutata_laMemoriaResta_comeSulDatabase() throws Exception {
+                GestioneContatti a = GestioneContatti.gestita(utente);
+                GestioneContatti b = GestioneContatti.gestita(utente);
+                try {
+                        a.inserisciDatiPersona("Anna", "Rossi", "Via Po 1", "333", 30);
+                        b.inserisciDatiPersona("Anna", "Rossi", "Via Po 1", "333", 30);
+                        b.modificaPersona("333", "eta", "31");
+
+                        // la versione di a è vecchia: la modifica è respinta e a rilegge dal database
+                        assertThatThrownBy(() -> a.modificaPersona("333", "eta", "50"))
+                                .hasMessageContaining("modificata da un altro client");
+                        assertThat(a.getContatti()).extracting(Persona::getEta).containsExactly(31);
+                } finally {
+                        a.close();
+                        b.close();
+                }
+        }
+
+        @Test
+        void ibrido_vociRicevute_arrivanoInMemoria_eSopravvivonoAllaChiusura() throws Exception {
+                configura("ibrido");
+                GestioneContatti a = GestioneContatti.gestita(utente);
+                a.inserisciDatiPersona("Anna", "Rossi", "Via Po 1", "333", 30);
+
+                // l'altro client scrive direttamente sul server
+                try (ContattiDbms altro = new ContattiDbms(Configurazione.get().toProperties(), utente)) {
+                        altro.salvaPersona(new Persona("Luca", "Bianchi", "Via Roma 2", "444", 40));
+                        altro.salvaPersona(new Persona("Sara", "Verdi", "Via Dante 3", "555", 25));
+                }
+
+                // ricezione: memoria e statistiche si aggiornano senza riaprire la rubrica
+                attendi(() -> a.numeroContatti() == 3);
+                assertThat(a.getStatistiche().contatti()).isEqualTo(3);
+                a.close();
+
+                GestioneContatti riaperta = GestioneContatti.gestita(utente);
+                try {
+                        assertThat(riaperta.getContatti()).extracting(Persona::getTelefono)
+                                .containsExactlyInAnyOrder("333", "444", "555");
+                } finally {
+                        riaperta.close();
+                }
+                // la chiusura non ha spedito eliminazioni per le voci ricevute
+                assertThat(db.versioni(utente).keySet()).containsExactlyInAnyOrder("333", "444", "555");
+        }
+}
@@ -1,6 +1,7 @@
 package it.dissanahmed.rubrica;
 
 import it.dissanahmed.login.GestioneLogin;
+import it.dissanahmed.rubrica.ex.ConflittoVersione;
 import it.dissanahmed.rubrica.ex.PersonaException;
 import it.dissanahmed.rubrica.persistenza.ContattiDao;
 import org.junit.jupiter.api.*;
@@ -63,6 +64,7 @@ class GestioneContattiTest {
                         .containsExactly("+39111");
 
                 verify(dao, times(1)).getContatti();
+                verify(dao).setAscoltatore(any());
                 verifyNoMoreInteractions(dao);
         }
 
@@ -243,6 +245,21 @@ class GestioneContattiTest {
                         .hasMessageContaining("non posso modificare i dati di un'altra persona");
         }
 
+        @Test
+        void modificaPersona_conflittoDiVersione_lancia_CONFLICT_e_rileggeDalDao() throws Exception {
+                GestioneContatti gc = nuovaGestioneContatti();
+                gc.inserisciDatiPersona("Mario", "Rossi", "Via", "+39", 10);
+                doThrow(new ConflittoVersione("+39", 1, null)).when(dao).modificaPersona(any(), eq("+39"));
+                when(dao.getContatti()).thenReturn(List.of(new Persona("Mario", "Rossi", "Via Nuova", "+39", 11)));
+
+                assertThatThrownBy(() -> gc.modificaPersona("+39", "indirizzo", "Via Mia"))
+                        .isInstanceOf(PersonaException.class)
+                        .hasMessageContaining("modificata da un altro client");
+                assertThat(gc.getContatti())
+                        .extracting(Persona::getIndirizzo)
+                        .containsExactly("Via Nuova");
+        }
+
         @Test
         void modificaPersona_nomeOCognomeInvalido_lancia_INVALID_ENTRY() throws Exception {
                 GestioneContatti gc = nuovaGestioneContatti();
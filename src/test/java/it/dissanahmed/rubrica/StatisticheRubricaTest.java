@@ -0,0 +1,95 @@
+package it.dissanahmed.rubrica;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Verifica che le statistiche aggiornate a ogni scrittura coincidano con quelle ricalcolate
+ * da zero, e le chiavi usate per iniziali e parole dell'indirizzo.
+ */
+class StatisticheRubricaTest {
+
+        private static final String[] COGNOMI = {"Rossi", "Bianchi", "Verdi", "Esposito", "Ómar", ""};
+        private static final String[] INDIRIZZI = {"Via Roma 1, Milano", "Piazza Duomo, Milano", "Via Po 3 Torino",
+                "Corso Città 10, Città di Castello", "Via Roma Roma 4"};
+
+        private static Persona casuale(Random r, int i) {
+                return new Persona("Nome" + i, COGNOMI[r.nextInt(COGNOMI.length)], INDIRIZZI[r.nextInt(INDIRIZZI.length)],
+                        "33" + i, r.nextInt(10) == 0 ? 150 + r.nextInt(20) : r.nextInt(100));
+        }
+
+        private static void verificaUguali(StatisticheRubrica a, StatisticheRubrica b) {
+                assertThat(a.contatti()).isEqualTo(b.contatti());
+                assertThat(a.etaMedia()).isEqualTo(b.etaMedia());
+                assertThat(a.etaMin()).isEqualTo(b.etaMin());
+                assertThat(a.etaMax()).isEqualTo(b.etaMax());
+                assertThat(a.perFasciaEta()).isEqualTo(b.perFasciaEta());
+                assertThat(a.perIniziale()).isEqualTo(b.perIniziale());
+                assertThat(a.tokenPiuFrequenti(100)).isEqualTo(b.tokenPiuFrequenti(100));
+        }
+
+        @Test
+        void aggiornamentiIncrementali_coincidonoConIlRicalcolo() {
+                Random r = new Random(3);
+                List<Persona> rubrica = new ArrayList<>();
+                for (int i = 0; i < 200; i++) rubrica.add(casuale(r, i));
+                StatisticheRubrica st = new StatisticheRubrica(rubrica);
+
+                for (int n = 0; n < 2_000; n++) {
+                        int op = r.nextInt(3);
+                        if (op == 0 || rubrica.isEmpty()) {
+                                Persona p = casuale(r, 1_000 + n);
+                                rubrica.add(p);
+                                st.aggiungi(p);
+                        } else if (op == 1) {
+                                st.rimuovi(rubrica.remove(r.nextInt(rubrica.size())));
+                        } else {
+                                Persona p = rubrica.get(r.nextInt(rubrica.size()));
+                                Persona prima = new Persona(p.getNome(), p.getCognome(), p.getIndirizzo(), p.getTelefono(), p.getEta());
+                                Persona nuova = casuale(r, 0);
+                                p.setCognome(nuova.getCognome());
+                                p.setIndirizzo(nuova.getIndirizzo());
+                                p.setEta(nuova.getEta());
+                                st.modifica(prima, p);
+                        }
+                }
+
+                verificaUguali(st, new StatisticheRubrica(rubrica));
+                st.ricalcola(List.of());
+                assertThat(st.contatti()).isZero();
+                assertThat(st.etaMin()).isEqualTo(-1);
+                assertThat(st.tokenPiuFrequenti(5)).isEmpty();
+        }
+
+        @Test
+        void chiavi_inizialeEParoleDistinteSenzaAccenti() {
+                StatisticheRubrica st = new StatisticheRubrica(List.of(
+                        new Persona("Anna", "ómar", "Corso Città 10, Città di Castello", "1", 34),
+                        new Persona("Luca", "Rossi", "Via Roma 1, Milano", "2", 41)));
+
+                assertThat(st.perToken("citta")).isEqualTo(1);
+                assertThat(st.perToken("di")).isZero();
+                assertThat(st.perToken("milano")).isEqualTo(1);
+                assertThat(st.perIniziale()).isEqualTo(Map.of('Ó', 1, 'R', 1));
+                assertThat(st.perFasciaEta()).isEqualTo(Map.of(30, 1, 40, 1));
+                assertThat(st.etaMedia()).isEqualTo(37.5);
+        }
+
+        @Test
+        void fasceEta_ultimaFascia120ComprendeLeEtaSuccessive() {
+                StatisticheRubrica st = new StatisticheRubrica(List.of(
+                        new Persona("Anna", "Rossi", "Via Po", "1", 119),
+                        new Persona("Luca", "Rossi", "Via Po", "2", 120),
+                        new Persona("Sara", "Rossi", "Via Po", "3", 135),
+                        new Persona("Eva", "Rossi", "Via Po", "4", 200)));
+
+                assertThat(st.perFasciaEta()).isEqualTo(Map.of(110, 1, 120, 3));
+                assertThat(st.etaMax()).isEqualTo(200);
+        }
+}
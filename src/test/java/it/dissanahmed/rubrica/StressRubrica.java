@@ -0,0 +1,414 @@
+package it.dissanahmed.rubrica;
+
+import it.dissanahmed.login.GestioneLogin;
+import it.dissanahmed.rubrica.ex.PersonaException;
+import it.dissanahmed.rubrica.persistenza.DbmsInMemoria;
+import it.dissanahmed.util.Configurazione;
+import it.dissanahmed.util.Istogramma;
+import it.dissanahmed.util.Metriche;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Prova di stress e di durata con più utenti concorrenti su {@link GestioneLogin} e
+ * {@link GestioneContatti}, con il backend <b>fs</b> ({@code ContattiFs} in una cartella temporanea),
+ * <b>dbms</b> ({@code ContattiDbms} e {@code LoginDaoDBMS} su {@link DbmsInMemoria}) o
+ * <b>incorporato</b> (H2 in memoria).
+ * <p>
+ * Ogni utente si registra ed entra, poi {@code client} virtual thread condividono la sua rubrica,
+ * come le richieste del server tramite {@link GestoreRubriche}, con un carico misto di inserimenti,
+ * modifiche, eliminazioni, letture e nuovi login. Ogni client lavora su telefoni propri e tiene il
+ * modello di ciò che la rubrica deve contenere, controllato:
+ * <ul>
+ *   <li>a ogni lettura: le proprie voci coincidono con il modello e non compaiono voci di altri utenti;</li>
+ *   <li>alla fine, in memoria: contenuto e statistiche incrementali;</li>
+ *   <li>dopo la chiusura, rileggendo la rubrica dal backend: voci perse, modifiche perse, voci
+ *       eliminate ricomparse, voci di altri utenti; con <b>fs</b> anche file orfani (più file per lo
+ *       stesso telefono o di voci inesistenti) e file temporanei rimasti.</li>
+ * </ul>
+ * Al termine stampa throughput, errori per tipo, latenze per operazione e violazioni; esce con 1 se
+ * ce n'è almeno una. Una scrittura fallita (ad esempio per la sessione invalidata da un login
+ * concorrente) è contata fra gli errori e lascia il modello com'era: la rubrica non deve averla
+ * applicata, né in memoria né sul backend, quindi ogni scostamento è riportato come violazione.
+ * {@code StressRubricaTest} la esegue brevemente a ogni build.
+ * </p>
+ * <pre>
+ * java -cp ... it.dissanahmed.rubrica.StressRubrica [fs|dbms|incorporato] [utenti=50] [client=4] [durataSec=30] [latenzaDbMicros=200]
+ * </pre>
+ */
+public class StressRubrica {
+
+        private static final String[] NOMI = {"Mario", "Luca", "Anna", "Giulia", "Paolo", "Sara", "Marco", "Elena"};
+        private static final String[] COGNOMI = {"Rossi", "Bianchi", "Verdi", "Russo", "Ferrari", "Esposito", "Romano"};
+        private static final String[] VIE = {"Via Roma", "Corso Italia", "Piazza Duomo", "Via Po", "Viale Europa"};
+        private static final String[] CAMPI = {"nome", "cognome", "indirizzo", "eta", "telefono"};
+        private static final String PASSWORD = "Stress-2024";
+
+        /** Operazioni e peso nel carico misto (su 100). */
+        private enum Operazione {
+                INSERISCI(25), MODIFICA(35), ELIMINA(10), LEGGI(29), LOGIN(1);
+
+                final int peso;
+                final Istogramma latenze;
+
+                Operazione(int peso) {
+                        this.peso = peso;
+                        this.latenze = Metriche.istogramma("stress." + name().toLowerCase(Locale.ROOT));
+                }
+
+                static Operazione scegli(Random r) {
+                        int x = r.nextInt(100);
+                        for (Operazione o : values()) {
+                                if ((x -= o.peso) < 0) return o;
+                        }
+                        return LEGGI;
+                }
+        }
+
+        private final String backend;
+        private final Path cartella;
+        private final int utenti;
+        private final int client;
+        private final Duration durata;
+
+        private final LongAdder operazioni = new LongAdder();
+        private final Map<String, LongAdder> errori = new ConcurrentHashMap<>();
+        private final Map<String, LongAdder> violazioni = new ConcurrentHashMap<>();
+        private final List<String> esempi = new ArrayList<>();
+
+        StressRubrica(String backend, Path cartella, int utenti, int client, Duration durata) {
+                this.backend = backend;
+                this.cartella = cartella;
+                this.utenti = utenti;
+                this.client = client;
+                this.durata = durata;
+        }
+
+        public static void main(String[] args) throws Exception {
+                String backend = args.length > 0 ? args[0].toLowerCase(Locale.ROOT) : "fs";
+                int utenti = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+                int client = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+                int durata = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+                long latenza = args.length > 4 ? Long.parseLong(args[4]) : 200;
+                if (!List.of("fs", "dbms", "incorporato").contains(backend)) {
+                        System.err.println("Uso: StressRubrica [fs|dbms|incorporato] [utenti] [client] [durataSec] [latenzaDbMicros]");
+                        System.exit(2);
+                }
+
+                Path cartella = Files.createTempDirectory("stress-rubrica");
+                configura(backend, cartella, latenza);
+
+                StressRubrica prova = new StressRubrica(backend, cartella, utenti, client, Duration.ofSeconds(durata));
+                long violazioni = prova.esegui();
+                System.exit(violazioni == 0 ? 0 : 1);
+        }
+
+        /** Pubblica la configurazione della prova: backend, cartelle sotto {@code cartella}, limiti dei login disattivati. */
+        static void configura(String backend, Path cartella, long latenzaDbMicros) {
+                Map<String, String> conf = new HashMap<>();
+                conf.put("database.instance", backend);
+                conf.put("login.fs.baseDir", cartella.toString());
+                conf.put("fs.baseDir", cartella.resolve("informazioni").toString());
+                // il limite dei login proteggerebbe il backend proprio dal carico che si vuole misurare
+                conf.put("login.rate.global.burst", "1000000");
+                conf.put("login.rate.global.perSecond", "1000000");
+                conf.put("login.rate.user.burst", "1000000");
+                conf.put("login.rate.user.perMinute", "1000000");
+                if (backend.equals("dbms")) {
+                        DbmsInMemoria db = DbmsInMemoria.crea("stress", latenzaDbMicros);
+                        conf.put("db.url", db.getUrl());
+                        conf.put("db.user", "stress");
+                        conf.put("db.password", "stress");
+                }
+                conf.put("db.incorporato.url", "jdbc:h2:mem:stress;DB_CLOSE_DELAY=-1");
+                Configurazione.imposta(conf);
+        }
+
+        /** @return il numero di violazioni trovate. */
+        long esegui() throws Exception {
+                List<Utente> lista = new ArrayList<>();
+                try (ExecutorService ex = Executors.newVirtualThreadPerTaskExecutor()) {
+                        List<Future<Utente>> creati = new ArrayList<>();
+                        for (int u = 0; u < utenti; u++) {
+                                int indice = u;
+                                creati.add(ex.submit(() -> new Utente(indice)));
+                        }
+                        for (Future<Utente> f : creati) lista.add(f.get());
+                }
+
+                long fine = System.nanoTime() + durata.toNanos();
+                long inizio = System.nanoTime();
+                try (ExecutorService ex = Executors.newVirtualThreadPerTaskExecutor()) {
+                        for (Utente u : lista) {
+                                for (Client c : u.client) ex.submit(() -> c.esegui(fine));
+                        }
+                }
+                double secondi = (System.nanoTime() - inizio) / 1e9;
+
+                for (Utente u : lista) u.verifica();
+
+                long totaleErrori = errori.values().stream().mapToLong(LongAdder::sum).sum();
+                long totaleViolazioni = violazioni.values().stream().mapToLong(LongAdder::sum).sum();
+                System.out.printf(Locale.ROOT, "backend=%s utenti=%d client/utente=%d durata=%.1fs cartella=%s%n",
+                        backend, utenti, client, secondi, cartella);
+                System.out.printf(Locale.ROOT, "operazioni=%d errori=%d throughput=%.0f op/s%n",
+                        operazioni.sum(), totaleErrori, operazioni.sum() / secondi);
+                for (Operazione o : Operazione.values()) {
+                        System.out.println(o.name().toLowerCase(Locale.ROOT) + ": " + o.latenze.snapshot());
+                }
+                if (totaleErrori > 0) System.out.println("errori per tipo: " + somme(errori));
+                System.out.println("violazioni: " + (totaleViolazioni == 0 ? "nessuna" : somme(violazioni)));
+                synchronized (esempi) {
+                        esempi.forEach(e -> System.out.println("  " + e));
+                }
+                return totaleViolazioni;
+        }
+
+        private static Map<String, Long> somme(Map<String, LongAdder> m) {
+                Map<String, Long> out = new TreeMap<>();
+                m.forEach((k, v) -> out.put(k, v.sum()));
+                return out;
+        }
+
+        private void errore(Throwable t) {
+                errori.computeIfAbsent(Metriche.classifica(t), k -> new LongAdder()).increment();
+        }
+
+        private void violazione(String tipo, String dettaglio) {
+                violazioni.computeIfAbsent(tipo, k -> new LongAdder()).increment();
+                synchronized (esempi) {
+                        if (esempi.size() < 20) esempi.add(tipo + ": " + dettaglio);
+                }
+        }
+
+        /* Telefono del client k dell'utente u: il prefisso identifica proprietario e client. */
+        private static String prefisso(int u) {
+                return String.format("3%04d", u);
+        }
+
+        private static String copia(Persona p) {
+                return p.getNome() + ";" + p.getCognome() + ";" + p.getIndirizzo() + ";" + p.getTelefono() + ";" + p.getEta();
+        }
+
+        /* ===================== utente ===================== */
+
+        private final class Utente {
+                final int indice;
+                final String username;
+                final GestioneContatti rubrica;
+                final List<Client> client = new ArrayList<>();
+
+                Utente(int indice) throws Exception {
+                        this.indice = indice;
+                        GestioneLogin login = new GestioneLogin();
+                        login.signUp("stress" + indice, PASSWORD);
+                        login.signIn("stress" + indice, PASSWORD);
+                        this.username = login.getLoggedUser();
+                        this.rubrica = GestioneContatti.gestita(username);
+                        for (int k = 0; k < StressRubrica.this.client; k++) client.add(new Client(this, k));
+                }
+
+                /* Il contenuto atteso: l'unione dei modelli dei client, telefono -> voce. */
+                Map<String, String> atteso() {
+                        Map<String, String> out = new HashMap<>();
+                        for (Client c : client) out.putAll(c.modello);
+                        return out;
+                }
+
+                void verifica() throws IOException {
+                        Map<String, String> atteso = atteso();
+                        List<Persona> inMemoria = rubrica.getContatti();
+                        confronta("memoria", inMemoria, atteso);
+                        StatisticheRubrica st = rubrica.getStatistiche();
+                        StatisticheRubrica ricalcolate = new StatisticheRubrica(inMemoria);
+                        if (st.contatti() != ricalcolate.contatti() || st.etaMedia() != ricalcolate.etaMedia()
+                                || !st.perIniziale().equals(ricalcolate.perIniziale())) {
+                                violazione("statistiche", username + ": " + st.contatti() + " contatti contro " + ricalcolate.contatti());
+                        }
+                        rubrica.close();
+
+                        try (GestioneContatti riletta = GestioneContatti.gestita(username)) {
+                                confronta("backend", riletta.getContatti(), atteso);
+                        }
+                        if (backend.equals("fs")) verificaFile(atteso);
+                }
+
+                private void confronta(String dove, List<Persona> letti, Map<String, String> atteso) {
+                        Map<String, String> trovati = new HashMap<>();
+                        for (Persona p : letti) {
+                                if (!p.getTelefono().startsWith(prefisso(indice))) {
+                                        violazione("voci di altri utenti", dove + " " + username + ": " + p.getTelefono());
+                                } else if (trovati.put(p.getTelefono(), copia(p)) != null) {
+                                        violazione("voci doppie", dove + " " + username + ": " + p.getTelefono());
+                                }
+                        }
+                        atteso.forEach((tel, voce) -> {
+                                String letta = trovati.get(tel);
+                                if (letta == null) violazione("voci perse", dove + " " + username + ": " + voce);
+                                else if (!letta.equals(voce)) violazione("modifiche perse", dove + " " + username + ": " + voce + " letta " + letta);
+                        });
+                        trovati.keySet().stream().filter(t -> !atteso.containsKey(t))
+                                .forEach(t -> violazione("voci ricomparse", dove + " " + username + ": " + trovati.get(t)));
+                }
+
+                /* Un solo file per voce, nessuno per voci assenti, nessun temporaneo rimasto. */
+                private void verificaFile(Map<String, String> atteso) throws IOException {
+                        Path dir = cartella.resolve("informazioni").resolve(username);
+                        if (!Files.isDirectory(dir)) return;
+                        Map<String, Integer> filePerTelefono = new HashMap<>();
+                        try (Stream<Path> file = Files.walk(dir)) {
+                                for (Path p : (Iterable<Path>) file.filter(Files::isRegularFile)::iterator) {
+                                        String nome = p.getFileName().toString();
+                                        if (nome.equals("info.txt") || nome.equals("informazioni.txt")) continue;
+                                        if (nome.endsWith(".tmp")) {
+                                                violazione("file temporanei", dir.relativize(p).toString());
+                                        } else if (nome.endsWith(".txt")) {
+                                                // <id>.txt: il telefono è il quarto campo
+                                                String[] campi = Files.readString(p).trim().split(";", -1);
+                                                String tel = campi.length >= 4 ? campi[3] : nome;
+                                                filePerTelefono.merge(tel, 1, Integer::sum);
+                                        }
+                                }
+                        }
+                        filePerTelefono.forEach((tel, n) -> {
+                                if (n > 1 || !atteso.containsKey(tel)) {
+                                        violazione("file orfani", username + ": " + n + " file per " + tel);
+                                }
+                        });
+                }
+        }
+
+        /* ===================== client ===================== */
+
+        private final class Client {
+                final Utente utente;
+                final String prefisso;
+                final GestioneLogin login = new GestioneLogin();
+                final Random random;
+                /** Voci di questo client: telefono -> nome;cognome;indirizzo;telefono;eta. */
+                final Map<String, String> modello = new LinkedHashMap<>();
+                final List<String> telefoni = new ArrayList<>();
+                long progressivo;
+
+                Client(Utente utente, int k) {
+                        this.utente = utente;
+                        this.prefisso = prefisso(utente.indice) + String.format("%02d", k);
+                        this.random = new Random(utente.indice * 1_000L + k);
+                }
+
+                void esegui(long fine) {
+                        while (System.nanoTime() < fine) {
+                                Operazione op = Operazione.scegli(random);
+                                if (telefoni.isEmpty() && (op == Operazione.MODIFICA || op == Operazione.ELIMINA)) {
+                                        op = Operazione.INSERISCI;
+                                }
+                                String tel = op == Operazione.MODIFICA || op == Operazione.ELIMINA
+                                        ? telefoni.get(random.nextInt(telefoni.size())) : null;
+                                long t0 = System.nanoTime();
+                                try {
+                                        esegui(op, tel);
+                                } catch (Exception e) {
+                                        // scrittura non applicata: il modello resta com'era
+                                        errore(e);
+                                } finally {
+                                        op.latenze.registra(System.nanoTime() - t0);
+                                        operazioni.increment();
+                                }
+                        }
+                }
+
+                private void esegui(Operazione op, String tel) throws Exception {
+                        GestioneContatti rubrica = utente.rubrica;
+                        switch (op) {
+                                case INSERISCI -> {
+                                        String nuovo = prefisso + String.format("%06d", progressivo++);
+                                        Persona p = casuale(nuovo);
+                                        rubrica.inserisciDatiPersona(p.getNome(), p.getCognome(), p.getIndirizzo(), nuovo, p.getEta());
+                                        aggiorna(nuovo, copia(p));
+                                }
+                                case MODIFICA -> {
+                                        String campo = CAMPI[random.nextInt(CAMPI.length)];
+                                        String[] voce = modello.get(tel).split(";", -1);
+                                        String valore = switch (campo) {
+                                                case "nome" -> NOMI[random.nextInt(NOMI.length)];
+                                                case "cognome" -> COGNOMI[random.nextInt(COGNOMI.length)];
+                                                case "indirizzo" -> VIE[random.nextInt(VIE.length)] + " " + random.nextInt(200);
+                                                case "eta" -> String.valueOf(random.nextInt(100));
+                                                default -> prefisso + String.format("%06d", progressivo++);
+                                        };
+                                        try {
+                                                rubrica.modificaPersona(tel, campo, valore);
+                                        } catch (PersonaException e) {
+                                                if (e.getTipo() == PersonaException.ExceptionType.CONFLICT) {
+                                                        violazione("conflitti inattesi", utente.username + ": " + tel);
+                                                }
+                                                throw e;
+                                        }
+                                        int i = List.of("nome", "cognome", "indirizzo", "telefono", "eta").indexOf(campo);
+                                        voce[i] = valore;
+                                        if (campo.equals("telefono")) {
+                                                aggiorna(tel, null);
+                                                tel = valore;
+                                        }
+                                        aggiorna(tel, String.join(";", voce));
+                                }
+                                case ELIMINA -> {
+                                        rubrica.rimuoviPersona(tel);
+                                        aggiorna(tel, null);
+                                }
+                                case LEGGI -> controllaLettura(rubrica.getContatti());
+                                default -> login.signIn(utente.username, PASSWORD);
+                        }
+                }
+
+                private void aggiorna(String tel, String voce) {
+                        if (voce == null) {
+                                if (modello.remove(tel) != null) telefoni.remove(tel);
+                        } else if (modello.put(tel, voce) == null) {
+                                telefoni.add(tel);
+                        }
+                }
+
+                private void controllaLettura(List<Persona> letti) {
+                        int mie = 0;
+                        for (Persona p : letti) {
+                                String tel = p.getTelefono();
+                                if (!tel.startsWith(prefisso(utente.indice))) {
+                                        violazione("voci di altri utenti", "lettura " + utente.username + ": " + tel);
+                                } else if (tel.startsWith(prefisso)) {
+                                        mie++;
+                                        if (!copia(p).equals(modello.get(tel))) {
+                                                violazione("letture incoerenti", utente.username + ": " + copia(p)
+                                                        + " atteso " + modello.get(tel));
+                                        }
+                                }
+                        }
+                        if (mie != modello.size()) {
+                                violazione("letture incoerenti", utente.username + ": " + mie + " voci del client, attese " + modello.size());
+                        }
+                }
+
+                private Persona casuale(String tel) {
+                        return new Persona(NOMI[random.nextInt(NOMI.length)], COGNOMI[random.nextInt(COGNOMI.length)],
+                                VIE[random.nextInt(VIE.length)] + " " + random.nextInt(200), tel, random.nextInt(100));
+                }
+        }
+
+}
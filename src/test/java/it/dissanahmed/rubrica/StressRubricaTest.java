@@ -0,0 +1,38 @@
+package it.dissanahmed.rubrica;
+
+import it.dissanahmed.util.Configurazione;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Esecuzione breve di {@link StressRubrica} a ogni build: pochi utenti e client concorrenti per due
+ * secondi, senza violazioni degli invarianti.
+ */
+class StressRubricaTest {
+
+        @TempDir
+        Path cartella;
+
+        @AfterEach
+        void tearDown() {
+                Configurazione.ricarica();
+        }
+
+        @Test
+        void fs_nessunaViolazione() throws Exception {
+                StressRubrica.configura("fs", cartella, 0);
+                assertThat(new StressRubrica("fs", cartella, 3, 3, Duration.ofSeconds(2)).esegui()).isZero();
+        }
+
+        @Test
+        void dbms_nessunaViolazione() throws Exception {
+                StressRubrica.configura("dbms", cartella, 50);
+                assertThat(new StressRubrica("dbms", cartella, 3, 3, Duration.ofSeconds(2)).esegui()).isZero();
+        }
+}
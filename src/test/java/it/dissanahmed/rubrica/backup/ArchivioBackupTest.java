@@ -0,0 +1,133 @@
+package it.dissanahmed.rubrica.backup;
+
+import it.dissanahmed.rubrica.Persona;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Verifica backup base e incrementali, il ripristino a un istante, la rotazione della
+ * base, la separazione per utente e il rilevamento di file danneggiati.
+ */
+class ArchivioBackupTest {
+
+        @TempDir
+        Path dir;
+
+        private static List<Persona> rubrica(int n) {
+                List<Persona> out = new ArrayList<>();
+                for (int i = 0; i < n; i++)
+                        out.add(new Persona("Nome" + i, "Cognome" + (i % 50), "Via Roma " + i, "333" + i, 20 + i % 60));
+                return out;
+        }
+
+        private static List<String> righe(List<Persona> persone) {
+                return persone.stream()
+                        .sorted(Comparator.comparing(Persona::getTelefono))
+                        .map(p -> p.getTelefono() + ";" + p.getNome() + ";" + p.getIndirizzo())
+                        .toList();
+        }
+
+        @Test
+        void incrementale_contieneSoloLeVariazioniERipristinaOgniPunto() throws IOException {
+                ArchivioBackup archivio = new ArchivioBackup(dir, null);
+                List<Persona> v1 = rubrica(5_000);
+                ArchivioBackup.Esito base = archivio.backup(v1, false);
+
+                List<Persona> v2 = new ArrayList<>(v1);
+                v2.set(10, new Persona("Nuovo", "Cognome", "Via Po 1", "33310", 40));
+                v2.remove(20);
+                v2.add(new Persona("Eva", "Verdi", "Via Tevere 4", "3999", 50));
+                ArchivioBackup.Esito incr = archivio.backup(v2, false);
+
+                assertThat(base.punto().tipo()).isEqualTo(ArchivioBackup.Tipo.BASE);
+                assertThat(base.voci()).isEqualTo(5_000);
+                assertThat(base.rapporto()).isLessThan(0.5);
+                assertThat(incr.punto().tipo()).isEqualTo(ArchivioBackup.Tipo.INCREMENTALE);
+                assertThat(incr.voci()).isEqualTo(3);
+                assertThat(incr.byteCompressi() * 50).isLessThan(base.byteCompressi());
+
+                assertThat(righe(archivio.ripristina(base.punto().istante()))).isEqualTo(righe(v1));
+                assertThat(righe(archivio.ripristina(incr.punto().istante()))).isEqualTo(righe(v2));
+                assertThat(righe(archivio.ripristina())).isEqualTo(righe(v2));
+                assertThatThrownBy(() -> archivio.ripristina(base.punto().istante().minusMillis(1)))
+                        .isInstanceOf(java.util.NoSuchElementException.class);
+        }
+
+        @Test
+        void dopoMaxIncrementali_ilBackupSuccessivoEUnaBase() throws IOException {
+                ArchivioBackup archivio = new ArchivioBackup(dir, null, 1, 2);
+                List<Persona> persone = rubrica(100);
+                for (int i = 0; i < 4; i++) {
+                        persone.set(i, new Persona("Cambiato" + i, "X", "Y", persone.get(i).getTelefono(), 1));
+                        archivio.backup(persone, false);
+                }
+                List<ArchivioBackup.Tipo> tipi = archivio.punti().stream().map(ArchivioBackup.Punto::tipo).toList();
+                assertThat(tipi).containsExactly(ArchivioBackup.Tipo.BASE, ArchivioBackup.Tipo.INCREMENTALE,
+                        ArchivioBackup.Tipo.INCREMENTALE, ArchivioBackup.Tipo.BASE);
+
+                assertThat(archivio.potaPrimaDi(archivio.punti().get(3).istante())).isEqualTo(3);
+                assertThat(righe(archivio.ripristina())).isEqualTo(righe(persone));
+        }
+
+        @Test
+        void fileDanneggiato_ilRipristinoFallisce() throws IOException {
+                ArchivioBackup archivio = new ArchivioBackup(dir, null);
+                ArchivioBackup.Esito e = archivio.backup(rubrica(200), false);
+                byte[] b = Files.readAllBytes(e.punto().file());
+                b[b.length / 2] ^= 0x5A;
+                Files.write(e.punto().file(), b);
+
+                assertThatThrownBy(archivio::ripristina).isInstanceOf(IOException.class);
+        }
+
+        @Test
+        void tipoFuoriIntervallo_ioException() throws IOException {
+                Path file = dir.resolve("00000001-base-1.rbk");
+                try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(Files.newOutputStream(file)))) {
+                        out.writeInt(0x52424B31);
+                        out.writeByte(2);
+                        out.writeByte(7);
+                }
+
+                assertThatThrownBy(() -> Segmento.leggi(file, v -> { }))
+                        .isInstanceOf(IOException.class)
+                        .hasMessageContaining("Tipo di backup non valido");
+        }
+
+        @Test
+        void utentiDiversi_nellaStessaCartella_restanoSeparati() throws IOException {
+                ArchivioBackup mario = new ArchivioBackup(dir, "mario");
+                ArchivioBackup anna = new ArchivioBackup(dir, "anna");
+                List<Persona> diMario = rubrica(10);
+                List<Persona> diAnna = List.of(new Persona("Anna", "Verdi", "Via Po 1", "3999", 30));
+                mario.backup(diMario, false);
+                anna.backup(diAnna, false);
+
+                assertThat(righe(mario.ripristina())).isEqualTo(righe(diMario));
+                assertThat(righe(anna.ripristina())).isEqualTo(righe(diAnna));
+                assertThat(mario.punti()).hasSize(1);
+                // nessun temporaneo rimasto accanto ai backup e alle impronte
+                try (Stream<Path> file = Files.list(mario.getCartella())) {
+                        assertThat(file.map(f -> f.getFileName().toString())).noneMatch(n -> n.endsWith(".tmp"));
+                }
+
+                // un file copiato dalla cartella di un altro utente viene rifiutato
+                ArchivioBackup luca = new ArchivioBackup(dir, "luca");
+                Path base = mario.punti().get(0).file();
+                Files.createDirectories(luca.getCartella());
+                Files.copy(base, luca.getCartella().resolve(base.getFileName()));
+                assertThatThrownBy(luca::ripristina).isInstanceOf(IOException.class).hasMessageContaining("mario");
+        }
+}
@@ -0,0 +1,91 @@
+package it.dissanahmed.rubrica.duplicati;
+
+import it.dissanahmed.rubrica.Persona;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Verifica le varianti riconosciute (nomi invertiti, refusi, prefisso +39), che gli omonimi
+ * non vengano uniti, che il risultato non dipenda dal parallelismo e la distanza limitata.
+ */
+class RicercaDuplicatiTest {
+
+        private static List<String> descrivi(RicercaDuplicati.Esito e) {
+                List<String> out = new ArrayList<>();
+                for (RicercaDuplicati.Suggerimento s : e.suggerimenti()) {
+                        StringBuilder b = new StringBuilder(s.principale().getTelefono());
+                        s.duplicati().stream().map(Persona::getTelefono).sorted().forEach(t -> b.append(',').append(t));
+                        out.add(b.toString());
+                }
+                return out.stream().sorted().toList();
+        }
+
+        @Test
+        void varianti_vengonoRaggruppateEGliOmonimiNo() {
+                List<Persona> contatti = List.of(
+                        new Persona("Mario", "Rossi", "Via Roma 1", "+393331234567", 40),
+                        new Persona("Rossi", "Mario", "via Roma, 1", "3331234567", 40),
+                        new Persona("Mario", "Rosi", "Via Roma 1", "3331234568", 40),
+                        new Persona("Mario", "Rossi", "Corso Italia 99", "3479876543", 25),
+                        new Persona("Giulia", "Bianchi", "Via Po 3", "3201112233", 31),
+                        new Persona("Giulià", "Bianchi", "Via Po 3", "00393201112233", 31));
+
+                RicercaDuplicati.Esito e = new RicercaDuplicati().cerca(contatti);
+
+                assertThat(descrivi(e)).containsExactly(
+                        "+393331234567,3331234567,3331234568",
+                        "00393201112233,3201112233");
+                assertThat(e.coppie()).isLessThan(15);
+        }
+
+        @Test
+        void risultato_nonDipendeDalParallelismo() {
+                Random r = new Random(7);
+                String[] nomi = {"Mario", "Luca", "Anna", "Giulia", "Paolo", "Sara", "Marco", "Elena"};
+                String[] cognomi = {"Rossi", "Bianchi", "Verdi", "Russo", "Ferrari", "Esposito", "Romano", "Colombo"};
+                List<Persona> contatti = new ArrayList<>();
+                for (int i = 0; i < 20_000; i++) {
+                        contatti.add(new Persona(nomi[r.nextInt(nomi.length)], cognomi[r.nextInt(cognomi.length)],
+                                "Via " + r.nextInt(500) + " n. " + r.nextInt(100), String.valueOf(3_000_000_000L + i * 7919L), 18 + r.nextInt(70)));
+                }
+                for (int i = 0; i < 100; i++) {
+                        Persona p = contatti.get(i * 150);
+                        contatti.add(new Persona(p.getCognome(), p.getNome(), p.getIndirizzo(), "+39" + p.getTelefono(), p.getEta()));
+                }
+
+                RicercaDuplicati.Esito uno = new RicercaDuplicati(0.85, 200, 30, 1).cerca(contatti);
+                RicercaDuplicati.Esito quattro = new RicercaDuplicati(0.85, 200, 30, 4).cerca(contatti);
+
+                assertThat(descrivi(quattro)).isEqualTo(descrivi(uno));
+                assertThat(quattro.coppie()).isEqualTo(uno.coppie());
+                assertThat(uno.suggerimenti()).hasSize(100);
+                assertThat(uno.coppie()).isLessThan(20_100L * 20_100L / 2 / 20);
+        }
+
+        @Test
+        void distanzaLimitata_coincideConQuellaCompletaEntroIlLimite() {
+                Random r = new Random(1);
+                for (int n = 0; n < 2_000; n++) {
+                        String a = casuale(r);
+                        String b = casuale(r);
+                        int completa = Normalizza.distanza(a, b, Integer.MAX_VALUE / 2);
+                        int max = r.nextInt(6);
+                        assertThat(Normalizza.distanza(a, b, max)).isEqualTo(Math.min(completa, max + 1));
+                        assertThat(Normalizza.unRefuso(a, b)).isEqualTo(completa == 1);
+                }
+                assertThat(Normalizza.distanza("rossi mario", "mario rossi", 100)).isEqualTo(10);
+                assertThat(Normalizza.fonetica("rossi")).isEqualTo(Normalizza.fonetica("rosi"));
+                assertThat(Normalizza.telefono("+39 333 123")).isEqualTo(Normalizza.telefono("0039333123"));
+        }
+
+        private static String casuale(Random r) {
+                char[] c = new char[r.nextInt(12)];
+                for (int i = 0; i < c.length; i++) c[i] = (char) ('a' + r.nextInt(4));
+                return new String(c);
+        }
+}
@@ -0,0 +1,249 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.login.UtenteLogin;
+import it.dissanahmed.login.persistenza.LoginDaoDBMS;
+import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.rubrica.ex.ConflittoVersione;
+import it.dissanahmed.rubrica.ex.DatabaseNonDisponibile;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Scadenze, interruttore e letture dalla cache di {@link ContattiDaoResiliente} davanti a
+ * {@link ContattiDbms}, con un {@link DbmsInMemoria} che si blocca o si spegne a comando.
+ */
+class ContattiDaoResilienteTest {
+
+        private DbmsInMemoria db;
+        private ContattiDbms dbms;
+        private InterruttoreCircuito interruttore;
+
+        @BeforeEach
+        void setUp() throws Exception {
+                String nome = UUID.randomUUID().toString();
+                db = DbmsInMemoria.crea(nome, 0);
+                LoginDaoDBMS login = new LoginDaoDBMS(db.getUrl(), "login", "login");
+                login.signUp(new UtenteLogin(nome, "segreta"));
+                login.signIn(new UtenteLogin(nome, "segreta"));
+                Properties p = new Properties();
+                p.setProperty("db.url", db.getUrl());
+                p.setProperty("db.user", "logged");
+                p.setProperty("db.password", "logged");
+                p.setProperty("db.timeout.queryMs", "1000");
+                dbms = new ContattiDbms(p, nome);
+                interruttore = new InterruttoreCircuito(nome, 3, 200);
+        }
+
+        private ContattiDaoResiliente resiliente(boolean cache) {
+                return new ContattiDaoResiliente(dbms, interruttore,
+                        new ContattiDaoResiliente.Politica(300, 300, 3, 10, cache));
+        }
+
+        private static void attendi(BooleanSupplier condizione) throws InterruptedException {
+                long limite = System.nanoTime() + 5_000_000_000L;
+                while (!condizione.getAsBoolean()) {
+                        if (System.nanoTime() > limite) fail("condizione non raggiunta entro 5 s");
+                        Thread.sleep(10);
+                }
+        }
+
+        @Test
+        void serverBloccato_ilChiamanteAttendeSoloLaScadenza() {
+                ContattiDaoResiliente dao = resiliente(false);
+                db.stallo(5_000);
+
+                long t0 = System.nanoTime();
+                assertThatThrownBy(dao::getContatti).isInstanceOf(DatabaseNonDisponibile.class);
+                assertThatThrownBy(() -> dao.salvaPersona(new Persona("Anna", "Rossi", "Via Po 1", "333", 30)))
+                        .isInstanceOf(DatabaseNonDisponibile.class);
+                assertThat((System.nanoTime() - t0) / 1_000_000).isLessThan(2_000L);
+        }
+
+        @Test
+        void serverSpento_interruttoreSiApre_eSiRichiudeQuandoTorna() throws Exception {
+                ContattiDaoResiliente dao = resiliente(false);
+                db.irraggiungibile(true);
+
+                // tre letture con nuovi tentativi: la soglia è raggiunta già alla prima
+                assertThatThrownBy(dao::getContatti).isInstanceOf(RuntimeException.class);
+                assertThat(interruttore.getStato()).isEqualTo(InterruttoreCircuito.Stato.APERTO);
+                long chiamate = db.chiamate();
+                assertThatThrownBy(dao::getContatti).isInstanceOf(DatabaseNonDisponibile.class)
+                        .hasMessageContaining("troppi errori");
+                assertThat(db.chiamate()).isEqualTo(chiamate);
+
+                db.irraggiungibile(false);
+                Thread.sleep(250);
+                assertThat(dao.getContatti()).isEmpty();
+                assertThat(interruttore.getStato()).isEqualTo(InterruttoreCircuito.Stato.CHIUSO);
+        }
+
+        @Test
+        void erroriApplicativi_nonApronoLInterruttore() {
+                ContattiDaoResiliente dao = resiliente(false);
+                Persona p = new Persona("Anna", "Rossi", "Via Po 1", "333", 30);
+                dao.salvaPersona(p);
+                dao.modificaPersona(new Persona("Anna", "Rossi", "Via Po 2", "333", 30), "333");
+
+                for (int i = 0; i < 5; i++) {
+                        p.setEta(31 + i);
+                        assertThatThrownBy(() -> dao.modificaPersona(p, "333")).isInstanceOf(ConflittoVersione.class);
+                }
+                assertThat(interruttore.getStato()).isEqualTo(InterruttoreCircuito.Stato.CHIUSO);
+        }
+
+        @Test
+        void conLaCache_serveLUltimaRubricaConLeScrittureRiuscite() {
+                ContattiDaoResiliente dao = resiliente(true);
+                dao.salvaPersona(new Persona("Anna", "Rossi", "Via Po 1", "333", 30));
+                assertThat(dao.getContatti()).hasSize(1);
+                dao.salvaPersona(new Persona("Luca", "Bianchi", "Via Po 2", "444", 40));
+
+                db.irraggiungibile(true);
+                assertThat(dao.getContatti().stream().map(Persona::getTelefono).sorted().toList())
+                        .containsExactly("333", "444");
+                assertThatThrownBy(() -> dao.rimuoviPersona(new Persona("444")))
+                        .isInstanceOf(RuntimeException.class);
+        }
+
+        @Test
+        void scritturaScaduta_applicataDopo_avvisaLAscoltatoreEScartaLaCache() throws Exception {
+                ContattiDaoResiliente dao = resiliente(true);
+                AtomicInteger avvisi = new AtomicInteger();
+                dao.setAscoltatore(avvisi::incrementAndGet);
+                assertThat(dao.getContatti()).isEmpty();
+
+                db.stallo(700);
+                assertThatThrownBy(() -> dao.salvaPersona(new Persona("Anna", "Rossi", "Via Po 1", "333", 30)))
+                        .isInstanceOf(DatabaseNonDisponibile.class);
+                assertThat(avvisi.get()).isZero();
+
+                // il server applica la scrittura dopo la scadenza
+                attendi(() -> avvisi.get() == 1);
+                db.stallo(0);
+                db.irraggiungibile(true);
+                // la cache vuota letta prima non è più servita: smentirebbe il database
+                assertThatThrownBy(dao::getContatti).isInstanceOf(RuntimeException.class);
+                db.irraggiungibile(false);
+                Thread.sleep(250);
+                assertThat(dao.getContatti()).extracting(Persona::getTelefono).containsExactly("333");
+        }
+
+        /* Delegato che trattiene le modifiche fino al via, annota cosa ha scritto e assegna una versione. */
+        private static final class ScritturaTrattenuta implements ContattiDao {
+                final CountDownLatch via = new CountDownLatch(1);
+                final AtomicReference<String> scritta = new AtomicReference<>();
+
+                @Override
+                public List<Persona> getContatti() {
+                        return List.of();
+                }
+
+                @Override
+                public void salvaContatti(List<Persona> personaList) {
+                }
+
+                @Override
+                public void salvaPersona(Persona persona) {
+                        persona.setVersione(1);
+                        persona.setId("01SALVATA");
+                }
+
+                @Override
+                public void rimuoviPersona(Persona daEliminare) {
+                }
+
+                @Override
+                public void modificaPersona(Persona daModificare, String oldTel) {
+                        try {
+                                via.await();
+                        } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return;
+                        }
+                        daModificare.setVersione(daModificare.getVersione() + 1);
+                        scritta.set(daModificare + " v" + daModificare.getVersione());
+                }
+        }
+
+        @Test
+        void scritturaScaduta_continuaSuUnaCopia_senzaToccareLaPersonaDelChiamante() throws Exception {
+                ScritturaTrattenuta delegato = new ScritturaTrattenuta();
+                ContattiDaoResiliente dao = new ContattiDaoResiliente(delegato, interruttore,
+                        new ContattiDaoResiliente.Politica(200, 200, 1, 10, false));
+                Persona p = new Persona("Sara", "Rossi", "Via Po 2", "333", 31);
+                p.setVersione(5);
+
+                assertThatThrownBy(() -> dao.modificaPersona(p, "333")).isInstanceOf(DatabaseNonDisponibile.class);
+                // come GestioneContatti: la persona torna ai valori di prima
+                p.setNome("Anna");
+                p.setIndirizzo("Via Po 1");
+
+                delegato.via.countDown();
+                attendi(() -> delegato.scritta.get() != null);
+                assertThat(delegato.scritta.get()).isEqualTo("{Sara; Rossi; Via Po 2; 333; 31} v6");
+                assertThat(p.getVersione()).isEqualTo(5);
+        }
+
+        @Test
+        void scritturaEntroLaScadenza_riportaVersioneEIdentificativo() {
+                ContattiDaoResiliente dao = new ContattiDaoResiliente(new ScritturaTrattenuta(), interruttore,
+                        new ContattiDaoResiliente.Politica(200, 200, 1, 10, false));
+                Persona p = new Persona("Anna", "Rossi", "Via Po 1", "333", 30);
+
+                dao.salvaPersona(p);
+                assertThat(p.getVersione()).isEqualTo(1);
+                assertThat(p.getId()).isEqualTo("01SALVATA");
+        }
+
+        @Test
+        void compartimentoPieno_rifiutaSubitoSenzaToccareIlServer() throws Exception {
+                ContattiDaoResiliente dao = new ContattiDaoResiliente(dbms, interruttore,
+                        new ContattiDaoResiliente.Politica(200, 200, 1, 10, false, 2));
+                db.stallo(800);
+                // due scritture scadute restano in corso sul server e occupano i due posti
+                for (String tel : new String[] {"333", "444"}) {
+                        assertThatThrownBy(() -> dao.salvaPersona(new Persona("Anna", "Rossi", "Via Po 1", tel, 30)))
+                                .isInstanceOf(DatabaseNonDisponibile.class)
+                                .hasMessageContaining("Nessuna risposta");
+                }
+                long chiamate = db.chiamate();
+                long t0 = System.nanoTime();
+                assertThatThrownBy(dao::getContatti).isInstanceOf(DatabaseNonDisponibile.class)
+                        .hasMessageContaining("troppe chiamate");
+                assertThat((System.nanoTime() - t0) / 1_000_000).isLessThan(100L);
+                assertThat(db.chiamate()).isEqualTo(chiamate);
+                assertThat(interruttore.getStato()).isEqualTo(InterruttoreCircuito.Stato.CHIUSO);
+
+                // finite le chiamate abbandonate i posti tornano liberi
+                db.stallo(0);
+                attendi(() -> {
+                        try {
+                                return dao.getContatti().size() == 2;
+                        } catch (DatabaseNonDisponibile e) {
+                                return false;
+                        }
+                });
+        }
+
+        @Test
+        void per_stessoNome_applicaIParametriNuovi() {
+                String nome = "jdbc:test://" + UUID.randomUUID();
+                InterruttoreCircuito primo = InterruttoreCircuito.per(nome, 5, 10_000);
+                InterruttoreCircuito secondo = InterruttoreCircuito.per(nome, 1, 10_000);
+
+                assertThat(secondo).isSameAs(primo);
+                secondo.fallimento();
+                assertThat(primo.getStato()).isEqualTo(InterruttoreCircuito.Stato.APERTO);
+        }
+}
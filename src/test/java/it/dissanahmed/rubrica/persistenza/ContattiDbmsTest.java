@@ -0,0 +1,151 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.login.UtenteLogin;
+import it.dissanahmed.login.persistenza.LoginDaoDBMS;
+import it.dissanahmed.rubrica.Persona;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLTimeoutException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Lettura in streaming di {@link ContattiDbms}: la connessione dello stream resta occupata solo
+ * finché lo stream è aperto e non ancora letto fino in fondo. Sessione vincolata
+ * (<code>db.session.bound</code>): un solo binding per connessione, sciolto alla chiusura e dopo
+ * una sessione scaduta, e l'errore originale propagato anche se la validazione fallisce.
+ */
+class ContattiDbmsTest {
+
+        private DbmsInMemoria db;
+        private ContattiDbms dbms;
+        private LoginDaoDBMS login;
+        private String nome;
+        private ContattiDbms vincolato;
+
+        @BeforeEach
+        void setUp() throws Exception {
+                nome = UUID.randomUUID().toString();
+                db = DbmsInMemoria.crea(nome, 0);
+                login = new LoginDaoDBMS(db.getUrl(), "login", "login");
+                login.signUp(new UtenteLogin(nome, "segreta"));
+                login.signIn(new UtenteLogin(nome, "segreta"));
+                Properties p = new Properties();
+                p.setProperty("db.url", db.getUrl());
+                p.setProperty("db.user", "logged");
+                p.setProperty("db.password", "logged");
+                dbms = new ContattiDbms(p, nome);
+                dbms.salvaPersona(new Persona("Anna", "Rossi", "Via Po 1", "333", 30));
+                dbms.salvaPersona(new Persona("Luca", "Bianchi", "Via Roma 2", "444", 40));
+                dbms.salvaPersona(new Persona("Sara", "Verdi", "Via Dante 3", "555", 25));
+        }
+
+        @AfterEach
+        void tearDown() {
+                dbms.close();
+                if (vincolato != null) vincolato.close();
+        }
+
+        private ContattiDbms vincolato(String queryMs) {
+                Properties p = new Properties();
+                p.setProperty("db.url", db.getUrl());
+                p.setProperty("db.user", "logged");
+                p.setProperty("db.password", "logged");
+                p.setProperty("db.session.bound", "true");
+                p.setProperty("db.timeout.queryMs", queryMs);
+                vincolato = new ContattiDbms(p, nome);
+                return vincolato;
+        }
+
+        @Test
+        void scorriContatti_streamAperto_occupaUnaConnessione_laChiusuraLaRilascia() {
+                int prima = db.connessioniAperte();
+                Stream<Persona> contatti = dbms.scorriContatti();
+                Iterator<Persona> it = contatti.iterator();
+                assertThat(it.next().getTelefono()).isNotBlank();
+                assertThat(db.connessioniAperte()).isEqualTo(prima + 1);
+                assertThat(db.ultimoFetchSize()).isEqualTo(Integer.MIN_VALUE);
+
+                contatti.close();
+                assertThat(db.connessioniAperte()).isEqualTo(prima);
+        }
+
+        @Test
+        void scorriContatti_lettoFinoInFondo_rilasciaLaConnessioneAncheSenzaClose() {
+                int prima = db.connessioniAperte();
+                List<String> telefoni = dbms.scorriContatti().map(Persona::getTelefono).toList();
+
+                assertThat(telefoni).containsExactlyInAnyOrder("333", "444", "555");
+                assertThat(db.connessioniAperte()).isEqualTo(prima);
+        }
+
+        @Test
+        void scorriContatti_interrottoInTryWithResources_rilasciaLaConnessione() {
+                int prima = db.connessioniAperte();
+                try (Stream<Persona> contatti = dbms.scorriContatti()) {
+                        assertThat(contatti.limit(1).count()).isEqualTo(1);
+                }
+                assertThat(db.connessioniAperte()).isEqualTo(prima);
+        }
+
+        @Test
+        void sessioneVincolata_unaConnessioneEUnBinding_scioltiAllaChiusura() {
+                int prima = db.connessioniAperte();
+                ContattiDbms d = vincolato("30000");
+                d.getContatti();
+                d.salvaPersona(new Persona("Eva", "Neri", "Via Tevere 4", "666", 50));
+                assertThat(d.getContatti()).hasSize(4);
+
+                assertThat(db.sessioniVincolate()).isEqualTo(1);
+                assertThat(db.connessioniAperte()).isEqualTo(prima + 1);
+
+                d.close();
+                assertThat(db.sessioniVincolate()).isZero();
+                assertThat(db.connessioniAperte()).isEqualTo(prima);
+        }
+
+        @Test
+        void sessioneVincolataScaduta_chiudeLaConnessione_eDopoIlLoginSiVincolaDiNuovo() throws Exception {
+                int prima = db.connessioniAperte();
+                ContattiDbms d = vincolato("30000");
+                d.getContatti();
+
+                db.scadiSessioni();
+                assertThatThrownBy(d::getContatti).isInstanceOf(IllegalStateException.class)
+                        .hasMessageContaining("Sessione non valida");
+                assertThat(db.sessioniVincolate()).isZero();
+                assertThat(db.connessioniAperte()).isEqualTo(prima);
+
+                login.signIn(new UtenteLogin(nome, "segreta"));
+                assertThat(d.getContatti()).hasSize(3);
+                assertThat(db.sessioniVincolate()).isEqualTo(1);
+                assertThat(db.connessioniAperte()).isEqualTo(prima + 1);
+        }
+
+        @Test
+        void erroreSullaConnessioneVincolata_conValidazioneInErrore_propagaLErroreOriginale() {
+                int prima = db.connessioniAperte();
+                ContattiDbms d = vincolato("1000");
+                d.getContatti();
+
+                db.stallo(1_500);
+                db.validazioneInErrore(true);
+                assertThatThrownBy(d::getContatti).isInstanceOf(RuntimeException.class)
+                        .hasMessageContaining("Errore getContatti")
+                        .hasRootCauseInstanceOf(SQLTimeoutException.class);
+                // connessione non più verificabile: chiusa senza tentare sp_unbind_session
+                assertThat(db.connessioniAperte()).isEqualTo(prima);
+
+                db.stallo(0);
+                db.validazioneInErrore(false);
+                assertThat(d.getContatti()).hasSize(3);
+                assertThat(db.connessioniAperte()).isEqualTo(prima + 1);
+        }
+}
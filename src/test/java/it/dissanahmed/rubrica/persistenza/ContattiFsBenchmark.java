@@ -0,0 +1,81 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.rubrica.Persona;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Latenza di {@link ContattiFs#salvaPersona(Persona)} per ciascun livello di durabilità.
+ * <p>
+ * Con più thread (un utente ciascuno) si vede l'effetto del group commit:
+ * in {@code BATCH} gli fsync della cartella vengono condivisi, in {@code PER_OP} no.
+ * </p>
+ * Dopo {@code mvn test-compile}, con le classi di test e le dipendenze di test nel classpath
+ * (ad esempio da {@code mvn dependency:build-classpath -Dmdep.outputFile=cp.txt}):
+ * <pre>
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) it.dissanahmed.rubrica.persistenza.ContattiFsBenchmark
+ * </pre>
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ContattiFsBenchmark {
+
+        @Param({"NONE", "BATCH", "PER_OP"})
+        public String durabilita;
+
+        private Path baseDir;
+        private ScritturaDurevole scrittore;
+        private final AtomicLong utenti = new AtomicLong();
+
+        @State(Scope.Thread)
+        public static class Utente {
+                ContattiFs dao;
+                long n;
+
+                @Setup
+                public void setUp(ContattiFsBenchmark bench) {
+                        dao = new ContattiFs(bench.baseDir, "utente" + bench.utenti.incrementAndGet(), false, bench.scrittore);
+                }
+        }
+
+        @Setup
+        public void setUp() throws IOException {
+                baseDir = Files.createTempDirectory("bench-fs");
+                scrittore = ScritturaDurevole.get(ScritturaDurevole.Durabilita.valueOf(durabilita), 2);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+                try (Stream<Path> files = Files.walk(baseDir)) {
+                        files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+                }
+        }
+
+        @Benchmark
+        public void salvaPersona(Utente u) {
+                u.dao.salvaPersona(new Persona("Mario", "Rossi", "Via Roma 1", "+39" + (u.n++ % 1000), 30));
+        }
+
+        public static void main(String[] args) throws RunnerException {
+                Options opt = new OptionsBuilder()
+                        .include(ContattiFsBenchmark.class.getSimpleName())
+                        .build();
+                new Runner(opt).run();
+        }
+}
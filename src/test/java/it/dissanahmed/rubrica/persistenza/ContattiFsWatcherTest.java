@@ -0,0 +1,81 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.util.Ulid;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Verifica che l'osservazione della cartella applichi alla cache le modifiche fatte da un altro
+ * processo (aggiunte, eliminazioni, telefoni cambiati) e ne avvisi l'ascoltatore.
+ */
+class ContattiFsWatcherTest {
+
+        private static final ScritturaDurevole SENZA_FSYNC = ScritturaDurevole.get(ScritturaDurevole.Durabilita.NONE, 0);
+
+        @TempDir
+        Path baseDir;
+
+        private static void attendi(BooleanSupplier condizione) throws InterruptedException {
+                long limite = System.nanoTime() + 5_000_000_000L;
+                while (!condizione.getAsBoolean()) {
+                        if (System.nanoTime() > limite) fail("condizione non raggiunta entro 5 s");
+                        Thread.sleep(10);
+                }
+        }
+
+        private static boolean haTelefono(ContattiFs dao, String tel) {
+                return dao.getContatti().stream().anyMatch(p -> tel.equals(p.getTelefono()));
+        }
+
+        @Test
+        void modificheEsterne_arrivanoInCache_eAvvisanoLAscoltatore() throws Exception {
+                AtomicInteger avvisi = new AtomicInteger();
+                try (ContattiFs dao = new ContattiFs(baseDir, "mario", true, SENZA_FSYNC)) {
+                        dao.setAscoltatore(avvisi::incrementAndGet);
+                        Persona anna = new Persona("Anna", "Rossi", "Via Po 1", "333", 30);
+                        dao.salvaPersona(anna);
+                        dao.salvaPersona(new Persona("Luca", "Bianchi", "Via Roma 2", "444", 40));
+                        Path cartella = baseDir.resolve("mario");
+
+                        // un altro processo cambia il telefono di Anna riscrivendo lo stesso file
+                        Files.writeString(cartella.resolve(anna.getId() + ".txt"), "Anna;Rossi;Via Po 1;335;30\n",
+                                StandardCharsets.UTF_8);
+                        attendi(() -> haTelefono(dao, "335"));
+                        assertThat(haTelefono(dao, "333")).isFalse();
+                        // il vecchio telefono è libero: una nuova voce con quel numero è un inserimento
+                        dao.salvaPersona(new Persona("Nuova", "Voce", "Via Dante 3", "333", 20));
+                        assertThat(dao.getContatti()).hasSize(3);
+
+                        // aggiunta ed eliminazione
+                        Files.writeString(cartella.resolve(Ulid.nuovo() + ".txt"), "Sara;Verdi;Via Tevere 4;555;25\n",
+                                StandardCharsets.UTF_8);
+                        Files.delete(cartella.resolve(dao.getContatti().stream()
+                                .filter(p -> p.getTelefono().equals("444")).findFirst().orElseThrow().getId() + ".txt"));
+                        attendi(() -> haTelefono(dao, "555") && !haTelefono(dao, "444"));
+                        attendi(() -> avvisi.get() >= 2);
+                }
+        }
+
+        @Test
+        void scrittureDelloStessoDao_nonAvvisanoLAscoltatore() throws Exception {
+                AtomicInteger avvisi = new AtomicInteger();
+                try (ContattiFs dao = new ContattiFs(baseDir, "mario", true, SENZA_FSYNC)) {
+                        dao.setAscoltatore(avvisi::incrementAndGet);
+                        dao.getContatti();
+                        for (int i = 0; i < 20; i++) dao.salvaPersona(new Persona("N" + i, "C", "Via " + i, "33" + i, 20));
+                        // oltre il debounce del watcher: gli eventi delle proprie scritture sono già stati applicati
+                        Thread.sleep(700);
+                        assertThat(dao.getContatti()).hasSize(20);
+                        assertThat(avvisi.get()).isZero();
+                }
+        }
+}
@@ -0,0 +1,258 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.rubrica.ex.ConflittoVersione;
+import it.dissanahmed.util.Ulid;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Verifica la coda offline, la ricezione incrementale, la risoluzione dei conflitti
+ * e la persistenza della coda fra un avvio e l'altro, contro un server in memoria.
+ */
+class ContattiIbridoTest {
+
+        @TempDir
+        Path baseDir;
+
+        /** Server in memoria con le stesse regole delle stored procedure: sequenze, tombstone, versioni. */
+        private static final class ServerFinto implements ContattiSincronizzabili {
+                final Map<String, Persona> righe = new LinkedHashMap<>();
+                final Map<String, Long> seqRighe = new HashMap<>();
+                final Map<String, Long> eliminate = new HashMap<>();
+                final List<Long> richieste = new ArrayList<>();
+                /** Identificativi arrivati con le voci inviate dal client. */
+                final List<String> idRicevuti = new ArrayList<>();
+                long seq;
+                boolean offline;
+                Runnable primaDiScrivere;
+
+                private void controlla() {
+                        if (offline) throw new RuntimeException("Errore", new SQLException("Communications link failure", "08S01"));
+                        Runnable r = primaDiScrivere;
+                        primaDiScrivere = null;
+                        if (r != null) r.run();
+                }
+
+                /** Scrittura fatta da un altro client. */
+                void scriviAltroClient(Persona p) {
+                        Persona r = righe.get(p.getTelefono());
+                        p.setVersione(r == null ? 1 : r.getVersione() + 1);
+                        righe.put(p.getTelefono(), p);
+                        seqRighe.put(p.getTelefono(), ++seq);
+                        eliminate.remove(p.getTelefono());
+                }
+
+                void eliminaAltroClient(String tel) {
+                        righe.remove(tel);
+                        seqRighe.remove(tel);
+                        eliminate.put(tel, ++seq);
+                }
+
+                @Override
+                public Variazioni variazioniDa(long daSequenza) {
+                        if (offline) controlla();
+                        richieste.add(daSequenza);
+                        List<Variazione> voci = new ArrayList<>();
+                        for (Persona p : righe.values()) {
+                                long s = seqRighe.get(p.getTelefono());
+                                if (daSequenza == 0 || s > daSequenza) voci.add(new Variazione(s, p.getTelefono(), copia(p)));
+                        }
+                        if (daSequenza > 0) {
+                                eliminate.forEach((tel, s) -> {
+                                        if (s > daSequenza) voci.add(new Variazione(s, tel, null));
+                                });
+                        }
+                        voci.sort(Comparator.comparingLong(Variazione::sequenza));
+                        return new Variazioni(seq, daSequenza == 0, voci);
+                }
+
+                @Override
+                public void salvaPersona(Persona p) {
+                        controlla();
+                        idRicevuti.add(p.getId());
+                        Persona c = copia(p);
+                        // come AUTO_INCREMENT: il server assegna il suo identificativo numerico
+                        c.setId(String.valueOf(seq + 1));
+                        scriviAltroClient(c);
+                        p.setVersione(c.getVersione());
+                }
+
+                @Override
+                public void modificaPersona(Persona p, String oldTel) {
+                        controlla();
+                        Persona r = righe.get(oldTel);
+                        if (r == null) throw new RuntimeException("Voce non trovata", new SQLException("non trovata", "45011"));
+                        if (p.getVersione() > 0 && p.getVersione() != r.getVersione())
+                                throw new ConflittoVersione(oldTel, p.getVersione(), null);
+                        long v = r.getVersione() + 1;
+                        if (!oldTel.equals(p.getTelefono())) eliminaAltroClient(oldTel);
+                        Persona c = copia(p);
+                        righe.put(c.getTelefono(), c);
+                        seqRighe.put(c.getTelefono(), ++seq);
+                        c.setVersione(v);
+                        p.setVersione(v);
+                }
+
+                @Override
+                public void rimuoviPersona(Persona p) {
+                        controlla();
+                        if (righe.containsKey(p.getTelefono())) eliminaAltroClient(p.getTelefono());
+                }
+
+                @Override
+                public List<Persona> getContatti() {
+                        return new ArrayList<>(righe.values());
+                }
+
+                @Override
+                public void salvaContatti(List<Persona> personaList) {
+                        throw new UnsupportedOperationException();
+                }
+
+                private static Persona copia(Persona p) {
+                        Persona c = new Persona(p.getNome(), p.getCognome(), p.getIndirizzo(), p.getTelefono(), p.getEta());
+                        c.setVersione(p.getVersione());
+                        c.setId(p.getId());
+                        return c;
+                }
+        }
+
+        private ContattiIbrido ibrido(ServerFinto server) {
+                return new ContattiIbrido(new ContattiFs(baseDir, "mario"), server, baseDir.resolve(".sync"), "mario", 50, 1000);
+        }
+
+        private static Persona persona(String nome, String tel) {
+                return new Persona(nome, "Rossi", "Via Roma 1", tel, 30);
+        }
+
+        private static Persona locale(ContattiDao dao, String tel) {
+                return dao.getContatti().stream().filter(p -> tel.equals(p.getTelefono())).findFirst().orElse(null);
+        }
+
+        @Test
+        void scrittureOffline_restanoInCodaEPartonoAlRitorno() {
+                ServerFinto server = new ServerFinto();
+                server.offline = true;
+                ContattiIbrido dao = ibrido(server);
+
+                dao.salvaPersona(persona("Anna", "3331"));
+                dao.salvaPersona(persona("Luca", "3332"));
+                dao.rimuoviPersona(new Persona("3332"));
+                assertThatThrownBy(dao::sincronizza).isInstanceOf(RuntimeException.class);
+
+                assertThat(dao.getContatti()).hasSize(1);
+                assertThat(dao.inAttesa()).isEqualTo(3);
+
+                server.offline = false;
+                dao.sincronizza();
+
+                assertThat(dao.inAttesa()).isZero();
+                assertThat(List.copyOf(server.righe.keySet())).containsExactly("3331");
+                assertThat(server.righe.get("3331").getNome()).isEqualTo("Anna");
+        }
+
+        @Test
+        void ricezione_chiedeSoloLeVariazioniDopoLUltimaSequenza() {
+                ServerFinto server = new ServerFinto();
+                for (int i = 0; i < 50; i++) server.scriviAltroClient(persona("P" + i, "33" + i));
+                ContattiIbrido dao = ibrido(server);
+                dao.sincronizza();
+                assertThat(dao.getContatti()).hasSize(50);
+                assertThat(dao.sequenzaRemota()).isEqualTo(50L);
+
+                server.scriviAltroClient(persona("Nuovo", "3310"));
+                server.eliminaAltroClient("3311");
+                dao.sincronizza();
+
+                assertThat(server.richieste).containsExactly(0L, 50L);
+                assertThat(locale(dao, "3310").getNome()).isEqualTo("Nuovo");
+                assertThat(locale(dao, "3311")).isNull();
+                assertThat(dao.getContatti()).hasSize(49);
+        }
+
+        @Test
+        void identificativi_localiEDelServer_nonPassanoDaUnLatoAllAltro() {
+                ServerFinto server = new ServerFinto();
+                Persona remota = persona("Luca", "444");
+                remota.setId("17");
+                server.scriviAltroClient(remota);
+                ContattiIbrido dao = ibrido(server);
+                dao.sincronizza();
+                assertThat(Ulid.valido(locale(dao, "444").getId())).isTrue();
+
+                dao.salvaPersona(persona("Anna", "333"));
+                dao.sincronizza();
+                assertThat(server.idRicevuti).containsOnlyNulls();
+                assertThat(server.righe.get("333").getId()).isEqualTo("2");
+                assertThat(Ulid.valido(locale(dao, "333").getId())).isTrue();
+        }
+
+        @Test
+        void conflitto_vinceLaScritturaGiaSulServer() {
+                ServerFinto server = new ServerFinto();
+                server.scriviAltroClient(persona("Anna", "3331"));
+                server.scriviAltroClient(persona("Luca", "3332"));
+                ContattiIbrido dao = ibrido(server);
+                dao.sincronizza();
+
+                // conflitto visto in ricezione: modifica remota arrivata prima dell'invio
+                Persona anna = locale(dao, "3331");
+                anna.setNome("Anna locale");
+                dao.modificaPersona(anna, "3331");
+                server.scriviAltroClient(persona("Anna remota", "3331"));
+
+                // conflitto visto in invio: modifica remota arrivata fra ricezione e invio
+                Persona luca = locale(dao, "3332");
+                luca.setNome("Luca locale");
+                dao.modificaPersona(luca, "3332");
+                server.primaDiScrivere = () -> server.scriviAltroClient(persona("Luca remoto", "3332"));
+
+                dao.sincronizza();
+
+                assertThat(dao.inAttesa()).isZero();
+                assertThat(server.righe.get("3331").getNome()).isEqualTo("Anna remota");
+                assertThat(server.righe.get("3332").getNome()).isEqualTo("Luca remoto");
+                assertThat(locale(dao, "3331").getNome()).isEqualTo("Anna remota");
+                assertThat(locale(dao, "3332").getNome()).isEqualTo("Luca remoto");
+        }
+
+        @Test
+        void coda_sopravviveAlRiavvio() throws IOException {
+                ServerFinto server = new ServerFinto();
+                server.offline = true;
+                try (ContattiIbrido dao = ibrido(server)) {
+                        dao.salvaPersona(persona("Anna", "3331"));
+                        Persona anna = persona("Anna Maria", "3339");
+                        dao.modificaPersona(anna, "3331");
+                }
+
+                server.offline = false;
+                ContattiIbrido riaperto = ibrido(server);
+                assertThat(riaperto.inAttesa()).isEqualTo(2);
+                riaperto.sincronizza();
+
+                assertThat(riaperto.inAttesa()).isZero();
+                assertThat(List.copyOf(server.righe.keySet())).containsExactly("3339");
+                assertThat(server.righe.get("3339").getNome()).isEqualTo("Anna Maria");
+                assertThat(riaperto.getContatti()).hasSize(1);
+                // stato e log riscritti da temporanei univoci, tutti rinominati
+                try (Stream<Path> file = Files.list(baseDir.resolve(".sync"))) {
+                        assertThat(file.map(f -> f.getFileName().toString())).noneMatch(n -> n.endsWith(".tmp"));
+                }
+        }
+}
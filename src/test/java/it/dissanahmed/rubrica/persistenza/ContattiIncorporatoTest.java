@@ -0,0 +1,101 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.login.UtenteLogin;
+import it.dissanahmed.login.ex.ProblemaAutenticazione;
+import it.dissanahmed.login.ex.UtenteGiaEsiste;
+import it.dissanahmed.login.ex.UtenteNonTrovato;
+import it.dissanahmed.login.persistenza.LoginDaoIncorporato;
+import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.rubrica.ex.ConflittoVersione;
+import it.dissanahmed.util.DatabaseIncorporato;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Login e rubrica su un database H2 in memoria: versioni come le stored procedure MySQL,
+ * compare-and-set delle modifiche e salvataggio completo che tocca solo le voci cambiate.
+ */
+class ContattiIncorporatoTest {
+
+        private DatabaseIncorporato db;
+        private ContattiIncorporato dao;
+
+        @BeforeEach
+        void setUp() throws Exception {
+                Properties p = new Properties();
+                p.setProperty("db.incorporato.url", "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+                db = DatabaseIncorporato.get(p);
+                new LoginDaoIncorporato(db).signUp(new UtenteLogin("mario", "segreta"));
+                dao = new ContattiIncorporato(db, "mario");
+        }
+
+        @AfterEach
+        void tearDown() {
+                db.close();
+        }
+
+        @Test
+        void login_comeLeStoredProcedure() throws Exception {
+                LoginDaoIncorporato login = new LoginDaoIncorporato(db);
+
+                login.signIn(new UtenteLogin("mario", "segreta"));
+                assertThatThrownBy(() -> login.signIn(new UtenteLogin("mario", "sbagliata")))
+                        .isInstanceOf(ProblemaAutenticazione.class);
+                assertThatThrownBy(() -> login.signIn(new UtenteLogin("luigi", "segreta")))
+                        .isInstanceOf(UtenteNonTrovato.class);
+                assertThatThrownBy(() -> login.signUp(new UtenteLogin("mario", "altra")))
+                        .isInstanceOf(UtenteGiaEsiste.class);
+        }
+
+        @Test
+        void versioni_eModificheCondizionate() {
+                Persona p = new Persona("Mario", "Rossi", "Via Roma 1", "333", 40);
+                dao.salvaPersona(p);
+                assertThat(p.getVersione()).isEqualTo(1);
+                dao.salvaPersona(new Persona("Anna", "Bianchi", "Via Po 3", "444", 31));
+
+                Persona letta = dao.getContatti().get(1);
+                assertThat(letta.getTelefono()).isEqualTo("333");
+                letta.setIndirizzo("Via Milano 2");
+                dao.modificaPersona(letta, "333");
+                assertThat(letta.getVersione()).isEqualTo(2);
+
+                // p è ancora alla versione 1: la sua modifica non deve sovrascrivere quella appena fatta
+                p.setEta(41);
+                assertThatThrownBy(() -> dao.modificaPersona(p, "333")).isInstanceOf(ConflittoVersione.class);
+
+                // il cambio di telefono aggiorna la stessa riga
+                String id = letta.getId();
+                letta.setTelefono("555");
+                dao.modificaPersona(letta, "333");
+                assertThat(letta.getVersione()).isEqualTo(3);
+                List<Persona> dopo = dao.getContatti();
+                assertThat(dopo).hasSize(2);
+                assertThat(dopo.get(1).getTelefono()).isEqualTo("555");
+                assertThat(dopo.get(1).getId()).isEqualTo(id);
+                assertThat(dopo.get(1).getIndirizzo()).isEqualTo("Via Milano 2");
+        }
+
+        @Test
+        void salvaContatti_eliminaLeAssentiEIncrementaSoloLeCambiate() {
+                dao.salvaPersona(new Persona("Mario", "Rossi", "Via Roma 1", "333", 40));
+                dao.salvaPersona(new Persona("Anna", "Bianchi", "Via Po 3", "444", 31));
+                dao.salvaPersona(new Persona("Luca", "Verdi", "Via Po 5", "666", 25));
+
+                dao.salvaContatti(List.of(
+                        new Persona("Mario", "Rossi", "Via Roma 1", "333", 40),
+                        new Persona("Anna", "Bianchi", "Via Po 4", "444", 31),
+                        new Persona("Sara", "Neri", "Via Po 7", "777", 22)));
+
+                List<Persona> dopo = dao.getContatti();
+                assertThat(dopo.stream().map(Persona::getTelefono).toList()).containsExactly("444", "777", "333");
+                assertThat(dopo.stream().map(Persona::getVersione).toList()).containsExactly(2L, 1L, 1L);
+        }
+}
@@ -0,0 +1,574 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.util.Json;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.security.SecureRandom;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sostituto in memoria del database MySQL, registrato come driver JDBC per gli URL
+ * <code>jdbc:rubrica:memoria:&lt;nome&gt;</code>.
+ * <p>
+ * Implementa, con la stessa semantica di <code>schema_database.sql</code>, le stored procedure
+ * chiamate da {@link it.dissanahmed.login.persistenza.LoginDaoDBMS} e {@link ContattiDbms}:
+ * registrazione e login (un nuovo login invalida le sessioni precedenti dell'utente), controllo del
+ * token, versioni per voce con compare-and-set in <code>sp_modifica_persona</code>, inserimento come
+ * upsert in <code>sp_inserisci_persona</code>, la sequenza per utente e le tombstone delle voci eliminate
+ * lette da <code>sp_modifiche_rubrica</code> e le SQLSTATE 45000..45013. Ogni chiamata è atomica per
+ * utente, come le transazioni delle SP. Serve a far girare il percorso DBMS reale (connessioni,
+ * registro dei token, errori, sincronizzazione incrementale) senza un server.
+ * </p>
+ * <p>
+ * Connessioni, statement e result set sono proxy che implementano solo i metodi usati dai DAO;
+ * {@code latenzaMicros} aggiunge a ogni chiamata un'attesa che simula il giro di rete;
+ * {@link #stallo(long)} e {@link #irraggiungibile(boolean)} simulano un server bloccato o spento.
+ * Il query timeout degli statement è rispettato come fa il driver MySQL (SQLSTATE HY008).
+ * </p>
+ */
+public final class DbmsInMemoria {
+
+        private static final Logger LOG = Logger.getLogger(DbmsInMemoria.class.getName());
+
+        public static final String PREFISSO = "jdbc:rubrica:memoria:";
+
+        private static final Map<String, DbmsInMemoria> ISTANZE = new ConcurrentHashMap<>();
+        private static final Pattern CHIAMATA = Pattern.compile("call\\s+(?:\\w+\\.)?(\\w+)", Pattern.CASE_INSENSITIVE);
+        private static final SecureRandom RANDOM = new SecureRandom();
+
+        static {
+                try {
+                        DriverManager.registerDriver(new Pilota());
+                } catch (SQLException e) {
+                        throw new ExceptionInInitializerError(e);
+                }
+        }
+
+        private record Riga(long id, String nome, String cognome, String indirizzo, String telefono, int eta, long versione,
+                            long seq) {
+        }
+
+        /** Le righe di Persona, PersonaEliminata e RubricaSequenza di un utente; le chiamate si sincronizzano sull'istanza. */
+        private static final class Rubrica {
+                final Map<String, Riga> righe = new HashMap<>();
+                /** Tombstone: telefono -> sequenza dell'eliminazione. */
+                final Map<String, Long> eliminate = new HashMap<>();
+                long seq;
+        }
+
+        private final String url;
+        private final long latenzaNanos;
+        private final Map<String, String> utenti = new ConcurrentHashMap<>();
+        private final Map<String, String> sessioni = new ConcurrentHashMap<>();
+        private final Map<String, Rubrica> rubriche = new ConcurrentHashMap<>();
+        private final LongAdder chiamate = new LongAdder();
+        private final AtomicInteger connessioniAperte = new AtomicInteger();
+        /** Come SessionBinding: connessione -> token vincolato da sp_bind_session. */
+        private final Map<Long, String> legami = new ConcurrentHashMap<>();
+        private final AtomicLong prossimaConnessione = new AtomicLong();
+        private volatile boolean validazioneInErrore;
+        private volatile int ultimoFetchSize;
+        /** Come l'AUTO_INCREMENT di Persona.id: le voci tengono l'id anche quando cambia il telefono. */
+        private final AtomicLong prossimoId = new AtomicLong();
+        private volatile long stalloNanos;
+        private volatile boolean irraggiungibile;
+
+        private DbmsInMemoria(String nome, long latenzaMicros) {
+                this.url = PREFISSO + nome;
+                this.latenzaNanos = TimeUnit.MICROSECONDS.toNanos(latenzaMicros);
+        }
+
+        /**
+         * Crea (o sostituisce) il database {@code nome}, vuoto.
+         *
+         * @param latenzaMicros attesa aggiunta a ogni chiamata, 0 per nessuna.
+         */
+        public static DbmsInMemoria crea(@NotNull String nome, long latenzaMicros) {
+                DbmsInMemoria db = new DbmsInMemoria(nome, latenzaMicros);
+                ISTANZE.put(nome, db);
+                return db;
+        }
+
+        /** @return l'URL JDBC da usare come <code>db.url</code>. */
+        public String getUrl() {
+                return url;
+        }
+
+        /** Ogni chiamata successiva resta bloccata {@code millis} prima di rispondere (0 = nessuno stallo). */
+        public void stallo(long millis) {
+                stalloNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
+        /** Con {@code true} le nuove connessioni falliscono come con un server spento (SQLSTATE 08S01). */
+        public void irraggiungibile(boolean spento) {
+                irraggiungibile = spento;
+        }
+
+        /** Con {@code true} {@code Connection.isValid} fallisce con un'eccezione invece di rispondere. */
+        public void validazioneInErrore(boolean guasta) {
+                validazioneInErrore = guasta;
+        }
+
+        /** Fa scadere tutte le sessioni, come il passare del TTL di LoginSession. */
+        public void scadiSessioni() {
+                sessioni.clear();
+        }
+
+        /** @return i binding di SessionBinding non ancora sciolti da sp_unbind_session. */
+        public int sessioniVincolate() {
+                return legami.size();
+        }
+
+        /** @return le stored procedure eseguite finora. */
+        public long chiamate() {
+                return chiamate.sum();
+        }
+
+        /** @return le connessioni aperte e non ancora chiuse. */
+        public int connessioniAperte() {
+                return connessioniAperte.get();
+        }
+
+        /** @return l'ultimo valore passato a {@code setFetchSize} su uno statement. */
+        public int ultimoFetchSize() {
+                return ultimoFetchSize;
+        }
+
+        /** @return i telefoni salvati per l'utente con la loro versione, letti senza passare dal token. */
+        public Map<String, Long> versioni(@NotNull String username) {
+                Rubrica r = rubrica(username);
+                synchronized (r) {
+                        Map<String, Long> out = new HashMap<>();
+                        r.righe.forEach((tel, riga) -> out.put(tel, riga.versione()));
+                        return out;
+                }
+        }
+
+        /* ===================== stored procedure ===================== */
+
+        private Object[] esegui(String procedura, Map<Integer, Object> p, int timeoutSecondi, long connessione) throws SQLException {
+                chiamate.increment();
+                if (latenzaNanos > 0) LockSupport.parkNanos(latenzaNanos);
+                long stallo = stalloNanos;
+                if (stallo > 0) {
+                        long limite = timeoutSecondi > 0 ? TimeUnit.SECONDS.toNanos(timeoutSecondi) : Long.MAX_VALUE;
+                        LockSupport.parkNanos(Math.min(stallo, limite));
+                        if (stallo > limite) throw new SQLTimeoutException("Statement cancelled due to timeout", "HY008");
+                }
+                switch (procedura) {
+                        case "sp_register": {
+                                String u = (String) p.get(1);
+                                if (utenti.putIfAbsent(u, Objects.toString(p.get(2))) != null) {
+                                        throw errore("45002", "Utente già registrato");
+                                }
+                                return null;
+                        }
+                        case "sp_login": {
+                                String u = (String) p.get(1);
+                                String pwd = utenti.get(u);
+                                if (pwd == null) throw errore("45000", "Utente non trovato");
+                                if (!pwd.equals(p.get(2))) throw errore("45001", "Password errata");
+                                byte[] b = new byte[32];
+                                RANDOM.nextBytes(b);
+                                String token = HexFormat.of().withUpperCase().formatHex(b);
+                                sessioni.values().removeIf(u::equals);
+                                sessioni.put(token, u);
+                                return new Object[]{null, null, null, token};
+                        }
+                        case "sp_refresh_session":
+                                utente(p);
+                                return null;
+                        case "sp_bind_session":
+                                utente(p);
+                                legami.put(connessione, (String) p.get(1));
+                                return null;
+                        case "sp_unbind_session":
+                                legami.remove(connessione, (String) p.get(1));
+                                return null;
+                        case "sp_logout":
+                                sessioni.remove((String) p.get(1));
+                                return null;
+                        case "sp_get_rubrica":
+                                return new Object[]{getRubrica(utente(p))};
+                        case "sp_inserisci_persona":
+                                return inserisci(utente(p), p);
+                        case "sp_modifica_persona":
+                                return modifica(utente(p), p);
+                        case "sp_elimina_persona": {
+                                String tel = (String) p.get(2);
+                                Rubrica r = rubrica(utente(p));
+                                synchronized (r) {
+                                        if (r.righe.remove(tel) != null) r.eliminate.put(tel, ++r.seq);
+                                }
+                                return null;
+                        }
+                        case "sp_salva_rubrica":
+                                salvaRubrica(utente(p), (String) p.get(2));
+                                return null;
+                        case "sp_modifiche_rubrica":
+                                return modifiche(utente(p), (Long) p.get(2));
+                        default:
+                                throw new SQLException("Stored procedure non disponibile in memoria: " + procedura, "42000");
+                }
+        }
+
+        private String utente(Map<Integer, Object> p) throws SQLException {
+                String u = sessioni.get((String) p.get(1));
+                if (u == null) throw errore("45010", "Sessione non valida o scaduta");
+                return u;
+        }
+
+        private Rubrica rubrica(String username) {
+                return rubriche.computeIfAbsent(username, k -> new Rubrica());
+        }
+
+        private List<Map<String, Object>> getRubrica(String username) {
+                List<Riga> righe;
+                Rubrica r = rubrica(username);
+                synchronized (r) {
+                        righe = new ArrayList<>(r.righe.values());
+                }
+                righe.sort(Comparator.comparing(Riga::cognome).thenComparing(Riga::nome));
+                List<Map<String, Object>> out = new ArrayList<>(righe.size());
+                for (Riga x : righe) {
+                        Map<String, Object> m = colonne(x);
+                        m.put("id", x.id());
+                        out.add(m);
+                }
+                return out;
+        }
+
+        private static Map<String, Object> colonne(Riga x) {
+                Map<String, Object> m = new HashMap<>();
+                m.put("nome", x.nome());
+                m.put("cognome", x.cognome());
+                m.put("indirizzo", x.indirizzo());
+                m.put("telefono", x.telefono());
+                m.put("eta", x.eta());
+                m.put("version", x.versione());
+                return m;
+        }
+
+        /* Come sp_modifiche_rubrica: tutta la rubrica se daSeq è null, altrimenti righe e tombstone successive. */
+        private Object[] modifiche(String username, Long daSeq) {
+                List<Map<String, Object>> righe = new ArrayList<>();
+                Rubrica r = rubrica(username);
+                long ultima;
+                synchronized (r) {
+                        ultima = r.seq;
+                        for (Riga x : r.righe.values()) {
+                                if (daSeq != null && x.seq() <= daSeq) continue;
+                                Map<String, Object> m = colonne(x);
+                                m.put("seq", x.seq());
+                                m.put("eliminata", false);
+                                righe.add(m);
+                        }
+                        if (daSeq != null) {
+                                r.eliminate.forEach((tel, seq) -> {
+                                        if (seq <= daSeq) return;
+                                        Map<String, Object> m = new HashMap<>();
+                                        m.put("telefono", tel);
+                                        m.put("seq", seq);
+                                        m.put("eliminata", true);
+                                        righe.add(m);
+                                });
+                        }
+                }
+                // ORDER BY seq, eliminata DESC
+                righe.sort(Comparator.<Map<String, Object>>comparingLong(m -> (Long) m.get("seq"))
+                        .thenComparing(m -> !(Boolean) m.get("eliminata")));
+                Object[] out = new Object[5];
+                out[0] = righe;
+                out[3] = ultima;
+                out[4] = daSeq == null;
+                return out;
+        }
+
+        private Object[] inserisci(String username, Map<Integer, Object> p) {
+                String tel = (String) p.get(5);
+                Rubrica r = rubrica(username);
+                synchronized (r) {
+                        Riga prima = r.righe.get(tel);
+                        Riga nuova = new Riga(prima == null ? prossimoId.incrementAndGet() : prima.id(), (String) p.get(2),
+                                (String) p.get(3), (String) p.get(4), tel, (Integer) p.get(6),
+                                prima == null ? 1 : prima.versione() + 1, ++r.seq);
+                        r.righe.put(tel, nuova);
+                        r.eliminate.remove(tel);
+                        Object[] out = new Object[8];
+                        out[7] = nuova.versione();
+                        return out;
+                }
+        }
+
+        private Object[] modifica(String username, Map<Integer, Object> p) throws SQLException {
+                String vecchio = (String) p.get(2);
+                String nuovo = (String) p.get(3);
+                Rubrica r = rubrica(username);
+                synchronized (r) {
+                        Riga attuale = r.righe.get(vecchio);
+                        if (attuale == null) throw errore("45011", "Voce non trovata nella tua rubrica");
+                        long attesa = p.get(8) == null ? attuale.versione() : (Long) p.get(8);
+                        if (attuale.versione() != attesa) {
+                                throw errore("45013", "Conflitto di versione: la voce è stata modificata");
+                        }
+                        if (!vecchio.equals(nuovo) && r.righe.containsKey(nuovo)) {
+                                throw errore("45012", "Telefono già presente nella tua rubrica");
+                        }
+                        long seq = ++r.seq;
+                        r.righe.remove(vecchio);
+                        r.righe.put(nuovo, new Riga(attuale.id(), (String) p.get(4), (String) p.get(5), (String) p.get(6), nuovo,
+                                (Integer) p.get(7), attesa + 1, seq));
+                        if (!vecchio.equals(nuovo)) {
+                                // per chi sincronizza il cambio di telefono è un'eliminazione più un inserimento
+                                r.eliminate.put(vecchio, seq);
+                                r.eliminate.remove(nuovo);
+                        }
+                        Object[] out = new Object[10];
+                        out[9] = attesa + 1;
+                        return out;
+                }
+        }
+
+        private void salvaRubrica(String username, String json) {
+                Map<String, Riga> nuove = new LinkedHashMap<>();
+                for (Map<String, Object> o : leggiArray(json)) {
+                        String tel = (String) o.get("telefono");
+                        nuove.put(tel, new Riga(0, (String) o.get("nome"), (String) o.get("cognome"), (String) o.get("indirizzo"),
+                                tel, ((Long) o.get("eta")).intValue(), 1, 0));
+                }
+                Rubrica r = rubrica(username);
+                synchronized (r) {
+                        // una sola sequenza per tutto il salvataggio
+                        long seq = ++r.seq;
+                        Map<String, Riga> prima = new HashMap<>(r.righe);
+                        r.righe.clear();
+                        for (String tel : prima.keySet()) {
+                                if (!nuove.containsKey(tel)) r.eliminate.put(tel, seq);
+                        }
+                        for (Riga n : nuove.values()) {
+                                Riga v = prima.get(n.telefono());
+                                boolean uguale = v != null && uguali(v, n);
+                                long versione = v == null ? 1 : v.versione() + (uguale ? 0 : 1);
+                                long id = v == null ? prossimoId.incrementAndGet() : v.id();
+                                r.righe.put(n.telefono(), new Riga(id, n.nome(), n.cognome(), n.indirizzo(), n.telefono(), n.eta(),
+                                        versione, uguale ? v.seq() : seq));
+                                r.eliminate.remove(n.telefono());
+                        }
+                }
+        }
+
+        private static boolean uguali(Riga a, Riga b) {
+                return Objects.equals(a.nome(), b.nome()) && Objects.equals(a.cognome(), b.cognome())
+                        && Objects.equals(a.indirizzo(), b.indirizzo()) && a.eta() == b.eta();
+        }
+
+        /* Array di oggetti piatti, come lo produce ContattiDbms: ogni oggetto va a Json.leggiOggetto. */
+        private static List<Map<String, Object>> leggiArray(String json) {
+                List<Map<String, Object>> out = new ArrayList<>();
+                int inizio = -1;
+                boolean inStringa = false;
+                for (int i = 0; i < json.length(); i++) {
+                        char c = json.charAt(i);
+                        if (inStringa) {
+                                if (c == '\\') i++;
+                                else if (c == '"') inStringa = false;
+                        } else if (c == '"') {
+                                inStringa = true;
+                        } else if (c == '{') {
+                                inizio = i;
+                        } else if (c == '}') {
+                                out.add(Json.leggiOggetto(json.substring(inizio, i + 1)));
+                        }
+                }
+                return out;
+        }
+
+        private static SQLException errore(String stato, String messaggio) {
+                return new SQLException(messaggio, stato);
+        }
+
+        /* ===================== JDBC ===================== */
+
+        private Connection connessione() {
+                boolean[] chiusa = {false};
+                long id = prossimaConnessione.incrementAndGet();
+                connessioniAperte.incrementAndGet();
+                return proxy(Connection.class, (self, m, args) -> switch (m.getName()) {
+                        case "prepareCall" -> statement((String) args[0], id);
+                        case "close" -> {
+                                if (!chiusa[0]) connessioniAperte.decrementAndGet();
+                                chiusa[0] = true;
+                                yield null;
+                        }
+                        case "isClosed" -> chiusa[0];
+                        case "isValid" -> {
+                                if (validazioneInErrore) throw new SQLException("Communications link failure", "08S01");
+                                yield !chiusa[0];
+                        }
+                        default -> nonSupportato(m.getName());
+                });
+        }
+
+        private CallableStatement statement(String sql, long connessione) throws SQLException {
+                Matcher m = CHIAMATA.matcher(sql);
+                if (!m.find()) throw new SQLException("Solo chiamate a stored procedure: " + sql, "42000");
+                String procedura = m.group(1).toLowerCase();
+                Map<Integer, Object> parametri = new HashMap<>();
+                Object[][] uscite = {null};
+                int[] timeout = {0};
+                return proxy(CallableStatement.class, (self, met, args) -> switch (met.getName()) {
+                        case "setString", "setInt", "setLong" -> {
+                                parametri.put((Integer) args[0], args[1]);
+                                yield null;
+                        }
+                        case "setNull" -> {
+                                parametri.remove((Integer) args[0]);
+                                yield null;
+                        }
+                        case "setQueryTimeout" -> {
+                                timeout[0] = (Integer) args[0];
+                                yield null;
+                        }
+                        case "setFetchSize" -> {
+                                ultimoFetchSize = (Integer) args[0];
+                                yield null;
+                        }
+                        case "registerOutParameter", "close" -> null;
+                        case "execute" -> {
+                                uscite[0] = esegui(procedura, parametri, timeout[0], connessione);
+                                yield uscite[0] != null && uscite[0][0] instanceof List;
+                        }
+                        case "getResultSet" -> {
+                                @SuppressWarnings("unchecked")
+                                List<Map<String, Object>> righe = (List<Map<String, Object>>) uscite[0][0];
+                                yield risultato(righe);
+                        }
+                        case "executeQuery" -> {
+                                uscite[0] = esegui(procedura, parametri, timeout[0], connessione);
+                                @SuppressWarnings("unchecked")
+                                List<Map<String, Object>> righe = uscite[0] == null ? List.of()
+                                        : (List<Map<String, Object>>) uscite[0][0];
+                                yield risultato(righe);
+                        }
+                        case "getString", "getLong", "getInt", "getBoolean" -> {
+                                Object v = uscite[0] == null ? null : uscite[0][(Integer) args[0]];
+                                yield converti(v, met.getReturnType());
+                        }
+                        case "getMoreResults" -> false;
+                        case "getUpdateCount" -> -1;
+                        default -> nonSupportato(met.getName());
+                });
+        }
+
+        private static ResultSet risultato(List<Map<String, Object>> righe) {
+                int[] pos = {-1};
+                return proxy(ResultSet.class, (self, m, args) -> switch (m.getName()) {
+                        case "next" -> ++pos[0] < righe.size();
+                        case "getString", "getLong", "getInt", "getBoolean" ->
+                                converti(righe.get(pos[0]).get((String) args[0]), m.getReturnType());
+                        case "close" -> null;
+                        default -> nonSupportato(m.getName());
+                });
+        }
+
+        private static Object converti(Object v, Class<?> tipo) {
+                if (tipo == String.class) return v == null ? null : v.toString();
+                if (tipo == long.class) return v == null ? 0L : ((Number) v).longValue();
+                if (tipo == int.class) return v == null ? 0 : ((Number) v).intValue();
+                return v != null && (Boolean) v;
+        }
+
+        private static Object nonSupportato(String metodo) throws SQLFeatureNotSupportedException {
+                throw new SQLFeatureNotSupportedException("Non supportato da DbmsInMemoria: " + metodo);
+        }
+
+        @FunctionalInterface
+        private interface Gestore {
+                Object invoca(Object self, java.lang.reflect.Method m, Object[] args) throws Exception;
+        }
+
+        private static <T> T proxy(Class<T> tipo, Gestore gestore) {
+                InvocationHandler h = (self, m, args) -> {
+                        if (m.getDeclaringClass() == Object.class) {
+                                return switch (m.getName()) {
+                                        case "hashCode" -> System.identityHashCode(self);
+                                        case "equals" -> self == args[0];
+                                        default -> tipo.getSimpleName() + "@DbmsInMemoria";
+                                };
+                        }
+                        return gestore.invoca(self, m, args);
+                };
+                return tipo.cast(Proxy.newProxyInstance(DbmsInMemoria.class.getClassLoader(), new Class<?>[]{tipo}, h));
+        }
+
+        private static final class Pilota implements Driver {
+
+                @Override
+                public Connection connect(String url, Properties info) throws SQLException {
+                        if (!acceptsURL(url)) return null;
+                        DbmsInMemoria db = ISTANZE.get(url.substring(PREFISSO.length()));
+                        if (db == null) throw new SQLException("Database in memoria inesistente: " + url, "08001");
+                        if (db.irraggiungibile) throw new SQLNonTransientConnectionException("Communications link failure", "08S01");
+                        return db.connessione();
+                }
+
+                @Override
+                public boolean acceptsURL(String url) {
+                        return url != null && url.startsWith(PREFISSO);
+                }
+
+                @Override
+                public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+                        return new DriverPropertyInfo[0];
+                }
+
+                @Override
+                public int getMajorVersion() {
+                        return 1;
+                }
+
+                @Override
+                public int getMinorVersion() {
+                        return 0;
+                }
+
+                @Override
+                public boolean jdbcCompliant() {
+                        return false;
+                }
+
+                @Override
+                public Logger getParentLogger() {
+                        return LOG;
+                }
+        }
+}
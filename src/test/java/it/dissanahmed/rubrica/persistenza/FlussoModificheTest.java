@@ -0,0 +1,201 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.rubrica.Persona;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Verifica ripartenza da una sequenza, consegna limitata dalla domanda,
+ * abbonati troppo lenti e pubblicazione delle scritture da parte del DAO.
+ */
+class FlussoModificheTest {
+
+        @TempDir
+        Path baseDir;
+
+        /** Abbonato che registra gli eventi e richiede solo quando gli viene detto. */
+        private static final class Raccoglitore implements Flow.Subscriber<Modifica> {
+                final List<Modifica> ricevute = new CopyOnWriteArrayList<>();
+                volatile Throwable errore;
+                Flow.Subscription abbonamento;
+
+                @Override
+                public void onSubscribe(Flow.Subscription s) {
+                        abbonamento = s;
+                }
+
+                @Override
+                public void onNext(Modifica m) {
+                        ricevute.add(m);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                        errore = t;
+                }
+
+                @Override
+                public void onComplete() {
+                }
+        }
+
+        private static void pubblica(FlussoModifiche f, int n) {
+                for (int i = 0; i < n; i++) f.pubblica("mario", Modifica.Tipo.ELIMINAZIONE, "tel" + i, null, null);
+        }
+
+        @Test
+        void abbonamentoDaSequenza_riceveSoloLaDomanda() {
+                FlussoModifiche f = new FlussoModifiche(16, Runnable::run);
+                pubblica(f, 5);
+                Raccoglitore r = new Raccoglitore();
+                f.subscribe(r, 3);
+
+                assertThat(r.ricevute).isEmpty();
+                r.abbonamento.request(2);
+                assertThat(r.ricevute).hasSize(2);
+                assertThat(r.ricevute.get(0).sequenza()).isEqualTo(3L);
+                assertThat(r.ricevute.get(1).sequenza()).isEqualTo(4L);
+
+                r.abbonamento.request(10);
+                pubblica(f, 2);
+                assertThat(r.ricevute).hasSize(5);
+                assertThat(r.ricevute.get(4).sequenza()).isEqualTo(7L);
+        }
+
+        @Test
+        void abbonatoOltreIlBuffer_riceveSequenzaScaduta() {
+                FlussoModifiche f = new FlussoModifiche(4, Runnable::run);
+                Raccoglitore r = new Raccoglitore();
+                f.subscribe(r, 1);
+                // alla quinta pubblicazione la sequenza 1 esce dal buffer: l'errore non attende la domanda
+                pubblica(f, 6);
+
+                assertThat(r.ricevute).isEmpty();
+                assertThat(r.errore).isInstanceOf(FlussoModifiche.SequenzaScaduta.class);
+                assertThat(((FlussoModifiche.SequenzaScaduta) r.errore).getPrimaDisponibile()).isEqualTo(2L);
+                assertThat(f.statistiche().abbonati()).isZero();
+        }
+
+        @Test
+        void daoTracciato_pubblicaLeScrittureELeDifferenzeDelSalvataggioCompleto() {
+                FlussoModifiche f = new FlussoModifiche(64, Runnable::run);
+                Raccoglitore r = new Raccoglitore();
+                f.subscribe(r);
+                r.abbonamento.request(Long.MAX_VALUE);
+
+                try (ContattiDao dao = new ContattiDaoTracciato(new ContattiFs(baseDir, "mario"), "mario", f)) {
+                        Persona anna = new Persona("Anna", "Rossi", "Via Roma 1", "3331", 30);
+                        dao.salvaPersona(anna);
+                        dao.salvaPersona(new Persona("Luca", "Bianchi", "Via Po 2", "3332", 40));
+                        anna.setIndirizzo("Via Milano 3");
+                        dao.modificaPersona(anna, "3331");
+                        dao.salvaContatti(List.of(anna, new Persona("Eva", "Verdi", "Via Tevere 4", "3333", 50)));
+                }
+
+                assertThat(r.ricevute).hasSize(5);
+                assertThat(r.ricevute.get(2).tipo()).isEqualTo(Modifica.Tipo.MODIFICA);
+                assertThat(r.ricevute.get(2).persona().getIndirizzo()).isEqualTo("Via Milano 3");
+                // salvataggio completo: Anna invariata, Eva inserita, Luca eliminato
+                assertThat(r.ricevute.get(3).telefono()).isEqualTo("3333");
+                assertThat(r.ricevute.get(4).tipo()).isEqualTo(Modifica.Tipo.ELIMINAZIONE);
+                assertThat(r.ricevute.get(4).telefono()).isEqualTo("3332");
+                assertThat(r.ricevute.get(4).sequenza()).isEqualTo(5L);
+        }
+
+        /** Rubrica in memoria che condivide le sue voci con il chiamante, come la cache di {@link ContattiFs}. */
+        private static final class RubricaCondivisa implements ContattiDao {
+                final List<Persona> voci = new CopyOnWriteArrayList<>();
+                int letture;
+                Runnable ascoltatore;
+
+                @Override
+                public List<Persona> getContatti() {
+                        letture++;
+                        return List.copyOf(voci);
+                }
+
+                @Override
+                public void salvaContatti(List<Persona> personaList) {
+                        voci.clear();
+                        voci.addAll(personaList);
+                }
+
+                @Override
+                public void salvaPersona(Persona persona) {
+                        voci.remove(persona);
+                        voci.add(persona);
+                }
+
+                @Override
+                public void rimuoviPersona(Persona daEliminare) {
+                        voci.remove(daEliminare);
+                }
+
+                @Override
+                public void modificaPersona(Persona daModificare, String oldTel) {
+                        voci.remove(new Persona(oldTel));
+                        voci.add(daModificare);
+                }
+
+                @Override
+                public void setAscoltatore(Runnable ascoltatore) {
+                        this.ascoltatore = ascoltatore;
+                }
+        }
+
+        @Test
+        void daoTracciato_vociModificateSulPosto_pubblicaLaDifferenzaSenzaRileggere() {
+                FlussoModifiche f = new FlussoModifiche(64, Runnable::run);
+                Raccoglitore r = new Raccoglitore();
+                f.subscribe(r);
+                r.abbonamento.request(Long.MAX_VALUE);
+                RubricaCondivisa delegato = new RubricaCondivisa();
+                ContattiDao dao = new ContattiDaoTracciato(delegato, "mario", f);
+
+                Persona anna = new Persona("Anna", "Rossi", "Via Roma 1", "3331", 30);
+                dao.salvaContatti(List.of(anna));
+                assertThat(delegato.letture).isEqualTo(1);
+
+                // il chiamante cambia la stessa istanza già salvata, poi salva tutto
+                anna.setIndirizzo("Via Milano 3");
+                dao.salvaContatti(List.of(anna));
+                anna.setEta(31);
+                dao.salvaContatti(List.of(anna));
+
+                assertThat(delegato.letture).isEqualTo(1);
+                assertThat(r.ricevute).hasSize(3);
+                assertThat(r.ricevute.get(1).persona().getIndirizzo()).isEqualTo("Via Milano 3");
+                assertThat(r.ricevute.get(2).persona().getEta()).isEqualTo(31);
+                // gli eventi conservano i dati del momento, non l'istanza del chiamante
+                assertThat(r.ricevute.get(1).persona().getEta()).isEqualTo(30);
+        }
+
+        @Test
+        void daoTracciato_dopoUnaVariazioneEsterna_rileggeLaRubrica() {
+                FlussoModifiche f = new FlussoModifiche(64, Runnable::run);
+                Raccoglitore r = new Raccoglitore();
+                f.subscribe(r);
+                r.abbonamento.request(Long.MAX_VALUE);
+                RubricaCondivisa delegato = new RubricaCondivisa();
+                ContattiDao dao = new ContattiDaoTracciato(delegato, "mario", f);
+                dao.setAscoltatore(null);
+
+                dao.salvaContatti(List.of(new Persona("Anna", "Rossi", "Via Roma 1", "3331", 30)));
+                // un altro processo aggiunge Luca
+                delegato.voci.add(new Persona("Luca", "Bianchi", "Via Po 2", "3332", 40));
+                delegato.ascoltatore.run();
+                dao.salvaContatti(List.of(new Persona("Anna", "Rossi", "Via Roma 1", "3331", 30)));
+
+                assertThat(delegato.letture).isEqualTo(2);
+                assertThat(r.ricevute).hasSize(2);
+                assertThat(r.ricevute.get(1).tipo()).isEqualTo(Modifica.Tipo.ELIMINAZIONE);
+                assertThat(r.ricevute.get(1).telefono()).isEqualTo("3332");
+        }
+}
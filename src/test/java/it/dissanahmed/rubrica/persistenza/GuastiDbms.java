@@ -0,0 +1,123 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.login.UtenteLogin;
+import it.dissanahmed.login.persistenza.LoginDaoDBMS;
+import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.util.Istogramma;
+import it.dissanahmed.util.Metriche;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Confronta le letture di {@link ContattiDbms} con e senza {@link ContattiDaoResiliente} mentre il
+ * database, un {@link DbmsInMemoria}, alterna periodi normali e stalli.
+ * <p>
+ * In ogni periodo di 2 secondi il server resta bloccato per gli ultimi 500 ms: ogni chiamata che
+ * arriva in quella finestra attende {@code stalloMs}. {@code client} virtual thread leggono la
+ * rubrica ogni 10 ms, prima direttamente e poi attraverso il decoratore; per ciascuna modalità
+ * sono stampate latenze (errori compresi, misurate dall'istante previsto della lettura), letture
+ * riuscite, errori e lo stato dell'interruttore.
+ * </p>
+ * <pre>
+ * java -cp ... it.dissanahmed.rubrica.persistenza.GuastiDbms [client=8] [durataSec=10] [stalloMs=3000]
+ *      [scadenzaMs=250] [cache=true]
+ * </pre>
+ */
+public class GuastiDbms {
+
+        private static final long PERIODO_MS = 2_000;
+        private static final long FINESTRA_STALLO_MS = 500;
+        /** Una lettura ogni 10 ms per client. */
+        private static final long INTERVALLO_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+        public static void main(String[] args) throws Exception {
+                int client = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+                int durata = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+                long stalloMs = args.length > 2 ? Long.parseLong(args[2]) : 3_000;
+                long scadenzaMs = args.length > 3 ? Long.parseLong(args[3]) : 250;
+                boolean cache = args.length <= 4 || Boolean.parseBoolean(args[4]);
+
+                DbmsInMemoria db = DbmsInMemoria.crea("guasti", 200);
+                LoginDaoDBMS login = new LoginDaoDBMS(db.getUrl(), "login", "login");
+                login.signUp(new UtenteLogin("guasti", "segreta"));
+                login.signIn(new UtenteLogin("guasti", "segreta"));
+                Properties p = new Properties();
+                p.setProperty("db.url", db.getUrl());
+                p.setProperty("db.user", "logged");
+                p.setProperty("db.password", "logged");
+                ContattiDbms dbms = new ContattiDbms(p, "guasti");
+                for (int i = 0; i < 200; i++) dbms.salvaPersona(new Persona("N" + i, "C" + i, "Via " + i, "3" + i, 20 + i % 60));
+
+                System.out.printf(Locale.ROOT, "client=%d durata=%ds stallo=%dms ogni %dms per %dms, scadenza=%dms cache=%s%n",
+                        client, durata, stalloMs, PERIODO_MS, FINESTRA_STALLO_MS, scadenzaMs, cache);
+                misura("diretto", dbms, db, client, durata, stalloMs);
+                InterruttoreCircuito interruttore = InterruttoreCircuito.per(db.getUrl(), 5, 1_000);
+                ContattiDaoResiliente resiliente = new ContattiDaoResiliente(dbms, interruttore,
+                        new ContattiDaoResiliente.Politica(scadenzaMs, scadenzaMs * 2, 3, 20, cache));
+                misura("resiliente", resiliente, db, client, durata, stalloMs);
+                System.out.println("interruttore: " + interruttore.fotografia());
+                Metriche.snapshot().forEach((k, v) -> {
+                        if (k.startsWith("contattiDbms.resilienza")) System.out.println(k + " = " + v);
+                });
+                System.exit(0);
+        }
+
+        private static void misura(String modalita, ContattiDao dao, DbmsInMemoria db, int client, int durata,
+                                   long stalloMs) throws InterruptedException {
+                Istogramma latenze = Metriche.istogramma("guasti." + modalita);
+                LongAdder riuscite = new LongAdder();
+                LongAdder errori = new LongAdder();
+                long fine = System.nanoTime() + TimeUnit.SECONDS.toNanos(durata);
+                long inizio = System.nanoTime();
+
+                Thread guasti = Thread.ofPlatform().daemon().start(() -> {
+                        try {
+                                while (System.nanoTime() < fine) {
+                                        db.stallo(0);
+                                        Thread.sleep(PERIODO_MS - FINESTRA_STALLO_MS);
+                                        db.stallo(stalloMs);
+                                        Thread.sleep(FINESTRA_STALLO_MS);
+                                }
+                        } catch (InterruptedException ignored) {
+                                // fine misura
+                        } finally {
+                                db.stallo(0);
+                        }
+                });
+                List<Thread> lettori = new ArrayList<>();
+                for (int i = 0; i < client; i++) {
+                        lettori.add(Thread.ofVirtual().start(() -> {
+                                // ritmo fisso: la latenza parte dall'istante previsto, così l'attesa di chi
+                                // resta bloccato conta per tutte le letture che non ha potuto fare
+                                long prevista = System.nanoTime();
+                                while (prevista < fine && System.nanoTime() < fine) {
+                                        long attesa = prevista - System.nanoTime();
+                                        if (attesa > 0) LockSupport.parkNanos(attesa);
+                                        try {
+                                                dao.getContatti();
+                                                riuscite.increment();
+                                        } catch (RuntimeException e) {
+                                                errori.increment();
+                                        }
+                                        latenze.registra(System.nanoTime() - prevista);
+                                        prevista += INTERVALLO_NANOS;
+                                }
+                        }));
+                }
+                for (Thread t : lettori) t.join();
+                guasti.interrupt();
+                guasti.join();
+
+                Istogramma.Snapshot s = latenze.snapshot();
+                double secondi = (System.nanoTime() - inizio) / 1e9;
+                System.out.printf(Locale.ROOT, "%-10s letture=%d (%.0f/s) errori=%d  p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms%n",
+                        modalita, riuscite.sum(), riuscite.sum() / secondi, errori.sum(),
+                        s.p50() / 1e6, s.p90() / 1e6, s.p99() / 1e6, s.max() / 1e6);
+        }
+}
@@ -0,0 +1,238 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.rubrica.Persona;
+import it.dissanahmed.util.Ulid;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Verifica la disposizione frammentata dei file di ContattiFs e la migrazione
+ * dei dati scritti con il layout piatto.
+ */
+class LayoutCartelleTest {
+
+        private static final ScritturaDurevole SENZA_FSYNC = ScritturaDurevole.get(ScritturaDurevole.Durabilita.NONE, 0);
+
+        @TempDir
+        Path baseDir;
+
+        @Test
+        void layoutFrammentato_scriveInSottocartelle_eRilegge() {
+                LayoutCartelle layout = new LayoutCartelle(2, 1);
+                Persona anna = new Persona("Anna", "Rossi", "Via Roma 1", "3331234567", 30);
+                try (ContattiFs dao = new ContattiFs(baseDir, "mario", false, SENZA_FSYNC, layout)) {
+                        dao.salvaPersona(anna);
+                        dao.salvaPersona(new Persona("Luca", "Bianchi", "Via Po 2", "3337654321", 40));
+                        dao.rimuoviPersona(new Persona("Luca", "Bianchi", "Via Po 2", "3337654321", 40));
+                }
+
+                Path cartella = layout.cartellaUtente(baseDir, "mario");
+                assertThat(baseDir.relativize(cartella).getNameCount()).isEqualTo(3);
+                assertThat(Ulid.valido(anna.getId())).isTrue();
+                assertThat(Files.exists(layout.cartellaContatto(cartella, anna.getId())
+                        .resolve(anna.getId() + ".txt"))).isTrue();
+
+                try (ContattiFs riaperto = new ContattiFs(baseDir, "mario", false, SENZA_FSYNC, layout)) {
+                        assertThat(riaperto.getContatti()).hasSize(1);
+                        assertThat(riaperto.getContatti().get(0).getTelefono()).isEqualTo("3331234567");
+                }
+        }
+
+        @Test
+        void layoutPiatto_migratoAlPrimoCaricamento_lasciaLeCredenziali() throws Exception {
+                try (ContattiFs piatto = new ContattiFs(baseDir, "mario", false, SENZA_FSYNC)) {
+                        for (int i = 0; i < 20; i++)
+                                piatto.salvaPersona(new Persona("N" + i, "C" + i, "Via " + i, "33300000" + i, 20 + i));
+                }
+                Files.writeString(baseDir.resolve("mario").resolve("info.txt"), "mario,hash", StandardCharsets.UTF_8);
+
+                LayoutCartelle layout = new LayoutCartelle(1, 1);
+                try (ContattiFs dao = new ContattiFs(baseDir, "mario", false, SENZA_FSYNC, layout)) {
+                        assertThat(dao.getContatti()).hasSize(20);
+                }
+
+                try (Stream<Path> vecchi = Files.list(baseDir.resolve("mario"))) {
+                        assertThat(vecchi.map(p -> p.getFileName().toString()).toList()).containsExactly("info.txt");
+                }
+                assertThat(MigrazioneLayout.migraUtente(baseDir, "mario", layout)).isZero();
+                assertThat(MigrazioneLayout.migraUtente(baseDir, "mario", new LayoutCartelle(1, 2))).isEqualTo(20);
+        }
+
+        @Test
+        void migrazioneInBlocco_spostaSoloGliUtentiPiatti() throws Exception {
+                for (String u : new String[]{"mario", "luigi"}) {
+                        try (ContattiFs piatto = new ContattiFs(baseDir, u, false, SENZA_FSYNC)) {
+                                piatto.salvaPersona(new Persona("Anna", "Rossi", "Via Roma 1", "3331234567", 30));
+                        }
+                }
+                LayoutCartelle layout = new LayoutCartelle(1, 0);
+
+                assertThat(MigrazioneLayout.migraTutto(baseDir, layout)).isEqualTo(2);
+                assertThat(MigrazioneLayout.migraTutto(baseDir, layout)).isZero();
+                try (ContattiFs dao = new ContattiFs(baseDir, "luigi", false, SENZA_FSYNC, layout)) {
+                        assertThat(dao.getContatti()).hasSize(1);
+                }
+        }
+
+        @Test
+        void scorriContatti_leggeIFileAllaProfonditaDelLayout_senzaCaricareLaCache() {
+                LayoutCartelle layout = new LayoutCartelle(1, 2);
+                try (ContattiFs dao = new ContattiFs(baseDir, "mario", false, SENZA_FSYNC, layout)) {
+                        for (int i = 0; i < 30; i++)
+                                dao.salvaPersona(new Persona("N" + i, "C" + i, "Via " + i, "33300000" + i, 20 + i));
+                }
+
+                try (ContattiFs dao = new ContattiFs(baseDir, "mario", false, SENZA_FSYNC, layout);
+                     Stream<Persona> contatti = dao.scorriContatti()) {
+                        assertThat(contatti.map(Persona::getTelefono).sorted().toList())
+                                .hasSize(30).contains("333000000", "3330000029");
+                }
+        }
+
+        @Test
+        void cambioDiTelefono_riscriveLoStessoFile_eIlTelefonoRestaUnivoco() throws Exception {
+                LayoutCartelle layout = new LayoutCartelle(1, 1);
+                try (ContattiFs dao = new ContattiFs(baseDir, "mario", false, SENZA_FSYNC, layout)) {
+                        Persona anna = new Persona("Anna", "Rossi", "Via Roma 1", "333", 30);
+                        dao.salvaPersona(anna);
+                        dao.salvaPersona(new Persona("Luca", "Bianchi", "Via Po 2", "444", 40));
+                        String id = anna.getId();
+
+                        Persona nuova = new Persona("Anna", "Rossi", "Via Roma 1", "555", 30);
+                        dao.modificaPersona(nuova, "333");
+                        assertThat(nuova.getId()).isEqualTo(id);
+                        assertThat(fileContatti(layout)).hasSize(2).contains(id + ".txt");
+
+                        assertThatThrownBy(() -> dao.modificaPersona(new Persona("Anna", "Rossi", "Via Roma 1", "444", 30), "555"))
+                                .hasMessageContaining("Telefono già presente");
+                }
+                try (ContattiFs riaperto = new ContattiFs(baseDir, "mario", false, SENZA_FSYNC, layout)) {
+                        assertThat(riaperto.getContatti().stream().map(Persona::getTelefono).sorted().toList())
+                                .containsExactly("444", "555");
+                }
+        }
+
+        @Test
+        void fileColNomeDiPrima_ricevonoUnIdentificativoAlPrimoCaricamento() throws Exception {
+                Path cartella = baseDir.resolve("mario");
+                Files.createDirectories(cartella);
+                Files.writeString(cartella.resolve("Anna-Rossi-333.txt"), "Anna;Rossi;Via Roma 1;333;30", StandardCharsets.UTF_8);
+                Files.writeString(cartella.resolve("Luca-Bianchi-444.txt"), "Luca;Bianchi;Via Po 2;444;40", StandardCharsets.UTF_8);
+                // stesso telefono sotto un altro nome, più vecchio: resta solo la copia più recente
+                Path doppione = cartella.resolve("Anna-Verdi-333.txt");
+                Files.writeString(doppione, "Anna;Verdi;Via Roma 1;333;30", StandardCharsets.UTF_8);
+                Files.setLastModifiedTime(doppione, FileTime.fromMillis(0));
+
+                try (ContattiFs dao = new ContattiFs(baseDir, "mario", false, SENZA_FSYNC)) {
+                        List<Persona> contatti = dao.getContatti();
+                        assertThat(contatti).hasSize(2);
+                        assertThat(contatti.stream().allMatch(p -> Ulid.valido(p.getId()))).isTrue();
+                        assertThat(contatti.stream().map(Persona::getCognome).sorted().toList()).containsExactly("Bianchi", "Rossi");
+                        assertThat(fileContatti(LayoutCartelle.PIATTO))
+                                .containsExactlyInAnyOrderElementsOf(contatti.stream().map(p -> p.getId() + ".txt").toList());
+                }
+        }
+
+        @Test
+        void dueIstanze_stessoTelefono_riscrivonoLaStessaVoce() throws Exception {
+                try (ContattiFs a = new ContattiFs(baseDir, "mario", false, SENZA_FSYNC);
+                     ContattiFs b = new ContattiFs(baseDir, "mario", false, SENZA_FSYNC)) {
+                        // entrambe con la cache già caricata, vuota
+                        assertThat(a.getContatti()).isEmpty();
+                        assertThat(b.getContatti()).isEmpty();
+
+                        Persona daA = new Persona("Anna", "Rossi", "Via Roma 1", "333", 30);
+                        Persona daB = new Persona("Anna", "Rossi", "Corso Francia 9", "333", 30);
+                        a.salvaPersona(daA);
+                        b.salvaPersona(daB);
+
+                        assertThat(daB.getId()).isEqualTo(daA.getId());
+                        assertThat(fileContatti(LayoutCartelle.PIATTO)).containsExactly(daA.getId() + ".txt");
+
+                        // il telefono liberato da un'eliminazione torna disponibile per una voce nuova
+                        b.rimuoviPersona(new Persona("333"));
+                        Persona nuova = new Persona("Sara", "Verdi", "Via Dante 3", "333", 25);
+                        a.salvaPersona(new Persona("Luca", "Bianchi", "Via Po 2", "444", 40));
+                        b.salvaPersona(nuova);
+                        assertThat(nuova.getId()).isNotEqualTo(daA.getId());
+                }
+                try (ContattiFs riaperto = new ContattiFs(baseDir, "mario", false, SENZA_FSYNC)) {
+                        assertThat(riaperto.getContatti()).extracting(Persona::getNome).containsExactlyInAnyOrder("Sara", "Luca");
+                }
+        }
+
+        @Test
+        void cambioDiTelefono_suUnTelefonoPresoDaUnAltraIstanza_vieneRifiutato() {
+                try (ContattiFs a = new ContattiFs(baseDir, "mario", false, SENZA_FSYNC);
+                     ContattiFs b = new ContattiFs(baseDir, "mario", false, SENZA_FSYNC)) {
+                        a.salvaPersona(new Persona("Anna", "Rossi", "Via Roma 1", "333", 30));
+                        assertThat(b.getContatti()).hasSize(1);
+                        a.salvaPersona(new Persona("Luca", "Bianchi", "Via Po 2", "444", 40));
+
+                        // b non ha ancora visto Luca
+                        assertThatThrownBy(() -> b.modificaPersona(new Persona("Anna", "Rossi", "Via Roma 1", "444", 30), "333"))
+                                .hasMessageContaining("Telefono già presente");
+                }
+        }
+
+        @Test
+        void identificativoDiPrima_ricavatoDalContenuto_nonDaDataENomeDelFile() throws Exception {
+                List<String> id = new java.util.ArrayList<>();
+                for (String utente : List.of("mario", "luigi")) {
+                        Path cartella = baseDir.resolve(utente);
+                        Files.createDirectories(cartella);
+                        // stessa voce, copiata con un altro nome e un'altra data
+                        Path f = cartella.resolve(utente.equals("mario") ? "Anna-Rossi-333.txt" : "anna_rossi_333.txt");
+                        Files.writeString(f, "Anna;Rossi;Via Roma 1;333;30", StandardCharsets.UTF_8);
+                        Files.setLastModifiedTime(f, FileTime.fromMillis(utente.equals("mario") ? 0 : 1_700_000_000_000L));
+                        try (ContattiFs dao = new ContattiFs(baseDir, utente, false, SENZA_FSYNC)) {
+                                id.add(dao.getContatti().get(0).getId());
+                        }
+                }
+                assertThat(Ulid.valido(id.get(0))).isTrue();
+                assertThat(id.get(1)).isEqualTo(id.get(0));
+        }
+
+        @Test
+        void doppioniGiaSalvati_restaSoloLaVocePrenotata() throws Exception {
+                Path cartella = baseDir.resolve("mario");
+                Files.createDirectories(cartella);
+                String vecchio = Ulid.da(1_000, "a");
+                String recente = Ulid.da(2_000, "b");
+                Files.writeString(cartella.resolve(vecchio + ".txt"), "Anna;Rossi;Via Roma 1;333;30", StandardCharsets.UTF_8);
+                Files.writeString(cartella.resolve(recente + ".txt"), "Anna;Rossi;Corso Francia 9;333;30", StandardCharsets.UTF_8);
+
+                try (ContattiFs dao = new ContattiFs(baseDir, "mario", false, SENZA_FSYNC)) {
+                        // senza indice resta la più recente
+                        assertThat(dao.getContatti()).extracting(Persona::getId).containsExactly(recente);
+                }
+                assertThat(fileContatti(LayoutCartelle.PIATTO)).containsExactly(recente + ".txt");
+        }
+
+        private List<String> fileContatti(LayoutCartelle layout) throws Exception {
+                try (Stream<Path> s = Files.walk(layout.cartellaUtente(baseDir, "mario"))) {
+                        return s.filter(Files::isRegularFile).map(p -> p.getFileName().toString())
+                                .filter(n -> n.endsWith(".txt")).toList();
+                }
+        }
+
+        @Test
+        void layoutFrammentato_nonOsservaLeSottocartelle() {
+                LayoutCartelle layout = new LayoutCartelle(0, 2);
+                try (ContattiFs dao = new ContattiFs(baseDir, "osservato", true, SENZA_FSYNC, layout)) {
+                        dao.salvaPersona(new Persona("Anna", "Rossi", "Via Roma 1", "3331234567", 30));
+                        // un watch per sottocartella esaurirebbe i watch inotify: nessun thread di osservazione
+                        assertThat(Thread.getAllStackTraces().keySet()).extracting(Thread::getName)
+                                .doesNotContain("contatti-watcher-osservato");
+                }
+        }
+}
@@ -0,0 +1,126 @@
+package it.dissanahmed.rubrica.persistenza;
+
+import it.dissanahmed.rubrica.Persona;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Verifica che le scritture atomiche lascino sempre un file intero e nessun temporaneo,
+ * anche con più scrittori sullo stesso file o quando la scrittura fallisce.
+ */
+class ScritturaDurevoleTest {
+
+        @TempDir
+        Path dir;
+
+        private List<Path> temporanei() throws IOException {
+                try (Stream<Path> s = Files.list(dir)) {
+                        return s.filter(p -> p.getFileName().toString().endsWith(".tmp")).toList();
+                }
+        }
+
+        @Test
+        void scrittoriConcorrenti_sulloStessoFile_lascianoUnContenutoIntero() throws Exception {
+                // due scrittori distinti, come due processi che non condividono lo stesso group commit
+                ScritturaDurevole[] scrittori = {
+                        ScritturaDurevole.get(ScritturaDurevole.Durabilita.NONE, 0),
+                        ScritturaDurevole.get(ScritturaDurevole.Durabilita.BATCH, 1)
+                };
+                Path file = dir.resolve("contatto.txt");
+                List<String> contenuti = new ArrayList<>();
+                for (int i = 0; i < scrittori.length; i++) contenuti.add(String.valueOf((char) ('a' + i)).repeat(64 * 1024));
+
+                CountDownLatch via = new CountDownLatch(1);
+                List<Thread> thread = new ArrayList<>();
+                List<Throwable> errori = new ArrayList<>();
+                for (int i = 0; i < scrittori.length; i++) {
+                        ScritturaDurevole s = scrittori[i];
+                        String contenuto = contenuti.get(i);
+                        Thread t = new Thread(() -> {
+                                try {
+                                        via.await();
+                                        List<CompletableFuture<Void>> commit = new ArrayList<>();
+                                        for (int n = 0; n < 200; n++) commit.add(s.scrivi(file, contenuto, StandardCharsets.UTF_8));
+                                        ScritturaDurevole.attendi(commit);
+                                } catch (Throwable e) {
+                                        synchronized (errori) {
+                                                errori.add(e);
+                                        }
+                                }
+                        });
+                        t.start();
+                        thread.add(t);
+                }
+                via.countDown();
+                for (Thread t : thread) t.join();
+
+                assertThat(errori).isEmpty();
+                assertThat(contenuti).contains(Files.readString(file, StandardCharsets.UTF_8));
+                assertThat(temporanei()).isEmpty();
+        }
+
+        @Test
+        void scritturaFallita_eliminaIlTemporaneo() throws Exception {
+                // il rename su una cartella non vuota fallisce dopo che il temporaneo è stato scritto
+                Path occupato = dir.resolve("contatto.txt");
+                Files.createDirectories(occupato.resolve("dentro"));
+                ScritturaDurevole s = ScritturaDurevole.get(ScritturaDurevole.Durabilita.NONE, 0);
+
+                assertThatThrownBy(() -> s.scrivi(occupato, "Anna;Rossi;Via Po 1;333;30", StandardCharsets.UTF_8))
+                        .isInstanceOf(IOException.class);
+                assertThat(temporanei()).isEmpty();
+        }
+
+        @Test
+        void pulisciTemporanei_eliminaSoloQuelliAbbandonati() throws Exception {
+                Path vecchio = Files.writeString(dir.resolve(".contatto.txt.123.tmp"), "a metà");
+                Files.setLastModifiedTime(vecchio, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+                Path recente = Files.writeString(dir.resolve(".altro.txt.456.tmp"), "in corso");
+
+                assertThat(ScritturaDurevole.pulisciTemporanei(dir, ScritturaDurevole.ETA_TEMPORANEI_MS)).isEqualTo(1);
+                assertThat(vecchio).doesNotExist();
+                assertThat(recente).exists();
+        }
+
+        @Test
+        void caricamentoContattiFs_eliminaITemporaneiAbbandonati() throws Exception {
+                LayoutCartelle layout = new LayoutCartelle(0, 1);
+                ScritturaDurevole s = ScritturaDurevole.get(ScritturaDurevole.Durabilita.NONE, 0);
+                Persona anna = new Persona("Anna", "Rossi", "Via Po 1", "333", 30);
+                try (ContattiFs dao = new ContattiFs(dir, "mario", false, s, layout)) {
+                        dao.salvaPersona(anna);
+                }
+                Path cartella = layout.cartellaContatto(layout.cartellaUtente(dir, "mario"), anna.getId());
+                Path abbandonato = Files.writeString(cartella.resolve("." + anna.getId() + ".txt.789.tmp"), "Anna;Ro");
+                Files.setLastModifiedTime(abbandonato, FileTime.fromMillis(0));
+
+                try (ContattiFs riaperto = new ContattiFs(dir, "mario", false, s, layout)) {
+                        assertThat(riaperto.getContatti()).extracting(Persona::getTelefono).containsExactly("333");
+                }
+                assertThat(abbandonato).doesNotExist();
+        }
+
+        @Test
+        void parse_valoreNonValido_indicaChiaveEValoriAmmessi() {
+                assertThat(ScritturaDurevole.Durabilita.parse(null)).isEqualTo(ScritturaDurevole.Durabilita.BATCH);
+                assertThat(ScritturaDurevole.Durabilita.parse(" per_op ")).isEqualTo(ScritturaDurevole.Durabilita.PER_OP);
+                assertThatThrownBy(() -> ScritturaDurevole.Durabilita.parse("sempre"))
+                        .isInstanceOf(IllegalArgumentException.class)
+                        .hasMessageContaining("fs.durability")
+                        .hasMessageContaining("PER_OP");
+        }
+}
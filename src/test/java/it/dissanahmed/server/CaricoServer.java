@@ -0,0 +1,152 @@
+package it.dissanahmed.server;
+
+import it.dissanahmed.util.Istogramma;
+import it.dissanahmed.util.Json;
+import it.dissanahmed.util.Metriche;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generatore di carico per {@link ServerRubrica}, da lanciare contro un server già avviato
+ * (<code>java -jar Rubrica.jar server</code>).
+ * <p>
+ * Apre {@code connessioni} socket keep-alive, ognuna su un virtual thread, e su ciascuna
+ * invia a ripetizione gruppi di {@code pipeline} richieste GET in un'unica scrittura prima
+ * di leggerne le risposte. Al termine stampa throughput, percentuali di errore e latenze
+ * (tempo dall'invio del gruppo alla ricezione di ciascuna risposta).
+ * </p>
+ * <pre>
+ * java -cp ... it.dissanahmed.server.CaricoServer host porta username password \
+ *      [connessioni=2000] [durataSec=30] [pipeline=4] [path=/api/contatti?limit=20]
+ * </pre>
+ */
+public class CaricoServer {
+
+        public static void main(String[] args) throws Exception {
+                if (args.length < 4) {
+                        System.err.println("Uso: CaricoServer host porta username password [connessioni] [durataSec] [pipeline] [path]");
+                        System.exit(2);
+                }
+                String host = args[0];
+                int porta = Integer.parseInt(args[1]);
+                int connessioni = args.length > 4 ? Integer.parseInt(args[4]) : 2000;
+                int durata = args.length > 5 ? Integer.parseInt(args[5]) : 30;
+                int pipeline = args.length > 6 ? Integer.parseInt(args[6]) : 4;
+                String path = args.length > 7 ? args[7] : "/api/contatti?limit=20";
+
+                String token = login(host, porta, args[2], args[3]);
+                byte[] gruppo = gruppo(host, path, token, pipeline);
+
+                Istogramma latenze = Metriche.istogramma("carico.latenza");
+                LongAdder ok = new LongAdder();
+                LongAdder errori = new LongAdder();
+                AtomicInteger aperte = new AtomicInteger();
+                AtomicInteger picco = new AtomicInteger();
+                AtomicInteger fallite = new AtomicInteger();
+                long fine = System.nanoTime() + Duration.ofSeconds(durata).toNanos();
+                CountDownLatch finito = new CountDownLatch(connessioni);
+
+                long inizio = System.nanoTime();
+                try (ExecutorService ex = Executors.newVirtualThreadPerTaskExecutor()) {
+                        for (int c = 0; c < connessioni; c++) {
+                                ex.submit(() -> {
+                                        try (Socket s = new Socket(host, porta)) {
+                                                s.setTcpNoDelay(true);
+                                                picco.accumulateAndGet(aperte.incrementAndGet(), Math::max);
+                                                OutputStream out = s.getOutputStream();
+                                                InputStream in = new BufferedInputStream(s.getInputStream());
+                                                while (System.nanoTime() < fine) {
+                                                        long t0 = System.nanoTime();
+                                                        out.write(gruppo);
+                                                        out.flush();
+                                                        for (int i = 0; i < pipeline; i++) {
+                                                                int stato = leggiRisposta(in);
+                                                                latenze.registra(System.nanoTime() - t0);
+                                                                if (stato == 200) ok.increment();
+                                                                else errori.increment();
+                                                        }
+                                                }
+                                        } catch (IOException e) {
+                                                fallite.incrementAndGet();
+                                        } finally {
+                                                aperte.decrementAndGet();
+                                                finito.countDown();
+                                        }
+                                        return null;
+                                });
+                        }
+                        finito.await();
+                }
+                double secondi = (System.nanoTime() - inizio) / 1e9;
+                long totale = ok.sum() + errori.sum();
+                Istogramma.Snapshot s = latenze.snapshot();
+                System.out.printf(Locale.ROOT, "connessioni=%d (picco aperte=%d, fallite=%d) pipeline=%d durata=%.1fs%n",
+                        connessioni, picco.get(), fallite.get(), pipeline, secondi);
+                System.out.printf(Locale.ROOT, "richieste=%d ok=%d errori=%d throughput=%.0f req/s%n",
+                        totale, ok.sum(), errori.sum(), totale / secondi);
+                System.out.println("latenza: " + s);
+        }
+
+        private static String login(String host, int porta, String username, String password) throws Exception {
+                HttpClient client = HttpClient.newHttpClient();
+                String corpo = "{\"username\":" + Json.stringa(username) + ",\"password\":" + Json.stringa(password) + "}";
+                HttpResponse<String> r = client.send(HttpRequest.newBuilder(URI.create("http://" + host + ":" + porta + "/api/login"))
+                                .POST(HttpRequest.BodyPublishers.ofString(corpo)).build(),
+                        HttpResponse.BodyHandlers.ofString());
+                if (r.statusCode() != 200) throw new IllegalStateException("Login fallito: " + r.statusCode() + " " + r.body());
+                return String.valueOf(Json.leggiOggetto(r.body()).get("token"));
+        }
+
+        private static byte[] gruppo(String host, String path, String token, int pipeline) {
+                String richiesta = "GET " + path + " HTTP/1.1\r\n"
+                        + "Host: " + host + "\r\n"
+                        + "Authorization: Bearer " + token + "\r\n"
+                        + "\r\n";
+                return richiesta.repeat(pipeline).getBytes(StandardCharsets.US_ASCII);
+        }
+
+        /* Legge una risposta HTTP/1.1 con Content-Length e ne restituisce lo stato. */
+        private static int leggiRisposta(InputStream in) throws IOException {
+                List<String> intestazioni = new ArrayList<>();
+                String riga;
+                while (!(riga = leggiRiga(in)).isEmpty()) intestazioni.add(riga);
+                if (intestazioni.isEmpty()) throw new IOException("risposta vuota");
+                int stato = Integer.parseInt(intestazioni.get(0).split(" ", 3)[1]);
+                long lunghezza = 0;
+                for (String h : intestazioni) {
+                        if (h.regionMatches(true, 0, "Content-Length:", 0, 15)) lunghezza = Long.parseLong(h.substring(15).trim());
+                }
+                in.skipNBytes(lunghezza);
+                return stato;
+        }
+
+        private static String leggiRiga(InputStream in) throws IOException {
+                ByteArrayOutputStream b = new ByteArrayOutputStream(64);
+                int c;
+                while ((c = in.read()) != -1) {
+                        if (c == '\n') break;
+                        if (c != '\r') b.write(c);
+                }
+                if (c == -1) throw new IOException("connessione chiusa");
+                return b.toString(StandardCharsets.US_ASCII);
+        }
+}
@@ -0,0 +1,172 @@
+package it.dissanahmed.server;
+
+import it.dissanahmed.login.GestioneLogin;
+import it.dissanahmed.login.ex.ProblemaAutenticazione;
+import it.dissanahmed.rubrica.GestoreRubriche;
+import it.dissanahmed.util.Configurazione;
+import it.dissanahmed.util.Json;
+import it.dissanahmed.util.Metriche;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Endpoint di {@link ServerRubrica} su una porta libera, con rubriche su file system e
+ * credenziali finte: autenticazione, modifica atomica dei campi e conteggio degli errori.
+ */
+class ServerRubricaTest {
+
+        @TempDir
+        Path cartella;
+
+        private ServerRubrica server;
+        private HttpClient client;
+        private String base;
+
+        @BeforeEach
+        void setUp() throws Exception {
+                Map<String, String> conf = new HashMap<>();
+                conf.put("database.instance", "fs");
+                conf.put("fs.baseDir", cartella.toString());
+                Configurazione.imposta(conf);
+                ServerRubrica.Autenticatore autenticatore = (u, p) -> {
+                        if (!p.equals("segreta")) throw new ProblemaAutenticazione("password errata");
+                        GestioneLogin login = mock(GestioneLogin.class);
+                        when(login.getLoggedUser()).thenReturn(u);
+                        return login;
+                };
+                server = new ServerRubrica(new InetSocketAddress("127.0.0.1", 0), 16, Duration.ofMinutes(5),
+                        autenticatore, GestoreRubriche.daConfigurazione(Configurazione.get()));
+                server.avvia();
+                client = HttpClient.newHttpClient();
+                base = "http://127.0.0.1:" + server.getIndirizzo().getPort();
+        }
+
+        @AfterEach
+        void tearDown() {
+                server.close();
+                Configurazione.ricarica();
+        }
+
+        private HttpResponse<String> invia(String metodo, String percorso, String token, String corpo) throws Exception {
+                HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(base + percorso))
+                        .method(metodo, corpo == null ? HttpRequest.BodyPublishers.noBody()
+                                : HttpRequest.BodyPublishers.ofString(corpo));
+                if (token != null) b.header("Authorization", "Bearer " + token);
+                return client.send(b.build(), HttpResponse.BodyHandlers.ofString());
+        }
+
+        private String accedi(String utente) throws Exception {
+                HttpResponse<String> r = invia("POST", "/api/login", null,
+                        "{\"username\":\"" + utente + "\",\"password\":\"segreta\"}");
+                assertThat(r.statusCode()).isEqualTo(200);
+                return (String) Json.leggiOggetto(r.body()).get("token");
+        }
+
+        private void inserisci(String token, String nome, String telefono) throws Exception {
+                HttpResponse<String> r = invia("POST", "/api/contatti", token, "{\"nome\":\"" + nome
+                        + "\",\"cognome\":\"Rossi\",\"indirizzo\":\"Via Po 1\",\"telefono\":\"" + telefono + "\",\"eta\":30}");
+                assertThat(r.statusCode()).isEqualTo(201);
+        }
+
+        @Test
+        void stats_senzaSessione_401_conSessione_200() throws Exception {
+                assertThat(invia("GET", "/api/stats", null, null).statusCode()).isEqualTo(401);
+                assertThat(invia("GET", "/api/stats", "inventato", null).statusCode()).isEqualTo(401);
+
+                String token = accedi("mario");
+                HttpResponse<String> r = invia("GET", "/api/stats", token, null);
+                assertThat(r.statusCode()).isEqualTo(200);
+                assertThat(r.body()).contains("\"http.login\"");
+        }
+
+        @Test
+        void login_credenzialiErrate_401() throws Exception {
+                HttpResponse<String> r = invia("POST", "/api/login", null, "{\"username\":\"mario\",\"password\":\"no\"}");
+                assertThat(r.statusCode()).isEqualTo(401);
+        }
+
+        @Test
+        void put_piuCampi_applicatiInsieme_eContattoRaggiungibileColNuovoTelefono() throws Exception {
+                String token = accedi("mario");
+                inserisci(token, "Anna", "333");
+
+                HttpResponse<String> r = invia("PUT", "/api/contatti/333", token,
+                        "{\"nome\":\"Sara\",\"indirizzo\":\"Via Roma 2\",\"telefono\":\"444\",\"eta\":41}");
+                assertThat(r.statusCode()).isEqualTo(200);
+
+                assertThat(invia("GET", "/api/contatti/333", token, null).statusCode()).isEqualTo(404);
+                Map<String, Object> letto = Json.leggiOggetto(invia("GET", "/api/contatti/444", token, null).body());
+                assertThat(letto).containsEntry("nome", "Sara").containsEntry("indirizzo", "Via Roma 2")
+                        .containsEntry("eta", 41L);
+        }
+
+        @Test
+        void put_unCampoNonValido_nessunCampoModificato() throws Exception {
+                String token = accedi("mario");
+                inserisci(token, "Anna", "333");
+                inserisci(token, "Luca", "555");
+
+                // il nome è valido, il telefono no
+                assertThat(invia("PUT", "/api/contatti/333", token, "{\"nome\":\"Sara\",\"telefono\":\"abc\"}")
+                        .statusCode()).isEqualTo(400);
+                // il nome è valido, il telefono appartiene a un altro contatto
+                assertThat(invia("PUT", "/api/contatti/333", token, "{\"nome\":\"Sara\",\"telefono\":\"555\"}")
+                        .statusCode()).isEqualTo(409);
+                // il telefono è valido, l'età no
+                assertThat(invia("PUT", "/api/contatti/333", token, "{\"telefono\":\"777\",\"eta\":\"x\"}")
+                        .statusCode()).isEqualTo(400);
+
+                Map<String, Object> letto = Json.leggiOggetto(invia("GET", "/api/contatti/333", token, null).body());
+                assertThat(letto).containsEntry("nome", "Anna").containsEntry("eta", 30L);
+                assertThat(invia("GET", "/api/contatti/777", token, null).statusCode()).isEqualTo(404);
+        }
+
+        @Test
+        void lista_ordinataEAggiornataDopoLeScritture() throws Exception {
+                String token = accedi("mario");
+                inserisci(token, "Sara", "333");
+                inserisci(token, "Anna", "444");
+                assertThat(lista(token)).containsSubsequence("\"Anna\"", "\"Sara\"");
+
+                invia("PUT", "/api/contatti/444", token, "{\"nome\":\"Zoe\"}");
+                assertThat(lista(token)).containsSubsequence("\"Sara\"", "\"Zoe\"").doesNotContain("\"Anna\"");
+        }
+
+        private String lista(String token) throws Exception {
+                HttpResponse<String> r = invia("GET", "/api/contatti", token, null);
+                assertThat(r.statusCode()).isEqualTo(200);
+                return r.body();
+        }
+
+        @Test
+        void erroriHttp_sonoContatiNelleMetriche() throws Exception {
+                String token = accedi("mario");
+                long prima = contatore("http.contatti.errori.404");
+                long primaNonAutorizzati = contatore("http.contatti.errori.401");
+
+                assertThat(invia("GET", "/api/contatti/999", token, null).statusCode()).isEqualTo(404);
+                assertThat(invia("GET", "/api/contatti", null, null).statusCode()).isEqualTo(401);
+
+                assertThat(contatore("http.contatti.errori.404")).isEqualTo(prima + 1);
+                assertThat(contatore("http.contatti.errori.401")).isEqualTo(primaNonAutorizzati + 1);
+        }
+
+        private static long contatore(String nome) {
+                return Metriche.contatore(nome).sum();
+        }
+}
@@ -0,0 +1,179 @@
+package it.dissanahmed.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Verifica sfratto LRU per numero e per peso, caricamento singolo con accessi
+ * concorrenti, ordine tra sfratto e ricaricamento della stessa chiave e sfratto rinviato
+ * delle voci in prestito o in caricamento.
+ */
+class CachePesataTest {
+
+        private final List<String> sfrattate = new CopyOnWriteArrayList<>();
+
+        private CachePesata<String, String> cache(int maxVoci, long maxPeso) {
+                return new CachePesata<>(maxVoci, maxPeso, k -> k, String::length, (k, v) -> sfrattate.add(k));
+        }
+
+        @Test
+        void superatoNumeroMassimo_sfrattaLaMenoUsataDiRecente() {
+                CachePesata<String, String> c = cache(2, 1_000);
+                c.get("a");
+                c.get("b");
+                c.get("a");
+                c.get("c");
+
+                assertThat(sfrattate).containsExactly("b");
+                assertThat(c.statistiche().voci()).isEqualTo(2L);
+                assertThat(c.statistiche().hit()).isEqualTo(1L);
+                assertThat(c.statistiche().miss()).isEqualTo(3L);
+        }
+
+        @Test
+        void superatoPesoMassimo_sfrattaFinoARientrare() {
+                CachePesata<String, String> c = cache(100, 9);
+                c.get("aaaa");
+                c.get("bbbb");
+                c.get("cccccc");
+
+                assertThat(sfrattate).containsExactly("aaaa", "bbbb");
+                assertThat(c.statistiche().peso()).isEqualTo(6L);
+        }
+
+        @Test
+        void accessiConcorrenti_caricanoUnaSolaVolta() throws Exception {
+                AtomicInteger caricamenti = new AtomicInteger();
+                CountDownLatch dentro = new CountDownLatch(1);
+                CountDownLatch via = new CountDownLatch(1);
+                CachePesata<String, String> c = new CachePesata<>(10, 100, k -> {
+                        caricamenti.incrementAndGet();
+                        dentro.countDown();
+                        try {
+                                via.await();
+                        } catch (InterruptedException e) {
+                                throw new IllegalStateException(e);
+                        }
+                        return "valore";
+                }, String::length, (k, v) -> {});
+
+                List<Future<String>> risultati = new ArrayList<>();
+                try (ExecutorService ex = Executors.newFixedThreadPool(8)) {
+                        for (int i = 0; i < 8; i++) risultati.add(ex.submit(() -> c.get("mario")));
+                        assertThat(dentro.await(5, TimeUnit.SECONDS)).isTrue();
+                        via.countDown();
+                        for (Future<String> f : risultati) assertThat(f.get(5, TimeUnit.SECONDS)).isEqualTo("valore");
+                }
+                assertThat(caricamenti.get()).isEqualTo(1);
+        }
+
+        @Test
+        void caricamentoFallito_nonVieneMemorizzato() {
+                AtomicInteger tentativi = new AtomicInteger();
+                CachePesata<String, String> c = new CachePesata<>(10, 100, k -> {
+                        if (tentativi.incrementAndGet() == 1) throw new IllegalStateException("DAO non disponibile");
+                        return k;
+                }, String::length, (k, v) -> {});
+
+                assertThatThrownBy(() -> c.get("mario")).isInstanceOf(IllegalStateException.class);
+                assertThat(c.get("mario")).isEqualTo("mario");
+                assertThat(c.statistiche().caricamentiFalliti()).isEqualTo(1L);
+        }
+
+        @Test
+        void ricaricamento_attendeLoSfrattoInCorso() throws Exception {
+                CountDownLatch inSfratto = new CountDownLatch(1);
+                CountDownLatch fineSfratto = new CountDownLatch(1);
+                List<String> eventi = new CopyOnWriteArrayList<>();
+                CachePesata<String, String> c = new CachePesata<>(10, 100, k -> {
+                        eventi.add("carica " + k);
+                        return k;
+                }, String::length, (k, v) -> {
+                        eventi.add("inizio sfratto " + k);
+                        inSfratto.countDown();
+                        try {
+                                fineSfratto.await();
+                        } catch (InterruptedException e) {
+                                throw new IllegalStateException(e);
+                        }
+                        eventi.add("fine sfratto " + k);
+                });
+                c.get("mario");
+
+                try (ExecutorService ex = Executors.newFixedThreadPool(2)) {
+                        Future<?> sfratto = ex.submit(() -> c.invalida("mario"));
+                        assertThat(inSfratto.await(5, TimeUnit.SECONDS)).isTrue();
+                        Future<String> ricarica = ex.submit(() -> c.get("mario"));
+                        Thread.sleep(50);
+                        fineSfratto.countDown();
+                        sfratto.get(5, TimeUnit.SECONDS);
+                        assertThat(ricarica.get(5, TimeUnit.SECONDS)).isEqualTo("mario");
+                }
+                assertThat(eventi).containsExactly("carica mario", "inizio sfratto mario", "fine sfratto mario", "carica mario");
+        }
+
+        @Test
+        void svuota_sfrattaTutteLeVoci() {
+                CachePesata<String, String> c = cache(10, 100);
+                c.get("a");
+                c.get("b");
+                c.svuota();
+
+                assertThat(sfrattate).containsExactlyInAnyOrder("a", "b");
+                assertThat(c.statistiche().voci()).isZero();
+                assertThat(c.statistiche().peso()).isZero();
+        }
+
+        @Test
+        void voceInPrestito_nonVieneSfrattataPrimaDellaRestituzione() {
+                CachePesata<String, String> c = cache(1, 1_000);
+                CachePesata.Prestito<String> a = c.prendi("a");
+                c.get("b");
+                // "a" è in prestito: esce "b", la meno recente fra quelle libere
+                assertThat(sfrattate).containsExactly("b");
+
+                c.invalida("a");
+                assertThat(sfrattate).containsExactly("b");
+                a.close();
+                a.close();
+                assertThat(sfrattate).containsExactly("b", "a");
+        }
+
+        @Test
+        void svuotaDuranteIlCaricamento_sfrattaQuandoIlCaricamentoFinisce() throws Exception {
+                CountDownLatch dentro = new CountDownLatch(1);
+                CountDownLatch via = new CountDownLatch(1);
+                CachePesata<String, String> c = new CachePesata<>(10, 100, k -> {
+                        dentro.countDown();
+                        try {
+                                via.await();
+                        } catch (InterruptedException e) {
+                                throw new IllegalStateException(e);
+                        }
+                        return k;
+                }, String::length, (k, v) -> sfrattate.add(k));
+
+                try (ExecutorService ex = Executors.newSingleThreadExecutor()) {
+                        Future<String> caricamento = ex.submit(() -> c.get("mario"));
+                        assertThat(dentro.await(5, TimeUnit.SECONDS)).isTrue();
+                        c.svuota();
+                        assertThat(sfrattate).isEmpty();
+                        via.countDown();
+                        assertThat(caricamento.get(5, TimeUnit.SECONDS)).isEqualTo("mario");
+                }
+                // il valore caricato dopo lo svuotamento non resta aperto e fuori dalla cache
+                assertThat(sfrattate).containsExactly("mario");
+                assertThat(c.statistiche().voci()).isZero();
+        }
+}
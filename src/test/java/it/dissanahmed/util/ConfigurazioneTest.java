@@ -0,0 +1,59 @@
+package it.dissanahmed.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Ricarica di {@link Configurazione}: una lettura fallita o una sorgente scomparsa non
+ * sostituiscono con i valori di default la configurazione in vigore.
+ */
+class ConfigurazioneTest {
+
+        @TempDir
+        Path cartella;
+
+        @AfterEach
+        void tearDown() {
+                // senza sorgente esterna la ricarica dal classpath è sempre pubblicata
+                Configurazione.imposta(Map.of());
+                Configurazione.ricarica();
+        }
+
+        private Path sorgente() throws Exception {
+                return Files.writeString(cartella.resolve("conf.properties"), "database.instance=dbms\n");
+        }
+
+        @Test
+        void letturaFallita_mantieneLaConfigurazioneCorrente() throws Exception {
+                assertThat(Configurazione.ricarica(new Configurazione(Map.of("database.instance", "dbms"), sorgente(), true)))
+                        .isTrue();
+
+                assertThat(Configurazione.ricarica(new Configurazione(Map.of(), sorgente(), false))).isFalse();
+                assertThat(Configurazione.get().getIstanzaDatabase()).isEqualTo("dbms");
+                assertThat(Configurazione.get().isCaricata()).isTrue();
+        }
+
+        @Test
+        void sorgenteScomparsa_mantieneLaConfigurazioneCorrente_finchéNonRicompare() throws Exception {
+                Path file = sorgente();
+                Configurazione.ricarica(new Configurazione(Map.of("database.instance", "dbms"), file, true));
+
+                Files.delete(file);
+                // la copia nel classpath, letta senza errori, non prende il posto del file cancellato
+                assertThat(Configurazione.ricarica(new Configurazione(Map.of(), null, true))).isFalse();
+                assertThat(Configurazione.get().getIstanzaDatabase()).isEqualTo("dbms");
+                assertThat(Configurazione.get().getSorgente()).contains(file);
+
+                sorgente();
+                assertThat(Configurazione.ricarica(new Configurazione(Map.of("database.instance", "fs"), file, true)))
+                        .isTrue();
+                assertThat(Configurazione.get().getIstanzaDatabase()).isEqualTo("fs");
+        }
+}
@@ -0,0 +1,96 @@
+package it.dissanahmed.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Pool di {@link DatabaseIncorporato}: attesa limitata quando è esaurito, connessioni perse
+ * sostituite e rifiuto immediato dopo la chiusura.
+ */
+class DatabaseIncorporatoTest {
+
+        private DatabaseIncorporato db;
+
+        @BeforeEach
+        void setUp() {
+                Properties p = new Properties();
+                p.setProperty("db.incorporato.url", "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+                p.setProperty("db.incorporato.connessioni", "1");
+                p.setProperty("db.incorporato.attesaMs", "200");
+                db = DatabaseIncorporato.get(p);
+        }
+
+        @AfterEach
+        void tearDown() {
+                db.close();
+        }
+
+        @Test
+        void poolEsaurito_attendeSoloFinoAllaScadenza() throws Exception {
+                CountDownLatch presa = new CountDownLatch(1);
+                CountDownLatch rilascia = new CountDownLatch(1);
+                Thread occupante = new Thread(() -> {
+                        try {
+                                db.transazione(c -> {
+                                        presa.countDown();
+                                        try {
+                                                rilascia.await();
+                                        } catch (InterruptedException e) {
+                                                Thread.currentThread().interrupt();
+                                        }
+                                        return null;
+                                });
+                        } catch (Exception ignored) {
+                                // il test controlla solo il secondo chiamante
+                        }
+                });
+                occupante.start();
+                presa.await();
+
+                long t0 = System.nanoTime();
+                assertThatThrownBy(() -> db.transazione(c -> null)).isInstanceOf(SQLTransientConnectionException.class)
+                        .hasMessageContaining("Nessuna connessione libera");
+                assertThat((System.nanoTime() - t0) / 1_000_000).isBetween(150L, 2_000L);
+
+                rilascia.countDown();
+                occupante.join();
+                assertThat(db.<Integer>transazione(c -> 1)).isEqualTo(1);
+        }
+
+        @Test
+        void connessioneChiusaDalLavoro_vieneSostituita() throws Exception {
+                AtomicReference<Connection> prima = new AtomicReference<>();
+                db.transazione(c -> {
+                        prima.set(c);
+                        return null;
+                });
+                prima.get().close();
+
+                Connection seconda = db.transazione(c -> {
+                        assertThat(c.isClosed()).isFalse();
+                        return c;
+                });
+                assertThat(seconda).isNotSameAs(prima.get());
+        }
+
+        @Test
+        void dopoLaChiusura_fallisceSubito() {
+                db.close();
+
+                long t0 = System.nanoTime();
+                assertThatThrownBy(() -> db.transazione(c -> null)).isInstanceOf(SQLNonTransientConnectionException.class)
+                        .hasMessageContaining("chiuso");
+                assertThat((System.nanoTime() - t0) / 1_000_000).isLessThan(100L);
+        }
+}
@@ -0,0 +1,41 @@
+package it.dissanahmed.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Verifica la precisione dei percentili e la gestione dei valori limite.
+ */
+class IstogrammaTest {
+
+        @Test
+        void snapshot_vuoto_restituisceZeri() {
+                Istogramma.Snapshot s = new Istogramma().snapshot();
+                assertThat(s.count()).isZero();
+                assertThat(s.p99()).isZero();
+        }
+
+        @Test
+        void percentili_distribuzioneUniforme_entroErroreRelativo() {
+                Istogramma h = new Istogramma();
+                for (long v = 1; v <= 100_000; v++) h.registra(v * 1_000);
+
+                Istogramma.Snapshot s = h.snapshot();
+                assertThat(s.count()).isEqualTo(100_000);
+                assertThat(s.max()).isEqualTo(100_000_000L);
+                assertThat((double) s.p50()).isBetween(50_000_000d * 0.93, 50_000_000d * 1.07);
+                assertThat((double) s.p99()).isBetween(99_000_000d * 0.93, 99_000_000d * 1.07);
+                assertThat(s.media()).isBetween(50_000_500d * 0.999, 50_000_500d * 1.001);
+        }
+
+        @Test
+        void indice_eLimiteSuperiore_sonoCoerenti_suTuttoLIntervallo() {
+                long[] valori = {0, 1, 15, 16, 17, 1_000, 123_456_789, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+                for (long v : valori) {
+                        int i = Istogramma.indice(v);
+                        assertThat(Istogramma.limiteSuperiore(i)).isGreaterThanOrEqualTo(v);
+                        if (i > 0) assertThat(Istogramma.limiteSuperiore(i - 1)).isLessThan(v);
+                }
+        }
+}
@@ -0,0 +1,44 @@
+package it.dissanahmed.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Verifica formato, ordinamento e determinismo degli identificativi.
+ */
+class UlidTest {
+
+        @Test
+        void nuovo_benFormato_eStrettamenteCrescente() {
+                List<String> ids = new ArrayList<>();
+                for (int i = 0; i < 10_000; i++) ids.add(Ulid.nuovo());
+
+                for (int i = 1; i < ids.size(); i++) {
+                        assertThat(Ulid.valido(ids.get(i))).isTrue();
+                        assertThat(ids.get(i).compareTo(ids.get(i - 1))).isGreaterThan(0);
+                }
+                long ms = Ulid.millis(ids.get(0));
+                assertThat(Math.abs(ms - System.currentTimeMillis())).isLessThan(60_000L);
+        }
+
+        @Test
+        void da_stessiArgomenti_stessoIdentificativo() {
+                String a = Ulid.da(1_700_000_000_000L, "Anna-Rossi-333.txt");
+                assertThat(Ulid.da(1_700_000_000_000L, "Anna-Rossi-333.txt")).isEqualTo(a);
+                assertThat(Ulid.da(1_700_000_000_000L, "Luca-Bianchi-444.txt")).isNotEqualTo(a);
+                assertThat(Ulid.millis(a)).isEqualTo(1_700_000_000_000L);
+        }
+
+        @Test
+        void valido_rifiutaLunghezzaECaratteriSbagliati() {
+                assertThat(Ulid.valido(null)).isFalse();
+                assertThat(Ulid.valido("Anna-Rossi-333")).isFalse();
+                assertThat(Ulid.valido("01ARZ3NDEKTSV4RRFFQ69G5FAVX")).isFalse();
+                assertThat(Ulid.valido("01ARZ3NDEKTSV4RRFFQ69G5FAI")).isFalse();
+                assertThat(Ulid.valido("01ARZ3NDEKTSV4RRFFQ69G5FAV")).isTrue();
+        }
+}